@@ -0,0 +1,92 @@
+/*
+ * Class         : BenchmarkImages
+ *
+ * Description   : Generate the images and texts of the benchmarks
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Generate the images and texts of the benchmarks, the same for every run
+ */
+final class BenchmarkImages {
+
+    /**
+     * Text repeated to build texts of any length
+     */
+    private static final String SAMPLE = "Canon EOS 5D Mark IV - 24.05.2023 14:31:07 - 46.5197, 6.6323 - Lausanne, the pier at dawn. ";
+
+    private BenchmarkImages() {
+    }
+
+    /**
+     * Generate an image with gradients and noise, so the encoders work as on a photo
+     *
+     * @param megapixels the size of the image in millions of pixels, with a 3:2 ratio
+     * @param alpha      True for a TYPE_INT_ARGB image with varying alpha, False for an opaque TYPE_3BYTE_BGR image,
+     *                   the type of a decoded JPEG
+     * @return the image
+     */
+    static BufferedImage photo(int megapixels, boolean alpha) {
+        int width = (int) Math.sqrt(megapixels * 1_000_000 * 1.5);
+        int height = megapixels * 1_000_000 / width;
+        BufferedImage image = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(42);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(16);
+                int r = (x * 255 / width + noise) & 0xFF;
+                int g = (y * 255 / height + noise) & 0xFF;
+                int b = ((x + y) * 127 / (width + height) + noise) & 0xFF;
+                int a = alpha ? (x * 4 / width) * 85 : 0xFF;
+                row[x] = a << 24 | r << 16 | g << 8 | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    /**
+     * Save an image in a temporary file deleted at exit
+     *
+     * @param image  the image
+     * @param format the format, used as extension
+     * @return the path of the file
+     * @throws IOException if the file can't be written
+     */
+    static String save(BufferedImage image, String format) throws IOException {
+        File file = Files.createTempFile("inko-bench", "." + format).toFile();
+        file.deleteOnExit();
+        String path = file.getPath();
+        ImageHandler.saveImage(image, path.substring(0, path.length() - format.length() - 1), format);
+        return path;
+    }
+
+    /**
+     * Get a text of a length
+     *
+     * @param length the number of chars
+     * @return the text
+     */
+    static String text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append(SAMPLE, 0, Math.min(SAMPLE.length(), length - text.length()));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Class         : CompositeBenchmark
+ *
+ * Description   : Measure the overlay of the text image on images
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure ImageTextOverlay.overlayImages, on a copy of the base image and in place
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CompositeBenchmark {
+
+    /**
+     * Size of the image in megapixels
+     */
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    /**
+     * True for a base image with alpha saved as png, False for an opaque image saved as jpeg
+     */
+    @Param({"false", "true"})
+    public boolean alpha;
+
+    /**
+     * Number of chars of the text
+     */
+    @Param({"16", "256"})
+    public int textLength;
+
+    private BufferedImage _image;
+    private BufferedImage _text;
+    private ImageTextOverlay _overlayer;
+    private String _format;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        _image = BenchmarkImages.photo(megapixels, alpha);
+        _format = alpha ? "png" : "jpeg";
+        OverlayConfig config = new OverlayConfig.Builder().SetBackgroundColor("#80FFFFFF").build();
+        _overlayer = new ImageTextOverlay(config);
+        _text = _overlayer.CreateImageText(BenchmarkImages.text(textLength), _image.getWidth());
+    }
+
+    @Benchmark
+    public BufferedImage overlayImages() {
+        return _overlayer.overlayImages(_image, _text, "rb", _format);
+    }
+
+    @Benchmark
+    public BufferedImage overlayImagesInPlace() {
+        // the text is blended again on the same pixels, the cost is the same
+        return _overlayer.overlayImages(_image, _text, "rb", _format, true);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Class         : ConvertBenchmark
+ *
+ * Description   : Compare the ARGB to RGB conversion with the per pixel getRGB/setRGB loop
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare ImageHandler.convertARGBtoRGB with the per pixel getRGB/setRGB loop it replaces
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConvertBenchmark {
+
+    /**
+     * Size of the image in megapixels
+     */
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    /**
+     * Type of the image: INT_ARGB (generated) or 4BYTE_ABGR (ImageIO png with alpha)
+     */
+    @Param({"INT_ARGB", "4BYTE_ABGR"})
+    public String type;
+
+    /**
+     * Image to convert
+     */
+    private BufferedImage _image;
+
+    @Setup
+    public void setup() {
+        int width = (int) Math.sqrt(megapixels * 1_000_000 * 1.5);
+        int height = megapixels * 1_000_000 / width;
+        _image = new BufferedImage(width, height,
+                type.equals("INT_ARGB") ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_4BYTE_ABGR);
+        Random random = new Random(42);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                row[x] = random.nextInt();
+            }
+            _image.setRGB(0, y, width, 1, row, 0, width);
+        }
+    }
+
+    @Benchmark
+    public BufferedImage perPixelLoop() {
+        int width = _image.getWidth();
+        int height = _image.getHeight();
+        BufferedImage rgbImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int argbColor = _image.getRGB(x, y);
+                int rgbColor = ImageHandler.argbToRgb(argbColor);
+                if (argbColor >>> 24 == 0) {
+                    rgbColor = 0xFFFFFF;
+                }
+                rgbImage.setRGB(x, y, rgbColor);
+            }
+        }
+        return rgbImage;
+    }
+
+    @Benchmark
+    public BufferedImage convertARGBtoRGB() {
+        return ImageHandler.convertARGBtoRGB(_image);
+    }
+}
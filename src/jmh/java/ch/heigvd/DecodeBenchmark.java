@@ -0,0 +1,58 @@
+/*
+ * Class         : DecodeBenchmark
+ *
+ * Description   : Measure the decode of images by ImageHandler
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the construction of ImageHandler: mapping of the file and decode
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DecodeBenchmark {
+
+    /**
+     * Size of the image in megapixels
+     */
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    /**
+     * Format of the file: jpeg (opaque), png (opaque) or png with alpha
+     */
+    @Param({"jpeg", "png", "png-alpha"})
+    public String input;
+
+    /**
+     * Path of the file to decode
+     */
+    private String _path;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        boolean alpha = input.equals("png-alpha");
+        _path = BenchmarkImages.save(BenchmarkImages.photo(megapixels, alpha), alpha ? "png" : input);
+    }
+
+    @Benchmark
+    public ImageHandler decode() throws IOException {
+        return new ImageHandler(new ImageSource(_path));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Class         : EncodeBenchmark
+ *
+ * Description   : Measure the save of images per format
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure ImageHandler.saveImage per output format, a jpeg with alpha includes the conversion to RGB.
+ * The encoder settings are parameters too: -p pngCompression=1,4 -p pngFilter=none,adaptive
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EncodeBenchmark {
+
+    /**
+     * Size of the image in megapixels
+     */
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    /**
+     * True for an image with alpha, False for an opaque image
+     */
+    @Param({"false", "true"})
+    public boolean alpha;
+
+    /**
+     * Output format
+     */
+    @Param({"jpeg", "png"})
+    public String format;
+
+    /**
+     * JPEG quality in percent
+     */
+    @Param({"75"})
+    public String quality;
+
+    /**
+     * PNG compression level
+     */
+    @Param({"4"})
+    public String pngCompression;
+
+    /**
+     * PNG row filter
+     */
+    @Param({"adaptive"})
+    public String pngFilter;
+
+    private BufferedImage _image;
+    private ImageEncoder _encoder;
+    private String _outputPath;
+    private PrintStream _out;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        _image = BenchmarkImages.photo(megapixels, alpha);
+        _encoder = new ImageEncoder.Builder().SetQuality(quality).SetPngCompression(pngCompression)
+                .SetPngFilter(pngFilter).build();
+        File directory = Files.createTempDirectory("inko-bench").toFile();
+        directory.deleteOnExit();
+        _outputPath = new File(directory, "encoded").getPath();
+        new File(_outputPath + '.' + format).deleteOnExit();
+        // saveImage prints a line per image
+        _out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(_out);
+    }
+
+    @Benchmark
+    public void saveImage() throws IOException {
+        ImageHandler.saveImage(_image, _outputPath, format, _encoder, new JobMetrics(null));
+    }
+}
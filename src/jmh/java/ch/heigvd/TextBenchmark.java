@@ -0,0 +1,87 @@
+/*
+ * Class         : TextBenchmark
+ *
+ * Description   : Measure the computation and the rendering of the overlay text
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import com.drew.imaging.ImageProcessingException;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure ExifHandler.ComputeImageText and ImageTextOverlay.CreateImageText, with and without the text cache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TextBenchmark {
+
+    /**
+     * Number of chars of the personal text
+     */
+    @Param({"16", "256", "2048"})
+    public int textLength;
+
+    /**
+     * Width of the image, the text is broken to fit it
+     */
+    @Param({"1224", "8660"})
+    public int imageWidth;
+
+    private ImageSource _source;
+    private OverlayConfig _config;
+    private ImageMetadata _exif;
+    private String _text;
+    private ImageTextOverlay _uncached;
+    private ImageTextOverlay _cached;
+
+    @Setup(Level.Trial)
+    public void setup() throws ImageProcessingException, IOException {
+        _source = new ImageSource(BenchmarkImages.save(BenchmarkImages.photo(1, false), "jpeg"));
+        _text = BenchmarkImages.text(textLength);
+        _config = new OverlayConfig.Builder()
+                .AddExifData(ExifHandler.EXIF.DateOriginal)
+                .AddExifData(ExifHandler.EXIF.CameraModel)
+                .AddExifData(ExifHandler.EXIF.ImageSize)
+                .AddText(_text)
+                .SetBackgroundColor("#80FFFFFF")
+                .build();
+        _exif = new ExifHandler(_source, _config).getImageMetadata();
+        _uncached = new ImageTextOverlay(_config);
+        _cached = new ImageTextOverlay(_config, new TextRenderCache());
+    }
+
+    @Benchmark
+    public String computeImageText() throws ImageProcessingException, IOException {
+        return new ExifHandler(_source, _config).ComputeImageText();
+    }
+
+    @Benchmark
+    public String formatTemplate() {
+        return _config.getTemplate().format(_exif);
+    }
+
+    @Benchmark
+    public BufferedImage createImageText() {
+        return _uncached.CreateImageText(_text, imageWidth);
+    }
+
+    @Benchmark
+    public BufferedImage createImageTextCached() {
+        return _cached.CreateImageText(_text, imageWidth);
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Class         : AdmissionController
+ *
+ * Description   : Bound the memory of the images processed at the same time
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.DataBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class bound the memory of the images processed at the same time.
+ * Each job estimates the peak of its rasters from the dimensions in the header of its image, before decoding, and
+ * waits until the sum of the admitted jobs stays under the budget. The smallest waiting job is admitted first, a
+ * job passed over by MAX_BYPASS smaller jobs is admitted before any other. A job larger than the whole budget is
+ * admitted alone.
+ */
+public class AdmissionController {
+
+    /**
+     * Number of smaller jobs admitted before a waiting job, after that it is the next one admitted
+     */
+    public static final int MAX_BYPASS = 8;
+
+    /**
+     * Store the budget in bytes
+     */
+    private final long _budget;
+
+    /**
+     * Store the bytes of the admitted jobs
+     */
+    private long _inUse;
+
+    /**
+     * Store the highest bytes in use
+     */
+    private long _peak;
+
+    /**
+     * Store the arrival number of the next job
+     */
+    private long _sequence;
+
+    /**
+     * Store the jobs waiting for memory
+     */
+    private final List<Waiter> _waiting = new ArrayList<>();
+
+    /**
+     * Constructor
+     *
+     * @param budget the bytes the admitted jobs may use together
+     */
+    public AdmissionController(long budget) {
+        if (budget < 1) throw new IllegalArgumentException("The budget must be positive: " + budget);
+        _budget = budget;
+    }
+
+    /**
+     * Get the default budget: three quarters of the max heap, the rest is left to the text cache and the JVM
+     *
+     * @return the budget in bytes
+     */
+    public static long defaultBudget() {
+        return Runtime.getRuntime().maxMemory() / 4 * 3;
+    }
+
+    /**
+     * Estimate the peak of the rasters of a job from the header of its image, the pixels are not decoded
+     *
+     * @param source       the bytes of the image
+     * @param outputFormat the output format
+     * @return the estimated bytes, 0 if the header can't be read: the decode fails anyway
+     */
+    public static long estimate(ImageSource source, String outputFormat) {
+        if (!source.probeDimensions()) return 0;
+        return estimate(source.getWidth(), source.getHeight(), source.getDecodedType(), outputFormat);
+    }
+
+    /**
+     * Estimate the peak of the rasters of a job
+     *
+     * @param width        the width of the image
+     * @param height       the height of the image
+     * @param decodedType  the type the decoder produces, 3 bytes per pixel for a color JPEG; null if unknown
+     * @param outputFormat the output format
+     * @return the estimated bytes
+     */
+    public static long estimate(int width, int height, ImageTypeSpecifier decodedType, String outputFormat) {
+        long pixels = (long) width * height;
+        long bytesPerPixel;
+        if (decodedType == null) {
+            // the decoded raster and its copy, 4 bytes per pixel each at most
+            bytesPerPixel = 8;
+        } else {
+            bytesPerPixel = bytesPerPixel(decodedType);
+            boolean alpha = decodedType.getColorModel().hasAlpha();
+            if (!ImageTextOverlay.isDirectColorType(decodedType.getBufferedImageType())
+                    || alpha && ImageTextOverlay.isJpeg(outputFormat)) {
+                // the copy in the color type of the output: gray and indexed images are converted, and alpha for a
+                // JPEG; the others are drawn in place
+                bytesPerPixel += 4;
+            }
+        }
+        // the encoded image grows in a byte array until it is written
+        bytesPerPixel += ImageTextOverlay.isJpeg(outputFormat) ? 1 : 3;
+        return pixels * bytesPerPixel;
+    }
+
+    /**
+     * Get the bytes of one pixel of a decoded type, as they are stored in its raster
+     */
+    private static long bytesPerPixel(ImageTypeSpecifier type) {
+        DataBuffer buffer = type.getSampleModel(1, 1).createDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * Wait until a job fits in the budget
+     *
+     * @param bytes the estimated bytes of the job
+     * @return the ticket of the job, to close when its rasters are released
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized Ticket acquire(long bytes) throws InterruptedException {
+        if (_waiting.isEmpty() && fits(bytes)) {
+            return admit(bytes);
+        }
+        Waiter waiter = new Waiter(bytes, _sequence++);
+        _waiting.add(waiter);
+        admitWaiting();
+        try {
+            while (waiter._ticket == null) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            if (waiter._ticket != null) {
+                waiter._ticket.close();
+            } else {
+                _waiting.remove(waiter);
+                admitWaiting();
+            }
+            throw ex;
+        }
+        return waiter._ticket;
+    }
+
+    /**
+     * Get the budget
+     *
+     * @return the bytes the admitted jobs may use together
+     */
+    public long getBudget() {
+        return _budget;
+    }
+
+    /**
+     * Get the bytes of the admitted jobs
+     *
+     * @return the estimated bytes in use
+     */
+    public synchronized long getInUse() {
+        return _inUse;
+    }
+
+    /**
+     * Get the highest bytes in use since the creation
+     *
+     * @return the estimated peak
+     */
+    public synchronized long getPeak() {
+        return _peak;
+    }
+
+    /**
+     * Get the number of jobs waiting for memory
+     *
+     * @return the number of waiting jobs
+     */
+    public synchronized int getWaiting() {
+        return _waiting.size();
+    }
+
+    private boolean fits(long bytes) {
+        // a job larger than the budget runs alone
+        return _inUse == 0 || _inUse + bytes <= _budget;
+    }
+
+    private Ticket admit(long bytes) {
+        _inUse += bytes;
+        _peak = Math.max(_peak, _inUse);
+        return new Ticket(bytes);
+    }
+
+    private synchronized void release(long bytes) {
+        _inUse -= bytes;
+        admitWaiting();
+    }
+
+    /**
+     * Admit the waiting jobs in order while they fit
+     */
+    private void admitWaiting() {
+        boolean admitted = false;
+        while (!_waiting.isEmpty()) {
+            Waiter next = nextWaiter();
+            if (!fits(next._bytes)) break;
+            _waiting.remove(next);
+            next._ticket = admit(next._bytes);
+            admitted = true;
+            for (Waiter waiter : _waiting) {
+                if (waiter._sequence < next._sequence) waiter._bypassed++;
+            }
+        }
+        if (admitted) notifyAll();
+    }
+
+    /**
+     * Get the next job to admit: the oldest passed over MAX_BYPASS times, else the smallest
+     *
+     * @return the next waiting job
+     */
+    private Waiter nextWaiter() {
+        Waiter next = null;
+        for (Waiter waiter : _waiting) {
+            if (waiter._bypassed >= MAX_BYPASS) {
+                if (next == null || next._bypassed < MAX_BYPASS || waiter._sequence < next._sequence) next = waiter;
+            } else if (next == null || (next._bypassed < MAX_BYPASS && (waiter._bytes < next._bytes
+                    || waiter._bytes == next._bytes && waiter._sequence < next._sequence))) {
+                next = waiter;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Memory of an admitted job, given back when closed
+     */
+    public final class Ticket implements AutoCloseable {
+        /**
+         * Store the estimated bytes of the job
+         */
+        private final long _bytes;
+
+        /**
+         * Store if the bytes were given back
+         */
+        private boolean _closed;
+
+        private Ticket(long bytes) {
+            _bytes = bytes;
+        }
+
+        /**
+         * Get the estimated bytes of the job
+         *
+         * @return the bytes
+         */
+        public long getBytes() {
+            return _bytes;
+        }
+
+        @Override
+        public void close() {
+            synchronized (AdmissionController.this) {
+                if (_closed) return;
+                _closed = true;
+                release(_bytes);
+            }
+        }
+    }
+
+    /**
+     * Job waiting for memory
+     */
+    private static class Waiter {
+        private final long _bytes;
+        private final long _sequence;
+        private int _bypassed;
+        private Ticket _ticket;
+
+        private Waiter(long bytes, long sequence) {
+            _bytes = bytes;
+            _sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Class         : AlphaBlender
+ *
+ * Description   : Blend an ARGB overlay on a region of an image with integer math
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.awt.*;
+import java.awt.image.*;
+
+/**
+ * Blend an ARGB overlay on the region of an image it covers (source over).
+ * The pixels are read and written in the data buffers of a raster sub-window, with premultiplied integer math,
+ * nothing is allocated per pixel. Large overlays are blended in parallel bands.
+ */
+public final class AlphaBlender {
+
+    private AlphaBlender() {
+    }
+
+    /**
+     * Blend an overlay on an image, the pixels outside the image are ignored
+     *
+     * @param overlay the image to overlay, TYPE_INT_ARGB or TYPE_INT_ARGB_PRE for the fast path
+     * @param target  the image modified by the blend
+     * @param x       the position of the overlay in the image
+     * @param y       the position of the overlay in the image
+     */
+    public static void blend(BufferedImage overlay, BufferedImage target, int x, int y) {
+        Rectangle region = new Rectangle(x, y, overlay.getWidth(), overlay.getHeight())
+                .intersection(new Rectangle(target.getWidth(), target.getHeight()));
+        if (region.isEmpty()) return;
+
+        boolean premultiplied;
+        switch (overlay.getType()) {
+            case BufferedImage.TYPE_INT_ARGB:
+                premultiplied = false;
+                break;
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+                premultiplied = true;
+                break;
+            default:
+                drawImage(overlay, target, x, y);
+                return;
+        }
+
+        // sub-windows covering only the blended region, their origin is the region origin
+        Raster src = overlay.getRaster().createChild(region.x - x, region.y - y, region.width, region.height, 0, 0, null);
+        WritableRaster dst = target.getRaster().createWritableChild(region.x, region.y, region.width, region.height, 0, 0, null);
+
+        switch (target.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+                blendIntRows(src, premultiplied, dst, false);
+                break;
+            case BufferedImage.TYPE_INT_ARGB:
+                blendIntRows(src, premultiplied, dst, true);
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                blendByteRows(src, premultiplied, dst, false);
+                break;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                blendByteRows(src, premultiplied, dst, true);
+                break;
+            default:
+                drawImage(overlay, target, x, y);
+                break;
+        }
+    }
+
+    /**
+     * Blend on a packed int raster (INT_RGB, INT_ARGB)
+     */
+    private static void blendIntRows(Raster src, boolean premultiplied, WritableRaster dst, boolean dstAlpha) {
+        int[] srcData = ((DataBufferInt) src.getDataBuffer()).getData();
+        int srcStride = ((SinglePixelPackedSampleModel) src.getSampleModel()).getScanlineStride();
+        int srcOrigin = origin(src, srcStride, 1);
+        int[] dstData = ((DataBufferInt) dst.getDataBuffer()).getData();
+        int dstStride = ((SinglePixelPackedSampleModel) dst.getSampleModel()).getScanlineStride();
+        int dstOrigin = origin(dst, dstStride, 1);
+        int width = dst.getWidth();
+
+        ParallelRows.forEachBand(dst.getHeight(), width, (fromRow, toRow) -> {
+            for (int row = fromRow; row < toRow; row++) {
+                int s = srcOrigin + row * srcStride;
+                int d = dstOrigin + row * dstStride;
+                for (int i = 0; i < width; i++, s++, d++) {
+                    int pixel = srcData[s];
+                    int sa = pixel >>> 24;
+                    if (sa == 0) continue;
+                    int sr = pixel >> 16 & 0xFF, sg = pixel >> 8 & 0xFF, sb = pixel & 0xFF;
+                    if (!premultiplied) {
+                        if (sa == 0xFF) {
+                            dstData[d] = pixel;
+                            continue;
+                        }
+                        sr = div255(sr * sa);
+                        sg = div255(sg * sa);
+                        sb = div255(sb * sa);
+                    }
+                    int back = dstData[d];
+                    int da = dstAlpha ? back >>> 24 : 0xFF;
+                    dstData[d] = over(sa, sr, sg, sb, da, back >> 16 & 0xFF, back >> 8 & 0xFF, back & 0xFF);
+                }
+            }
+        });
+    }
+
+    /**
+     * Blend on an interleaved byte raster (3BYTE_BGR, 4BYTE_ABGR)
+     */
+    private static void blendByteRows(Raster src, boolean premultiplied, WritableRaster dst, boolean dstAlpha) {
+        int[] srcData = ((DataBufferInt) src.getDataBuffer()).getData();
+        int srcStride = ((SinglePixelPackedSampleModel) src.getSampleModel()).getScanlineStride();
+        int srcOrigin = origin(src, srcStride, 1);
+        byte[] dstData = ((DataBufferByte) dst.getDataBuffer()).getData();
+        int dstStride = ((ComponentSampleModel) dst.getSampleModel()).getScanlineStride();
+        int pixelStride = dstAlpha ? 4 : 3;
+        int dstOrigin = origin(dst, dstStride, pixelStride);
+        // byte order: [A] B G R
+        int b = dstAlpha ? 1 : 0;
+        int width = dst.getWidth();
+
+        ParallelRows.forEachBand(dst.getHeight(), width, (fromRow, toRow) -> {
+            for (int row = fromRow; row < toRow; row++) {
+                int s = srcOrigin + row * srcStride;
+                int d = dstOrigin + row * dstStride;
+                for (int i = 0; i < width; i++, s++, d += pixelStride) {
+                    int pixel = srcData[s];
+                    int sa = pixel >>> 24;
+                    if (sa == 0) continue;
+                    int sr = pixel >> 16 & 0xFF, sg = pixel >> 8 & 0xFF, sb = pixel & 0xFF;
+                    if (!premultiplied) {
+                        sr = div255(sr * sa);
+                        sg = div255(sg * sa);
+                        sb = div255(sb * sa);
+                    }
+                    int da = dstAlpha ? dstData[d] & 0xFF : 0xFF;
+                    int result = over(sa, sr, sg, sb, da,
+                            dstData[d + b + 2] & 0xFF, dstData[d + b + 1] & 0xFF, dstData[d + b] & 0xFF);
+                    if (dstAlpha) dstData[d] = (byte) (result >>> 24);
+                    dstData[d + b] = (byte) result;
+                    dstData[d + b + 1] = (byte) (result >> 8);
+                    dstData[d + b + 2] = (byte) (result >> 16);
+                }
+            }
+        });
+    }
+
+    /**
+     * Source over with a premultiplied source on a non-premultiplied destination
+     *
+     * @return the non-premultiplied ARGB result
+     */
+    private static int over(int sa, int sr, int sg, int sb, int da, int dr, int dg, int db) {
+        int inverse = 0xFF - sa;
+        if (da == 0xFF) { // opaque destination, the common case
+            return 0xFF000000 | (sr + div255(dr * inverse)) << 16 | (sg + div255(dg * inverse)) << 8 | (sb + div255(db * inverse));
+        }
+        // premultiply the destination, blend and divide by the resulting alpha
+        int weight = div255(da * inverse);
+        int oa = sa + weight;
+        if (oa == 0) return 0;
+        int half = oa >> 1;
+        int or = ((sr + div255(dr * weight)) * 0xFF + half) / oa;
+        int og = ((sg + div255(dg * weight)) * 0xFF + half) / oa;
+        int ob = ((sb + div255(db * weight)) * 0xFF + half) / oa;
+        return oa << 24 | Math.min(or, 0xFF) << 16 | Math.min(og, 0xFF) << 8 | Math.min(ob, 0xFF);
+    }
+
+    /**
+     * Divide by 255 with rounding, exact for 0 to 255 * 255
+     */
+    private static int div255(int value) {
+        value += 0x80;
+        return (value + (value >> 8)) >> 8;
+    }
+
+    /**
+     * Get the index of the first pixel of a sub-window in its data buffer
+     *
+     * @param raster      the sub-window
+     * @param stride      the scanline stride of its sample model
+     * @param pixelStride the number of elements of a pixel
+     * @return the index of the pixel at the origin of the sub-window
+     */
+    private static int origin(Raster raster, int stride, int pixelStride) {
+        return raster.getDataBuffer().getOffset()
+                + (raster.getMinY() - raster.getSampleModelTranslateY()) * stride
+                + (raster.getMinX() - raster.getSampleModelTranslateX()) * pixelStride;
+    }
+
+    /**
+     * Blend with Java2D for the types without fast path
+     */
+    private static void drawImage(BufferedImage overlay, BufferedImage target, int x, int y) {
+        Graphics2D g = target.createGraphics();
+        g.drawImage(overlay, x, y, null);
+        g.dispose();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Class         : AsyncFileWriter
+ *
+ * Description   : Write encoded images to files with AsynchronousFileChannel on dedicated threads
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write encoded images to files with AsynchronousFileChannel, the writes run on the threads of the writer.
+ * The thread giving a file goes on with the next image while it is written. The bytes of the writes in flight are
+ * held until written, so their number is bounded: write waits while the bound is reached.
+ */
+public final class AsyncFileWriter implements AutoCloseable {
+
+    /**
+     * Store the threads of the writes and of their completion
+     */
+    private final ExecutorService _executor;
+
+    /**
+     * Store the permits of the writes in flight
+     */
+    private final Semaphore _inFlight;
+
+    /**
+     * Store the maximum number of writes in flight
+     */
+    private final int _maxInFlight;
+
+    /**
+     * Receive the end of a write, on a thread of the writer
+     */
+    public interface Callback {
+        /**
+         * Called when all the bytes are written and the file is closed
+         *
+         * @param bytes the number of bytes written
+         */
+        void completed(long bytes);
+
+        /**
+         * Called when the file can't be opened or written
+         *
+         * @param ex the error
+         */
+        void failed(IOException ex);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threads     the number of threads writing the files, at least 1
+     * @param maxInFlight the maximum number of writes in flight, at least 1
+     */
+    public AsyncFileWriter(int threads, int maxInFlight) {
+        AtomicInteger count = new AtomicInteger();
+        _executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "inko-write-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        _maxInFlight = Math.max(1, maxInFlight);
+        _inFlight = new Semaphore(_maxInFlight);
+    }
+
+    /**
+     * Write bytes to a file, replaced if it exists. Wait while the maximum number of writes is in flight
+     *
+     * @param file     the file, its directory must exist
+     * @param bytes    the bytes, not modified until the callback
+     * @param callback the receiver of the end of the write
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void write(Path file, byte[] bytes, Callback callback) throws InterruptedException {
+        _inFlight.acquire();
+        AsynchronousFileChannel channel;
+        try {
+            channel = AsynchronousFileChannel.open(file, EnumSet.of(StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), _executor);
+        } catch (IOException ex) {
+            _inFlight.release();
+            callback.failed(ex);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        channel.write(buffer, 0, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer written, Void attachment) {
+                // a write can be partial, the rest goes at its position
+                if (buffer.hasRemaining()) {
+                    channel.write(buffer, buffer.position(), null, this);
+                    return;
+                }
+                IOException error = close(channel);
+                _inFlight.release();
+                if (error == null) {
+                    callback.completed(bytes.length);
+                } else {
+                    callback.failed(error);
+                }
+            }
+
+            @Override
+            public void failed(Throwable ex, Void attachment) {
+                close(channel);
+                _inFlight.release();
+                callback.failed(ex instanceof IOException ? (IOException) ex : new IOException(ex));
+            }
+        });
+    }
+
+    private static IOException close(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+            return null;
+        } catch (IOException ex) {
+            return ex;
+        }
+    }
+
+    /**
+     * Wait until all the writes are completed and stop the threads, it can be called again
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitAndClose() throws InterruptedException {
+        _inFlight.acquire(_maxInFlight);
+        _inFlight.release(_maxInFlight);
+        _executor.shutdown();
+        _executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Wait until all the writes are completed and stop the threads. If interrupted, the threads are stopped without
+     * waiting for the writes in flight and the interrupt flag is set again
+     */
+    @Override
+    public void close() {
+        try {
+            awaitAndClose();
+        } catch (InterruptedException ex) {
+            _executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Class         : BatchManifest
+ *
+ * Description   : Record of the images of the previous batches, to skip the unchanged ones
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Record of the images of the previous batches, to skip the unchanged ones.
+ * For each input the manifest stores its size, its modification time, the checksum of its bytes, the digest of the
+ * options of the overlay and the computed text. An input is unchanged when its options are the same and its output
+ * exists, and either its size and time or its checksum are the same: a copied or touched file is only read once.
+ * The manifest is a text file next to the output directory. Each saved image is appended to it as soon as saved, so
+ * an interrupted batch keeps its work, and the file is rewritten without the replaced lines when closed.
+ */
+public final class BatchManifest implements AutoCloseable {
+
+    /**
+     * First line of the manifest, a manifest of another version is ignored
+     */
+    private static final String HEADER = "# inko manifest 1";
+
+    /**
+     * Prefix of the lines giving the options of a digest
+     */
+    private static final String OPTIONS = "# options\t";
+
+    /**
+     * Store the file of the manifest
+     */
+    private final Path _file;
+
+    /**
+     * Store the entries by absolute input path
+     */
+    private final Map<String, Entry> _entries = new HashMap<>();
+
+    /**
+     * Store the options of each digest
+     */
+    private final Map<String, String> _options = new TreeMap<>();
+
+    /**
+     * Store if the file is a manifest of this version, the saved images are appended to it; else it is replaced
+     */
+    private boolean _appendable;
+
+    /**
+     * Store the writer appending the saved images, null until the first one
+     */
+    private BufferedWriter _writer;
+
+    /**
+     * Store the last configuration recorded, the one of the batch
+     */
+    private OverlayConfig _lastConfig;
+
+    /**
+     * Store the digest of the last configuration recorded
+     */
+    private String _lastDigest;
+
+    /**
+     * Record of one input
+     */
+    private static final class Entry {
+        private final long _size;
+        private final long _modified;
+        private final long _checksum;
+        private final String _digest;
+        private final String _text;
+
+        private Entry(long size, long modified, long checksum, String digest, String text) {
+            _size = size;
+            _modified = modified;
+            _checksum = checksum;
+            _digest = digest;
+            _text = text;
+        }
+    }
+
+    private BatchManifest(Path file) {
+        _file = file;
+    }
+
+    /**
+     * Get the manifest of an output directory: the file next to it, named after it
+     *
+     * @param outputDir the output directory of the batch
+     * @return OUTPUTDIR.manifest
+     */
+    public static Path pathOf(Path outputDir) {
+        Path dir = outputDir.toAbsolutePath().normalize();
+        if (dir.getFileName() == null) return dir.resolve("inko.manifest");
+        return dir.resolveSibling(dir.getFileName() + ".manifest");
+    }
+
+    /**
+     * Load a manifest, empty if the file doesn't exist or is of another version
+     *
+     * @param file the file of the manifest
+     * @return the manifest
+     * @throws IOException if the file can't be read
+     */
+    public static BatchManifest open(Path file) throws IOException {
+        BatchManifest manifest = new BatchManifest(file);
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException ex) {
+            return manifest;
+        }
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+            System.out.println("The manifest : " + file + " is not an Inko manifest, all the images will be processed");
+            return manifest;
+        }
+        manifest._appendable = true;
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split("\t", -1);
+            if (line.startsWith(OPTIONS) && fields.length == 4) {
+                manifest._options.put(fields[2], unescape(fields[3]));
+            } else if (!line.startsWith("#") && fields.length == 6) {
+                // the line of an interrupted write is ignored, the image is processed again
+                try {
+                    manifest._entries.put(unescape(fields[0]), new Entry(Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3], 16), fields[4], unescape(fields[5])));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Compute the digest of the options of an overlay
+     *
+     * @param config the configuration of the overlay
+     * @return the first 64 bits of the SHA-256 of its options, in hexadecimal
+     */
+    public static String digest(OverlayConfig config) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(config.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder digest = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                digest.append(String.format("%02x", hash[i]));
+            }
+            return digest.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * Check if an input is unchanged from its size and modification time, without reading it
+     *
+     * @param input  the input image
+     * @param digest the digest of the options
+     * @param output the output image
+     * @return True if the input was saved with the same options, size and time and its output exists
+     */
+    public synchronized boolean isUnchanged(Path input, String digest, File output) {
+        Entry entry = _entries.get(key(input));
+        if (entry == null || !entry._digest.equals(digest) || !output.isFile()) return false;
+        try {
+            return Files.size(input) == entry._size && Files.getLastModifiedTime(input).toMillis() == entry._modified;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Check if an input is unchanged from the checksum of its bytes
+     *
+     * @param input    the input image
+     * @param checksum the checksum of its bytes
+     * @param digest   the digest of the options
+     * @param output   the output image
+     * @return True if the input was saved with the same options and bytes and its output exists
+     */
+    public synchronized boolean isUnchanged(Path input, long checksum, String digest, File output) {
+        Entry entry = _entries.get(key(input));
+        return entry != null && entry._checksum == checksum && entry._digest.equals(digest) && output.isFile();
+    }
+
+    /**
+     * Get the text recorded for an input
+     *
+     * @param input the input image
+     * @return the text of its last overlay, null if not recorded
+     */
+    public synchronized String getText(Path input) {
+        Entry entry = _entries.get(key(input));
+        return entry == null ? null : entry._text;
+    }
+
+    /**
+     * Get the number of recorded inputs
+     *
+     * @return the number of inputs
+     */
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    /**
+     * Record a saved input, appended to the file at once
+     *
+     * @param input    the input image
+     * @param checksum the checksum of its bytes
+     * @param config   the configuration of the overlay
+     * @param text     the text of the overlay
+     * @throws IOException if the manifest can't be written
+     */
+    public synchronized void record(Path input, long checksum, OverlayConfig config, String text) throws IOException {
+        if (config != _lastConfig) {
+            _lastDigest = digest(config);
+            _lastConfig = config;
+        }
+        String digest = _lastDigest;
+        Entry entry = new Entry(Files.size(input), Files.getLastModifiedTime(input).toMillis(), checksum, digest,
+                text == null ? "" : text);
+        String key = key(input);
+        _entries.put(key, entry);
+        if (_writer == null) {
+            _writer = Files.newBufferedWriter(_file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    _appendable ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+            if (!_appendable) _writer.write(HEADER + System.lineSeparator());
+            _appendable = true;
+        }
+        if (_options.put(digest, config.toString()) == null) {
+            _writer.write(OPTIONS + digest + '\t' + escape(config.toString()) + System.lineSeparator());
+        }
+        _writer.write(line(key, entry));
+        _writer.flush();
+    }
+
+    /**
+     * Rewrite the manifest with one line per input, the file is replaced at once
+     *
+     * @throws IOException if the manifest can't be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (_writer == null) return;
+        _writer.close();
+        _writer = null;
+        Path temp = _file.resolveSibling(_file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER + System.lineSeparator());
+            Set<String> used = new HashSet<>();
+            for (Entry entry : _entries.values()) used.add(entry._digest);
+            for (Map.Entry<String, String> options : _options.entrySet()) {
+                // the options no input is recorded with anymore are dropped
+                if (!used.contains(options.getKey())) continue;
+                writer.write(OPTIONS + options.getKey() + '\t' + escape(options.getValue()) + System.lineSeparator());
+            }
+            for (Map.Entry<String, Entry> entry : new TreeMap<>(_entries).entrySet()) {
+                writer.write(line(entry.getKey(), entry.getValue()));
+            }
+        }
+        Files.move(temp, _file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String key(Path input) {
+        return input.toAbsolutePath().normalize().toString();
+    }
+
+    private static String line(String key, Entry entry) {
+        return escape(key) + '\t' + entry._size + '\t' + entry._modified + '\t' + Long.toHexString(entry._checksum)
+                + '\t' + entry._digest + '\t' + escape(entry._text) + System.lineSeparator();
+    }
+
+    /**
+     * Escape the characters separating the fields and the lines
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) return value;
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                unescaped.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
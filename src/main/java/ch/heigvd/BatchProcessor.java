@@ -0,0 +1,421 @@
+/*
+ * Class         : BatchProcessor
+ *
+ * Description   : Run the overlay pipeline over many images on a bounded worker pool
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * This class run the overlay pipeline over many images, each stage on a bounded worker pool
+ */
+public class BatchProcessor {
+
+    /**
+     * Extensions of the images taken from a directory
+     */
+    private static final List<String> IMAGE_EXTENSIONS = List.of("jpg", "jpeg", "png");
+
+    /**
+     * Store the images to process
+     */
+    private final List<Path> _inputs;
+
+    /**
+     * Store the output directory
+     */
+    private final Path _outputDir;
+
+    /**
+     * Store the output format
+     */
+    private final String _outputFormat;
+
+    /**
+     * Constructor
+     *
+     * @param inputs       the images to process
+     * @param outputDir    the directory where the overlaid images are saved
+     * @param outputFormat the output format
+     */
+    public BatchProcessor(List<Path> inputs, String outputDir, String outputFormat) {
+        _inputs = inputs;
+        _outputDir = Paths.get(outputDir);
+        _outputFormat = outputFormat;
+    }
+
+    /**
+     * Resolve a batch input to a list of images
+     *
+     * @param input a directory, a glob pattern (data/*.jpg) or a file containing one path per line
+     * @return the images to process
+     * @throws IOException if the input can't be read
+     */
+    public static List<Path> resolveInputs(String input) throws IOException {
+        return resolveInputs(input, false);
+    }
+
+    /**
+     * Resolve a batch input to a list of images, with the images of the subdirectories of a directory
+     *
+     * @param input     a directory, a glob pattern (data/*.jpg) or a file containing one path per line
+     * @param recursive True to take the images of the whole tree of a directory
+     * @return the images to process
+     * @throws IOException if the input can't be read
+     */
+    public static List<Path> resolveInputs(String input, boolean recursive) throws IOException {
+        List<Path> inputs = new ArrayList<>();
+        if (isGlob(input)) {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+            try (Stream<Path> paths = Files.walk(globBase(input))) {
+                paths.filter(Files::isRegularFile).filter(matcher::matches).sorted().forEach(inputs::add);
+            }
+            return inputs;
+        }
+
+        Path path = Paths.get(input);
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> paths = recursive ? Files.walk(path) : Files.list(path)) {
+                paths.filter(Files::isRegularFile).filter(BatchProcessor::isImage).sorted().forEach(inputs::add);
+            }
+        } else if (isImage(path)) {
+            inputs.add(path);
+        } else { // file list, one path per line, # for comments
+            try (BufferedReader reader = Files.newBufferedReader(path)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        inputs.add(Paths.get(line));
+                    }
+                }
+            } catch (NoSuchFileException ex) {
+                System.out.println("The batch input : " + input + " doesn't exist");
+                throw ex;
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Overlay all images in a pipeline: the files are read, decoded, overlaid, encoded and written by the stages of
+     * the settings, so the disk and the CPU work at the same time on different images. A stage waits while the queue
+     * of the next one is full. A failing image doesn't abort the batch
+     *
+     * @param service  the service overlaying the images
+     * @param config   the configuration of the overlay
+     * @param settings the threads of the stages
+     * @return the result of the batch, with the time of each stage
+     * @throws IOException          if the output directory can't be created
+     * @throws InterruptedException if the batch is interrupted
+     */
+    public BatchResult run(OverlayService service, OverlayConfig config, PipelineSettings settings)
+            throws IOException, InterruptedException {
+        return run(service, config, settings, null);
+    }
+
+    /**
+     * Overlay the images changed since the last batch in a pipeline, see run. An input is skipped when the manifest
+     * recorded it with the same options and its output exists: from its size and time before it is read, or from the
+     * checksum of its bytes once read. Each saved image is recorded in the manifest
+     *
+     * @param service  the service overlaying the images
+     * @param config   the configuration of the overlay
+     * @param settings the threads of the stages
+     * @param manifest the record of the previous batches, null to process all the images
+     * @return the result of the batch, with the time of each stage
+     * @throws IOException          if the output directory can't be created
+     * @throws InterruptedException if the batch is interrupted
+     */
+    public BatchResult run(OverlayService service, OverlayConfig config, PipelineSettings settings,
+                           BatchManifest manifest) throws IOException, InterruptedException {
+        Files.createDirectories(_outputDir);
+        Map<Path, String> outputPaths = computeOutputPaths();
+        String digest = manifest == null ? null : BatchManifest.digest(config);
+
+        BatchResult result = new BatchResult(_inputs.size());
+        Consumer<OverlayService.PipelineJob> ended = job -> ended(job, result, manifest, config);
+        Pipeline<OverlayService.PipelineJob> pipeline = new Pipeline<>((job, ex) -> {
+            service.completeJob(job, ex);
+            ended.accept(job);
+        });
+        long begin = System.nanoTime();
+        try (AsyncFileWriter writer = new AsyncFileWriter(settings.getWriteThreads(), settings.getWritesInFlight())) {
+            pipeline.addStage("read", settings.getReadThreads(),
+                    PipelineSettings.queueCapacity(settings.getReadThreads()), job -> {
+                        service.readJob(job);
+                        if (manifest == null) return true;
+                        // touched or copied, with the same bytes
+                        Path input = Paths.get(job.getImagePath());
+                        long checksum = job.getSource().getChecksum();
+                        if (!manifest.isUnchanged(input, checksum, digest, outputFile(job.getOutputPath()))) return true;
+                        manifest.record(input, checksum, config, manifest.getText(input));
+                        result.skipped();
+                        service.skipJob(job, outputFile(job.getOutputPath()));
+                        return false;
+                    })
+                    .addStage("decode", settings.getDecodeThreads(),
+                            PipelineSettings.queueCapacity(settings.getDecodeThreads()), job -> {
+                                if (service.decodeJob(job, config)) return true;
+                                // saved strip by strip
+                                service.completeJob(job, null);
+                                ended.accept(job);
+                                return false;
+                            })
+                    .addStage("overlay", settings.getOverlayThreads(),
+                            PipelineSettings.queueCapacity(settings.getOverlayThreads()), job -> {
+                                service.overlayJob(job, config);
+                                return true;
+                            })
+                    .addStage("encode", settings.getEncodeThreads(),
+                            PipelineSettings.queueCapacity(settings.getEncodeThreads()), job -> {
+                                service.encodeJob(job, config);
+                                service.writeJob(job, config, writer, ended);
+                                return false;
+                            });
+            pipeline.start();
+            for (Path input : _inputs) {
+                String outputPath = outputPaths.get(input);
+                if (manifest != null && manifest.isUnchanged(input, digest, outputFile(outputPath))) {
+                    result.skipped();
+                    service.skipJob(service.newJob(input.toString(), outputPath), outputFile(outputPath));
+                    continue;
+                }
+                pipeline.submit(service.newJob(input.toString(), outputPath));
+            }
+            pipeline.close();
+            writer.awaitAndClose();
+        }
+        result.setElapsedNanos(System.nanoTime() - begin);
+        result.setStages(pipeline.toString());
+        return result;
+    }
+
+    private File outputFile(String outputPath) {
+        return new File(outputPath + '.' + _outputFormat);
+    }
+
+    /**
+     * Count a job of the pipeline, saved or failed, and record it in the manifest when saved
+     *
+     * @param job      the completed job
+     * @param result   the result of the batch
+     * @param manifest the record of the batches, null if none
+     * @param config   the configuration of the overlay
+     */
+    private static void ended(OverlayService.PipelineJob job, BatchResult result, BatchManifest manifest,
+                              OverlayConfig config) {
+        Path input = Paths.get(job.getImagePath());
+        if (job.getError() == null) {
+            result.success(job.getMetrics().getBytesIn(), job.getMetrics().getBytesOut());
+            if (manifest == null) return;
+            try {
+                manifest.record(input, job.getSource().getChecksum(), config, job.getText());
+            } catch (IOException ex) {
+                // the image is saved, it is processed again by the next batch
+                System.out.println("The manifest can't be written : " + ex.getMessage());
+            }
+        } else {
+            result.failure(input, job.getError());
+            System.out.println("Failed to process " + input + " : " + job.getError());
+        }
+    }
+
+    /**
+     * Compute the output path of each image, images with the same name get a numeric suffix. A suffixed name is never
+     * the name of another image or of another suffixed one: with a.jpg, a.png and a_2.jpg, a.png is saved as a_3
+     *
+     * @return the output path without extension of each input
+     */
+    private Map<Path, String> computeOutputPaths() {
+        Map<Path, String> outputPaths = new HashMap<>();
+        // the names of the inputs are kept for them, the suffixes only take the other names
+        Set<String> inputNames = new HashSet<>();
+        for (Path input : _inputs) {
+            inputNames.add(baseName(input));
+        }
+        Set<String> used = new HashSet<>();
+        Map<String, Integer> nextSuffix = new HashMap<>();
+        for (Path input : _inputs) {
+            String name = baseName(input);
+            if (!used.add(name)) {
+                int suffix = nextSuffix.getOrDefault(name, 2);
+                String candidate = name + "_" + suffix;
+                while (inputNames.contains(candidate) || !used.add(candidate)) {
+                    candidate = name + "_" + ++suffix;
+                }
+                nextSuffix.put(name, suffix + 1);
+                name = candidate;
+            }
+            outputPaths.put(input, _outputDir.resolve(name).toString());
+        }
+        return outputPaths;
+    }
+
+    private static String baseName(Path input) {
+        String fileName = input.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+
+    /**
+     * Check if a path has an image extension
+     *
+     * @param path the path to check
+     * @return True if the extension is a supported image format
+     */
+    private static boolean isImage(Path path) {
+        String fileName = path.getFileName().toString();
+        String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
+        return IMAGE_EXTENSIONS.contains(extension);
+    }
+
+    /**
+     * Check if the input is a glob pattern
+     *
+     * @param input the input to check
+     * @return True if the input contains glob characters
+     */
+    private static boolean isGlob(String input) {
+        return input.matches(".*[*?\\[{].*");
+    }
+
+    /**
+     * Get the directory where a glob pattern starts
+     *
+     * @param glob the glob pattern
+     * @return the deepest directory without glob characters
+     */
+    private static Path globBase(String glob) {
+        String prefix = glob.replaceAll("[*?\\[{].*", "");
+        int separator = Math.max(prefix.lastIndexOf('/'), prefix.lastIndexOf(File.separatorChar));
+        return Paths.get(separator < 0 ? "" : prefix.substring(0, separator + 1));
+    }
+
+    /**
+     * Result of a batch: counters, failures and throughput
+     */
+    public static class BatchResult {
+        /**
+         * Number of images in the batch
+         */
+        private final int _total;
+        /**
+         * Number of images successfully processed
+         */
+        private final AtomicInteger _succeeded = new AtomicInteger();
+        /**
+         * Bytes read from the inputs
+         */
+        private final AtomicLong _bytesIn = new AtomicLong();
+        /**
+         * Bytes written to the outputs
+         */
+        private final AtomicLong _bytesOut = new AtomicLong();
+        /**
+         * Number of images skipped, unchanged since the last batch
+         */
+        private final AtomicInteger _skipped = new AtomicInteger();
+        /**
+         * Failure of each image which couldn't be processed
+         */
+        private final Map<Path, Exception> _failures = new ConcurrentSkipListMap<>();
+        /**
+         * Wall-clock duration of the batch
+         */
+        private long _elapsedNanos;
+        /**
+         * Time of each stage of the pipeline, null if not run in a pipeline
+         */
+        private String _stages;
+
+        private BatchResult(int total) {
+            _total = total;
+        }
+
+        private void success(long bytesIn, long bytesOut) {
+            _succeeded.incrementAndGet();
+            _bytesIn.addAndGet(bytesIn);
+            _bytesOut.addAndGet(bytesOut);
+        }
+
+        private void skipped() {
+            _skipped.incrementAndGet();
+        }
+
+        private void failure(Path input, Exception ex) {
+            _failures.put(input, ex);
+        }
+
+        private void setElapsedNanos(long elapsedNanos) {
+            _elapsedNanos = elapsedNanos;
+        }
+
+        private void setStages(String stages) {
+            _stages = stages;
+        }
+
+        /**
+         * Get the number of images in the batch
+         * @return the number of images
+         */
+        public int getTotal() {
+            return _total;
+        }
+
+        /**
+         * Get the number of images successfully processed
+         * @return the number of processed images
+         */
+        public int getSucceeded() {
+            return _succeeded.get();
+        }
+
+        /**
+         * Get the number of images skipped, unchanged since the last batch
+         * @return the number of skipped images
+         */
+        public int getSkipped() {
+            return _skipped.get();
+        }
+
+        /**
+         * Get the failure of each image which couldn't be processed
+         * @return the failures by input path
+         */
+        public Map<Path, Exception> getFailures() {
+            return _failures;
+        }
+
+        /**
+         * Print the summary of the batch and its throughput
+         */
+        public void printSummary() {
+            double seconds = Math.max(_elapsedNanos, 1) / 1e9;
+            double megabytes = _bytesIn.get() / (1024.0 * 1024.0);
+            System.out.printf("Batch done : %d/%d images processed, %d failed, %d unchanged skipped in %.2f s%n",
+                    getSucceeded(), _total, _failures.size(), getSkipped(), seconds);
+            System.out.printf("Throughput : %.2f images/s, %.2f MB/s read, %.2f MB/s written%n",
+                    getSucceeded() / seconds, megabytes / seconds, _bytesOut.get() / (1024.0 * 1024.0) / seconds);
+            _failures.forEach((input, ex) -> System.out.println("  failed : " + input + " : " + ex.getMessage()));
+            if (_stages != null) System.out.println(_stages);
+        }
+    }
+}
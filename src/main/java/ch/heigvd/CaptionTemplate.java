@@ -0,0 +1,369 @@
+/*
+ * Class         : CaptionTemplate
+ *
+ * Description   : Layout of the overlay text, compiled once and evaluated for each image
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import com.drew.lang.GeoLocation;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Layout of the overlay text, compiled once and evaluated for each image.
+ * A template is a text with fields between braces: {date}, {date:dd.MM.yyyy}, {model}, {gps}, {place} and {size};
+ * {{ and }} write a brace. It is parsed once into an immutable list of parts, so a configuration shared by all the images of a
+ * batch evaluates it for each image by appending its literal texts and EXIF values to one StringBuilder. The list of
+ * EXIF data and personal texts of the options -t, -d, -cm, -gps, -pl and -is is compiled into the same parts.
+ */
+public final class CaptionTemplate {
+
+    /**
+     * Formatters of the date patterns met so far, immutable and shared by all the threads
+     */
+    private static final ConcurrentHashMap<String, DateTimeFormatter> DATE_FORMATTERS = new ConcurrentHashMap<>();
+
+    /**
+     * Distance beyond which a GPS location has no place, in km: the location is written instead
+     */
+    static final double PLACE_DISTANCE = 50;
+
+    /**
+     * Store the parts, in order
+     */
+    private final Part[] _parts;
+
+    /**
+     * Store the EXIF data used by the parts
+     */
+    private final Set<ExifHandler.EXIF> _fields;
+
+    /**
+     * Store the source of the template, null if compiled from a list of data
+     */
+    private final String _source;
+
+    /**
+     * Part of a template appending a literal text or a value of the image
+     */
+    private interface Part {
+        void appendTo(StringBuilder text, ImageMetadata exif);
+    }
+
+    private CaptionTemplate(List<Part> parts, Set<ExifHandler.EXIF> fields, String source) {
+        _parts = parts.toArray(new Part[0]);
+        _fields = fields;
+        _source = source;
+    }
+
+    /**
+     * Compile a template, the places are the bundled ones
+     *
+     * @param template   the template, e.g. "{date:dd.MM.yyyy} - {model} - {gps}"
+     * @param dateFormat the format of the dates without their own format
+     * @param gmt        the GMT offset of the dates, in hours
+     * @return the compiled template
+     * @throws IllegalArgumentException if a field is unknown, a brace isn't closed, a date format is invalid or the
+     *                                  offset is not between -18 and 18
+     */
+    public static CaptionTemplate compile(String template, String dateFormat, int gmt) {
+        return compile(template, dateFormat, gmt, null);
+    }
+
+    /**
+     * Compile a template
+     *
+     * @param template   the template, e.g. "{date:dd.MM.yyyy} - {place}"
+     * @param dateFormat the format of the dates without their own format
+     * @param gmt        the GMT offset of the dates, in hours
+     * @param gazetteer  the places of {place}, null for the bundled ones
+     * @return the compiled template
+     * @throws IllegalArgumentException if a field is unknown, a brace isn't closed, a date format is invalid or the
+     *                                  offset is not between -18 and 18
+     */
+    public static CaptionTemplate compile(String template, String dateFormat, int gmt, Gazetteer gazetteer) {
+        List<Part> parts = new ArrayList<>();
+        Set<ExifHandler.EXIF> fields = EnumSet.noneOf(ExifHandler.EXIF.class);
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if ((c == '{' || c == '}') && i + 1 < template.length() && template.charAt(i + 1) == c) {
+                literal.append(c);
+                i += 2;
+            } else if (c == '}') {
+                throw new IllegalArgumentException("} without { at " + i);
+            } else if (c == '{') {
+                int end = template.indexOf('}', i);
+                if (end < 0) throw new IllegalArgumentException("{ without } at " + i);
+                if (literal.length() > 0) {
+                    parts.add(literal(literal.toString()));
+                    literal.setLength(0);
+                }
+                String field = template.substring(i + 1, end);
+                int colon = field.indexOf(':');
+                String name = (colon < 0 ? field : field.substring(0, colon)).trim();
+                String format = colon < 0 ? null : field.substring(colon + 1);
+                ExifHandler.EXIF exif = fieldOf(name);
+                if (format != null && exif != ExifHandler.EXIF.DateOriginal) {
+                    throw new IllegalArgumentException("{" + name + "} has no format");
+                }
+                parts.add(field(exif, format == null || format.isEmpty() ? dateFormat : format, gmt, gazetteer));
+                fields.add(exif);
+                i = end + 1;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        if (literal.length() > 0) parts.add(literal(literal.toString()));
+        return new CaptionTemplate(parts, fields, template);
+    }
+
+    /**
+     * Compile the EXIF data and personal texts of the options, each data is followed by the separator unless it is
+     * the last one, a personal text is not
+     *
+     * @param exifDatas  the EXIF data and personal texts, in order
+     * @param texts      the personal texts, in order
+     * @param separator  the separator
+     * @param dateFormat the format of the date
+     * @param gmt        the GMT offset of the date, in hours
+     * @return the compiled template
+     * @throws IllegalArgumentException if the date format is invalid or the offset is not between -18 and 18
+     */
+    public static CaptionTemplate of(List<ExifHandler.EXIF> exifDatas, List<String> texts, String separator,
+                                     String dateFormat, int gmt) {
+        return of(exifDatas, texts, separator, dateFormat, gmt, null);
+    }
+
+    /**
+     * Compile the EXIF data and personal texts of the options, each data is followed by the separator unless it is
+     * the last one, a personal text is not
+     *
+     * @param exifDatas  the EXIF data and personal texts, in order
+     * @param texts      the personal texts, in order
+     * @param separator  the separator
+     * @param dateFormat the format of the date
+     * @param gmt        the GMT offset of the date, in hours
+     * @param gazetteer  the places of the place, null for the bundled ones
+     * @return the compiled template
+     * @throws IllegalArgumentException if the date format is invalid or the offset is not between -18 and 18
+     */
+    public static CaptionTemplate of(List<ExifHandler.EXIF> exifDatas, List<String> texts, String separator,
+                                     String dateFormat, int gmt, Gazetteer gazetteer) {
+        List<Part> parts = new ArrayList<>();
+        Set<ExifHandler.EXIF> fields = EnumSet.noneOf(ExifHandler.EXIF.class);
+        int text = 0;
+        for (int i = 0; i < exifDatas.size(); i++) {
+            ExifHandler.EXIF exif = exifDatas.get(i);
+            if (exif == ExifHandler.EXIF.Text) {
+                parts.add(literal(text < texts.size() ? texts.get(text) : null));
+                text++;
+            } else {
+                parts.add(field(exif, dateFormat, gmt, gazetteer));
+                fields.add(exif);
+                if (i < exifDatas.size() - 1) parts.add(literal(separator));
+            }
+        }
+        return new CaptionTemplate(parts, fields, null);
+    }
+
+    private static ExifHandler.EXIF fieldOf(String name) {
+        switch (name) {
+            case "date":
+                return ExifHandler.EXIF.DateOriginal;
+            case "model":
+                return ExifHandler.EXIF.CameraModel;
+            case "gps":
+                return ExifHandler.EXIF.GPSLocation;
+            case "place":
+                return ExifHandler.EXIF.Place;
+            case "size":
+                return ExifHandler.EXIF.ImageSize;
+            default:
+                throw new IllegalArgumentException("unknown field {" + name + "}, expected date, model, gps, place or size");
+        }
+    }
+
+    private static Part literal(String text) {
+        return (sb, exif) -> sb.append(text);
+    }
+
+    private static Part field(ExifHandler.EXIF exif, String dateFormat, int gmt, Gazetteer gazetteer) {
+        switch (exif) {
+            case DateOriginal:
+                DateTimeFormatter formatter = dateFormatter(dateFormat);
+                ZoneOffset offset = offset(gmt);
+                return (sb, metadata) -> appendDate(sb, metadata, formatter, offset);
+            case CameraModel:
+                return CaptionTemplate::appendModel;
+            case GPSLocation:
+                return CaptionTemplate::appendGps;
+            case Place:
+                // the bundled places are only read by the first image with a location
+                return (sb, metadata) -> appendPlace(sb, metadata, gazetteer != null ? gazetteer : Gazetteer.bundled());
+            case ImageSize:
+                return CaptionTemplate::appendSize;
+            default:
+                return (sb, metadata) -> sb.append("no data for ").append(exif);
+        }
+    }
+
+    /**
+     * Check if the template uses an EXIF data
+     *
+     * @param exif the EXIF data
+     * @return True if a part of the template writes it
+     */
+    public boolean uses(ExifHandler.EXIF exif) {
+        return _fields.contains(exif);
+    }
+
+    /**
+     * Evaluate the template for an image
+     *
+     * @param exif the EXIF data of the image, with its dimensions if the template uses the size
+     * @return the text of the image
+     */
+    public String format(ImageMetadata exif) {
+        return appendTo(new StringBuilder(), exif).toString();
+    }
+
+    /**
+     * Evaluate the template for an image into a StringBuilder
+     *
+     * @param text the StringBuilder receiving the text
+     * @param exif the EXIF data of the image, with its dimensions if the template uses the size
+     * @return the StringBuilder
+     */
+    public StringBuilder appendTo(StringBuilder text, ImageMetadata exif) {
+        for (Part part : _parts) {
+            part.appendTo(text, exif);
+        }
+        return text;
+    }
+
+    /**
+     * Get the formatter of a date pattern, created once by pattern
+     *
+     * @param pattern the pattern of the date, e.g. dd.MM.yyyy HH:mm:ss
+     * @return the formatter
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    static DateTimeFormatter dateFormatter(String pattern) {
+        DateTimeFormatter formatter = DATE_FORMATTERS.get(pattern);
+        if (formatter == null) {
+            // the invalid patterns aren't cached, they are refused once by the configuration
+            formatter = DateTimeFormatter.ofPattern(pattern);
+            try {
+                // a zone field is only refused when formatting a date without zone
+                formatter.format(LocalDateTime.of(2000, 1, 1, 0, 0));
+            } catch (DateTimeException ex) {
+                throw new IllegalArgumentException(ex.getMessage(), ex);
+            }
+            DATE_FORMATTERS.putIfAbsent(pattern, formatter);
+        }
+        return formatter;
+    }
+
+    /**
+     * Get the offset of a GMT offset in hours
+     *
+     * @param gmt the offset in hours
+     * @return the offset
+     * @throws IllegalArgumentException if the offset is not between -18 and 18
+     */
+    static ZoneOffset offset(int gmt) {
+        try {
+            return ZoneOffset.ofHours(gmt);
+        } catch (DateTimeException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Append the original date shifted by the GMT offset, "no date" if missing.
+     * The EXIF date has no zone, it is read as UTC and shown at the offset, whatever the zone of the JVM.
+     */
+    static void appendDate(StringBuilder text, ImageMetadata exif, DateTimeFormatter formatter, ZoneOffset offset) {
+        long date = exif.getDateOriginal();
+        if (date == ImageMetadata.NO_DATE) {
+            text.append("no date");
+            return;
+        }
+        LocalDateTime shifted = LocalDateTime.ofEpochSecond(Math.floorDiv(date, 1000L),
+                (int) Math.floorMod(date, 1000L) * 1_000_000, offset);
+        formatter.formatTo(shifted, text);
+    }
+
+    /**
+     * Append the camera model
+     */
+    static void appendModel(StringBuilder text, ImageMetadata exif) {
+        if (exif.hasIfd0()) {
+            text.append(exif.getModel());
+        } else {
+            text.append("Camera model information not found in EXIF data.");
+        }
+    }
+
+    /**
+     * Append the GPS location in degrees, minutes and seconds
+     */
+    static void appendGps(StringBuilder text, ImageMetadata exif) {
+        if (!exif.hasGpsDirectory()) {
+            text.append("GPS directory not found in EXIF data.");
+        } else if (!exif.hasLocation()) {
+            text.append("GPS coordinates not found in EXIF data.");
+        } else {
+            text.append("Latitude: ").append(GeoLocation.decimalToDegreesMinutesSecondsString(exif.getLatitude()))
+                    .append(", Longitude: ").append(GeoLocation.decimalToDegreesMinutesSecondsString(exif.getLongitude()));
+        }
+    }
+
+    /**
+     * Append the name of the place nearest to the GPS location, the location if no place is close
+     */
+    static void appendPlace(StringBuilder text, ImageMetadata exif, Gazetteer gazetteer) {
+        String place = exif.hasLocation()
+                ? gazetteer.nearest(exif.getLatitude(), exif.getLongitude(), PLACE_DISTANCE) : null;
+        if (place == null) {
+            appendGps(text, exif);
+        } else {
+            text.append(place);
+        }
+    }
+
+    /**
+     * Append the size of the image in pixels
+     */
+    static void appendSize(StringBuilder text, ImageMetadata exif) {
+        text.append(exif.getWidth()).append(" x ").append(exif.getHeight()).append("px");
+    }
+
+    /**
+     * Get the source of the template
+     *
+     * @return the template, null if compiled from the EXIF data and texts of the options
+     */
+    @Override
+    public String toString() {
+        return _source;
+    }
+}
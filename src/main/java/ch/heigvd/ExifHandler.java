@@ -12,24 +12,29 @@
 
 package ch.heigvd;
 
+import com.drew.imaging.jpeg.JpegMetadataReader;
+import com.drew.imaging.jpeg.JpegSegmentMetadataReader;
+import com.drew.imaging.tiff.TiffProcessingException;
+import com.drew.imaging.tiff.TiffReader;
+import com.drew.lang.RandomAccessReader;
 import com.drew.metadata.Directory;
 import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifDirectoryBase;
 import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifReader;
 import com.drew.metadata.exif.ExifSubIFDDirectory;
+import com.drew.metadata.exif.ExifTiffHandler;
 
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
 import java.util.*;
 
-import javax.imageio.ImageIO;
-
 import com.drew.imaging.ImageMetadataReader;
 import com.drew.imaging.ImageProcessingException;
-import com.drew.metadata.exif.GpsDirectory;
+import com.drew.metadata.jpeg.JpegDirectory;
+import com.drew.metadata.jpeg.JpegReader;
+import com.drew.metadata.png.PngDirectory;
 
 
 public class ExifHandler {
@@ -37,16 +42,26 @@ public class ExifHandler {
     /**
      * Separator between EXIF data or personal text
      */
-    public static String separator = " - ";
+    private String _separator = " - ";
     /**
-     * Store EXIF data
+     * Store EXIF data, parsed on the first data asking for it
      */
     private Metadata _metadata;
 
     /**
-     * Store the image path
+     * Store the EXIF data computed by the overlay, read from the metadata or given by an index
+     */
+    private ImageMetadata _imageMetadata;
+
+    /**
+     * Store if the EXIF data are given by an index, the metadata are then never parsed
+     */
+    private boolean _indexed;
+
+    /**
+     * Store the bytes of the image
      */
-    private String _imagePath;
+    private ImageSource _source;
 
     /**
      * Store the EXIF data to compute
@@ -63,7 +78,17 @@ public class ExifHandler {
     /**
      * Personal text to include
      */
-    private Queue _personalTexts = new LinkedList<String>();
+    private ArrayList<String> _personalTexts = new ArrayList<>();
+
+    /**
+     * Store the template of the text, null until compiled from the EXIF data and personal texts
+     */
+    private CaptionTemplate _template;
+
+    /**
+     * EXIF data of an image whose metadata aren't parsed
+     */
+    private static final ImageMetadata NO_METADATA = new ImageMetadata.Builder().build();
 
     /**
      * Constructor
@@ -72,17 +97,126 @@ public class ExifHandler {
      * @throws IOException if the image can't be read or doesn't exist
      */
     public ExifHandler(String imagePath) throws ImageProcessingException, IOException {
+        this(new ImageSource(imagePath));
+    }
+
+    /**
+     * Constructor computing the EXIF data and texts of a configuration
+     * @param source the bytes of the image
+     * @param config the configuration giving the data to compute and their format
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException if the metadata can't be read
+     */
+    public ExifHandler(ImageSource source, OverlayConfig config) throws ImageProcessingException, IOException {
+        this(source, config, null);
+    }
+
+    /**
+     * Constructor computing the EXIF data and texts of a configuration, with the EXIF data read from an index
+     * @param source  the bytes of the image
+     * @param config  the configuration giving the data to compute and their format
+     * @param indexed the EXIF data of the image read from an index, null to parse its metadata
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException if the metadata can't be read
+     */
+    public ExifHandler(ImageSource source, OverlayConfig config, ImageMetadata indexed) throws ImageProcessingException, IOException {
+        this(source);
+        if (indexed != null) {
+            _imageMetadata = indexed;
+            _indexed = true;
+            if (indexed.hasDimensions() && !source.hasDimensions()) {
+                source.setDimensions(indexed.getWidth(), indexed.getHeight());
+            }
+        }
+        _exifDatas.addAll(config.getExifDatas());
+        _personalTexts.addAll(config.getTexts());
+        _separator = config.getSeparator();
+        _dateFormat = config.getDateFormat();
+        _gmt = config.getGMT();
+        _template = config.getTemplate();
+    }
+
+    /**
+     * Constructor over an image already read in memory, its metadata are parsed only when a data needs them
+     * @param source the bytes of the image
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException if the metadata can't be read
+     */
+    public ExifHandler(ImageSource source) throws ImageProcessingException, IOException {
+        _source = source;
+    }
 
-        try { // don't need to use try with resources because the metadata implement a close in case of error
-            _metadata = ImageMetadataReader.readMetadata(new File(imagePath));
-            _imagePath = imagePath;
+    /**
+     * Get the metadata of the image, parsed on the first call.
+     * A JPEG is parsed with only the EXIF segment, without the maker notes, the thumbnail and the directories no
+     * data needs: the XMP, ICC and IPTC segments are skipped. The other formats are parsed entirely.
+     * @return the metadata of the image
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException if the metadata can't be read
+     */
+    private Metadata metadata() throws ImageProcessingException, IOException {
+        if (_metadata != null) return _metadata;
+        try (InputStream stream = _source.openStream()) {
+            if (isJpeg()) {
+                List<JpegSegmentMetadataReader> readers = new ArrayList<>();
+                CaptionTemplate template = template();
+                readers.add(new SelectiveExifReader(template.uses(EXIF.DateOriginal),
+                        template.uses(EXIF.GPSLocation) || template.uses(EXIF.Place)));
+                // the SOF segment gives the size in the same pass
+                if (template.uses(EXIF.ImageSize) && !_source.hasDimensions()) readers.add(new JpegReader());
+                _metadata = JpegMetadataReader.readMetadata(stream, readers);
+            } else {
+                _metadata = ImageMetadataReader.readMetadata(stream, _source.getSize());
+            }
         } catch (IOException ex) {
-            System.out.println("The path to image : " + imagePath + " doesn't exist");
+            System.out.println("Error when reading EXIF data with image : " + _source.getImagePath());
             throw ex;
         } catch (ImageProcessingException ex) {
-            System.out.println("Error when processing EXIF data with image : " + imagePath);
+            System.out.println("Error when processing EXIF data with image : " + _source.getImagePath());
             throw ex;
         }
+        return _metadata;
+    }
+
+    /**
+     * Get the EXIF data computed by the overlay, read from the metadata on the first call
+     * @return the EXIF data
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException if the metadata can't be read
+     */
+    private ImageMetadata imageMetadata() throws ImageProcessingException, IOException {
+        if (_imageMetadata == null) _imageMetadata = ImageMetadata.read(metadata(), 0, 0);
+        return _imageMetadata;
+    }
+
+    /**
+     * Check if the image starts with the JPEG SOI marker
+     * @return True if the image is a JPEG
+     */
+    private boolean isJpeg() {
+        ByteBuffer bytes = _source.getBytes();
+        return bytes.remaining() > 2 && (bytes.get(0) & 0xFF) == 0xFF && (bytes.get(1) & 0xFF) == 0xD8;
+    }
+
+    /**
+     * Check if a data is read from the EXIF metadata
+     * @return True if the date, the camera model or the GPS location is computed
+     */
+    private boolean needsMetadata() {
+        CaptionTemplate template = template();
+        return template.uses(EXIF.DateOriginal) || template.uses(EXIF.CameraModel) || template.uses(EXIF.GPSLocation)
+                || template.uses(EXIF.Place);
+    }
+
+    /**
+     * Get the template of the text, compiled from the EXIF data and personal texts if not given by a configuration
+     * @return the template
+     */
+    private CaptionTemplate template() {
+        if (_template == null) {
+            _template = CaptionTemplate.of(_exifDatas, _personalTexts, _separator, _dateFormat, _gmt);
+        }
+        return _template;
     }
 
     /**
@@ -92,6 +226,7 @@ public class ExifHandler {
      */
     public void AddExifData(EXIF exifData) {
         _exifDatas.add(exifData);
+        _template = null;
     }
 
     /**
@@ -101,6 +236,16 @@ public class ExifHandler {
     public void AddText(String text) {
         _exifDatas.add(EXIF.Text);
         _personalTexts.add(text);
+        _template = null;
+    }
+
+    /**
+     * Set the separator between data
+     * @param separator the separator, surrounded by spaces
+     */
+    public void SetSeparator(String separator) {
+        _separator = " " + separator + " ";
+        _template = null;
     }
 
     /**
@@ -108,7 +253,9 @@ public class ExifHandler {
      * @param gmt
      */
     public void SetGMT(int gmt) {
+        if (gmt < -18 || gmt > 18) return;
         _gmt = gmt;
+        _template = null;
     }
 
     /**
@@ -117,149 +264,186 @@ public class ExifHandler {
      */
     public void SetDateFormat(String dateFormat) {
         if (dateFormat == null || dateFormat.isEmpty()) return;
+        try {
+            CaptionTemplate.dateFormatter(dateFormat);
+        } catch (IllegalArgumentException ex) {
+            return;
+        }
         _dateFormat = dateFormat;
+        _template = null;
     }
 
     /**
-     * Get EXIF data
+     * Compute all EXIF data and add personal text to a string, the handler can compute it again
      *
-     * @param exifField EXIF data type to get
-     * @throws IOException if the image can't be read or doesn't exist
-     * @return EXIF data
-     */
-    private String getExifDataToString(EXIF exifField) throws IOException {
-        String data = "";
-        switch (exifField) {
-            case DateOriginal:
-                Date date = GetDate();
-                if (date == null) {
-                    data = "no date";
-                } else {
-                    SimpleDateFormat dateFormat = new SimpleDateFormat(_dateFormat);
-                    data = dateFormat.format(date);
-                }
-                break;
-            case CameraModel:
-                data = getCameraModel();
-                break;
-            case ImageSize:
-                data = getImageSize();
-                break;
-            case GPSLocation:
-                data = getGPSLocation();
-                break;
-            default:
-                data = "no data for " + exifField.toString();
-                break;
+     * @return EXIF data computed
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException if the image can't be read
+     */
+    public String ComputeImageText() throws ImageProcessingException, IOException {
+        CaptionTemplate template = template();
+        ImageMetadata exif = needsMetadata() ? imageMetadata() : NO_METADATA;
+        if (template.uses(EXIF.ImageSize)) {
+            exif = withDimensions(exif);
         }
-        return data;
+        return template.format(exif);
     }
 
     /**
-     * Compute all EXIF data and add personal text to a string
-     *
-     * @return EXIF data computed
-     *
+     * Get the camera model from EXIF data
+     * @return the camera model from EXIF data
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException if the metadata can't be read
      */
-    public String ComputeImageText() throws IOException {
+    public String getCameraModel() throws ImageProcessingException, IOException {
+        StringBuilder model = new StringBuilder();
+        CaptionTemplate.appendModel(model, imageMetadata());
+        return model.toString();
+    }
 
-        if(_exifDatas.isEmpty()) {
-            return "";
-        }
-        StringBuilder sb = new StringBuilder();
-        int idx = 0;
-
-        //Concat all EXIF data
-        for (EXIF exifData : _exifDatas) {
-            if (exifData == EXIF.Text) {
-                sb.append(_personalTexts.poll());
-                // Doesn't remove separator if text is the last element
-                if (idx == _exifDatas.size() - 1) {
-                    return sb.toString();
-                }
-            } else {
-                sb.append(getExifDataToString(exifData)).append(separator);
-            }
-            idx++;
-        }
-        // remove the last separator
-         sb.delete(sb.length() - separator.length(), sb.length());
-        return sb.toString();
+    /**
+     * Get the GPS location from EXIF data
+     * @return The GPS location from EXIF data
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException if the metadata can't be read
+     */
+    public String getGPSLocation() throws ImageProcessingException, IOException {
+        StringBuilder location = new StringBuilder();
+        CaptionTemplate.appendGps(location, imageMetadata());
+        return location.toString();
     }
 
     /**
-     * Get the date from EXIF data
-     *
-     * @return date from EXIF data
-     */
-    private Date GetDate() {
-        //get the directory with the date
-        ExifSubIFDDirectory subIFDDirectory = _metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
-
-        Date date = null;
-        if (subIFDDirectory != null) {
-            // Get date from EXIF
-            date = subIFDDirectory.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
-            Calendar calendar = Calendar.getInstance();
-            calendar.setTime(date);
-            //set GMT offset
-            calendar.add(Calendar.HOUR_OF_DAY, _gmt);
-            date = calendar.getTime();
+     * Get the EXIF data of the image with its dimensions, read from the headers without decoding the image
+     * @return the EXIF data, without dimensions if the headers don't give them
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException if the metadata can't be read
+     */
+    public ImageMetadata getImageMetadata() throws ImageProcessingException, IOException {
+        ImageMetadata exif = imageMetadata();
+        if (exif.hasDimensions()) return exif;
+        if (!_source.hasDimensions() && !(needsMetadata() && readDimensionsFromMetadata())) {
+            _source.probeDimensions();
         }
-        return date;
+        return _source.hasDimensions() ? exif.withDimensions(_source.getWidth(), _source.getHeight()) : exif;
     }
 
     /**
-     * Get the camera model from EXIF data
-     * @return the camera model from EXIF data
+     * Get the size from the image, read from the headers and decoded only if they don't give it.
+     * The metadata give it only when they are parsed for another data, else the header is probed.
+     * @return the size of the image in pixels
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException if the image can't be read
      */
-    public String getCameraModel() {
-        // Recherche du répertoire ExifIFD0, qui contient des informations sur la caméra
-        Directory exifIFD0Directory = _metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+    public String getImageSize() throws ImageProcessingException, IOException {
+        StringBuilder size = new StringBuilder();
+        CaptionTemplate.appendSize(size, withDimensions(NO_METADATA));
+        return size.toString();
+    }
 
-        if (exifIFD0Directory != null) {
-            String cameraModel = exifIFD0Directory.getString(ExifIFD0Directory.TAG_MODEL);
-            return cameraModel;
-        } else {
-            return "Camera model information not found in EXIF data.";
+    /**
+     * Add the dimensions of the image to its EXIF data, read from the headers and decoded only if they don't give
+     * them. The metadata give them only when they are parsed for another data, else the header is probed.
+     * @param exif the EXIF data of the image
+     * @return the EXIF data with the dimensions
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException if the image can't be read
+     */
+    private ImageMetadata withDimensions(ImageMetadata exif) throws ImageProcessingException, IOException {
+        if (exif.hasDimensions()) return exif;
+        if (!_source.hasDimensions() && !(needsMetadata() && !_indexed && readDimensionsFromMetadata())
+                && !_source.probeDimensions()) {
+            new ImageHandler(_source);
         }
+        return exif.withDimensions(_source.getWidth(), _source.getHeight());
     }
 
     /**
-     * Get the GPS location from EXIF data
-     * @return The GPS location from EXIF data
+     * Read the dimensions from the JPEG SOF or PNG IHDR directory already parsed with the metadata
+     * @return True if the dimensions have been found
      */
-    public String getGPSLocation() {
-        // Looking for gps directory in EXIF data
-        Directory gpsDirectory = _metadata.getFirstDirectoryOfType(GpsDirectory.class);
-
-        if (gpsDirectory != null) {
-            // get GPS coordinates if exists
-            String latitude = gpsDirectory.getDescription(GpsDirectory.TAG_LATITUDE);
-            String longitude = gpsDirectory.getDescription(GpsDirectory.TAG_LONGITUDE);
-
-            if (latitude != null && longitude != null) {
-                return "Latitude: " + latitude + ", Longitude: " + longitude;
-            } else {
-                return "GPS coordinates not found in EXIF data.";
+    private boolean readDimensionsFromMetadata() throws ImageProcessingException, IOException {
+        JpegDirectory jpegDirectory = metadata().getFirstDirectoryOfType(JpegDirectory.class);
+        if (jpegDirectory != null && jpegDirectory.containsTag(JpegDirectory.TAG_IMAGE_WIDTH)
+                && jpegDirectory.containsTag(JpegDirectory.TAG_IMAGE_HEIGHT)) {
+            _source.setDimensions(jpegDirectory.getInteger(JpegDirectory.TAG_IMAGE_WIDTH),
+                    jpegDirectory.getInteger(JpegDirectory.TAG_IMAGE_HEIGHT));
+            return true;
+        }
+        // the IHDR chunk is in one of the png directories
+        for (PngDirectory pngDirectory : metadata().getDirectoriesOfType(PngDirectory.class)) {
+            if (pngDirectory.containsTag(PngDirectory.TAG_IMAGE_WIDTH)
+                    && pngDirectory.containsTag(PngDirectory.TAG_IMAGE_HEIGHT)) {
+                _source.setDimensions(pngDirectory.getInteger(PngDirectory.TAG_IMAGE_WIDTH),
+                        pngDirectory.getInteger(PngDirectory.TAG_IMAGE_HEIGHT));
+                return true;
             }
-        } else {
-            return "GPS directory not found in EXIF data.";
         }
+        return false;
     }
 
     /**
-     * Get the size from the image
-     * @return the size of the image in pixels
+     * Reader of the EXIF segment of a JPEG extracting only the directories of the computed data
      */
-    public String getImageSize() throws IOException {
-        BufferedImage image;
-        try(InputStream stream = new FileInputStream(_imagePath)){
-            image = ImageIO.read(stream);
-            return image.getWidth() +" x "+image.getHeight() + "px";
-        } catch (IOException ex){
-            System.out.println("Error when reading " + _imagePath);
-            throw ex;
+    private static final class SelectiveExifReader extends ExifReader {
+
+        /**
+         * Store if the ExifSubIFD directory, giving the date, is read
+         */
+        private final boolean _subIfd;
+
+        /**
+         * Store if the GPS directory is read
+         */
+        private final boolean _gps;
+
+        private SelectiveExifReader(boolean subIfd, boolean gps) {
+            _subIfd = subIfd;
+            _gps = gps;
+        }
+
+        @Override
+        public void extract(RandomAccessReader reader, Metadata metadata, int readerOffset, Directory parentDirectory) {
+            ExifTiffHandler handler = new ExifTiffHandler(metadata, parentDirectory) {
+                @Override
+                public boolean tryEnterSubIfd(int tagId) {
+                    // the raw previews and the interoperability directory are never computed
+                    if (tagId == ExifDirectoryBase.TAG_SUB_IFD_OFFSET || tagId == ExifSubIFDDirectory.TAG_INTEROP_OFFSET
+                            || tagId == ExifIFD0Directory.TAG_EXIF_SUB_IFD_OFFSET && !_subIfd
+                            || tagId == ExifIFD0Directory.TAG_GPS_INFO_OFFSET && !_gps) {
+                        return false;
+                    }
+                    return super.tryEnterSubIfd(tagId);
+                }
+
+                @Override
+                public boolean hasFollowerIfd() {
+                    // IFD1 only describes the thumbnail
+                    return false;
+                }
+
+                @Override
+                public boolean customProcessTag(int tagOffset, Set<Integer> processedIfdOffsets, int tiffHeaderOffset,
+                                                RandomAccessReader reader, int tagId, int byteCount) throws IOException {
+                    switch (tagId) {
+                        case ExifDirectoryBase.TAG_MAKERNOTE:
+                        case ExifDirectoryBase.TAG_APPLICATION_NOTES:
+                        case ExifDirectoryBase.TAG_IPTC_NAA:
+                        case ExifDirectoryBase.TAG_INTER_COLOR_PROFILE:
+                        case ExifDirectoryBase.TAG_PRINT_IMAGE_MATCHING_INFO:
+                            // skipped without being read
+                            return true;
+                        default:
+                            return super.customProcessTag(tagOffset, processedIfdOffsets, tiffHeaderOffset, reader,
+                                    tagId, byteCount);
+                    }
+                }
+            };
+            try {
+                new TiffReader().processTiff(reader, handler, readerOffset);
+            } catch (TiffProcessingException | IOException ex) {
+                handler.error("Exception processing TIFF data: " + ex.getMessage());
+            }
         }
     }
 
@@ -271,6 +455,7 @@ public class ExifHandler {
         CameraModel,
         ImageSize,
         GPSLocation,
+        Place,
         Text
     }
 
@@ -0,0 +1,335 @@
+/*
+ * Class         : Gazetteer
+ *
+ * Description   : Offline places giving the name of the place nearest to GPS coordinates
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Offline places giving the name of the place nearest to GPS coordinates: "Yverdon-les-Bains, CH".
+ * The places are read from a file in the format of the GeoNames cities files, the bundled one by default. They are
+ * stored as a balanced KD-tree of their unit vectors on the sphere, laid out in one buffer: each node is at the middle
+ * of its range, so the tree has no pointers, and the nearest place is found by visiting a few dozen nodes, without
+ * trouble at the poles or at the 180th meridian. The tree of a GeoNames file is built once and saved next to it in
+ * FILE.inko, then memory-mapped by the next runs. The checksum of the places file is kept with the tree, so a
+ * gazetteer is identified by its content, not by its name.
+ */
+public final class Gazetteer {
+
+    /**
+     * First bytes of a compiled gazetteer, a gazetteer of another version is built again
+     */
+    private static final long MAGIC = 0x494E4B4F47415A32L; // INKOGAZ2
+
+    /**
+     * Size of the header: magic, checksum of the places file, place count
+     */
+    private static final int HEADER = 20;
+
+    /**
+     * Mean radius of the earth in km
+     */
+    private static final double EARTH_RADIUS = 6371.0088;
+
+    /**
+     * Resource of the bundled places
+     */
+    private static final String BUNDLED = "/gazetteer.txt";
+
+    /**
+     * Store the compiled tree: x, y and z columns, label offsets and UTF-8 labels
+     */
+    private final ByteBuffer _buffer;
+
+    /**
+     * Store the CRC32C of the places file the tree is built from
+     */
+    private final long _checksum;
+
+    /**
+     * Store the number of places
+     */
+    private final int _count;
+
+    /**
+     * Store the name of the file of the places
+     */
+    private final String _name;
+
+    // offsets of the columns, computed from the count
+    private final int _x;
+    private final int _y;
+    private final int _z;
+    private final int _labels;
+    private final int _bytes;
+
+    /**
+     * Holder of the bundled places, read on the first use
+     */
+    private static final class Bundled {
+        private static final Gazetteer INSTANCE = readBundled();
+    }
+
+    private Gazetteer(ByteBuffer buffer, String name) throws IOException {
+        _buffer = buffer;
+        _name = name;
+        if (buffer.capacity() < HEADER || buffer.getLong(0) != MAGIC) {
+            throw new IOException("The gazetteer : " + name + " is not compiled by this version");
+        }
+        _checksum = buffer.getLong(8);
+        _count = buffer.getInt(16);
+        _x = HEADER;
+        _y = _x + 4 * _count;
+        _z = _y + 4 * _count;
+        _labels = _z + 4 * _count;
+        _bytes = _labels + 4 * (_count + 1);
+        if (_count < 0 || _bytes > buffer.capacity()
+                || _bytes + (long) buffer.getInt(_labels + 4 * _count) > buffer.capacity()) {
+            throw new IOException("The gazetteer : " + name + " is truncated");
+        }
+    }
+
+    /**
+     * Get the bundled places, read once
+     *
+     * @return the places bundled with Inko
+     */
+    public static Gazetteer bundled() {
+        return Bundled.INSTANCE;
+    }
+
+    private static Gazetteer readBundled() {
+        try (InputStream stream = Gazetteer.class.getResourceAsStream(BUNDLED)) {
+            if (stream == null) throw new IOException("the resource " + BUNDLED + " is missing");
+            return new Gazetteer(compile(stream), BUNDLED);
+        } catch (IOException ex) {
+            throw new IllegalStateException("The bundled places can't be read", ex);
+        }
+    }
+
+    /**
+     * Open a GeoNames cities file, its tree is read from FILE.inko if it is newer than the file, else it is built
+     * and saved there for the next runs
+     *
+     * @param file the places, one per line in the GeoNames format
+     * @return the places
+     * @throws IOException if the file can't be read
+     */
+    public static Gazetteer open(Path file) throws IOException {
+        Path compiled = file.resolveSibling(file.getFileName() + ".inko");
+        try {
+            if (Files.isRegularFile(compiled)
+                    && Files.getLastModifiedTime(compiled).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+                try (FileChannel channel = FileChannel.open(compiled, StandardOpenOption.READ)) {
+                    return new Gazetteer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file.toString());
+                } catch (IOException ex) {
+                    System.out.println(ex.getMessage() + ", it will be built again");
+                }
+            }
+            ByteBuffer buffer;
+            try (InputStream stream = Files.newInputStream(file)) {
+                buffer = compile(stream);
+            }
+            try {
+                Path temp = compiled.resolveSibling(compiled.getFileName() + ".tmp");
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer bytes = buffer.duplicate();
+                    while (bytes.hasRemaining()) channel.write(bytes);
+                }
+                Files.move(temp, compiled, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                // a read-only directory only costs the build of the next runs
+                System.out.println("The gazetteer can't be saved to : " + compiled + ", it will be built again by the next runs");
+            }
+            return new Gazetteer(buffer, file.toString());
+        } catch (NoSuchFileException ex) {
+            System.out.println("The gazetteer : " + file + " doesn't exist");
+            throw ex;
+        }
+    }
+
+    /**
+     * Build the tree of the places of a GeoNames file: the tab separated columns 1, 4, 5 and 8 are the name, the
+     * latitude, the longitude and the country code. The empty lines, the comments and the invalid lines are skipped.
+     *
+     * @param stream the places
+     * @return the compiled tree
+     * @throws IOException if the places can't be read
+     */
+    static ByteBuffer compile(InputStream stream) throws IOException {
+        List<String> labels = new ArrayList<>();
+        float[][] points = new float[3][1024];
+        CheckedInputStream checked = new CheckedInputStream(stream, new CRC32C());
+        BufferedReader reader = new BufferedReader(new InputStreamReader(checked, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] columns = line.split("\t", 10);
+            if (columns.length < 9 || columns[1].isEmpty()) continue;
+            double latitude;
+            double longitude;
+            try {
+                latitude = Double.parseDouble(columns[4]);
+                longitude = Double.parseDouble(columns[5]);
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+            if (Math.abs(latitude) > 90 || Math.abs(longitude) > 180) continue;
+            int place = labels.size();
+            if (place == points[0].length) {
+                for (int axis = 0; axis < 3; axis++) points[axis] = Arrays.copyOf(points[axis], place * 2);
+            }
+            double phi = Math.toRadians(latitude);
+            double lambda = Math.toRadians(longitude);
+            points[0][place] = (float) (Math.cos(phi) * Math.cos(lambda));
+            points[1][place] = (float) (Math.cos(phi) * Math.sin(lambda));
+            points[2][place] = (float) Math.sin(phi);
+            labels.add(columns[8].isEmpty() ? columns[1] : columns[1] + ", " + columns[8]);
+        }
+
+        int count = labels.size();
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        build(order, 0, count, 0, points);
+
+        byte[][] utf8 = new byte[count][];
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            utf8[i] = labels.get(order[i]).getBytes(StandardCharsets.UTF_8);
+            length += utf8[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER + 16 * count + 4 + length);
+        buffer.putLong(MAGIC).putLong(checked.getChecksum().getValue()).putInt(count);
+        for (int axis = 0; axis < 3; axis++) {
+            for (int i = 0; i < count; i++) buffer.putFloat(points[axis][order[i]]);
+        }
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(offset);
+            offset += utf8[i].length;
+        }
+        buffer.putInt(offset);
+        for (byte[] label : utf8) buffer.put(label);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Order a range of places as a KD-tree: the median on the axis of the depth in the middle, the smaller ones
+     * before it and the larger ones after it
+     */
+    private static void build(Integer[] order, int low, int high, int depth, float[][] points) {
+        if (high - low <= 1) return;
+        float[] axis = points[depth % 3];
+        Arrays.sort(order, low, high, (a, b) -> Float.compare(axis[a], axis[b]));
+        int middle = (low + high) >>> 1;
+        build(order, low, middle, depth + 1, points);
+        build(order, middle + 1, high, depth + 1, points);
+    }
+
+    /**
+     * Get the number of places
+     *
+     * @return the number of places
+     */
+    public int size() {
+        return _count;
+    }
+
+    /**
+     * Find the place nearest to coordinates
+     *
+     * @param latitude    the latitude in degrees
+     * @param longitude   the longitude in degrees
+     * @param maxDistance the maximum distance of the place in km
+     * @return the name and country of the place, null if no place is that close
+     */
+    public String nearest(double latitude, double longitude, double maxDistance) {
+        if (_count == 0) return null;
+        double phi = Math.toRadians(latitude);
+        double lambda = Math.toRadians(longitude);
+        float[] query = {(float) (Math.cos(phi) * Math.cos(lambda)), (float) (Math.cos(phi) * Math.sin(lambda)),
+                (float) Math.sin(phi)};
+        // the squared chord of the maximum distance bounds the search
+        double chord = 2 * Math.sin(Math.min(maxDistance / EARTH_RADIUS, Math.PI) / 2);
+        double[] best = {chord * chord};
+        int[] place = {-1};
+        search(query, 0, _count, 0, best, place);
+        return place[0] < 0 ? null : label(place[0]);
+    }
+
+    private void search(float[] query, int low, int high, int depth, double[] best, int[] place) {
+        if (low >= high) return;
+        int middle = (low + high) >>> 1;
+        double dx = query[0] - _buffer.getFloat(_x + 4 * middle);
+        double dy = query[1] - _buffer.getFloat(_y + 4 * middle);
+        double dz = query[2] - _buffer.getFloat(_z + 4 * middle);
+        double distance = dx * dx + dy * dy + dz * dz;
+        if (distance <= best[0]) {
+            best[0] = distance;
+            place[0] = middle;
+        }
+        double side = depth % 3 == 0 ? dx : depth % 3 == 1 ? dy : dz;
+        // the side of the query first, the other one only if the splitting plane is closer than the best place
+        if (side < 0) {
+            search(query, low, middle, depth + 1, best, place);
+            if (side * side <= best[0]) search(query, middle + 1, high, depth + 1, best, place);
+        } else {
+            search(query, middle + 1, high, depth + 1, best, place);
+            if (side * side <= best[0]) search(query, low, middle, depth + 1, best, place);
+        }
+    }
+
+    private String label(int place) {
+        int start = _buffer.getInt(_labels + 4 * place);
+        int end = _buffer.getInt(_labels + 4 * (place + 1));
+        byte[] bytes = new byte[end - start];
+        _buffer.get(_bytes + start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the checksum of the places file, two gazetteers with the same checksum give the same places
+     *
+     * @return the CRC32C of the file the tree is built from
+     */
+    public long getChecksum() {
+        return _checksum;
+    }
+
+    /**
+     * Get the name and the checksum of the file of the places, the identity of the gazetteer in the options
+     *
+     * @return the file and its checksum
+     */
+    @Override
+    public String toString() {
+        return _name + "@" + String.format("%08x", _checksum);
+    }
+}
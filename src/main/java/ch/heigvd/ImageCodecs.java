@@ -0,0 +1,196 @@
+/*
+ * Class         : ImageCodecs
+ *
+ * Description   : ImageIO readers and writers kept per thread, and decoding into pooled buffers
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * ImageIO readers and writers kept per thread. ImageIO.read and ImageIO.write look the codecs up in the service
+ * registry for every image, and the reader is found by asking each provider to sniff the stream; here the codec of
+ * a format is created once per thread and reset between the images. A codec is removed from its thread while in
+ * use, so a nested use creates another one.
+ */
+public final class ImageCodecs {
+
+    /**
+     * The readers of the thread, by format
+     */
+    private static final ThreadLocal<Map<String, ImageReader>> READERS = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * The writers of the thread, by format
+     */
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = ThreadLocal.withInitial(HashMap::new);
+
+    private ImageCodecs() {
+    }
+
+    /**
+     * Get the format of an image from its path
+     *
+     * @param imagePath the path of the image
+     * @return the extension in lower case, jpeg for jpg, null if none
+     */
+    public static String formatOf(String imagePath) {
+        int dot = imagePath.lastIndexOf('.');
+        if (dot < 0 || dot < imagePath.lastIndexOf('/')) return null;
+        return normalize(imagePath.substring(dot + 1));
+    }
+
+    private static String normalize(String format) {
+        String name = format.toLowerCase(Locale.ROOT);
+        return name.equals("jpg") ? "jpeg" : name;
+    }
+
+    /**
+     * Take a reader able to decode a stream, the one of the format when it recognizes the stream, else the one
+     * found by ImageIO. The input of the reader is the stream
+     *
+     * @param format the expected format, null if unknown
+     * @param stream the stream of the image, at its start
+     * @return the reader, to give back with releaseReader; null if no reader decodes the stream
+     * @throws IOException if the stream can't be read
+     */
+    public static ImageReader acquireReader(String format, ImageInputStream stream) throws IOException {
+        ImageReader reader = null;
+        if (format != null) {
+            Map<String, ImageReader> readers = READERS.get();
+            reader = readers.remove(normalize(format));
+            if (reader == null) {
+                Iterator<ImageReader> candidates = ImageIO.getImageReadersByFormatName(format);
+                reader = candidates.hasNext() ? candidates.next() : null;
+            }
+            // the extension may lie, the provider checks the signature
+            if (reader != null && !reader.getOriginatingProvider().canDecodeInput(stream)) {
+                release(readers, reader);
+                reader = null;
+            }
+        }
+        if (reader == null) {
+            Iterator<ImageReader> candidates = ImageIO.getImageReaders(stream);
+            if (!candidates.hasNext()) return null;
+            reader = candidates.next();
+        }
+        reader.setInput(stream, true, true);
+        return reader;
+    }
+
+    /**
+     * Give a reader back to the readers of the thread, its input is cleared but not closed
+     *
+     * @param reader    the reader of acquireReader, null is ignored
+     * @param completed false if the decoding failed, the reader is disposed
+     */
+    public static void releaseReader(ImageReader reader, boolean completed) {
+        if (reader == null) return;
+        reader.reset();
+        if (completed) {
+            release(READERS.get(), reader);
+        } else {
+            reader.dispose();
+        }
+    }
+
+    private static void release(Map<String, ImageReader> readers, ImageReader reader) {
+        String format = reader.getOriginatingProvider().getFormatNames()[0];
+        if (readers.putIfAbsent(normalize(format), reader) != null) reader.dispose();
+    }
+
+    /**
+     * Take a writer of a format able to encode an image
+     *
+     * @param format the format
+     * @param image  the image to encode
+     * @return the writer, to give back with releaseWriter; null if no writer supports the format and the image
+     */
+    public static ImageWriter acquireWriter(String format, RenderedImage image) {
+        String key = normalize(format);
+        ImageWriter writer = WRITERS.get().remove(key);
+        if (writer != null && writer.getOriginatingProvider().canEncodeImage(image)) return writer;
+        if (writer != null) WRITERS.get().put(key, writer);
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWriters(ImageTypeSpecifier.createFromRenderedImage(image), format);
+        return writers.hasNext() ? writers.next() : null;
+    }
+
+    /**
+     * Give a writer back to the writers of the thread, its output is cleared but not closed
+     *
+     * @param format    the format of acquireWriter
+     * @param writer    the writer of acquireWriter
+     * @param completed false if the encoding failed, the writer is disposed
+     */
+    public static void releaseWriter(String format, ImageWriter writer, boolean completed) {
+        writer.reset();
+        if (!completed || WRITERS.get().putIfAbsent(normalize(format), writer) != null) {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Get the type a reader decodes its image to, read from the header
+     *
+     * @param reader the reader, with its input
+     * @return the first type of the reader: the one it decodes to without conversion, null if it has none
+     * @throws IOException if the header can't be read
+     */
+    public static ImageTypeSpecifier decodedType(ImageReader reader) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        return types.hasNext() ? types.next() : null;
+    }
+
+    /**
+     * Decode an image, or a region of it, into a buffer of a pool when the reader decodes to a pooled type
+     *
+     * @param reader the reader, with its input
+     * @param param  the parameters of the reading, its destination is set; null for the default ones
+     * @param width  the width of the decoded image: the one of the region
+     * @param height the height of the decoded image: the one of the region
+     * @param pool   the pool of the buffers
+     * @return the decoded image
+     * @throws IOException if the image can't be decoded
+     */
+    public static BufferedImage read(ImageReader reader, ImageReadParam param, int width, int height, RasterPool pool)
+            throws IOException {
+        if (param == null) param = reader.getDefaultReadParam();
+        ImageTypeSpecifier decoded = decodedType(reader);
+        int type = decoded != null ? decoded.getBufferedImageType() : BufferedImage.TYPE_CUSTOM;
+        if (!RasterPool.isPooledType(type) || param.getDestination() != null
+                || param.getSourceXSubsampling() != 1 || param.getSourceYSubsampling() != 1) {
+            return reader.read(0, param);
+        }
+        // cleared: the rows of a truncated image are left as they are by the reader, not as the previous image
+        BufferedImage destination = pool.newImage(width, height, type, true);
+        param.setDestination(destination);
+        boolean completed = false;
+        try {
+            BufferedImage image = reader.read(0, param);
+            completed = true;
+            return image;
+        } finally {
+            if (!completed) pool.release(destination);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Class         : ImageEncoder
+ *
+ * Description   : Immutable settings of the encoder and encoding of the output images
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Immutable settings of the encoder: the quality, the Huffman tables, the progressive mode and the chroma subsampling
+ * of JPEG, the compression level and the filter of PNG. The defaults are the ones of ImageIO.write.
+ * JPEG and the other formats are encoded by the ImageIO writers of the thread, see ImageCodecs. PNG is encoded by
+ * PngEncoder, the ImageIO writer has no choice of filter.
+ */
+public final class ImageEncoder {
+
+    /**
+     * Filter of the rows of a PNG, the ordinals are the filter types of PNG
+     */
+    public enum PngFilter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /**
+         * Try the five filters on each row and keep the one with the smallest differences, as ImageIO
+         */
+        ADAPTIVE
+    }
+
+    /**
+     * JPEG quality, 0 to 1
+     */
+    private final float _quality;
+
+    /**
+     * Compute the Huffman tables of each JPEG instead of using the standard ones
+     */
+    private final boolean _optimizeHuffman;
+
+    /**
+     * Encode the JPEG in progressive scans
+     */
+    private final boolean _progressive;
+
+    /**
+     * Chroma subsampling of the JPEG: 420, 422 or 444
+     */
+    private final String _chromaSubsampling;
+
+    /**
+     * Compression level of PNG, 0 to 9
+     */
+    private final int _pngCompression;
+
+    /**
+     * Filter of the rows of PNG
+     */
+    private final PngFilter _pngFilter;
+
+    private ImageEncoder(Builder builder) {
+        _quality = builder._quality;
+        _optimizeHuffman = builder._optimizeHuffman;
+        _progressive = builder._progressive;
+        _chromaSubsampling = builder._chromaSubsampling;
+        _pngCompression = builder._pngCompression;
+        _pngFilter = builder._pngFilter;
+    }
+
+    /**
+     * Get the default settings, the ones of ImageIO.write
+     * @return the default settings
+     */
+    public static ImageEncoder defaults() {
+        return new Builder().build();
+    }
+
+    /**
+     * Get the JPEG quality
+     * @return the quality, 0 to 1
+     */
+    public float getQuality() {
+        return _quality;
+    }
+
+    /**
+     * Check if the Huffman tables of each JPEG are computed
+     * @return True to optimize the Huffman tables
+     */
+    public boolean isOptimizeHuffman() {
+        return _optimizeHuffman;
+    }
+
+    /**
+     * Check if the JPEG are progressive
+     * @return True for progressive scans
+     */
+    public boolean isProgressive() {
+        return _progressive;
+    }
+
+    /**
+     * Get the chroma subsampling of the JPEG
+     * @return 420, 422 or 444
+     */
+    public String getChromaSubsampling() {
+        return _chromaSubsampling;
+    }
+
+    /**
+     * Get the compression level of PNG
+     * @return the level, 0 to 9
+     */
+    public int getPngCompression() {
+        return _pngCompression;
+    }
+
+    /**
+     * Get the filter of the rows of PNG
+     * @return the filter
+     */
+    public PngFilter getPngFilter() {
+        return _pngFilter;
+    }
+
+    /**
+     * Get all the settings, two encoders producing the same files have the same string
+     * @return the settings, key=value separated by ;
+     */
+    @Override
+    public String toString() {
+        return "quality=" + _quality + ";optimizeHuffman=" + _optimizeHuffman + ";progressive=" + _progressive
+                + ";chromaSubsampling=" + _chromaSubsampling + ";pngCompression=" + _pngCompression
+                + ";pngFilter=" + _pngFilter;
+    }
+
+    /**
+     * Get the settings of a baseline JPEG with the standard Huffman tables, the ones of the JPEG encoded strip by strip
+     * @return the settings without optimized Huffman tables and progressive scans
+     */
+    ImageEncoder baseline() {
+        if (!_optimizeHuffman && !_progressive) return this;
+        Builder builder = new Builder();
+        builder._quality = _quality;
+        builder._chromaSubsampling = _chromaSubsampling;
+        builder._pngCompression = _pngCompression;
+        builder._pngFilter = _pngFilter;
+        return builder.build();
+    }
+
+    /**
+     * Encode an image
+     *
+     * @param image  the image, without alpha for JPEG
+     * @param format the format: jpeg, png, gif...
+     * @param output the output, not closed
+     * @return True if encoded, false if no writer supports the format and the image
+     * @throws IOException if the image can't be encoded or written
+     */
+    public boolean encode(RenderedImage image, String format, OutputStream output) throws IOException {
+        if (format.equalsIgnoreCase("png") && PngEncoder.isSupported(image)) {
+            PngEncoder.write(image, output, _pngCompression, _pngFilter);
+            return true;
+        }
+        ImageWriter writer = ImageCodecs.acquireWriter(format, image);
+        if (writer == null) return false;
+        boolean completed = false;
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(output)) {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            IIOMetadata metadata = null;
+            if (ImageTextOverlay.isJpeg(format)) {
+                metadata = configureJpeg(writer, param, image);
+            } else if (format.equalsIgnoreCase("png") && param.canWriteCompressed()) {
+                // the ImageIO writer maps the quality to the level of deflate: 1 is level 0
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(1f - _pngCompression / 9f);
+            }
+            writer.write(null, new IIOImage(image, null, metadata), param);
+            completed = true;
+        } finally {
+            ImageCodecs.releaseWriter(format, writer, completed);
+        }
+        return true;
+    }
+
+    /**
+     * Set the quality, the Huffman tables, the progressive mode and the chroma subsampling of a JPEG
+     *
+     * @param writer the JPEG writer
+     * @param param  the parameters of the writer, modified
+     * @param image  the image to encode
+     * @return the metadata giving the sampling factors, null for the default 4:2:0
+     * @throws IOException if the metadata can't be modified
+     */
+    private IIOMetadata configureJpeg(ImageWriter writer, ImageWriteParam param, RenderedImage image) throws IOException {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(_quality);
+        if (_progressive) param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        if (_optimizeHuffman && param instanceof JPEGImageWriteParam) {
+            ((JPEGImageWriteParam) param).setOptimizeHuffmanTables(true);
+        }
+        if (_chromaSubsampling.equals("420")) return null;
+
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+        String formatName = "javax_imageio_jpeg_image_1.0";
+        IIOMetadataNode tree = (IIOMetadataNode) metadata.getAsTree(formatName);
+        NodeList components = tree.getElementsByTagName("componentSpec");
+        // the luma is the first component, the chroma components stay at 1x1
+        if (components.getLength() != 3) return null;
+        Element luma = (Element) components.item(0);
+        luma.setAttribute("HsamplingFactor", _chromaSubsampling.equals("444") ? "1" : "2");
+        luma.setAttribute("VsamplingFactor", "1");
+        metadata.setFromTree(formatName, tree);
+        return metadata;
+    }
+
+    /**
+     * Builder of the settings, it checks the values given on the command line
+     */
+    public static class Builder {
+        private float _quality = 0.75f;
+        private boolean _optimizeHuffman = false;
+        private boolean _progressive = false;
+        private String _chromaSubsampling = "420";
+        private int _pngCompression = 4;
+        private PngFilter _pngFilter = PngFilter.ADAPTIVE;
+
+        /**
+         * Set the JPEG quality
+         * @param quality the quality in percent, 1 to 100
+         * @return the builder
+         */
+        public Builder SetQuality(String quality) {
+            if (!quality.matches("\\d{1,3}") || Integer.parseInt(quality) < 1 || Integer.parseInt(quality) > 100) {
+                System.out.println(quality + " is not a valid quality, default value [" + Math.round(_quality * 100) + "] will be applied");
+                return this;
+            }
+            _quality = Integer.parseInt(quality) / 100f;
+            return this;
+        }
+
+        /**
+         * Compute the Huffman tables of each JPEG, a smaller file for a slower encoding
+         * @param optimizeHuffman True to optimize the Huffman tables
+         * @return the builder
+         */
+        public Builder SetOptimizeHuffman(boolean optimizeHuffman) {
+            _optimizeHuffman = optimizeHuffman;
+            return this;
+        }
+
+        /**
+         * Encode the JPEG in progressive scans, they are displayed while loading
+         * @param progressive True for progressive scans
+         * @return the builder
+         */
+        public Builder SetProgressive(boolean progressive) {
+            _progressive = progressive;
+            return this;
+        }
+
+        /**
+         * Set the chroma subsampling of the JPEG
+         * @param chromaSubsampling 420, 422 or 444 (no subsampling)
+         * @return the builder
+         */
+        public Builder SetChromaSubsampling(String chromaSubsampling) {
+            String value = chromaSubsampling.replace(":", "");
+            if (!value.equals("420") && !value.equals("422") && !value.equals("444")) {
+                System.out.println(chromaSubsampling + " is not a valid chroma subsampling, default value [" + _chromaSubsampling + "] will be applied");
+                return this;
+            }
+            _chromaSubsampling = value;
+            return this;
+        }
+
+        /**
+         * Set the compression level of PNG
+         * @param level 0 (none, fastest) to 9 (smallest)
+         * @return the builder
+         */
+        public Builder SetPngCompression(String level) {
+            if (!level.matches("\\d")) {
+                System.out.println(level + " is not a valid compression level, default value [" + _pngCompression + "] will be applied");
+                return this;
+            }
+            _pngCompression = Integer.parseInt(level);
+            return this;
+        }
+
+        /**
+         * Set the filter of the rows of PNG
+         * @param filter none, sub, up, average, paeth or adaptive
+         * @return the builder
+         */
+        public Builder SetPngFilter(String filter) {
+            try {
+                _pngFilter = PngFilter.valueOf(filter.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                System.out.println(filter + " is not a valid filter, default value [" + _pngFilter.name().toLowerCase() + "] will be applied");
+            }
+            return this;
+        }
+
+        /**
+         * Build the immutable settings
+         * @return the settings
+         */
+        public ImageEncoder build() {
+            return new ImageEncoder(this);
+        }
+    }
+}
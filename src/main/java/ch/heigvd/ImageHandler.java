@@ -14,19 +14,32 @@ package ch.heigvd;
 
 
 import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
-import java.awt.image.BufferedImage;
+import java.awt.image.*;
 import java.io.*;
+import java.util.Locale;
 
 /**
  * This class handle open, convert color mode and save image
  */
 public class ImageHandler {
 
+    /**
+     * Largest encoded image kept for the next one, 64 MB
+     */
+    private static final int MAX_RETAINED_ENCODED = 64 << 20;
+
+    /**
+     * The buffer of the encoded images of the thread. A ByteArrayOutputStream per image doubles its array up to the
+     * size of the image, each array of 1 MB and more is a humongous allocation of G1; this one keeps its array
+     */
+    private static final ThreadLocal<EncodedBuffer> ENCODED = ThreadLocal.withInitial(EncodedBuffer::new);
+
     /**
      * Store input format
      */
-    private static FORMAT _inputFormat;
+    private FORMAT _inputFormat;
     /**
      * Store binary image
      */
@@ -39,13 +52,53 @@ public class ImageHandler {
      * @throws IOException if the image can't be read or doesn't exist
      */
     public ImageHandler(String imagePath) throws IOException {
-        try (InputStream stream = new FileInputStream(imagePath)){
-            _image = ImageIO.read(stream);
-            _inputFormat = FORMAT.valueOf(imagePath.substring(imagePath.lastIndexOf('.') + 1).toUpperCase());
+        this(new ImageSource(imagePath));
+    }
+
+    /**
+     * Constructor decoding an image already read in memory, the dimensions are given to the source.
+     * The reader is the one of the thread and the pixels are decoded in a buffer of the shared RasterPool
+     *
+     * @param source the bytes of the image
+     * @throws IOException if the image can't be decoded
+     */
+    public ImageHandler(ImageSource source) throws IOException {
+        this(source, RasterPool.shared());
+    }
+
+    /**
+     * Constructor decoding an image already read in memory in a buffer of a pool, the dimensions are given to the source
+     *
+     * @param source the bytes of the image
+     * @param pool   the pool of the buffers, the image can be given back to it once saved
+     * @throws IOException if the image can't be decoded
+     */
+    public ImageHandler(ImageSource source, RasterPool pool) throws IOException {
+        String imagePath = source.getImagePath();
+        String format = ImageCodecs.formatOf(imagePath);
+        if (!"jpeg".equals(format) && !"png".equals(format)) {
+            throw new IOException("The image : " + imagePath + " has an unsupported format");
+        }
+        _inputFormat = FORMAT.valueOf(format.toUpperCase(Locale.ROOT));
+        try (ImageInputStream stream = source.openImageStream()) {
+            ImageReader reader = ImageCodecs.acquireReader(format, stream);
+            boolean completed = false;
+            try {
+                if (reader != null) {
+                    _image = ImageCodecs.read(reader, null, reader.getWidth(0), reader.getHeight(0), pool);
+                }
+                completed = true;
+            } finally {
+                ImageCodecs.releaseReader(reader, completed);
+            }
         } catch (IOException ex) {
-            System.out.println("The path to image : " + imagePath + " doesn't exist");
+            System.out.println("Error when decoding " + imagePath);
             throw ex;
         }
+        if (_image == null) {
+            throw new IOException("The image : " + imagePath + " has an unsupported format");
+        }
+        source.setDimensions(_image.getWidth(), _image.getHeight());
     }
 
     /**
@@ -56,16 +109,39 @@ public class ImageHandler {
      * @param format     the format of the image
      */
     public static void saveImage(BufferedImage image, String outputPath, String format) throws IOException {
-        if (image != null) {
-            File outputFile = new File(outputPath + '.' + format);
-            try (OutputStream stream = new FileOutputStream(outputFile)){
+        saveImage(image, outputPath, format, new JobMetrics(null));
+    }
 
-                // important: to save png to jpg, is necessary to change color mode
-                if ((format.equalsIgnoreCase("jpg") || format.equalsIgnoreCase("jpeg")) && _inputFormat == FORMAT.PNG) {
-                    image = convertARGBtoRGB(image);
-                }
-                boolean writed = ImageIO.write(image, format, stream);
-                if (writed) {
+    /**
+     * Save an image on the disk with a specific format and path.
+     * The image is encoded in memory then written, so the encode and the write are timed apart
+     *
+     * @param image      the buffered image to save
+     * @param outputPath the path where the image will be saved
+     * @param format     the format of the image
+     * @param metrics    the metrics of the job
+     */
+    public static void saveImage(BufferedImage image, String outputPath, String format, JobMetrics metrics) throws IOException {
+        saveImage(image, outputPath, format, ImageEncoder.defaults(), metrics);
+    }
+
+    /**
+     * Save an image on the disk with a specific format, path and encoder settings
+     *
+     * @param image      the buffered image to save
+     * @param outputPath the path where the image will be saved
+     * @param format     the format of the image
+     * @param encoder    the settings of the encoder
+     * @param metrics    the metrics of the job
+     */
+    public static void saveImage(BufferedImage image, String outputPath, String format, ImageEncoder encoder,
+                                 JobMetrics metrics) throws IOException {
+        if (image != null) {
+            File outputFile = outputFile(outputPath, format);
+            EncodedBuffer encoded = takeEncodedBuffer();
+            try {
+                if (encode(image, format, encoder, metrics, encoded)) {
+                    writeFile(outputFile, encoded.bytes(), encoded.size(), metrics);
                     System.out.println("Image saved successfully: " + outputFile.getAbsolutePath());
                 } else {
                     System.out.println("Image not saved");
@@ -73,12 +149,140 @@ public class ImageHandler {
             } catch (IOException ex){
                 System.out.println("Error occurred during save");
                 throw ex;
+            } finally {
+                giveEncodedBuffer(encoded);
             }
         } else {
             System.out.println("Nothing to save");
         }
     }
 
+    /**
+     * Encode an image in memory with a specific format
+     *
+     * @param image   the buffered image to encode
+     * @param format  the format of the image
+     * @param metrics the metrics of the job
+     * @return the bytes of the encoded image, null if no encoder supports the format and the image
+     * @throws IOException if an error occurs during the encoding
+     */
+    public static byte[] encodeImage(BufferedImage image, String format, JobMetrics metrics) throws IOException {
+        return encodeImage(image, format, ImageEncoder.defaults(), metrics);
+    }
+
+    /**
+     * Encode an image in memory with a specific format and encoder settings
+     *
+     * @param image   the buffered image to encode
+     * @param format  the format of the image
+     * @param encoder the settings of the encoder
+     * @param metrics the metrics of the job
+     * @return the bytes of the encoded image, null if no encoder supports the format and the image
+     * @throws IOException if an error occurs during the encoding
+     */
+    public static byte[] encodeImage(BufferedImage image, String format, ImageEncoder encoder, JobMetrics metrics) throws IOException {
+        EncodedBuffer encoded = takeEncodedBuffer();
+        try {
+            return encode(image, format, encoder, metrics, encoded) ? encoded.toByteArray() : null;
+        } finally {
+            giveEncodedBuffer(encoded);
+        }
+    }
+
+    /**
+     * Encode an image in a buffer
+     *
+     * @param image   the buffered image to encode
+     * @param format  the format of the image
+     * @param encoder the settings of the encoder
+     * @param metrics the metrics of the job
+     * @param encoded the buffer receiving the encoded image
+     * @return True if encoded, false if no encoder supports the format and the image
+     * @throws IOException if an error occurs during the encoding
+     */
+    private static boolean encode(BufferedImage image, String format, ImageEncoder encoder, JobMetrics metrics,
+                                  EncodedBuffer encoded) throws IOException {
+        // important: to save png to jpg, is necessary to change color mode
+        BufferedImage converted = null;
+        if (ImageTextOverlay.isJpeg(format) && image.getColorModel().hasAlpha()) {
+            long start = JobMetrics.now();
+            converted = convertARGBtoRGB(image);
+            image = converted;
+            metrics.add(JobMetrics.Stage.COLOR_CONVERSION, start);
+            metrics.addRaster(image);
+        }
+        try {
+            long start = JobMetrics.now();
+            boolean writed = encoder.encode(image, format, encoded);
+            metrics.add(JobMetrics.Stage.ENCODE, start);
+            return writed;
+        } finally {
+            // the copy is only used by the encoder
+            metrics.releaseRaster(converted);
+            RasterPool.shared().release(converted);
+        }
+    }
+
+    /**
+     * Write the bytes of an encoded image
+     *
+     * @param outputFile the output file
+     * @param bytes      the encoded image
+     * @param metrics    the metrics of the job
+     * @throws IOException if the file can't be written
+     */
+    public static void writeFile(File outputFile, byte[] bytes, JobMetrics metrics) throws IOException {
+        writeFile(outputFile, bytes, bytes.length, metrics);
+    }
+
+    private static void writeFile(File outputFile, byte[] bytes, int length, JobMetrics metrics) throws IOException {
+        long start = JobMetrics.now();
+        try (OutputStream stream = new FileOutputStream(outputFile)) {
+            stream.write(bytes, 0, length);
+        }
+        metrics.add(JobMetrics.Stage.WRITE, start);
+        metrics.setOutputPath(outputFile.getPath());
+        metrics.setBytesOut(length);
+    }
+
+    /**
+     * Take the buffer of the encoded images of the thread, a nested encoding gets another one
+     *
+     * @return the empty buffer
+     */
+    private static EncodedBuffer takeEncodedBuffer() {
+        EncodedBuffer encoded = ENCODED.get();
+        ENCODED.remove();
+        return encoded;
+    }
+
+    /**
+     * Give the buffer of the encoded images back to the thread, its array is dropped when too large
+     *
+     * @param encoded the buffer of takeEncodedBuffer
+     */
+    private static void giveEncodedBuffer(EncodedBuffer encoded) {
+        encoded.recycle();
+        ENCODED.set(encoded);
+    }
+
+    /**
+     * Get the file of an output image, its directory is created
+     *
+     * @param outputPath output path without extension
+     * @param format     the output format, used as extension
+     * @return the output file
+     * @throws IOException if the directory can't be created
+     */
+    public static File outputFile(String outputPath, String format) throws IOException {
+        File outputFile = new File(outputPath + '.' + format);
+        File outputDir = outputFile.getAbsoluteFile().getParentFile();
+        if (outputDir != null && !outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Failed to create directory " + outputDir);
+        }
+        return outputFile;
+    }
+
     /**
      * Open the image on the default user viewer
      *
@@ -102,7 +306,9 @@ public class ImageHandler {
     }
 
     /**
-     * Convert color mode from ARGB to RGB and set transparent pixel to white
+     * Convert color mode from ARGB to RGB and set transparent pixel to white.
+     * The pixels are read from the data buffer of the standard image types, row by row in parallel bands,
+     * other types are read a row at once through their color model.
      *
      * @param image the image to convert
      * @return the converted image
@@ -110,21 +316,89 @@ public class ImageHandler {
     public static BufferedImage convertARGBtoRGB(BufferedImage image) {
         int width = image.getWidth();
         int height = image.getHeight();
-        BufferedImage rgbImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        // write all pixel in RGB mode
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int argbColor = image.getRGB(x, y);
-                int rgbColor = argbToRgb(argbColor);
-                if (argbColor >>> 24 == 0) { // Check if the alpha channel is transparent
-                    rgbColor = 0xFFFFFF; // Set the color to white for transparent pixels
-                }
-                rgbImage.setRGB(x, y, rgbColor);
+        // each pixel is written
+        BufferedImage rgbImage = RasterPool.shared().newImage(width, height, BufferedImage.TYPE_INT_RGB, false);
+        int[] rgb = ((DataBufferInt) rgbImage.getRaster().getDataBuffer()).getData();
+
+        WritableRaster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        int translateX = raster.getSampleModelTranslateX();
+        int translateY = raster.getSampleModelTranslateY();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_ARGB: {
+                int[] argb = ((DataBufferInt) raster.getDataBuffer()).getData();
+                int stride = ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+                int offset = raster.getDataBuffer().getOffset() - translateY * stride - translateX;
+                ParallelRows.forEachBand(height, width, (fromRow, toRow) -> {
+                    for (int y = fromRow; y < toRow; y++) {
+                        flattenRow(argb, offset + y * stride, rgb, y * width, width);
+                    }
+                });
+                break;
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                byte[] abgr = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int stride = ((ComponentSampleModel) sampleModel).getScanlineStride();
+                int offset = raster.getDataBuffer().getOffset() - translateY * stride - translateX * 4;
+                ParallelRows.forEachBand(height, width, (fromRow, toRow) -> {
+                    for (int y = fromRow; y < toRow; y++) {
+                        flattenRow(abgr, offset + y * stride, rgb, y * width, width);
+                    }
+                });
+                break;
+            }
+            default: {
+                // color model conversion, a whole row at once
+                ParallelRows.forEachBand(height, width, (fromRow, toRow) -> {
+                    int[] row = new int[width];
+                    for (int y = fromRow; y < toRow; y++) {
+                        image.getRGB(0, y, width, 1, row, 0, width);
+                        flattenRow(row, 0, rgb, y * width, width);
+                    }
+                });
+                break;
             }
         }
         return rgbImage;
     }
 
+    /**
+     * Convert a row of ARGB pixels to RGB, transparent pixels become white
+     *
+     * @param argb      the ARGB pixels
+     * @param srcOffset index of the first pixel of the row
+     * @param rgb       the RGB pixels
+     * @param dstOffset index of the first converted pixel
+     * @param width     the number of pixels
+     */
+    static void flattenRow(int[] argb, int srcOffset, int[] rgb, int dstOffset, int width) {
+        for (int x = 0; x < width; x++) {
+            int pixel = argb[srcOffset + x];
+            // all bits set when alpha is 0, without branch to let the JIT vectorize the loop
+            int transparent = ((pixel >>> 24) - 1) >> 31;
+            rgb[dstOffset + x] = (pixel | transparent) & 0xFFFFFF;
+        }
+    }
+
+    /**
+     * Convert a row of interleaved A, B, G, R bytes to RGB, transparent pixels become white
+     *
+     * @param abgr      the interleaved bytes
+     * @param srcOffset index of the first byte of the row
+     * @param rgb       the RGB pixels
+     * @param dstOffset index of the first converted pixel
+     * @param width     the number of pixels
+     */
+    static void flattenRow(byte[] abgr, int srcOffset, int[] rgb, int dstOffset, int width) {
+        for (int x = 0; x < width; x++) {
+            int i = srcOffset + 4 * x;
+            int transparent = ((abgr[i] & 0xFF) - 1) >> 31;
+            int pixel = (abgr[i + 3] & 0xFF) << 16 | (abgr[i + 2] & 0xFF) << 8 | (abgr[i + 1] & 0xFF);
+            rgb[dstOffset + x] = (pixel | transparent) & 0xFFFFFF;
+        }
+    }
+
     /**
      * Convert a Pixel from ARGB to RGB mode
      *
@@ -148,6 +422,15 @@ public class ImageHandler {
         return _image;
     }
 
+    /**
+     * Get the format of the input image
+     *
+     * @return the input format
+     */
+    public FORMAT getInputFormat() {
+        return _inputFormat;
+    }
+
     /**
      * Enumeration of image format
      */
@@ -155,4 +438,31 @@ public class ImageHandler {
         JPEG, JPG, PNG;
     }
 
+
+    /**
+     * Output stream in memory whose array is reused from one image to the next
+     */
+    private static final class EncodedBuffer extends ByteArrayOutputStream {
+
+        EncodedBuffer() {
+            super(1 << 16);
+        }
+
+        /**
+         * Get the array of the buffer, the encoded image is its size() first bytes
+         *
+         * @return the array, not a copy
+         */
+        byte[] bytes() {
+            return buf;
+        }
+
+        /**
+         * Empty the buffer, its array is kept unless larger than MAX_RETAINED_ENCODED
+         */
+        void recycle() {
+            if (buf.length > MAX_RETAINED_ENCODED) buf = new byte[1 << 16];
+            reset();
+        }
+    }
 }
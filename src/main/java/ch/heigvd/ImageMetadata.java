@@ -0,0 +1,324 @@
+/*
+ * Class         : ImageMetadata
+ *
+ * Description   : EXIF data of an image the overlay can compute, read from its metadata or from an index
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import com.drew.lang.GeoLocation;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+import com.drew.metadata.exif.GpsDirectory;
+
+import java.util.Date;
+
+/**
+ * EXIF data of an image the overlay can compute: the original date, the camera model, the GPS location and the
+ * dimensions. It only keeps the values, so it is read once from the parsed metadata of the image or from the
+ * columns of a MetadataIndex, and gives the same text in both cases.
+ */
+public final class ImageMetadata {
+
+    /**
+     * Value of a missing date
+     */
+    public static final long NO_DATE = Long.MIN_VALUE;
+
+    /**
+     * Flag of the ExifIFD0 directory, giving the camera model
+     */
+    static final int IFD0 = 1;
+
+    /**
+     * Flag of the ExifSubIFD directory, giving the date
+     */
+    static final int SUB_IFD = 2;
+
+    /**
+     * Flag of the GPS directory
+     */
+    static final int GPS = 4;
+
+    /**
+     * Store the directories found in the metadata
+     */
+    private final int _directories;
+
+    /**
+     * Store the original date in milliseconds since the epoch, NO_DATE if missing
+     */
+    private final long _dateOriginal;
+
+    /**
+     * Store the camera model, null if missing
+     */
+    private final String _model;
+
+    /**
+     * Store the latitude in degrees, NaN if missing
+     */
+    private final double _latitude;
+
+    /**
+     * Store the longitude in degrees, NaN if missing
+     */
+    private final double _longitude;
+
+    /**
+     * Store the width of the image in pixels, 0 if unknown
+     */
+    private final int _width;
+
+    /**
+     * Store the height of the image in pixels, 0 if unknown
+     */
+    private final int _height;
+
+    ImageMetadata(int directories, long dateOriginal, String model, double latitude, double longitude, int width, int height) {
+        _directories = directories;
+        _dateOriginal = dateOriginal;
+        _model = model;
+        _latitude = latitude;
+        _longitude = longitude;
+        _width = width;
+        _height = height;
+    }
+
+    /**
+     * Read the EXIF data of the parsed metadata of an image
+     *
+     * @param metadata the parsed metadata
+     * @param width    the width of the image, 0 if unknown
+     * @param height   the height of the image, 0 if unknown
+     * @return the EXIF data
+     */
+    static ImageMetadata read(Metadata metadata, int width, int height) {
+        int directories = 0;
+        long dateOriginal = NO_DATE;
+        String model = null;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+
+        ExifIFD0Directory ifd0 = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+        if (ifd0 != null) {
+            directories |= IFD0;
+            model = ifd0.getString(ExifIFD0Directory.TAG_MODEL);
+        }
+        ExifSubIFDDirectory subIfd = metadata.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        if (subIfd != null) {
+            directories |= SUB_IFD;
+            Date date = subIfd.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
+            if (date != null) dateOriginal = date.getTime();
+        }
+        GpsDirectory gps = metadata.getFirstDirectoryOfType(GpsDirectory.class);
+        if (gps != null) {
+            directories |= GPS;
+            GeoLocation location = gps.getGeoLocation();
+            if (location != null) {
+                latitude = location.getLatitude();
+                longitude = location.getLongitude();
+            }
+        }
+        return new ImageMetadata(directories, dateOriginal, model, latitude, longitude, width, height);
+    }
+
+    /**
+     * Get the same EXIF data with the dimensions of the image
+     *
+     * @param width  the width in pixels
+     * @param height the height in pixels
+     * @return the EXIF data with the dimensions
+     */
+    ImageMetadata withDimensions(int width, int height) {
+        return new ImageMetadata(_directories, _dateOriginal, _model, _latitude, _longitude, width, height);
+    }
+
+    /**
+     * Get the directories found in the metadata
+     *
+     * @return the flags IFD0, SUB_IFD and GPS of the directories
+     */
+    int getDirectories() {
+        return _directories;
+    }
+
+    /**
+     * Check if the metadata have an ExifSubIFD directory, the one of the date
+     *
+     * @return True if the directory exists, even without date
+     */
+    public boolean hasSubIfd() {
+        return (_directories & SUB_IFD) != 0;
+    }
+
+    /**
+     * Check if the metadata have an ExifIFD0 directory, the one of the camera model
+     *
+     * @return True if the directory exists, even without model
+     */
+    public boolean hasIfd0() {
+        return (_directories & IFD0) != 0;
+    }
+
+    /**
+     * Check if the metadata have a GPS directory
+     *
+     * @return True if the directory exists, even without coordinates
+     */
+    public boolean hasGpsDirectory() {
+        return (_directories & GPS) != 0;
+    }
+
+    /**
+     * Get the original date
+     *
+     * @return the date in milliseconds since the epoch, NO_DATE if missing
+     */
+    public long getDateOriginal() {
+        return _dateOriginal;
+    }
+
+    /**
+     * Get the camera model
+     *
+     * @return the model, null if missing
+     */
+    public String getModel() {
+        return _model;
+    }
+
+    /**
+     * Check if the GPS coordinates are known
+     *
+     * @return True if the latitude and the longitude are known
+     */
+    public boolean hasLocation() {
+        return !Double.isNaN(_latitude) && !Double.isNaN(_longitude);
+    }
+
+    /**
+     * Get the latitude
+     *
+     * @return the latitude in degrees, NaN if missing
+     */
+    public double getLatitude() {
+        return _latitude;
+    }
+
+    /**
+     * Get the longitude
+     *
+     * @return the longitude in degrees, NaN if missing
+     */
+    public double getLongitude() {
+        return _longitude;
+    }
+
+    /**
+     * Check if the dimensions of the image are known
+     *
+     * @return True if the width and the height are known
+     */
+    public boolean hasDimensions() {
+        return _width > 0 && _height > 0;
+    }
+
+    /**
+     * Get the width of the image
+     *
+     * @return the width in pixels, 0 if unknown
+     */
+    public int getWidth() {
+        return _width;
+    }
+
+    /**
+     * Get the height of the image
+     *
+     * @return the height in pixels, 0 if unknown
+     */
+    public int getHeight() {
+        return _height;
+    }
+
+    /**
+     * Builder of the EXIF data of an image, a directory is marked found when one of its values is set
+     */
+    public static class Builder {
+        private int _directories;
+        private long _dateOriginal = NO_DATE;
+        private String _model;
+        private double _latitude = Double.NaN;
+        private double _longitude = Double.NaN;
+        private int _width;
+        private int _height;
+
+        /**
+         * Set the original date, of the ExifSubIFD directory
+         *
+         * @param dateOriginal the date in milliseconds since the epoch
+         * @return the builder
+         */
+        public Builder SetDateOriginal(long dateOriginal) {
+            _directories |= SUB_IFD;
+            _dateOriginal = dateOriginal;
+            return this;
+        }
+
+        /**
+         * Set the camera model, of the ExifIFD0 directory
+         *
+         * @param model the model
+         * @return the builder
+         */
+        public Builder SetModel(String model) {
+            _directories |= IFD0;
+            _model = model;
+            return this;
+        }
+
+        /**
+         * Set the GPS location, of the GPS directory
+         *
+         * @param latitude  the latitude in degrees
+         * @param longitude the longitude in degrees
+         * @return the builder
+         */
+        public Builder SetLocation(double latitude, double longitude) {
+            _directories |= GPS;
+            _latitude = latitude;
+            _longitude = longitude;
+            return this;
+        }
+
+        /**
+         * Set the dimensions of the image
+         *
+         * @param width  the width in pixels
+         * @param height the height in pixels
+         * @return the builder
+         */
+        public Builder SetDimensions(int width, int height) {
+            _width = width;
+            _height = height;
+            return this;
+        }
+
+        /**
+         * Build the EXIF data
+         *
+         * @return the EXIF data
+         */
+        public ImageMetadata build() {
+            return new ImageMetadata(_directories, _dateOriginal, _model, _latitude, _longitude, _width, _height);
+        }
+    }
+}
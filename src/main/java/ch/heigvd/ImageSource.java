@@ -0,0 +1,319 @@
+/*
+ * Class         : ImageSource
+ *
+ * Description   : This class read an image file once and share its bytes between the decoders
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * This class read an image file once and share its bytes between the metadata parser and the image decoder
+ */
+public class ImageSource {
+
+    /**
+     * Store the image path
+     */
+    private final String _imagePath;
+
+    /**
+     * Store if the bytes are read from the file of the image path, else they are received in memory
+     */
+    private final boolean _file;
+
+    /**
+     * Store the bytes of the file, mapped in memory
+     */
+    private final ByteBuffer _bytes;
+
+    /**
+     * Store the CRC32C of the bytes, 0 until computed
+     */
+    private volatile long _checksum;
+
+    /**
+     * Store the width of the image, -1 if unknown
+     */
+    private volatile int _width = -1;
+
+    /**
+     * Store the height of the image, -1 if unknown
+     */
+    private volatile int _height = -1;
+
+    /**
+     * Store the type the decoder produces for the image, null if unknown
+     */
+    private volatile ImageTypeSpecifier _decodedType;
+
+    /**
+     * Constructor
+     *
+     * @param imagePath path to the image
+     * @throws IOException if the image can't be read or doesn't exist
+     */
+    public ImageSource(String imagePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(imagePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("The image : " + imagePath + " is larger than 2 GB");
+            }
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            _bytes = bytes.asReadOnlyBuffer();
+            _imagePath = imagePath;
+            _file = true;
+        } catch (NoSuchFileException ex) {
+            System.out.println("The path to image : " + imagePath + " doesn't exist");
+            throw ex;
+        }
+    }
+
+    /**
+     * Constructor for an image received in memory
+     *
+     * @param name  the name of the image, its extension gives the format
+     * @param bytes the bytes of the image, from its position to its limit
+     */
+    public ImageSource(String name, ByteBuffer bytes) {
+        _imagePath = name;
+        // the bytes are read from index 0 to the capacity
+        _bytes = bytes.slice().asReadOnlyBuffer();
+        _file = false;
+    }
+
+    /**
+     * Get the image path
+     *
+     * @return the image path
+     */
+    public String getImagePath() {
+        return _imagePath;
+    }
+
+    /**
+     * Check if the bytes are read from a file
+     *
+     * @return True if the image path is the file of the bytes, False if received in memory
+     */
+    public boolean isFile() {
+        return _file;
+    }
+
+    /**
+     * Get the size of the file
+     *
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return _bytes.capacity();
+    }
+
+    /**
+     * Get the bytes of the file
+     *
+     * @return an independent read-only view of the bytes
+     */
+    public ByteBuffer getBytes() {
+        return _bytes.duplicate();
+    }
+
+    /**
+     * Get the checksum of the bytes, computed once: a change of the file changes it
+     *
+     * @return the CRC32C of the bytes, with the bit 32 set so it is never 0
+     */
+    public long getChecksum() {
+        long checksum = _checksum;
+        if (checksum == 0) {
+            CRC32C crc = new CRC32C();
+            crc.update(_bytes.duplicate());
+            checksum = crc.getValue() | 1L << 32;
+            _checksum = checksum;
+        }
+        return checksum;
+    }
+
+    /**
+     * Open a new stream over the bytes of the file, used by the metadata parser
+     *
+     * @return an independent stream starting at the beginning of the file
+     */
+    public InputStream openStream() {
+        return new ByteBufferInputStream(_bytes.duplicate());
+    }
+
+    /**
+     * Open a new seekable stream over the bytes of the file, used by ImageIO without cache file
+     *
+     * @return an independent image stream starting at the beginning of the file
+     */
+    public ImageInputStream openImageStream() {
+        return new ByteBufferImageInputStream(_bytes.duplicate());
+    }
+
+    /**
+     * Read the dimensions and the decoded type from the header of the image (JPEG SOF, PNG IHDR) without decoding
+     * the pixels
+     *
+     * @return True if the dimensions are known
+     */
+    public boolean probeDimensions() {
+        if (hasDimensions() && _decodedType != null) return true;
+        try (ImageInputStream stream = openImageStream()) {
+            ImageReader reader = ImageCodecs.acquireReader(ImageCodecs.formatOf(_imagePath), stream);
+            if (reader == null) return hasDimensions();
+            boolean completed = false;
+            try {
+                setDimensions(reader.getWidth(0), reader.getHeight(0));
+                _decodedType = ImageCodecs.decodedType(reader);
+                completed = true;
+            } finally {
+                ImageCodecs.releaseReader(reader, completed);
+            }
+        } catch (IOException ex) {
+            return hasDimensions();
+        }
+        return true;
+    }
+
+    /**
+     * Set the dimensions once they are known
+     *
+     * @param width  the width in pixels
+     * @param height the height in pixels
+     */
+    public void setDimensions(int width, int height) {
+        _width = width;
+        _height = height;
+    }
+
+    /**
+     * Check if the dimensions of the image are known
+     *
+     * @return True if the dimensions are known
+     */
+    public boolean hasDimensions() {
+        return _width >= 0 && _height >= 0;
+    }
+
+    /**
+     * Get the width of the image
+     *
+     * @return the width in pixels, -1 if unknown
+     */
+    public int getWidth() {
+        return _width;
+    }
+
+    /**
+     * Get the height of the image
+     *
+     * @return the height in pixels, -1 if unknown
+     */
+    public int getHeight() {
+        return _height;
+    }
+
+    /**
+     * Get the type the decoder produces for the image, read from the header by probeDimensions
+     *
+     * @return the type of the decoded image, null if unknown
+     */
+    public ImageTypeSpecifier getDecodedType() {
+        return _decodedType;
+    }
+
+    /**
+     * InputStream reading a ByteBuffer
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer _buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            _buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return _buffer.hasRemaining() ? _buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!_buffer.hasRemaining()) return -1;
+            len = Math.min(len, _buffer.remaining());
+            _buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, _buffer.remaining()));
+            _buffer.position(_buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return _buffer.remaining();
+        }
+    }
+
+    /**
+     * ImageInputStream reading a ByteBuffer, seekable without copying the bytes in a cache
+     */
+    private static class ByteBufferImageInputStream extends ImageInputStreamImpl {
+        private final ByteBuffer _buffer;
+
+        private ByteBufferImageInputStream(ByteBuffer buffer) {
+            _buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (streamPos >= _buffer.limit()) return -1;
+            return _buffer.get((int) streamPos++) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (len == 0) return 0;
+            if (streamPos >= _buffer.limit()) return -1;
+            len = (int) Math.min(len, _buffer.limit() - streamPos);
+            _buffer.position((int) streamPos);
+            _buffer.get(b, off, len);
+            streamPos += len;
+            return len;
+        }
+
+        @Override
+        public long length() {
+            return _buffer.limit();
+        }
+    }
+}
@@ -15,36 +15,74 @@ package ch.heigvd;
 import java.awt.image.BufferedImage;
 import java.awt.*;
 
+/**
+ * This class can overlay two BufferedImage, it is immutable and can be shared between threads
+ */
 public class ImageTextOverlay {
     /**
      * Store the font type
      */
-    private  String _font = "Arial";
+    private final String _font;
 
     /**
      * Store the font color
      */
-    private  Color _fontColor = Color.BLACK;
+    private final Color _fontColor;
 
     /**
      * Store the background color
      */
-    private  Color _backgroundColor = new Color(0,0,0,0);
+    private final Color _backgroundColor;
 
     /**
      * Store de Size of the font
      */
-    private  int _fontSize = 50;
+    private final int _fontSize;
 
     /**
      * Store the font width style
      */
-    private  int _fontWidth = Font.BOLD;
+    private final int _fontWidth;
 
     /**
      * Store the margin
      */
-    private  int _margin = 10;
+    private final int _margin;
+
+    /**
+     * Store the cache of the text images, null to render every text
+     */
+    private final TextRenderCache _cache;
+
+    /**
+     * Constructor with the default style
+     */
+    public ImageTextOverlay() {
+        this(OverlayConfig.defaults());
+    }
+
+    /**
+     * Constructor
+     * @param config the configuration giving the style of the text
+     */
+    public ImageTextOverlay(OverlayConfig config) {
+        this(config, null);
+    }
+
+    /**
+     * Constructor
+     * @param config the configuration giving the style of the text
+     * @param cache the cache of the text images shared between overlayers, null to render every text
+     */
+    public ImageTextOverlay(OverlayConfig config, TextRenderCache cache) {
+        _cache = cache;
+        _font = config.getFont();
+        _fontColor = config.getFontColor();
+        _backgroundColor = config.getBackgroundColor();
+        _fontSize = config.getFontSize();
+        _fontWidth = config.getFontWidth();
+        _margin = config.getMargin();
+    }
 
     /**
      * Check if a string contains char
@@ -64,183 +102,215 @@ public class ImageTextOverlay {
     }
 
     /**
-     * Overlay 2 images
+     * Overlay 2 images, the base image is left unchanged
      * @param image background image
      * @param imageToOverlay image to overlay
      * @param position the position on image
+     * @param format the output format
      * @return The overlaid image
      */
     public BufferedImage overlayImages(BufferedImage image, BufferedImage imageToOverlay, String position, String format) {
+        return overlayImages(image, imageToOverlay, position, format, false);
+    }
+
+    /**
+     * Overlay 2 images.
+     * When the overlay fits inside the base image, the result is the base image itself (in place) or a single
+     * copy in the color type of the output format, and only the rectangle of the overlay is blended.
+     * @param image background image
+     * @param imageToOverlay image to overlay
+     * @param position the position on image
+     * @param format the output format
+     * @param inPlace True to draw on the base image when its color type allows it, it is then modified
+     * @return The overlaid image
+     */
+    public BufferedImage overlayImages(BufferedImage image, BufferedImage imageToOverlay, String position, String format, boolean inPlace) {
+        return overlayImages(image, imageToOverlay, position, format, inPlace, new JobMetrics(null));
+    }
+
+    /**
+     * Overlay 2 images, the color conversion and the blend are timed
+     * @param image background image
+     * @param imageToOverlay image to overlay
+     * @param position the position on image
+     * @param format the output format
+     * @param inPlace True to draw on the base image when its color type allows it, it is then modified
+     * @param metrics the metrics of the job
+     * @return The overlaid image
+     */
+    public BufferedImage overlayImages(BufferedImage image, BufferedImage imageToOverlay, String position, String format,
+                                       boolean inPlace, JobMetrics metrics) {
         if (image == null) throw new NullPointerException("Base image is null");
         if (imageToOverlay == null) return image;
-        // define base image width and height
-        int width = Math.max(image.getWidth(), imageToOverlay.getWidth());
-        int height = Math.max(image.getHeight(), imageToOverlay.getHeight());
-
-        BufferedImage overlaidImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        // get image in a Graphics2D
-        Graphics2D g = overlaidImage.createGraphics();
-        g.drawImage(image, 0, 0, null);
+        boolean jpeg = isJpeg(format);
 
         // define position to apply the overlay
         Point overlayPosition = positionImage(image, imageToOverlay, POSITION.getPosition(position));
+        if (imageToOverlay.getWidth() <= image.getWidth() && imageToOverlay.getHeight() <= image.getHeight()) {
+            return overlayAt(image, imageToOverlay, overlayPosition.x, overlayPosition.y, format, inPlace, metrics);
+        }
 
-        // draw overlay image over the base image
-        g.drawImage(imageToOverlay, overlayPosition.x, overlayPosition.y, null);
-
-        // dispose resources
+        // the overlay is larger than the base image, extend the canvas
+        long start = JobMetrics.now();
+        int width = Math.max(image.getWidth(), imageToOverlay.getWidth());
+        int height = Math.max(image.getHeight(), imageToOverlay.getHeight());
+        BufferedImage overlaidImage = RasterPool.shared().newImage(width, height,
+                jpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB, true);
+        Graphics2D g = overlaidImage.createGraphics();
+        g.drawImage(image, 0, 0, null);
         g.dispose();
+        metrics.add(JobMetrics.Stage.COMPOSITE, start);
+        metrics.addRaster(overlaidImage);
 
-        // edit final image color type if jpeg output
-        if (format.equalsIgnoreCase("jpeg") || format.equalsIgnoreCase("jpg")) {
-            overlaidImage = ChangeColorType(overlaidImage, BufferedImage.TYPE_INT_RGB);
-        }
+        // blend overlay image over the base image, only its rectangle is touched
+        start = JobMetrics.now();
+        AlphaBlender.blend(imageToOverlay, overlaidImage, overlayPosition.x, overlayPosition.y);
+        metrics.add(JobMetrics.Stage.COMPOSITE, start);
 
         return overlaidImage;
     }
 
     /**
-     * Create an image with text
-     * @param text the text to apply
-     * @param maxWidth the max width to compute number of line
-     * @return an image with the text
+     * Overlay an image at a position, the parts outside the base image are clipped.
+     * Used on the strips of a large image, where the position is the one in the whole image minus the strip origin.
+     * @param image background image
+     * @param imageToOverlay image to overlay
+     * @param x the position of the overlay in the base image
+     * @param y the position of the overlay in the base image
+     * @param format the output format
+     * @param inPlace True to draw on the base image when its color type allows it, it is then modified
+     * @param metrics the metrics of the job
+     * @return The overlaid image, in the color type of the output format
      */
-    public BufferedImage CreateImageText(String text, int maxWidth) {
-
-        if (text == null || text.isEmpty()) {
-            return null;
-        }
-        Font font = new Font(_font, _fontWidth, _fontSize);
-        // create a temporary image to get the width and height of the text image to compute multilines
-        BufferedImage tempImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
-        Graphics tempGraphics = tempImage.getGraphics();
-        tempGraphics.setFont(font);
-        FontMetrics fontMetrics = tempGraphics.getFontMetrics();
-
-        // Calculate the text width and height
-        int textWidth = fontMetrics.stringWidth(text);
-        int textHeight = fontMetrics.getHeight();
+    public BufferedImage overlayAt(BufferedImage image, BufferedImage imageToOverlay, int x, int y, String format,
+                                   boolean inPlace, JobMetrics metrics) {
+        long start = JobMetrics.now();
+        BufferedImage overlaidImage = compositingTarget(image, isJpeg(format), inPlace);
+        metrics.add(JobMetrics.Stage.COLOR_CONVERSION, start);
+        if (overlaidImage != image) metrics.addRaster(overlaidImage);
+
+        // blend overlay image over the base image, only its rectangle is touched
+        start = JobMetrics.now();
+        AlphaBlender.blend(imageToOverlay, overlaidImage, x, y);
+        metrics.add(JobMetrics.Stage.COMPOSITE, start);
 
-        // Calculate the number of char on a line
-        double divisor = (double)textWidth / (maxWidth - 2 * _margin);
-        int nbCharOnLine = (int)Math.floor (text.length() / divisor);
-
-        // Calculate the number of lines needed based on text width and image width
-        int numLines = (int) Math.ceil(divisor);
-
-        // Create the image with adjusted height for multiple lines
-        BufferedImage image = new BufferedImage((numLines > 1 ? maxWidth : textWidth), textHeight * numLines, BufferedImage.TYPE_INT_ARGB);
-        Graphics g = image.getGraphics();
+        return overlaidImage;
+    }
 
-        // set graphics attributes
-        g.setColor(_backgroundColor);
-        g.fillRect(0, 0, maxWidth, textHeight * numLines);
-        g.setColor(_fontColor);
-        g.setFont(font);
-
-        // Split and draw the text on multiple lines
-        int y = textHeight;
-        int startIndex = 0;
-
-        for (int i = 0; i < numLines; i++) {
-            int endIndex;
-            int remainingChar = text.length() - (i * nbCharOnLine);
-            if (remainingChar < nbCharOnLine) {
-                endIndex = startIndex   + remainingChar;
-            } else {
-                endIndex =  nbCharOnLine * (i + 1);
-            }
-            String line = text.substring(startIndex, endIndex);
-            g.drawString(line, 0, y - fontMetrics.getDescent());
-            y += textHeight;
-            startIndex = endIndex;
+    /**
+     * Get the image on which the overlay is drawn, in the color type of the output format
+     * @param image the base image
+     * @param jpeg True if the output format is jpeg
+     * @param inPlace True to reuse the base image when its color type allows it
+     * @return the base image or its copy
+     */
+    private BufferedImage compositingTarget(BufferedImage image, boolean jpeg, boolean inPlace) {
+        if (jpeg && image.getColorModel().hasAlpha()) {
+            // the conversion is the copy, transparent pixels become white
+            return ImageHandler.convertARGBtoRGB(image);
         }
-
-        // Dispose resources
-        g.dispose();
-        tempGraphics.dispose();
-
-        return image;
+        if (inPlace && isDirectColorType(image.getType())) {
+            return image;
+        }
+        return ChangeColorType(image, jpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
     }
 
     /**
-     * Set the width style of the font
-     * @param fontWidth the font width style
+     * Check if an image type stores true colors, so text can be drawn on it without losing colors
+     * @param type the BufferedImage type
+     * @return True for RGB and ARGB types, False for gray, indexed and custom types
      */
-    public void SetFontWidth(String fontWidth) {
-        switch (fontWidth) {
-            case "b":
-            case "bold":
-                _fontWidth = Font.BOLD;
-                break;
-            case "i":
-            case "italic":
-                _fontWidth = Font.ITALIC;
-                break;
+    static boolean isDirectColorType(int type) {
+        switch (type) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                return true;
             default:
-                _fontWidth = Font.PLAIN;
-                break;
+                return false;
         }
     }
 
     /**
-     * Set the font family
-     * @param font the font family
+     * Check if a format is jpeg
+     * @param format the format
+     * @return True for jpeg and jpg
      */
-    public void SetFont(String font) {
-        _font = font;
+    public static boolean isJpeg(String format) {
+        return format.equalsIgnoreCase("jpeg") || format.equalsIgnoreCase("jpg");
     }
 
     /**
-     * Set the font size
-     * @param size the font size
+     * Create an image with text, taken from the cache when the same text has already been rendered.
+     * The text is broken on words to fit the max width minus the margins, and the image has the tight size of the text.
+     * With a cache, the image is shared and must not be modified.
+     * @param text the text to apply
+     * @param maxWidth the max width to compute number of line
+     * @return an image with the text
      */
-    public void SetFontSize(String size) {
-
-        if (ContainChar(size)) {
-            System.out.println("size must be a number, default value ["+_fontSize+"] will be applied");
-            return;
-        }
-        _fontSize = Integer.parseInt(size);
+    public BufferedImage CreateImageText(String text, int maxWidth) {
+        return CreateImageText(text, maxWidth, new JobMetrics(null));
     }
 
     /**
-     * Set the color of the font
-     * @param color ARGB color (#AARRGGBB)
+     * Create an image with text, the layout and the rendering are timed when the text isn't in the cache
+     * @param text the text to apply
+     * @param maxWidth the max width to compute number of line
+     * @param metrics the metrics of the job
+     * @return an image with the text
      */
-    public void setFontColor(String color) {
-        if (isARGBColor(color)) {
-            _fontColor = GetColor(color);
-        } else {
-            System.out.println(color + " is not a valid color, default value [black] will be applied");
-        }
+    public BufferedImage CreateImageText(String text, int maxWidth, JobMetrics metrics) {
 
+        if (text == null || text.isEmpty()) {
+            return null;
+        }
+        int wrapWidth = maxWidth - 2 * _margin;
+        if (_cache == null) {
+            long start = JobMetrics.now();
+            TextBlock block = TextBlock.layout(new Font(_font, _fontWidth, _fontSize), text, wrapWidth);
+            metrics.add(JobMetrics.Stage.TEXT_LAYOUT, start);
+            return renderImageText(block, metrics);
+        }
+        TextRenderCache.TileKey key = new TextRenderCache.TileKey(_font, _fontWidth, _fontSize,
+                _fontColor.getRGB(), _backgroundColor.getRGB(), text, maxWidth, _margin);
+        return _cache.getTile(key, () -> {
+            long start = JobMetrics.now();
+            Font font = _cache.getFontMetrics(_font, _fontWidth, _fontSize).getFont();
+            TextBlock block = _cache.getLayout(font, text, wrapWidth);
+            metrics.add(JobMetrics.Stage.TEXT_LAYOUT, start);
+            return renderImageText(block, metrics);
+        });
     }
 
     /**
-     * Set the background color
-     * @param color The color to set
+     * Render an image with text
+     * @param block the text broken in lines
+     * @param metrics the metrics of the job
+     * @return an image of the size of the text
      */
-    public void SetBackgroundColor(String color) {
+    private BufferedImage renderImageText(TextBlock block, JobMetrics metrics) {
+        long start = JobMetrics.now();
+        BufferedImage image = new BufferedImage(block.getWidth(), block.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
 
-        if (isARGBColor(color)){
-            _backgroundColor = GetColor(color);
-        } else {
-            System.out.println(color + " is not a valid color, default value [transparent] will be applied");
-        }
+        // set graphics attributes
+        g.setColor(_backgroundColor);
+        g.fillRect(0, 0, block.getWidth(), block.getHeight());
+        g.setColor(_fontColor);
 
-    }
+        // draw the lines
+        block.draw(g, 0, 0);
 
-    /**
-     * Set the margin, and it used to compute the position of the overlaid image
-     * @param margin the margin to set
-     */
-    public void SetMargin(String margin) {
-        if (ContainChar(margin)) {
-            System.out.println("size must be a number, default value ["+_margin+"] will be applied");
-            return;
-        }
-        _margin = Integer.parseInt(margin);
+        // Dispose resources
+        g.dispose();
+        metrics.add(JobMetrics.Stage.TEXT_RASTER, start);
+        metrics.addRaster(image);
+
+        return image;
     }
 
     /**
@@ -251,11 +321,27 @@ public class ImageTextOverlay {
      * @return the coordinates of the position
      */
     public Point positionImage(BufferedImage baseImage, BufferedImage overlayImage, POSITION position) {
+        return positionImage(baseImage.getWidth(), baseImage.getHeight(), overlayImage, position);
+    }
+
+    /**
+     * Compute the position of the overlaid image on an image known by its size
+     * @param width the width of the background image
+     * @param height the height of the background image
+     * @param overlayImage the overlaid image
+     * @param position the position code of the overlaid image
+     * @return the coordinates of the position
+     */
+    public Point positionImage(int width, int height, BufferedImage overlayImage, String position) {
+        return positionImage(width, height, overlayImage, POSITION.getPosition(position));
+    }
+
+    private Point positionImage(int width, int height, BufferedImage overlayImage, POSITION position) {
         int x = _margin;
         int y = _margin;
 
-        int baseWidth = getImageWidth(baseImage);
-        int baseHeight = getImageHeight(baseImage);
+        int baseWidth = width - _margin;
+        int baseHeight = height - _margin;
 
         int overlayWidth = overlayImage.getWidth();
         int overlayHeight = overlayImage.getHeight();
@@ -295,30 +381,12 @@ public class ImageTextOverlay {
         return new Point(x, y);
     }
 
-    /**
-     * Get the height of image
-     * @param image the image
-     * @return the height value of image
-     */
-    private int getImageHeight(BufferedImage image) {
-        return image.getHeight() - _margin;
-    }
-
-    /**
-     * Get the width of image
-     * @param image the image
-     * @return the width value of image
-     */
-    private int getImageWidth(BufferedImage image) {
-        return image.getWidth() - _margin;
-    }
-
     /**
      * Get Color from String
      * @param hexColor ARGB color in hexadecimal (#AARRGGBB)
      * @return the Color
      */
-    public Color GetColor(String hexColor) {
+    public static Color GetColor(String hexColor) {
         int alpha = Integer.parseInt(hexColor.substring(1, 3), 16);
         int red = Integer.parseInt(hexColor.substring(3, 5), 16);
         int green = Integer.parseInt(hexColor.substring(5, 7), 16);
@@ -327,17 +395,18 @@ public class ImageTextOverlay {
     }
 
     /**
-     * Change the color type of imge
+     * Change the color type of imge, the new image has a buffer of the shared RasterPool
      * @param originalImage the image to convert
      * @param newType the new type of image
      * @return
      */
     public BufferedImage ChangeColorType(BufferedImage originalImage, int newType) {
-        // Create a new BufferedImage with the desired type
-        BufferedImage newImage = new BufferedImage(
+        // Create a new BufferedImage with the desired type, an opaque image covers all its pixels
+        BufferedImage newImage = RasterPool.shared().newImage(
                 originalImage.getWidth(),
                 originalImage.getHeight(),
-                newType
+                newType,
+                originalImage.getColorModel().hasAlpha()
         );
 
         // Create a Graphics2D object to draw the original image inside the new one
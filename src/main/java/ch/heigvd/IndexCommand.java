@@ -0,0 +1,124 @@
+/*
+ * Class         : IndexCommand
+ *
+ * Description   : Subcommand indexing the EXIF data of a tree of images
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import picocli.CommandLine;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Subcommand indexing the EXIF data of a tree of images: inko index DIR -o FILE.
+ * The images are parsed in parallel, each one with only its EXIF segment and headers, and their date, camera model,
+ * GPS location and dimensions are written to a MetadataIndex. An overlay run given the index with -ix reads them from
+ * it instead of parsing the images again.
+ */
+@CommandLine.Command(name = "index", mixinStandardHelpOptions = true, description = "Index the EXIF data of images for the overlay runs and the queries")
+public class IndexCommand implements Callable<Integer> {
+
+    /**
+     * Configuration asking for all the indexed data
+     */
+    private static final OverlayConfig INDEXED = new OverlayConfig.Builder()
+            .AddExifData(ExifHandler.EXIF.DateOriginal)
+            .AddExifData(ExifHandler.EXIF.CameraModel)
+            .AddExifData(ExifHandler.EXIF.GPSLocation)
+            .AddExifData(ExifHandler.EXIF.ImageSize)
+            .build();
+
+    @CommandLine.Parameters(index = "0", paramLabel = "INPUT", description = "Images to index: directory with its subdirectories, glob pattern (\"data/*.jpg\") or file with one image path per line")
+    private String _input;
+
+    @CommandLine.Option(names = {"-o", "--output"}, description = "Index file", defaultValue = "inko.index")
+    private String _output;
+
+    @CommandLine.Option(names = {"-j", "--threads"}, description = "Number of threads parsing the images (default: number of cores)")
+    private int _threads;
+
+    @Override
+    public Integer call() throws Exception {
+        List<Path> inputs = BatchProcessor.resolveInputs(_input, true);
+        long begin = System.nanoTime();
+        int failures = index(inputs, Paths.get(_output), _threads);
+        System.out.printf("Indexed %d images in %d ms, %d failed : %s%n", inputs.size() - failures,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), failures, _output);
+        return failures == 0 ? 0 : 1;
+    }
+
+    /**
+     * Index images in parallel, a failing image doesn't abort the index
+     *
+     * @param inputs  the images to index
+     * @param file    the index file, replaced at once
+     * @param threads the number of threads, the number of cores if lower than 1
+     * @return the number of images that couldn't be indexed
+     * @throws Exception if the index can't be written or the indexing is interrupted
+     */
+    public static int index(List<Path> inputs, Path file, int threads) throws Exception {
+        int workers = threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+        MetadataIndex.Record[] records = new MetadataIndex.Record[inputs.size()];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            // each worker takes the next image, no task is queued per image
+            for (int i = 0; i < workers; i++) {
+                pool.execute(() -> {
+                    int image;
+                    while ((image = next.getAndIncrement()) < records.length) {
+                        Path input = inputs.get(image);
+                        try {
+                            records[image] = read(input);
+                        } catch (Exception ex) {
+                            failures.incrementAndGet();
+                            System.out.println("Failed to index " + input + " : " + ex);
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        List<MetadataIndex.Record> indexed = new ArrayList<>(records.length);
+        for (MetadataIndex.Record record : records) {
+            if (record != null) indexed.add(record);
+        }
+        MetadataIndex.write(file, indexed);
+        return failures.get();
+    }
+
+    /**
+     * Read the EXIF data of one image
+     *
+     * @param input the image
+     * @return its record, with the size and time of the file before it was read
+     * @throws Exception if the image can't be read or its metadata can't be parsed
+     */
+    static MetadataIndex.Record read(Path input) throws Exception {
+        BasicFileAttributes attributes = Files.readAttributes(input, BasicFileAttributes.class);
+        ExifHandler handler = new ExifHandler(new ImageSource(input.toString()), INDEXED);
+        return new MetadataIndex.Record(input, attributes.size(), attributes.lastModifiedTime().toMillis(),
+                handler.getImageMetadata());
+    }
+}
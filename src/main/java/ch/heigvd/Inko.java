@@ -12,35 +12,37 @@
 
 package ch.heigvd;
 
-import com.drew.imaging.ImageProcessingException;
 import picocli.CommandLine;
-import java.awt.image.BufferedImage;
-import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 
-@CommandLine.Command(name = "Inko", mixinStandardHelpOptions = true, version = "1.0.0", description = "Inko lets you write custom text or exif values on an image")
+@CommandLine.Command(name = "Inko", mixinStandardHelpOptions = true, version = "1.0.0", description = "Inko lets you write custom text or exif values on an image",
+        subcommands = {IndexCommand.class})
 
 public class Inko implements Callable {
     //private attributes
 
     /**
-     * counter for sequence of text
+     * Configuration of the overlay, filled by the options in the order of the command line
      */
-    private static int cptCmdText = 0;
+    private final OverlayConfig.Builder _config = new OverlayConfig.Builder();
     /**
-     * Image handler
+     * Settings of the encoder, filled by the options
      */
-    private ImageHandler _imgHandler;
+    private final ImageEncoder.Builder _encoder = new ImageEncoder.Builder();
     /**
-     * Exif handler
+     * Threads of the stages of the batch, filled by the options
      */
-    private ExifHandler _exifHandler;
+    private final PipelineSettings.Builder _stages = new PipelineSettings.Builder();
     /**
-     * Image/Text overlayer
+     * Service overlaying the text on the images, created by call: the options parsed for a server request don't
+     * build one
      */
-    private ImageTextOverlay _overlayer = new ImageTextOverlay();
+    private OverlayService _service;
     /**
      * Image path
      */
@@ -55,18 +57,38 @@ public class Inko implements Callable {
     private String _outputFormat = "jpeg";
     @CommandLine.Option(names = {"-po", "--position"}, description = "Text Position: l, r, b, t, c, lt, rt, lb, rb", defaultValue = "rb")
     private String _position = "rb";
+    @CommandLine.Option(names = {"-sj", "--splicejpeg"}, description = "JPEG to JPEG: re-encode only the rows under the text, keep the rest and the metadata")
+    private boolean _spliceJpeg = false;
+    @CommandLine.Option(names = {"-tl", "--tiled"}, description = "Decode, overlay and encode the image by strips (automatic for images too large for the heap): jpeg and png output")
+    private boolean _tiled = false;
+    @CommandLine.Option(names = {"-b", "--batch"}, description = "Batch input: directory, glob pattern (\"data/*.jpg\") or file with one image path per line")
+    private String _batchInput;
+    @CommandLine.Option(names = {"-od", "--outputdir"}, description = "Output directory of the batch mode", defaultValue = "OverlaidImages")
+    private String _outputDir = "OverlaidImages";
+    @CommandLine.Option(names = {"-j", "--threads"}, description = "Number of threads of the decode, overlay and encode stages of the batch mode (default: number of cores)")
+    private int _threads = 0;
+    @CommandLine.Option(names = {"-ic", "--incremental"}, description = "Batch: skip the images unchanged since the last run with the same options, recorded in OUTPUTDIR.manifest")
+    private boolean _incremental = false;
+    @CommandLine.Option(names = {"-ix", "--index"}, description = "Read the EXIF data of the images from an index built by: inko index INPUT -o FILE, the images modified since are parsed")
+    private String _indexPath;
+    @CommandLine.Option(names = {"-mt", "--metrics"}, description = "Save the time of each stage and the bytes of each image, and of the batch: report.json or report.csv")
+    private String _metricsPath;
+    @CommandLine.Option(names = {"-hb", "--heapbudget"}, description = "Maximum memory of the images processed at the same time, in MB (default: 3/4 of the max heap)")
+    private long _heapBudget = 0;
+    @CommandLine.Option(names = {"-sv", "--serve"}, description = "Serve the overlay on http://127.0.0.1:PORT/overlay instead of processing files (0: any free port)")
+    private Integer _servePort;
+    @CommandLine.Option(names = {"-md", "--maxdecodes"}, description = "Maximum number of images decoded at the same time by the server (default: number of cores)")
+    private int _maxDecodes = 0;
 
     // Options which call methods
     @CommandLine.Option(names = {"-p", "--imagePath"}, description = "Image path")
-    private void setImagePath(String param) throws ImageProcessingException, IOException {
+    private void setImagePath(String param) {
         _imagePath = param;
-        _imgHandler = new ImageHandler(param);
-        _exifHandler = new ExifHandler(param);
     }
 
     @CommandLine.Option(names = {"-s", "--sep"}, description = "Data separator")
     private void setSeparator(String param) {
-        ExifHandler.separator = " " + param + " ";
+        _config.SetSeparator(param);
     }
 
     @CommandLine.Option(names = {"-cr", "--credits"}, description = "Show credits")
@@ -76,76 +98,124 @@ public class Inko implements Callable {
 
     @CommandLine.Option(names = {"-t", "--text"}, description = "Text to overlay")
     private void addText(ArrayList<String> params) {
-        if (_imgHandler == null) throw new NullPointerException("no image path has been given");
         if (params.isEmpty()) return;
-        _exifHandler.AddText(params.get(cptCmdText));
-        cptCmdText++;
+        // picocli gives all the texts met so far, the new one is the last
+        _config.AddText(params.get(params.size() - 1));
+    }
+
+    @CommandLine.Option(names = {"-tp", "--template"}, description = "Template of the text, replacing -t, -d, -cm, -gps, -pl and -is: \"{date:dd.MM.yyyy} - {model} - {gps}\", fields date, model, gps, place, size")
+    private void setTemplate(String param) {
+        _config.SetTemplate(param);
     }
 
     @CommandLine.Option(names = {"-d", "--date"}, description = "Get date of image")
     private void addDate(boolean called) {
-        if (_exifHandler == null) throw new NullPointerException("no image path has been given");
-        _exifHandler.AddExifData(ExifHandler.EXIF.DateOriginal);
+        _config.AddExifData(ExifHandler.EXIF.DateOriginal);
     }
 
     @CommandLine.Option(names = {"-df", "--dateformat"}, description = "Set the format of the date")
     private void setDateFormat(String param) {
-        if (_exifHandler == null) throw new NullPointerException("no image path has been given");
-        _exifHandler.SetDateFormat(param);
+        _config.SetDateFormat(param);
     }
 
     @CommandLine.Option(names = {"-gmt", "--gmt"}, description = "Set GMT offset")
     private void setGMT(String param) {
-        if (_exifHandler == null) throw new NullPointerException("no image path has been given");
-        _exifHandler.SetGMT(Integer.parseInt(param));
+        _config.SetGMT(Integer.parseInt(param));
     }
 
     @CommandLine.Option(names = {"-cm", "--cammodel"}, description = "Get model of camera")
     private void addCamModel(boolean called) {
-        if (_imgHandler == null) throw new NullPointerException("no image path has been given");
-        _exifHandler.AddExifData(ExifHandler.EXIF.CameraModel);
+        _config.AddExifData(ExifHandler.EXIF.CameraModel);
     }
 
     @CommandLine.Option(names = {"-gps", "--gpslocation"}, description = "Get gps location of image")
     private void addGpsLocation(boolean called) {
-        if (_imgHandler == null) throw new NullPointerException("no image path has been given");
-        _exifHandler.AddExifData(ExifHandler.EXIF.GPSLocation);
+        _config.AddExifData(ExifHandler.EXIF.GPSLocation);
+    }
+
+    @CommandLine.Option(names = {"-pl", "--place"}, description = "Get the place nearest to the gps location of image, e.g. Yverdon-les-Bains, CH")
+    private void addPlace(boolean called) {
+        _config.AddExifData(ExifHandler.EXIF.Place);
+    }
+
+    @CommandLine.Option(names = {"-gz", "--gazetteer"}, description = "GeoNames cities file giving the places of -pl and {place}, instead of the bundled places")
+    private void setGazetteer(String param) {
+        _config.SetGazetteer(param);
     }
 
     @CommandLine.Option(names = {"-is", "--imagesize"}, description = "Get the size of image in pixels")
     private void addImageSize(boolean called) {
-        if (_imgHandler == null) throw new NullPointerException("no image path has been given");
-        _exifHandler.AddExifData(ExifHandler.EXIF.ImageSize);
+        _config.AddExifData(ExifHandler.EXIF.ImageSize);
     }
 
     @CommandLine.Option(names = {"-f", "--font"}, description = "font", defaultValue = "Arial")
     private void setFont(String param) {
-        _overlayer.SetFont(param);
+        _config.SetFont(param);
     }
 
     @CommandLine.Option(names = {"-fw", "--fontwidth"}, description = "font width : bold, italic, plain", defaultValue = "bold")
     private void setFontWidth(String param) {
-        _overlayer.SetFontWidth(param);
+        _config.SetFontWidth(param);
     }
 
     @CommandLine.Option(names = {"-fs", "--fontSize"}, description = "font size px", defaultValue = "50")
     private void setFontSize(String param) {
-        _overlayer.SetFontSize(param);
+        _config.SetFontSize(param);
     }
 
     @CommandLine.Option(names = {"-fc", "--fontcolor"}, description = "font color: #RRGGBB -> #2e00ff")
     private void setFontColor(String param) {
-        _overlayer.setFontColor(param);
+        _config.SetFontColor(param);
     }
 
     @CommandLine.Option(names = {"-bg", "--backgroundcolor"}, description = "background color:  #AARRGGBB")
     private void setBackgroundColor(String param) {
-        _overlayer.SetBackgroundColor(param);
+        _config.SetBackgroundColor(param);
     }
 
     @CommandLine.Option(names = {"-m", "--margin"}, description = "Set the margin of the overlay")
     private void setMargin(String param) {
-        _overlayer.SetMargin(param);
+        _config.SetMargin(param);
+    }
+
+    @CommandLine.Option(names = {"-th", "--thumbnails"}, description = "Save thumbnails with the image, longest side in px: 256,1024 -> OUTPUT_256.jpeg, OUTPUT_1024.jpeg")
+    private void setThumbnails(String param) {
+        _config.SetThumbnails(param);
+    }
+
+    @CommandLine.Option(names = {"-st", "--stages"}, description = "Threads of the read, decode, overlay, encode and write stages of the batch: 1,4,2,4,1 (default: 1,J,J,J,1 with J the threads of -j)")
+    private void setStages(String param) {
+        _stages.SetStages(param);
+    }
+
+    @CommandLine.Option(names = {"-q", "--quality"}, description = "JPEG quality, 1 to 100 (default: 75)")
+    private void setQuality(String param) {
+        _encoder.SetQuality(param);
+    }
+
+    @CommandLine.Option(names = {"-oh", "--optimizehuffman"}, description = "JPEG: compute the Huffman tables of each image, smaller and slower")
+    private void setOptimizeHuffman(boolean param) {
+        _encoder.SetOptimizeHuffman(param);
+    }
+
+    @CommandLine.Option(names = {"-pj", "--progressive"}, description = "JPEG: encode in progressive scans")
+    private void setProgressive(boolean param) {
+        _encoder.SetProgressive(param);
+    }
+
+    @CommandLine.Option(names = {"-cs", "--chroma"}, description = "JPEG chroma subsampling: 420, 422, 444 (default: 420)")
+    private void setChromaSubsampling(String param) {
+        _encoder.SetChromaSubsampling(param);
+    }
+
+    @CommandLine.Option(names = {"-pc", "--pngcompression"}, description = "PNG compression level, 0 (fastest) to 9 (smallest) (default: 4)")
+    private void setPngCompression(String param) {
+        _encoder.SetPngCompression(param);
+    }
+
+    @CommandLine.Option(names = {"-pf", "--pngfilter"}, description = "PNG row filter: none, sub, up, average, paeth, adaptive (default: adaptive)")
+    private void setPngFilter(String param) {
+        _encoder.SetPngFilter(param);
     }
 
     /**
@@ -169,14 +239,66 @@ public class Inko implements Callable {
     }
     @Override
     public Integer call() throws Exception {
-        if (_imgHandler == null) return 0;
-
-        BufferedImage textImg = _overlayer.CreateImageText(_exifHandler.ComputeImageText(), _imgHandler.getImage().getWidth());
-        BufferedImage overlayedImage = _overlayer.overlayImages(_imgHandler.getImage(),
-                textImg,
-                _position,
-                _outputFormat);
-        ImageHandler.saveImage(overlayedImage, _outputPath, _outputFormat);
+        OverlayConfig config = buildConfig();
+        _service = new OverlayService();
+        _service.setAdmissionController(new AdmissionController(_heapBudget > 0 ? _heapBudget << 20 : AdmissionController.defaultBudget()));
+        try (MetadataIndex index = _indexPath == null ? null : MetadataIndex.open(Paths.get(_indexPath))) {
+            _service.setMetadataIndex(index);
+            if (_servePort != null) return serve();
+            MetricsReport report = null;
+            if (_metricsPath != null) {
+                report = new MetricsReport();
+                _service.addMetricsListener(report);
+            }
+            try {
+                return run(config);
+            } finally {
+                if (report != null) report.write(_metricsPath);
+            }
+        } finally {
+            _service.setMetadataIndex(null);
+        }
+    }
+
+    /**
+     * Build the configuration of the overlay from the parsed options
+     *
+     * @return the configuration
+     */
+    OverlayConfig buildConfig() {
+        return _config.SetPosition(_position).SetOutputFormat(_outputFormat).SetSpliceJpeg(_spliceJpeg).SetTiled(_tiled)
+                .SetEncoder(_encoder.build()).build();
+    }
+
+    private int serve() throws Exception {
+        int maxDecodes = _maxDecodes > 0 ? _maxDecodes : Runtime.getRuntime().availableProcessors();
+        OverlayServer server = new OverlayServer(_service, _servePort, maxDecodes);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
+        System.out.println("Inko listening on http://127.0.0.1:" + server.getPort() + "/overlay");
+        server.awaitStop();
+        return 0;
+    }
+
+    private int run(OverlayConfig config) throws Exception {
+        if (_batchInput != null) {
+            List<Path> inputs = BatchProcessor.resolveInputs(_batchInput);
+            BatchProcessor batch = new BatchProcessor(inputs, _outputDir, _outputFormat);
+            BatchProcessor.BatchResult result;
+            if (_incremental) {
+                try (BatchManifest manifest = BatchManifest.open(BatchManifest.pathOf(Paths.get(_outputDir)))) {
+                    result = batch.run(_service, config, _stages.SetThreads(_threads).build(), manifest);
+                }
+            } else {
+                result = batch.run(_service, config, _stages.SetThreads(_threads).build());
+            }
+            result.printSummary();
+            System.out.println(_service.getTextCache());
+            return result.getFailures().isEmpty() ? 0 : 1;
+        }
+        if (_imagePath == null) return 0;
+
+        _service.process(_imagePath, _outputPath, config);
         if (_showImage) {
             ImageHandler.openImage(_outputPath + '.' + _outputFormat);
         }
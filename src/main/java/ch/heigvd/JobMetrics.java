@@ -0,0 +1,297 @@
+/*
+ * Class         : JobMetrics
+ *
+ * Description   : Time of each stage and bytes of the overlay of one image
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+
+/**
+ * Time of each stage and bytes of the overlay of one image.
+ * A job fills its own metrics, they are given to the MetricsListener of the service at the end of the job.
+ */
+public final class JobMetrics {
+
+    /**
+     * Stages of an overlay, in the order of the pipeline
+     */
+    public enum Stage {
+        READ, ADMISSION, METADATA, DECODE, TEXT_LAYOUT, TEXT_RASTER, COMPOSITE, COLOR_CONVERSION, ENCODE, WRITE, THUMBNAILS
+    }
+
+    /**
+     * Store the image path
+     */
+    private final String _imagePath;
+
+    /**
+     * Store the time of each stage in nanoseconds, by ordinal
+     */
+    private final long[] _nanos = new long[Stage.values().length];
+
+    /**
+     * Store the time of the whole job in nanoseconds
+     */
+    private long _totalNanos;
+
+    /**
+     * Store the bytes of the input file
+     */
+    private long _bytesIn;
+
+    /**
+     * Store the bytes of the output file
+     */
+    private long _bytesOut;
+
+    /**
+     * Store the bytes of the rasters of the job alive now, counted until given back
+     */
+    private long _liveRasterBytes;
+
+    /**
+     * Store the most bytes of rasters alive at once during the job
+     */
+    private long _rasterBytes;
+
+    /**
+     * Store the output file, null if not saved
+     */
+    private String _outputPath;
+
+    /**
+     * Store the error message, null if the job succeeded
+     */
+    private String _error;
+
+    /**
+     * Store if the image was skipped, its output is up to date
+     */
+    private boolean _skipped;
+
+    /**
+     * Constructor
+     *
+     * @param imagePath the path to the input image, null if unknown
+     */
+    public JobMetrics(String imagePath) {
+        _imagePath = imagePath;
+    }
+
+    /**
+     * Get the current time, the start of a stage
+     *
+     * @return the time in nanoseconds
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time elapsed since the start of a stage
+     *
+     * @param stage the stage
+     * @param start the start given by now()
+     */
+    public void add(Stage stage, long start) {
+        _nanos[stage.ordinal()] += System.nanoTime() - start;
+    }
+
+    /**
+     * Count a raster allocated by the job, alive until released
+     *
+     * @param image the allocated image, ignored if null
+     */
+    public void addRaster(BufferedImage image) {
+        if (image == null) return;
+        _liveRasterBytes += rasterBytes(image);
+        _rasterBytes = Math.max(_rasterBytes, _liveRasterBytes);
+    }
+
+    /**
+     * Count a raster of the job given back, the peak is kept
+     *
+     * @param image the image given back, ignored if null
+     */
+    public void releaseRaster(BufferedImage image) {
+        if (image != null) _liveRasterBytes = Math.max(0, _liveRasterBytes - rasterBytes(image));
+    }
+
+    /**
+     * Get the bytes of the raster of an image
+     *
+     * @param image the image
+     * @return the bytes of all its banks
+     */
+    public static long rasterBytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * Add the metrics of another job, the raster bytes are the peak of the largest job
+     *
+     * @param other the metrics to add
+     */
+    public void merge(JobMetrics other) {
+        for (int i = 0; i < _nanos.length; i++) {
+            _nanos[i] += other._nanos[i];
+        }
+        _totalNanos += other._totalNanos;
+        _bytesIn += other._bytesIn;
+        _bytesOut += other._bytesOut;
+        _rasterBytes = Math.max(_rasterBytes, other._rasterBytes);
+    }
+
+    /**
+     * Set the bytes of the input file
+     *
+     * @param bytesIn the size of the file
+     */
+    public void setBytesIn(long bytesIn) {
+        _bytesIn = bytesIn;
+    }
+
+    /**
+     * Set the bytes of the output file
+     *
+     * @param bytesOut the size of the file
+     */
+    public void setBytesOut(long bytesOut) {
+        _bytesOut = bytesOut;
+    }
+
+    /**
+     * Set the output file
+     *
+     * @param outputPath the path of the saved image
+     */
+    public void setOutputPath(String outputPath) {
+        _outputPath = outputPath;
+    }
+
+    /**
+     * Set the time of the whole job
+     *
+     * @param totalNanos the time in nanoseconds
+     */
+    public void setTotalNanos(long totalNanos) {
+        _totalNanos = totalNanos;
+    }
+
+    /**
+     * Set the error of a failed job
+     *
+     * @param error the message of the error
+     */
+    public void setError(String error) {
+        _error = error;
+    }
+
+    /**
+     * Mark the job skipped, the output of the image is up to date and kept
+     */
+    public void setSkipped() {
+        _skipped = true;
+    }
+
+    /**
+     * Get the image path
+     *
+     * @return the path to the input image, null if unknown
+     */
+    public String getImagePath() {
+        return _imagePath;
+    }
+
+    /**
+     * Get the output file
+     *
+     * @return the path of the saved image, null if not saved
+     */
+    public String getOutputPath() {
+        return _outputPath;
+    }
+
+    /**
+     * Get the time of a stage
+     *
+     * @param stage the stage
+     * @return the time in nanoseconds, 0 if the stage didn't run
+     */
+    public long getNanos(Stage stage) {
+        return _nanos[stage.ordinal()];
+    }
+
+    /**
+     * Get the time of the whole job
+     *
+     * @return the time in nanoseconds
+     */
+    public long getTotalNanos() {
+        return _totalNanos;
+    }
+
+    /**
+     * Get the bytes of the input file
+     *
+     * @return the size of the file
+     */
+    public long getBytesIn() {
+        return _bytesIn;
+    }
+
+    /**
+     * Get the bytes of the output file
+     *
+     * @return the size of the file
+     */
+    public long getBytesOut() {
+        return _bytesOut;
+    }
+
+    /**
+     * Get the peak of the rasters of the job: the most bytes of rasters alive at once
+     *
+     * @return the bytes of the rasters
+     */
+    public long getRasterBytes() {
+        return _rasterBytes;
+    }
+
+    /**
+     * Get the error of a failed job
+     *
+     * @return the message of the error, null if the job succeeded
+     */
+    public String getError() {
+        return _error;
+    }
+
+    /**
+     * Check if the image was skipped
+     *
+     * @return True if its output was up to date and kept
+     */
+    public boolean isSkipped() {
+        return _skipped;
+    }
+
+    /**
+     * Check if the job succeeded
+     *
+     * @return True if the image was saved
+     */
+    public boolean isSucceeded() {
+        return _error == null;
+    }
+}
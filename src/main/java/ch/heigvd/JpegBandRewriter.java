@@ -0,0 +1,855 @@
+/*
+ * Class         : JpegBandRewriter
+ *
+ * Description   : Overlay an image on a baseline JPEG by re-encoding only the MCU rows under it
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Overlay an image on a baseline JPEG by re-encoding only the MCU rows it covers.
+ * The rows under the overlay are decoded from a small JPEG holding only their entropy-coded data, blended and
+ * encoded again with the quantization tables of the source. Their entropy-coded data is then spliced in the
+ * source: the other rows are copied unchanged, bit for bit, with the headers and metadata of the source.
+ * Only single-scan baseline JPEGs are supported, the DC predictions around the band are re-encoded and
+ * the restart markers are kept in sequence.
+ */
+public final class JpegBandRewriter {
+
+    static final int SOF0 = 0xC0, SOF1 = 0xC1, DHT = 0xC4, SOI = 0xD8, EOI = 0xD9, SOS = 0xDA,
+            DQT = 0xDB, DRI = 0xDD, RST0 = 0xD0, APP0 = 0xE0, APP2 = 0xE2, APP14 = 0xEE;
+
+    /**
+     * Store the bytes of the source
+     */
+    private final ByteBuffer _bytes;
+
+    /**
+     * Store the layout of the source
+     */
+    private final Layout _layout;
+
+    private JpegBandRewriter(ByteBuffer bytes, Layout layout) {
+        _bytes = bytes;
+        _layout = layout;
+    }
+
+    /**
+     * Open a JPEG, only its headers are parsed
+     *
+     * @param source the bytes of the image
+     * @return the rewriter, null if the image isn't a single-scan baseline JPEG
+     */
+    public static JpegBandRewriter open(ImageSource source) {
+        ByteBuffer bytes = source.getBytes();
+        Layout layout = Layout.parse(bytes);
+        return layout == null ? null : new JpegBandRewriter(bytes, layout);
+    }
+
+    /**
+     * Get the width of the image
+     *
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return _layout.width;
+    }
+
+    /**
+     * Get the height of the image
+     *
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return _layout.height;
+    }
+
+    /**
+     * Get the height of the MCU rows, the unit of the re-encoded band
+     *
+     * @return the height in pixels
+     */
+    public int getMcuHeight() {
+        return _layout.mcuHeight;
+    }
+
+    /**
+     * Read the rows of the image in strips, in order, the entropy-coded data is read once
+     *
+     * @return the reader of the strips
+     */
+    public StripReader strips() {
+        return new StripReader();
+    }
+
+    /**
+     * Blend an overlay on the image and encode it, only the MCU rows under the overlay are re-encoded
+     *
+     * @param overlay the image to overlay, inside the image
+     * @param x       the position of the overlay in the image
+     * @param y       the position of the overlay in the image
+     * @return the bytes of the JPEG, null if the band can't be spliced in the source
+     * @throws IOException if the entropy-coded data is corrupt or the band can't be encoded
+     */
+    public byte[] rewrite(BufferedImage overlay, int x, int y) throws IOException {
+        Layout source = _layout;
+        Rectangle region = new Rectangle(x, y, overlay.getWidth(), overlay.getHeight())
+                .intersection(new Rectangle(source.width, source.height));
+        if (region.isEmpty()) return null;
+
+        int firstRow = region.y / source.mcuHeight;
+        int endRow = Math.min(source.mcuRows, (region.y + region.height + source.mcuHeight - 1) / source.mcuHeight);
+        int firstMcu = firstRow * source.mcusPerRow;
+        int endMcu = endRow * source.mcusPerRow;
+        int totalMcus = source.mcuRows * source.mcusPerRow;
+        int bandHeight = Math.min(source.height, endRow * source.mcuHeight) - firstRow * source.mcuHeight;
+
+        // find the first row of the band, the bits before it are copied as they are
+        BitReader in = new BitReader(_bytes, source.entropyStart);
+        int[] predictions = new int[source.components];
+        transcode(source, in, predictions, 0, source, null, null, 0, 0, firstMcu);
+        long prefixBits = in.position();
+        int prefixEnd = in.startOf(prefixBits >> 3);
+        int[] bandPredictions = predictions.clone();
+
+        // the rows of the band as a small JPEG, its DC predictions start at 0
+        BitWriter small = new BitWriter(1 << 16);
+        writeHeaders(_bytes, source, small, bandHeight);
+        transcode(source, in, predictions, firstMcu, source, small, new int[source.components], 0, 0, endMcu - firstMcu);
+        small.alignWithOnes();
+        small.writeMarker(EOI);
+
+        byte[] encoded = encodeBand(small, overlay, x, y - firstRow * source.mcuHeight);
+        Layout band = Layout.parse(ByteBuffer.wrap(encoded));
+        if (band == null || !source.sameFrame(band, bandHeight)) return null;
+
+        BitWriter out = new BitWriter(_bytes.limit() + encoded.length);
+        // headers and metadata of the source, then the rows before the band
+        out.writeRaw(_bytes, 0, prefixEnd);
+        int partialBits = (int) (prefixBits & 7);
+        if (partialBits > 0) {
+            out.writeBits((_bytes.get(prefixEnd) & 0xFF) >>> (8 - partialBits), partialBits);
+        }
+
+        // the band, its DC predictions continue the ones of the source
+        int[] outPredictions = bandPredictions;
+        transcode(band, new BitReader(ByteBuffer.wrap(encoded), band.entropyStart), new int[band.components], 0,
+                source, out, outPredictions, firstMcu, source.restartInterval, endMcu - firstMcu);
+
+        if (endMcu < totalMcus) {
+            if (source.restartInterval > 0) {
+                // up to the next restart marker, the bytes after it are copied as they are
+                int restart = (endMcu + source.restartInterval - 1) / source.restartInterval * source.restartInterval;
+                int nextMcu = Math.min(totalMcus, restart);
+                transcode(source, in, predictions, endMcu, source, out, outPredictions, endMcu, source.restartInterval, nextMcu - endMcu);
+            } else {
+                // the first MCU after the band has DC differences from the band, the rest is copied bit for bit
+                transcode(source, in, predictions, endMcu, source, out, outPredictions, endMcu, 0, 1);
+                BitReader copy = new BitReader(in);
+                transcode(source, in, predictions, endMcu + 1, source, null, null, 0, 0, totalMcus - endMcu - 1);
+                copy.copyTo(out, in.position() - copy.position());
+            }
+        }
+        out.alignWithOnes();
+
+        // the marker ending the band or the scan, and everything after it
+        int marker = in.nextMarker();
+        out.writeRaw(_bytes, marker, _bytes.limit() - marker);
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the headers of a JPEG: the tables and frame of another one, with another height
+     * and without restart interval nor metadata
+     *
+     * @param bytes  the bytes of the other JPEG
+     * @param layout the layout of the other JPEG
+     * @param out    the writer
+     * @param height the height of the written JPEG
+     */
+    static void writeHeaders(ByteBuffer bytes, Layout layout, BitWriter out, int height) {
+        out.writeMarker(SOI);
+        for (int segment : layout.segments) {
+            int marker = bytes.get(segment + 1) & 0xFF;
+            int length = (bytes.get(segment + 2) & 0xFF) << 8 | (bytes.get(segment + 3) & 0xFF);
+            boolean keep = marker == DQT || marker == DHT || marker == SOF0 || marker == SOF1 || marker == SOS
+                    // color space markers
+                    || marker == APP0 || marker == APP2 || marker == APP14;
+            if (!keep) continue;
+            if (marker == SOF0 || marker == SOF1) {
+                out.writeRaw(bytes, segment, 5);
+                out.writeByte(height >> 8);
+                out.writeByte(height);
+                out.writeRaw(bytes, segment + 7, length - 5);
+            } else {
+                out.writeRaw(bytes, segment, length + 2);
+            }
+        }
+    }
+
+    /**
+     * Decode the band, blend the overlay on it and encode it with the tables of the source
+     *
+     * @param small the small JPEG holding the band
+     * @param overlay the image to overlay
+     * @param x the position of the overlay in the band
+     * @param y the position of the overlay in the band
+     * @return the bytes of the encoded band
+     * @throws IOException if the band can't be decoded or encoded
+     */
+    private static byte[] encodeBand(BitWriter small, BufferedImage overlay, int x, int y) throws IOException {
+        IIOImage decoded = decodeBand(small);
+        BufferedImage band = (BufferedImage) decoded.getRenderedImage();
+        // the tables of the source are used by the writer
+        IIOMetadata metadata = decoded.getMetadata();
+
+        AlphaBlender.blend(overlay, band, x, y);
+
+        ImageWriter writer = ImageCodecs.acquireWriter("jpeg", band);
+        if (writer == null) throw new IOException("No JPEG writer");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(small.length * 2);
+        boolean completed = false;
+        try (MemoryCacheImageOutputStream imageStream = new MemoryCacheImageOutputStream(bytes)) {
+            writer.setOutput(imageStream);
+            writer.write(null, new IIOImage(band, null, metadata), null);
+            completed = true;
+        } finally {
+            ImageCodecs.releaseWriter("jpeg", writer, completed);
+        }
+        RasterPool.shared().release(band);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a small JPEG holding a band, in a buffer of the shared RasterPool
+     *
+     * @param small the small JPEG
+     * @return the rows of the band and the metadata holding the tables of the source
+     * @throws IOException if the band can't be decoded
+     */
+    private static IIOImage decodeBand(BitWriter small) throws IOException {
+        try (InputStream stream = new ByteArrayInputStream(small.data, 0, small.length);
+             MemoryCacheImageInputStream imageStream = new MemoryCacheImageInputStream(stream)) {
+            ImageReader reader = ImageCodecs.acquireReader("jpeg", imageStream);
+            if (reader == null) throw new IOException("The band isn't a JPEG");
+            boolean completed = false;
+            try {
+                BufferedImage band = ImageCodecs.read(reader, null, reader.getWidth(0), reader.getHeight(0),
+                        RasterPool.shared());
+                IIOImage decoded = new IIOImage(band, null, reader.getImageMetadata(0));
+                completed = true;
+                return decoded;
+            } finally {
+                ImageCodecs.releaseReader(reader, completed);
+            }
+        }
+    }
+
+    /**
+     * Decode MCUs and encode them again with the Huffman tables of the source, without touching the coefficients.
+     * The DC coefficients are encoded as differences from the predictions of the output.
+     *
+     * @param layout         the layout of the input
+     * @param in             the input, at the start of an MCU
+     * @param inPredictions  the DC predictions of the input, updated
+     * @param inIndex        the index of the first MCU in the input
+     * @param tables         the layout holding the Huffman tables of the output
+     * @param out            the output, null to only skip the MCUs
+     * @param outPredictions the DC predictions of the output, updated
+     * @param outIndex       the index of the first MCU in the output
+     * @param outRestart     the restart interval of the output, 0 for none
+     * @param count          the number of MCUs
+     * @throws IOException if the input is corrupt or a symbol has no code in the tables of the source
+     */
+    static void transcode(Layout layout, BitReader in, int[] inPredictions, int inIndex, Layout tables,
+                          BitWriter out, int[] outPredictions, int outIndex, int outRestart, int count) throws IOException {
+        for (int mcu = 0; mcu < count; mcu++, inIndex++, outIndex++) {
+            if (layout.restartInterval > 0 && inIndex > 0 && inIndex % layout.restartInterval == 0) {
+                in.restart();
+                Arrays.fill(inPredictions, 0);
+            }
+            if (out != null && outRestart > 0 && outIndex > 0 && outIndex % outRestart == 0) {
+                out.alignWithOnes();
+                out.writeMarker(RST0 + (outIndex / outRestart - 1) % 8);
+                Arrays.fill(outPredictions, 0);
+            }
+            for (int c = 0; c < layout.components; c++) {
+                Huffman dcIn = layout.dc[c], acIn = layout.ac[c];
+                Huffman dcOut = tables.dc[c], acOut = tables.ac[c];
+                for (int block = 0; block < layout.blocks[c]; block++) {
+                    int size = dcIn.decode(in);
+                    inPredictions[c] += size == 0 ? 0 : extend(in.get(size), size);
+                    if (out != null) {
+                        int diff = inPredictions[c] - outPredictions[c];
+                        outPredictions[c] = inPredictions[c];
+                        int category = diff == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(Math.abs(diff));
+                        dcOut.encode(out, category);
+                        if (category > 0) out.writeBits(diff < 0 ? diff - 1 : diff, category);
+                    }
+                    for (int k = 1; k < 64; k++) {
+                        int runSize = acIn.decode(in);
+                        size = runSize & 15;
+                        int bits = size == 0 ? 0 : in.get(size);
+                        if (out != null) {
+                            acOut.encode(out, runSize);
+                            if (size > 0) out.writeBits(bits, size);
+                        }
+                        if (size == 0) {
+                            if (runSize != 0xF0) break; // end of block
+                            k += 15;
+                        } else {
+                            k += runSize >> 4;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the signed value of the additional bits of a coefficient
+     */
+    private static int extend(int bits, int size) {
+        return bits < 1 << (size - 1) ? bits - (1 << size) + 1 : bits;
+    }
+
+    /**
+     * Read the rows of the image in strips of whole MCU rows, in order.
+     * Each strip is decoded with the MCU row above and below it, then cropped: the chroma of its border rows is
+     * upsampled with the rows of its neighbours, as in the decode of the whole image, so the strips have no seam.
+     * The entropy-coded data is read once, except the last MCU row of each strip: it is read again, from a copy of
+     * the reader, as the row above the next strip.
+     */
+    public final class StripReader {
+        /**
+         * Store the reader of the entropy-coded data, at the first MCU row decoded for the next strip
+         */
+        private BitReader _in = new BitReader(_bytes, _layout.entropyStart);
+
+        /**
+         * Store the DC predictions of the reader
+         */
+        private int[] _predictions = new int[_layout.components];
+
+        /**
+         * Store the first MCU row of the next strip
+         */
+        private int _row;
+
+        private StripReader() {
+        }
+
+        /**
+         * Get the first pixel row of the next strip
+         *
+         * @return the row, the height of the image at the end
+         */
+        public int getY() {
+            return Math.min(_layout.height, _row * _layout.mcuHeight);
+        }
+
+        /**
+         * Decode the next strip, in a buffer of the shared RasterPool
+         *
+         * @param height the height of the strip, rounded up to whole MCU rows
+         * @return the rows of the strip, null after the last one
+         * @throws IOException if the entropy-coded data is corrupt or the strip can't be decoded
+         */
+        public BufferedImage next(int height) throws IOException {
+            Layout source = _layout;
+            if (_row >= source.mcuRows) return null;
+            int endRow = Math.min(source.mcuRows, _row + Math.max(1, (height + source.mcuHeight - 1) / source.mcuHeight));
+            int stripHeight = Math.min(source.height, endRow * source.mcuHeight) - _row * source.mcuHeight;
+            // the MCU rows around the strip, the reader is at the first one
+            int firstRow = Math.max(0, _row - 1);
+            int lastRow = Math.min(source.mcuRows, endRow + 1);
+            int decodedHeight = Math.min(source.height, lastRow * source.mcuHeight) - firstRow * source.mcuHeight;
+
+            BitWriter small = new BitWriter((lastRow - firstRow) * source.mcusPerRow * 64);
+            writeHeaders(_bytes, source, small, decodedHeight);
+            int[] outPredictions = new int[source.components];
+            // up to the last row of the strip, the first one decoded for the next strip
+            int count = (endRow - 1 - firstRow) * source.mcusPerRow;
+            transcode(source, _in, _predictions, firstRow * source.mcusPerRow, source, small, outPredictions, 0, 0, count);
+            BitReader nextIn = new BitReader(_in);
+            int[] nextPredictions = _predictions.clone();
+            transcode(source, _in, _predictions, (endRow - 1) * source.mcusPerRow, source, small, outPredictions, count, 0,
+                    (lastRow - endRow + 1) * source.mcusPerRow);
+            small.alignWithOnes();
+            small.writeMarker(EOI);
+            _in = nextIn;
+            _predictions = nextPredictions;
+            int top = (_row - firstRow) * source.mcuHeight;
+            _row = endRow;
+
+            BufferedImage decoded = (BufferedImage) decodeBand(small).getRenderedImage();
+            if (top == 0 && decodedHeight == stripHeight) return decoded;
+            BufferedImage strip = decoded.getType() == BufferedImage.TYPE_CUSTOM
+                    ? new BufferedImage(decoded.getColorModel(),
+                    decoded.getRaster().createCompatibleWritableRaster(decoded.getWidth(), stripHeight),
+                    decoded.isAlphaPremultiplied(), null)
+                    : RasterPool.shared().newImage(decoded.getWidth(), stripHeight, decoded.getType(), false);
+            strip.getRaster().setDataElements(0, 0,
+                    decoded.getRaster().createChild(0, top, decoded.getWidth(), stripHeight, 0, 0, null));
+            RasterPool.shared().release(decoded);
+            return strip;
+        }
+    }
+
+    /**
+     * Headers of a single-scan baseline JPEG
+     */
+    static final class Layout {
+        int width, height;
+        int components, mcuWidth, mcuHeight, mcusPerRow, mcuRows, restartInterval, entropyStart;
+        /**
+         * Per component, in the order of the scan
+         */
+        int[] ids, horizontal, vertical, quantTables, blocks;
+        Huffman[] dc, ac;
+        /**
+         * Quantization tables by id, as stored in the file
+         */
+        final int[][] quant = new int[4][];
+        /**
+         * Offsets of the segments before the entropy-coded data
+         */
+        int[] segments;
+
+        /**
+         * Parse the headers up to the start of the entropy-coded data
+         *
+         * @param bytes the bytes of the file
+         * @return the layout, null if it isn't a single-scan baseline JPEG
+         */
+        static Layout parse(ByteBuffer bytes) {
+            try {
+                return parseHeaders(bytes);
+            } catch (IndexOutOfBoundsException ex) {
+                // truncated file
+                return null;
+            }
+        }
+
+        private static Layout parseHeaders(ByteBuffer bytes) {
+            if (u8(bytes, 0) != 0xFF || u8(bytes, 1) != SOI) return null;
+            Layout layout = new Layout();
+            Huffman[] dcTables = new Huffman[4], acTables = new Huffman[4];
+            int[] frameIds = null, frameH = null, frameV = null, frameTq = null;
+            int[] segments = new int[16];
+            int nbSegments = 0;
+            int pos = 2;
+            while (true) {
+                if (u8(bytes, pos) != 0xFF) return null;
+                int marker = u8(bytes, pos + 1);
+                if (marker == 0xFF) { // fill byte
+                    pos++;
+                    continue;
+                }
+                if (marker == EOI || (marker >= RST0 && marker < RST0 + 8)) return null;
+                int length = u16(bytes, pos + 2);
+                int data = pos + 4;
+                if (nbSegments == segments.length) segments = Arrays.copyOf(segments, nbSegments * 2);
+                segments[nbSegments++] = pos;
+
+                if (marker == SOF0 || marker == SOF1) {
+                    if (u8(bytes, data) != 8) return null; // 12 bits precision
+                    layout.height = u16(bytes, data + 1);
+                    layout.width = u16(bytes, data + 3);
+                    int n = u8(bytes, data + 5);
+                    if (layout.height == 0 || layout.width == 0 || n == 0 || n > 4) return null;
+                    frameIds = new int[n];
+                    frameH = new int[n];
+                    frameV = new int[n];
+                    frameTq = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        frameIds[i] = u8(bytes, data + 6 + 3 * i);
+                        frameH[i] = u8(bytes, data + 7 + 3 * i) >> 4;
+                        frameV[i] = u8(bytes, data + 7 + 3 * i) & 15;
+                        frameTq[i] = u8(bytes, data + 8 + 3 * i) & 3;
+                        if (frameH[i] == 0 || frameV[i] == 0) return null;
+                    }
+                } else if (marker >= 0xC2 && marker <= 0xCF && marker != DHT && marker != 0xC8) {
+                    // progressive, lossless, hierarchical or arithmetic coding
+                    return null;
+                } else if (marker == DHT) {
+                    int p = data;
+                    while (p < pos + 2 + length) {
+                        int tableClass = u8(bytes, p) >> 4, id = u8(bytes, p) & 3;
+                        int[] counts = new int[17];
+                        int total = 0;
+                        for (int i = 1; i <= 16; i++) {
+                            counts[i] = u8(bytes, p + i);
+                            total += counts[i];
+                        }
+                        if (total > 256) return null;
+                        int[] values = new int[total];
+                        for (int i = 0; i < total; i++) values[i] = u8(bytes, p + 17 + i);
+                        (tableClass == 0 ? dcTables : acTables)[id] = new Huffman(counts, values);
+                        p += 17 + total;
+                    }
+                } else if (marker == DQT) {
+                    int p = data;
+                    while (p < pos + 2 + length) {
+                        int precision = u8(bytes, p) >> 4, id = u8(bytes, p) & 3;
+                        int[] table = new int[64];
+                        for (int i = 0; i < 64; i++) {
+                            table[i] = precision == 0 ? u8(bytes, p + 1 + i) : u16(bytes, p + 1 + 2 * i);
+                        }
+                        layout.quant[id] = table;
+                        p += 1 + (precision == 0 ? 64 : 128);
+                    }
+                } else if (marker == DRI) {
+                    layout.restartInterval = u16(bytes, data);
+                } else if (marker == SOS) {
+                    if (frameIds == null) return null;
+                    int n = u8(bytes, data);
+                    // all the components in one interleaved scan
+                    if (n != frameIds.length) return null;
+                    int spectral = data + 1 + 2 * n;
+                    if (u8(bytes, spectral) != 0 || u8(bytes, spectral + 1) != 63 || u8(bytes, spectral + 2) != 0) return null;
+                    layout.components = n;
+                    layout.ids = new int[n];
+                    layout.horizontal = new int[n];
+                    layout.vertical = new int[n];
+                    layout.quantTables = new int[n];
+                    layout.blocks = new int[n];
+                    layout.dc = new Huffman[n];
+                    layout.ac = new Huffman[n];
+                    int maxH = 1, maxV = 1;
+                    for (int i = 0; i < n; i++) maxH = Math.max(maxH, frameH[i]);
+                    for (int i = 0; i < n; i++) maxV = Math.max(maxV, frameV[i]);
+                    for (int i = 0; i < n; i++) {
+                        int id = u8(bytes, data + 1 + 2 * i);
+                        int frame = indexOf(frameIds, id);
+                        if (frame < 0) return null;
+                        layout.ids[i] = id;
+                        layout.horizontal[i] = frameH[frame];
+                        layout.vertical[i] = frameV[frame];
+                        layout.quantTables[i] = frameTq[frame];
+                        // a scan of one component has MCUs of one block
+                        layout.blocks[i] = n == 1 ? 1 : frameH[frame] * frameV[frame];
+                        layout.dc[i] = dcTables[u8(bytes, data + 2 + 2 * i) >> 4 & 3];
+                        layout.ac[i] = acTables[u8(bytes, data + 2 + 2 * i) & 3];
+                        if (layout.dc[i] == null || layout.ac[i] == null || layout.quant[frameTq[frame]] == null) return null;
+                    }
+                    layout.mcuWidth = n == 1 ? 8 : 8 * maxH;
+                    layout.mcuHeight = n == 1 ? 8 : 8 * maxV;
+                    layout.mcusPerRow = (layout.width + layout.mcuWidth - 1) / layout.mcuWidth;
+                    layout.mcuRows = (layout.height + layout.mcuHeight - 1) / layout.mcuHeight;
+                    layout.entropyStart = pos + 2 + length;
+                    layout.segments = Arrays.copyOf(segments, nbSegments);
+                    return layout;
+                }
+                pos += 2 + length;
+            }
+        }
+
+        /**
+         * Check if an encoded band can be spliced in this image
+         *
+         * @param band       the layout of the band
+         * @param bandHeight the expected height of the band
+         * @return True if the band has the same components, sampling and quantization
+         */
+        boolean sameFrame(Layout band, int bandHeight) {
+            if (band.width != width || band.height != bandHeight || band.components != components
+                    || band.restartInterval != 0) return false;
+            for (int c = 0; c < components; c++) {
+                if (band.ids[c] != ids[c] || band.horizontal[c] != horizontal[c] || band.vertical[c] != vertical[c]
+                        || !Arrays.equals(band.quant[band.quantTables[c]], quant[quantTables[c]])) return false;
+            }
+            return true;
+        }
+
+        private static int indexOf(int[] values, int value) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == value) return i;
+            }
+            return -1;
+        }
+
+        private static int u8(ByteBuffer bytes, int pos) {
+            return bytes.get(pos) & 0xFF;
+        }
+
+        private static int u16(ByteBuffer bytes, int pos) {
+            return u8(bytes, pos) << 8 | u8(bytes, pos + 1);
+        }
+    }
+
+    /**
+     * Huffman table, decoded with a lookup of the short codes
+     */
+    static final class Huffman {
+        private static final int LOOKUP_BITS = 9;
+
+        /**
+         * (length << 8 | symbol) of the codes of at most LOOKUP_BITS bits, 0 for longer codes
+         */
+        final int[] lookup = new int[1 << LOOKUP_BITS];
+        final int[] maxCode = new int[17];
+        final int[] valueOffset = new int[17];
+        final int[] values;
+        final int[] codes = new int[256];
+        final int[] sizes = new int[256];
+
+        Huffman(int[] counts, int[] values) {
+            this.values = values;
+            int code = 0, k = 0;
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = k - code;
+                for (int i = 0; i < counts[length]; i++, k++, code++) {
+                    int symbol = values[k];
+                    codes[symbol] = code;
+                    sizes[symbol] = length;
+                    if (length <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - length;
+                        Arrays.fill(lookup, code << shift, (code + 1) << shift, length << 8 | symbol);
+                    }
+                }
+                maxCode[length] = counts[length] == 0 ? -1 : code - 1;
+                code <<= 1;
+            }
+        }
+
+        int decode(BitReader in) throws IOException {
+            int entry = lookup[in.peek(LOOKUP_BITS)];
+            if (entry != 0) {
+                in.skip(entry >> 8);
+                return entry & 0xFF;
+            }
+            int code = in.get(LOOKUP_BITS);
+            for (int length = LOOKUP_BITS + 1; length <= 16; length++) {
+                code = code << 1 | in.get(1);
+                if (code <= maxCode[length]) return values[valueOffset[length] + code];
+            }
+            throw new IOException("Corrupt JPEG data: bad Huffman code");
+        }
+
+        void encode(BitWriter out, int symbol) throws IOException {
+            if (sizes[symbol] == 0) {
+                throw new IOException("No Huffman code for symbol " + symbol + " in the tables of the image");
+            }
+            out.writeBits(codes[symbol], sizes[symbol]);
+        }
+    }
+
+    /**
+     * Read the bits of entropy-coded data, without the stuffed bytes
+     */
+    static final class BitReader {
+        private final ByteBuffer _bytes;
+        private int _pos;
+        private long _buffer;
+        private int _count;
+        /**
+         * Number of bytes loaded in the buffer, with the zeros read after a marker
+         */
+        private long _loaded;
+        private boolean _marker;
+        /**
+         * Offsets in the file after the last loaded bytes, by index of loaded byte
+         */
+        private final int[] _ends = new int[16];
+        private final int _start;
+
+        BitReader(ByteBuffer bytes, int start) {
+            _bytes = bytes;
+            _pos = start;
+            _start = start;
+        }
+
+        BitReader(BitReader other) {
+            _bytes = other._bytes;
+            _pos = other._pos;
+            _buffer = other._buffer;
+            _count = other._count;
+            _loaded = other._loaded;
+            _marker = other._marker;
+            _start = other._start;
+            System.arraycopy(other._ends, 0, _ends, 0, _ends.length);
+        }
+
+        private void fill() {
+            while (_count <= 56) {
+                int value = 0;
+                if (!_marker && _pos < _bytes.limit()) {
+                    value = _bytes.get(_pos) & 0xFF;
+                    if (value != 0xFF) {
+                        _pos++;
+                    } else if (_pos + 1 < _bytes.limit() && _bytes.get(_pos + 1) == 0) {
+                        _pos += 2;
+                    } else {
+                        // a marker ends the data, zeros are read after it
+                        _marker = true;
+                        value = 0;
+                    }
+                }
+                _ends[(int) (_loaded & 15)] = _pos;
+                _loaded++;
+                _buffer = _buffer << 8 | value;
+                _count += 8;
+            }
+        }
+
+        int peek(int n) {
+            if (_count < n) fill();
+            return (int) (_buffer >>> (_count - n)) & ((1 << n) - 1);
+        }
+
+        void skip(int n) {
+            _count -= n;
+        }
+
+        int get(int n) {
+            int bits = peek(n);
+            _count -= n;
+            return bits;
+        }
+
+        /**
+         * Get the number of bits read
+         */
+        long position() {
+            return _loaded * 8 - _count;
+        }
+
+        /**
+         * Get the offset in the file of a loaded byte
+         *
+         * @param index the index of the byte in the data, without stuffing
+         */
+        int startOf(long index) {
+            return index == 0 ? _start : _ends[(int) ((index - 1) & 15)];
+        }
+
+        /**
+         * Skip the restart marker ending the current interval
+         */
+        void restart() throws IOException {
+            int marker = nextMarker();
+            int code = _bytes.get(marker + 1) & 0xFF;
+            if (code < RST0 || code >= RST0 + 8) throw new IOException("Corrupt JPEG data: missing restart marker");
+            _pos = marker + 2;
+            _buffer = 0;
+            _count = 0;
+            _marker = false;
+        }
+
+        /**
+         * Get the offset of the marker after the data, the remaining bits are padding
+         */
+        int nextMarker() throws IOException {
+            if (!_marker) fill();
+            if (!_marker) throw new IOException("Corrupt JPEG data: extraneous data before marker");
+            return _pos;
+        }
+
+        /**
+         * Copy bits to a writer
+         *
+         * @param out   the writer
+         * @param count the number of bits to copy
+         */
+        void copyTo(BitWriter out, long count) {
+            while (count > 0) {
+                int n = (int) Math.min(count, 24);
+                out.writeBits(get(n), n);
+                count -= n;
+            }
+        }
+    }
+
+    /**
+     * Write bits of entropy-coded data with byte stuffing, and raw bytes
+     */
+    static final class BitWriter {
+        private byte[] data;
+        private int length;
+        private long _buffer;
+        private int _count;
+
+        BitWriter(int capacity) {
+            data = new byte[Math.max(capacity, 1024)];
+        }
+
+        void writeBits(int bits, int n) {
+            _buffer = _buffer << n | (bits & ((1L << n) - 1));
+            _count += n;
+            while (_count >= 8) {
+                int value = (int) (_buffer >>> (_count - 8)) & 0xFF;
+                put(value);
+                if (value == 0xFF) put(0);
+                _count -= 8;
+            }
+        }
+
+        void alignWithOnes() {
+            if (_count > 0) writeBits((1 << (8 - _count)) - 1, 8 - _count);
+        }
+
+        void writeMarker(int marker) {
+            put(0xFF);
+            put(marker);
+        }
+
+        void writeByte(int value) {
+            put(value & 0xFF);
+        }
+
+        void writeRaw(ByteBuffer bytes, int from, int count) {
+            ensure(count);
+            bytes.duplicate().position(from).get(data, length, count);
+            length += count;
+        }
+
+        private void put(int value) {
+            ensure(1);
+            data[length++] = (byte) value;
+        }
+
+        private void ensure(int count) {
+            if (length + count > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + count));
+            }
+        }
+
+        /**
+         * Write the complete bytes and empty the buffer, the bits of an incomplete byte are kept
+         *
+         * @param output the output
+         * @throws IOException if the bytes can't be written
+         */
+        void flushTo(OutputStream output) throws IOException {
+            output.write(data, 0, length);
+            length = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Class         : JpegStripWriter
+ *
+ * Description   : Encode a baseline JPEG strip by strip
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encode a baseline JPEG strip by strip, the memory is the one of a strip.
+ * Each strip is encoded alone by ImageIO with the standard tables, then its entropy-coded data is appended to
+ * the output with the DC predictions continuing the ones of the previous strip, as JpegBandRewriter splices a band.
+ * The strips are given in order, their height is a multiple of 16 pixels except the last one.
+ */
+public final class JpegStripWriter {
+
+    /**
+     * Height of the strips, the multiple of the MCU heights of the writer
+     */
+    public static final int STRIP_UNIT = 16;
+
+    /**
+     * Store the output
+     */
+    private final OutputStream _output;
+
+    /**
+     * Store the width of the image
+     */
+    private final int _width;
+
+    /**
+     * Store the height of the image
+     */
+    private final int _height;
+
+    /**
+     * Store the settings of the encoder of the strips
+     */
+    private final ImageEncoder _encoder;
+
+    /**
+     * Store the entropy-coded data not yet written
+     */
+    private final JpegBandRewriter.BitWriter _writer = new JpegBandRewriter.BitWriter(1 << 16);
+
+    /**
+     * Store the layout of the first strip, its tables are the tables of the image
+     */
+    private JpegBandRewriter.Layout _frame;
+
+    /**
+     * Store the DC predictions after the last strip
+     */
+    private int[] _predictions;
+
+    /**
+     * Store the number of written rows
+     */
+    private int _rows;
+
+    /**
+     * Store the number of written MCUs
+     */
+    private int _mcus;
+
+    /**
+     * Constructor
+     *
+     * @param output the output of the JPEG, not closed
+     * @param width  the width of the image
+     * @param height the height of the image
+     */
+    public JpegStripWriter(OutputStream output, int width, int height) {
+        this(output, width, height, ImageEncoder.defaults());
+    }
+
+    /**
+     * Constructor with the settings of the encoder, the JPEG is baseline with the standard Huffman tables
+     *
+     * @param output  the output of the JPEG, not closed
+     * @param width   the width of the image
+     * @param height  the height of the image
+     * @param encoder the settings of the encoder, the quality and the chroma subsampling are used
+     */
+    public JpegStripWriter(OutputStream output, int width, int height, ImageEncoder encoder) {
+        if (width < 1 || height < 1 || width > 0xFFFF || height > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid size for a JPEG: " + width + "x" + height);
+        }
+        _output = output;
+        _width = width;
+        _height = height;
+        _encoder = encoder.baseline();
+    }
+
+    /**
+     * Encode the next strip
+     *
+     * @param strip the rows of the strip, without alpha, in the same color type as the previous strips
+     * @throws IOException if the strip can't be encoded or written
+     */
+    public void write(BufferedImage strip) throws IOException {
+        if (strip.getWidth() != _width || _rows + strip.getHeight() > _height) {
+            throw new IllegalArgumentException("The strip doesn't fit in the image");
+        }
+        if (_rows + strip.getHeight() < _height && strip.getHeight() % STRIP_UNIT != 0) {
+            throw new IllegalArgumentException("The height of a strip must be a multiple of " + STRIP_UNIT);
+        }
+        ByteBuffer encoded = ByteBuffer.wrap(encode(strip));
+        JpegBandRewriter.Layout layout = JpegBandRewriter.Layout.parse(encoded);
+        if (layout == null) throw new IOException("The strip isn't a baseline JPEG");
+
+        if (_frame == null) {
+            _frame = layout;
+            _predictions = new int[layout.components];
+            JpegBandRewriter.writeHeaders(encoded, layout, _writer, _height);
+        } else if (!_frame.sameFrame(layout, strip.getHeight())) {
+            throw new IOException("The strips don't have the same color type");
+        }
+        int count = layout.mcusPerRow * layout.mcuRows;
+        JpegBandRewriter.transcode(layout, new JpegBandRewriter.BitReader(encoded, layout.entropyStart),
+                new int[layout.components], 0, _frame, _writer, _predictions, _mcus, 0, count);
+        _mcus += count;
+        _rows += strip.getHeight();
+        _writer.flushTo(_output);
+    }
+
+    /**
+     * End the image, all the rows must have been written
+     *
+     * @throws IOException if the end can't be written
+     */
+    public void finish() throws IOException {
+        if (_rows != _height) throw new IllegalStateException(_rows + " rows written of " + _height);
+        _writer.alignWithOnes();
+        _writer.writeMarker(JpegBandRewriter.EOI);
+        _writer.flushTo(_output);
+    }
+
+    /**
+     * Encode a strip alone with the standard tables
+     *
+     * @param strip the rows of the strip
+     * @return the bytes of the JPEG
+     * @throws IOException if the strip can't be encoded
+     */
+    private byte[] encode(BufferedImage strip) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (!_encoder.encode(strip, "jpeg", bytes)) throw new IOException("No JPEG writer");
+        return bytes.toByteArray();
+    }
+}
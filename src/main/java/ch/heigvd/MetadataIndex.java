@@ -0,0 +1,415 @@
+/*
+ * Class         : MetadataIndex
+ *
+ * Description   : Columnar index of the EXIF data of many images, memory-mapped from disk
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar index of the EXIF data of many images, memory-mapped from disk.
+ * The file has one fixed-width column per field, the records sorted by path: an image is found by a binary search
+ * and a field of all the images is read without touching the others. The paths and the camera models are numbers in
+ * a dictionary of strings stored once at the end of the file, so a model shared by a million images takes 4 bytes by
+ * image. Each record keeps the size and the modification time of its image: an image changed since it was indexed
+ * isn't found, and its metadata are parsed again.
+ * The whole file is mapped read-only at once, so an index is limited to 2 GB, about 15 million images. The file is
+ * kept open until the index is closed, no image is found after.
+ */
+public final class MetadataIndex implements Closeable {
+
+    /**
+     * First bytes of an index, an index of another version is refused
+     */
+    private static final long MAGIC = 0x494E4B4F49445831L; // INKOIDX1
+
+    /**
+     * Size of the header: magic, record count, string count, dictionary offset
+     */
+    private static final int HEADER = 24;
+
+    /**
+     * Store the mapped file
+     */
+    private final ByteBuffer _buffer;
+
+    /**
+     * Store the channel of the mapped file
+     */
+    private final FileChannel _channel;
+
+    /**
+     * Store if the index is closed
+     */
+    private volatile boolean _closed;
+
+    /**
+     * Store the number of records
+     */
+    private final int _count;
+
+    // offsets of the columns, computed from the count
+    private final int _sizes;
+    private final int _modified;
+    private final int _dates;
+    private final int _latitudes;
+    private final int _longitudes;
+    private final int _paths;
+    private final int _models;
+    private final int _widths;
+    private final int _heights;
+    private final int _flags;
+
+    /**
+     * Store the number of strings of the dictionary
+     */
+    private final int _strings;
+
+    /**
+     * Store the offset of the dictionary: the offsets of the strings then their UTF-8 bytes
+     */
+    private final int _dictionary;
+
+    /**
+     * Record of one image to write in an index
+     */
+    public static final class Record {
+        private final String _path;
+        private final long _size;
+        private final long _modified;
+        private final ImageMetadata _metadata;
+
+        /**
+         * Constructor
+         *
+         * @param path     the path of the image
+         * @param size     the size of the file in bytes
+         * @param modified the modification time of the file in milliseconds
+         * @param metadata the EXIF data of the image
+         */
+        public Record(Path path, long size, long modified, ImageMetadata metadata) {
+            _path = key(path);
+            _size = size;
+            _modified = modified;
+            _metadata = metadata;
+        }
+    }
+
+    private MetadataIndex(ByteBuffer buffer, FileChannel channel, Path file) throws IOException {
+        _buffer = buffer;
+        _channel = channel;
+        if (buffer.capacity() < HEADER || buffer.getLong(0) != MAGIC) {
+            throw new IOException("The file : " + file + " is not an Inko index");
+        }
+        _count = buffer.getInt(8);
+        _strings = buffer.getInt(12);
+        _dictionary = (int) buffer.getLong(16);
+        // 8 bytes columns first, then 4 bytes and 1 byte, each one aligned on its width
+        _sizes = HEADER;
+        _modified = _sizes + 8 * _count;
+        _dates = _modified + 8 * _count;
+        _latitudes = _dates + 8 * _count;
+        _longitudes = _latitudes + 8 * _count;
+        _paths = _longitudes + 8 * _count;
+        _models = _paths + 4 * _count;
+        _widths = _models + 4 * _count;
+        _heights = _widths + 4 * _count;
+        _flags = _heights + 4 * _count;
+        if (_count < 0 || _dictionary < _flags + _count || _dictionary + 4L * (_strings + 1) > buffer.capacity()) {
+            throw new IOException("The index : " + file + " is truncated");
+        }
+    }
+
+    /**
+     * Map an index
+     *
+     * @param file the file of the index
+     * @return the index
+     * @throws IOException if the file can't be read or isn't an index
+     */
+    public static MetadataIndex open(Path file) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException ex) {
+            System.out.println("The index : " + file + " doesn't exist");
+            throw ex;
+        }
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The index : " + file + " is larger than 2 GB");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MetadataIndex(buffer.asReadOnlyBuffer(), channel, file);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Close the file of the index, the lookups find no image after. The mapping is freed with the index
+     *
+     * @throws IOException if the file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        _closed = true;
+        _channel.close();
+    }
+
+    /**
+     * Write an index, the file is replaced at once
+     *
+     * @param file    the file of the index
+     * @param records the records of the images, in any order
+     * @throws IOException if the file can't be written
+     */
+    public static void write(Path file, List<Record> records) throws IOException {
+        Record[] sorted = records.toArray(new Record[0]);
+        Arrays.sort(sorted, Comparator.comparing(record -> record._path));
+        int count = sorted.length;
+
+        // the paths, then the models in the order of their first image
+        Map<String, Integer> ids = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int[] paths = new int[count];
+        int[] models = new int[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = intern(sorted[i]._path, ids, strings);
+        }
+        for (int i = 0; i < count; i++) {
+            String model = sorted[i]._metadata.getModel();
+            models[i] = model == null ? -1 : intern(model, ids, strings);
+        }
+
+        long dictionary = HEADER + 57L * count;
+        long size = dictionary + 4L * (strings.size() + 1);
+        for (byte[] string : strings) size += string.length;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("The index of " + count + " images would be larger than 2 GB");
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeLong(MAGIC);
+            out.writeInt(count);
+            out.writeInt(strings.size());
+            out.writeLong(dictionary);
+            for (Record record : sorted) out.writeLong(record._size);
+            for (Record record : sorted) out.writeLong(record._modified);
+            for (Record record : sorted) out.writeLong(record._metadata.getDateOriginal());
+            for (Record record : sorted) out.writeDouble(record._metadata.getLatitude());
+            for (Record record : sorted) out.writeDouble(record._metadata.getLongitude());
+            for (int path : paths) out.writeInt(path);
+            for (int model : models) out.writeInt(model);
+            for (Record record : sorted) out.writeInt(record._metadata.getWidth());
+            for (Record record : sorted) out.writeInt(record._metadata.getHeight());
+            for (Record record : sorted) out.writeByte(record._metadata.getDirectories());
+            int offset = 0;
+            for (byte[] string : strings) {
+                out.writeInt(offset);
+                offset += string.length;
+            }
+            out.writeInt(offset);
+            for (byte[] string : strings) out.write(string);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int intern(String value, Map<String, Integer> ids, List<byte[]> strings) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = strings.size();
+            ids.put(value, id);
+            strings.add(value.getBytes(StandardCharsets.UTF_8));
+        }
+        return id;
+    }
+
+    /**
+     * Get the number of indexed images
+     *
+     * @return the number of records
+     */
+    public int size() {
+        return _count;
+    }
+
+    /**
+     * Find the record of a path
+     *
+     * @param path the path of the image
+     * @return the number of its record, -1 if not indexed
+     */
+    public int find(Path path) {
+        String key = key(path);
+        int low = 0;
+        int high = _count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = getPath(middle).compareTo(key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the EXIF data of an image if it is unchanged since it was indexed
+     *
+     * @param source the image
+     * @return its EXIF data, null if it isn't indexed, isn't a file, has been modified since or the index is closed
+     */
+    public ImageMetadata lookup(ImageSource source) {
+        if (_closed || !source.isFile()) return null;
+        Path path;
+        try {
+            path = Paths.get(source.getImagePath());
+        } catch (RuntimeException ex) {
+            return null;
+        }
+        int record = find(path);
+        if (record < 0) return null;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.size() != getSize(record) || attributes.lastModifiedTime().toMillis() != getModified(record)) {
+                return null;
+            }
+        } catch (IOException ex) {
+            return null;
+        }
+        return get(record);
+    }
+
+    /**
+     * Get the EXIF data of a record
+     *
+     * @param record the number of the record
+     * @return the EXIF data of its image
+     */
+    public ImageMetadata get(int record) {
+        return new ImageMetadata(_buffer.get(_flags + record), getDateOriginal(record), getModel(record),
+                getLatitude(record), getLongitude(record), _buffer.getInt(_widths + 4 * record),
+                _buffer.getInt(_heights + 4 * record));
+    }
+
+    /**
+     * Get the absolute path of the image of a record
+     *
+     * @param record the number of the record
+     * @return the path
+     */
+    public String getPath(int record) {
+        return string(_buffer.getInt(_paths + 4 * record));
+    }
+
+    /**
+     * Get the size of the file of a record when indexed
+     *
+     * @param record the number of the record
+     * @return the size in bytes
+     */
+    public long getSize(int record) {
+        return _buffer.getLong(_sizes + 8 * record);
+    }
+
+    /**
+     * Get the modification time of the file of a record when indexed
+     *
+     * @param record the number of the record
+     * @return the time in milliseconds
+     */
+    public long getModified(int record) {
+        return _buffer.getLong(_modified + 8 * record);
+    }
+
+    /**
+     * Get the original date of a record
+     *
+     * @param record the number of the record
+     * @return the date in milliseconds since the epoch, ImageMetadata.NO_DATE if missing
+     */
+    public long getDateOriginal(int record) {
+        return _buffer.getLong(_dates + 8 * record);
+    }
+
+    /**
+     * Get the camera model of a record
+     *
+     * @param record the number of the record
+     * @return the model, null if missing
+     */
+    public String getModel(int record) {
+        int model = _buffer.getInt(_models + 4 * record);
+        return model < 0 ? null : string(model);
+    }
+
+    /**
+     * Get the latitude of a record
+     *
+     * @param record the number of the record
+     * @return the latitude in degrees, NaN if missing
+     */
+    public double getLatitude(int record) {
+        return _buffer.getDouble(_latitudes + 8 * record);
+    }
+
+    /**
+     * Get the longitude of a record
+     *
+     * @param record the number of the record
+     * @return the longitude in degrees, NaN if missing
+     */
+    public double getLongitude(int record) {
+        return _buffer.getDouble(_longitudes + 8 * record);
+    }
+
+    /**
+     * Decode a string of the dictionary
+     */
+    private String string(int id) {
+        int start = _buffer.getInt(_dictionary + 4 * id);
+        int end = _buffer.getInt(_dictionary + 4 * (id + 1));
+        byte[] bytes = new byte[end - start];
+        _buffer.get(_dictionary + 4 * (_strings + 1) + start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String key(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+}
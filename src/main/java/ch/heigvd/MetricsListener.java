@@ -0,0 +1,27 @@
+/*
+ * Class         : MetricsListener
+ *
+ * Description   : Receive the metrics of each processed image
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+/**
+ * Receive the metrics of each image processed by an OverlayService.
+ * It is called by the thread of the job, so it must be thread-safe in batch mode.
+ */
+public interface MetricsListener {
+
+    /**
+     * Called at the end of each job, succeeded, failed or skipped by an incremental batch
+     *
+     * @param metrics the metrics of the job, not modified after the call
+     */
+    void imageProcessed(JobMetrics metrics);
+}
@@ -0,0 +1,203 @@
+/*
+ * Class         : MetricsReport
+ *
+ * Description   : Collect the metrics of the images and write them as JSON or CSV
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collect the metrics of the processed images and write them with their aggregate, as JSON or CSV.
+ * The report is a thread-safe listener of the service.
+ */
+public class MetricsReport implements MetricsListener {
+
+    /**
+     * Store the metrics of the images, in order of completion
+     */
+    private final List<JobMetrics> _images = new ArrayList<>();
+
+    @Override
+    public synchronized void imageProcessed(JobMetrics metrics) {
+        _images.add(metrics);
+    }
+
+    /**
+     * Get the metrics of the images
+     *
+     * @return a copy of the list, in order of completion
+     */
+    public synchronized List<JobMetrics> getImages() {
+        return new ArrayList<>(_images);
+    }
+
+    /**
+     * Aggregate the metrics of all the images
+     *
+     * @return the sum of the times and bytes, the raster bytes of the largest peak
+     */
+    public JobMetrics aggregate() {
+        JobMetrics total = new JobMetrics(null);
+        for (JobMetrics image : getImages()) {
+            total.merge(image);
+        }
+        return total;
+    }
+
+    /**
+     * Write the report, the format is given by the extension: .csv or JSON
+     *
+     * @param path the path of the report
+     * @throws IOException if the report can't be written
+     */
+    public void write(String path) throws IOException {
+        File file = new File(path);
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+        try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            if (path.toLowerCase(Locale.ROOT).endsWith(".csv")) {
+                writeCsv(writer);
+            } else {
+                writeJson(writer);
+            }
+        } catch (IOException ex) {
+            System.out.println("Error occurred during the save of the metrics");
+            throw ex;
+        }
+        System.out.println("Metrics saved successfully: " + file.getAbsolutePath());
+    }
+
+    /**
+     * Write one line per image, then the total and the mean of the batch
+     *
+     * @param writer the output
+     */
+    public void writeCsv(PrintWriter writer) {
+        StringBuilder header = new StringBuilder("image,output,status");
+        for (JobMetrics.Stage stage : JobMetrics.Stage.values()) {
+            header.append(',').append(stage.name().toLowerCase(Locale.ROOT)).append("_ms");
+        }
+        header.append(",total_ms,bytes_in,bytes_out,raster_bytes");
+        writer.println(header);
+
+        List<JobMetrics> images = getImages();
+        for (JobMetrics image : images) {
+            writer.println(csvLine(csv(image.getImagePath()), csv(image.getOutputPath()),
+                    image.isSkipped() ? "skipped" : image.isSucceeded() ? "ok" : csv(image.getError()), image, 1));
+        }
+        JobMetrics total = aggregate();
+        long skipped = skipped(images);
+        writer.println(csvLine("total", "", images.size() + " images" + (skipped > 0 ? " (" + skipped + " skipped)" : ""),
+                total, 1));
+        // the mean of the processed images, the skipped ones are only read
+        writer.println(csvLine("mean", "", "", total, (int) Math.max(1, images.size() - skipped)));
+    }
+
+    /**
+     * Write the images and the batch as a JSON object
+     *
+     * @param writer the output
+     */
+    public void writeJson(PrintWriter writer) {
+        List<JobMetrics> images = getImages();
+        long failed = images.stream().filter(image -> !image.isSucceeded()).count();
+        writer.println("{");
+        writer.println("  \"images\": [");
+        for (int i = 0; i < images.size(); i++) {
+            JobMetrics image = images.get(i);
+            writer.print("    {\"image\": " + json(image.getImagePath()) + ", \"output\": " + json(image.getOutputPath())
+                    + ", \"skipped\": " + image.isSkipped() + ", \"error\": " + json(image.getError()) + ", "
+                    + jsonValues(image, 1) + "}");
+            writer.println(i < images.size() - 1 ? "," : "");
+        }
+        writer.println("  ],");
+        JobMetrics total = aggregate();
+        long skipped = skipped(images);
+        writer.println("  \"batch\": {\"images\": " + images.size() + ", \"skipped\": " + skipped
+                + ", \"failed\": " + failed + ",");
+        writer.println("    \"total\": {" + jsonValues(total, 1) + "},");
+        writer.println("    \"mean\": {" + jsonValues(total, (int) Math.max(1, images.size() - skipped)) + "}}");
+        writer.println("}");
+    }
+
+    private static long skipped(List<JobMetrics> images) {
+        return images.stream().filter(JobMetrics::isSkipped).count();
+    }
+
+    private static String csvLine(String image, String output, String status, JobMetrics metrics, int divisor) {
+        StringBuilder line = new StringBuilder(image).append(',').append(output).append(',').append(status);
+        for (JobMetrics.Stage stage : JobMetrics.Stage.values()) {
+            line.append(',').append(millis(metrics.getNanos(stage) / divisor));
+        }
+        return line.append(',').append(millis(metrics.getTotalNanos() / divisor))
+                .append(',').append(metrics.getBytesIn() / divisor)
+                .append(',').append(metrics.getBytesOut() / divisor)
+                .append(',').append(metrics.getRasterBytes()).toString();
+    }
+
+    private static String jsonValues(JobMetrics metrics, int divisor) {
+        StringBuilder values = new StringBuilder("\"stages_ms\": {");
+        for (JobMetrics.Stage stage : JobMetrics.Stage.values()) {
+            if (stage.ordinal() > 0) values.append(", ");
+            values.append('"').append(stage.name().toLowerCase(Locale.ROOT)).append("\": ")
+                    .append(millis(metrics.getNanos(stage) / divisor));
+        }
+        return values.append("}, \"total_ms\": ").append(millis(metrics.getTotalNanos() / divisor))
+                .append(", \"bytes_in\": ").append(metrics.getBytesIn() / divisor)
+                .append(", \"bytes_out\": ").append(metrics.getBytesOut() / divisor)
+                .append(", \"raster_bytes\": ").append(metrics.getRasterBytes()).toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String csv(String value) {
+        if (value == null) return "";
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+        return value;
+    }
+
+    private static String json(String value) {
+        if (value == null) return "null";
+        StringBuilder escaped = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    escaped.append("\\\"");
+                    break;
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        escaped.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        escaped.append(c);
+                    }
+            }
+        }
+        return escaped.append('"').toString();
+    }
+}
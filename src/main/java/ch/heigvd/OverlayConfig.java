@@ -0,0 +1,581 @@
+/*
+ * Class         : OverlayConfig
+ *
+ * Description   : Immutable configuration of an overlay job
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.awt.*;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable configuration of an overlay job: the text to compute, its style, its position and the output format.
+ * It can be shared between threads and reused for any number of images.
+ */
+public final class OverlayConfig {
+
+    /**
+     * EXIF data and personal texts to compute, in order
+     */
+    private final List<ExifHandler.EXIF> _exifDatas;
+    /**
+     * Personal texts to include, in order
+     */
+    private final List<String> _texts;
+    /**
+     * Separator between EXIF data or personal text
+     */
+    private final String _separator;
+    /**
+     * Date format
+     */
+    private final String _dateFormat;
+    /**
+     * GMT offset
+     */
+    private final int _gmt;
+    /**
+     * Places of the GPS locations, null for the bundled ones
+     */
+    private final Gazetteer _gazetteer;
+    /**
+     * Template of the text, compiled once from the template of the options or from the EXIF data and texts
+     */
+    private final CaptionTemplate _template;
+    /**
+     * Font family
+     */
+    private final String _font;
+    /**
+     * Font width style
+     */
+    private final int _fontWidth;
+    /**
+     * Font size
+     */
+    private final int _fontSize;
+    /**
+     * Font color
+     */
+    private final Color _fontColor;
+    /**
+     * Background color
+     */
+    private final Color _backgroundColor;
+    /**
+     * Margin of the overlay
+     */
+    private final int _margin;
+    /**
+     * Position of the overlay
+     */
+    private final String _position;
+    /**
+     * Output format
+     */
+    private final String _outputFormat;
+
+    /**
+     * Re-encode only the MCU rows under the text of a JPEG saved as JPEG
+     */
+    private final boolean _spliceJpeg;
+
+    /**
+     * Decode, overlay and encode the image strip by strip
+     */
+    private final boolean _tiled;
+
+    /**
+     * Longest side of the thumbnails saved with the image, in pixels
+     */
+    private final List<Integer> _thumbnails;
+
+    /**
+     * Settings of the encoder of the output
+     */
+    private final ImageEncoder _encoder;
+
+    private OverlayConfig(Builder builder) {
+        _exifDatas = List.copyOf(builder._exifDatas);
+        _texts = List.copyOf(builder._texts);
+        _separator = builder._separator;
+        _dateFormat = builder._dateFormat;
+        _gmt = builder._gmt;
+        _gazetteer = builder._gazetteer;
+        _template = builder._template != null
+                ? CaptionTemplate.compile(builder._template, _dateFormat, _gmt, _gazetteer)
+                : CaptionTemplate.of(_exifDatas, _texts, _separator, _dateFormat, _gmt, _gazetteer);
+        _font = builder._font;
+        _fontWidth = builder._fontWidth;
+        _fontSize = builder._fontSize;
+        _fontColor = builder._fontColor;
+        _backgroundColor = builder._backgroundColor;
+        _margin = builder._margin;
+        _position = builder._position;
+        _outputFormat = builder._outputFormat;
+        _spliceJpeg = builder._spliceJpeg;
+        _tiled = builder._tiled;
+        _thumbnails = List.copyOf(builder._thumbnails);
+        _encoder = builder._encoder;
+    }
+
+    /**
+     * Get the default configuration
+     * @return the default configuration
+     */
+    public static OverlayConfig defaults() {
+        return new Builder().build();
+    }
+
+    /**
+     * Get the EXIF data and personal texts to compute, in order
+     * @return the EXIF data
+     */
+    public List<ExifHandler.EXIF> getExifDatas() {
+        return _exifDatas;
+    }
+
+    /**
+     * Get the personal texts to include, in order
+     * @return the personal texts
+     */
+    public List<String> getTexts() {
+        return _texts;
+    }
+
+    /**
+     * Get the separator between data
+     * @return the separator
+     */
+    public String getSeparator() {
+        return _separator;
+    }
+
+    /**
+     * Get the date format
+     * @return the date format
+     */
+    public String getDateFormat() {
+        return _dateFormat;
+    }
+
+    /**
+     * Get the gmt offset
+     * @return the offset in hours
+     */
+    public int getGMT() {
+        return _gmt;
+    }
+
+    /**
+     * Get the template of the text, shared by all the images
+     * @return the compiled template
+     */
+    public CaptionTemplate getTemplate() {
+        return _template;
+    }
+
+    /**
+     * Get the font family
+     * @return the font family
+     */
+    public String getFont() {
+        return _font;
+    }
+
+    /**
+     * Get the font width style
+     * @return the Font style constant
+     */
+    public int getFontWidth() {
+        return _fontWidth;
+    }
+
+    /**
+     * Get the font size
+     * @return the font size in pixels
+     */
+    public int getFontSize() {
+        return _fontSize;
+    }
+
+    /**
+     * Get the font color
+     * @return the font color
+     */
+    public Color getFontColor() {
+        return _fontColor;
+    }
+
+    /**
+     * Get the background color
+     * @return the background color
+     */
+    public Color getBackgroundColor() {
+        return _backgroundColor;
+    }
+
+    /**
+     * Get the margin of the overlay
+     * @return the margin in pixels
+     */
+    public int getMargin() {
+        return _margin;
+    }
+
+    /**
+     * Get the position of the overlay
+     * @return the position code
+     */
+    public String getPosition() {
+        return _position;
+    }
+
+    /**
+     * Get the output format
+     * @return the output format
+     */
+    public String getOutputFormat() {
+        return _outputFormat;
+    }
+
+    /**
+     * Check if only the MCU rows under the text are re-encoded when a JPEG is saved as JPEG
+     * @return True to splice the band in the source
+     */
+    public boolean isSpliceJpeg() {
+        return _spliceJpeg;
+    }
+
+    /**
+     * Check if the image is processed strip by strip, even when it fits in memory
+     * @return True to process strip by strip
+     */
+    public boolean isTiled() {
+        return _tiled;
+    }
+
+    /**
+     * Get the sizes of the thumbnails saved with the image
+     * @return the longest side of each thumbnail in pixels, empty for none
+     */
+    public List<Integer> getThumbnails() {
+        return _thumbnails;
+    }
+
+    /**
+     * Get the settings of the encoder of the output
+     * @return the settings of the encoder
+     */
+    public ImageEncoder getEncoder() {
+        return _encoder;
+    }
+
+    /**
+     * Get all the options of the configuration, two configurations producing the same images have the same string
+     * @return the options, key=value separated by ;
+     */
+    @Override
+    public String toString() {
+        return "exif=" + _exifDatas + ";texts=" + _texts + ";template=" + _template + ";separator=" + _separator
+                + ";dateFormat=" + _dateFormat
+                + ";gmt=" + _gmt + ";gazetteer=" + (_gazetteer == null ? "bundled" : _gazetteer) + ";font=" + _font + ";fontWidth=" + _fontWidth + ";fontSize=" + _fontSize
+                + ";fontColor=" + String.format("#%08X", _fontColor.getRGB())
+                + ";backgroundColor=" + String.format("#%08X", _backgroundColor.getRGB()) + ";margin=" + _margin
+                + ";position=" + _position + ";outputFormat=" + _outputFormat + ";spliceJpeg=" + _spliceJpeg
+                + ";tiled=" + _tiled + ";thumbnails=" + _thumbnails + ";encoder=[" + _encoder + "]";
+    }
+
+    /**
+     * Builder of the configuration, it checks the values given on the command line
+     */
+    public static class Builder {
+        private final ArrayList<ExifHandler.EXIF> _exifDatas = new ArrayList<>();
+        private final ArrayList<String> _texts = new ArrayList<>();
+        private String _separator = " - ";
+        private String _dateFormat = "dd.MM.yyyy HH:mm:ss";
+        private int _gmt = -2;
+        private String _template;
+        private Gazetteer _gazetteer;
+        private String _font = "Arial";
+        private int _fontWidth = Font.BOLD;
+        private int _fontSize = 50;
+        private Color _fontColor = Color.BLACK;
+        private Color _backgroundColor = new Color(0, 0, 0, 0);
+        private int _margin = 10;
+        private String _position = "rb";
+        private String _outputFormat = "jpeg";
+        private boolean _spliceJpeg = false;
+        private boolean _tiled = false;
+        private final ArrayList<Integer> _thumbnails = new ArrayList<>();
+        private ImageEncoder _encoder = ImageEncoder.defaults();
+
+        /**
+         * Add an EXIF data to compute
+         * @param exifData EXIF data to compute
+         * @return the builder
+         */
+        public Builder AddExifData(ExifHandler.EXIF exifData) {
+            _exifDatas.add(exifData);
+            return this;
+        }
+
+        /**
+         * Add a personal text to include
+         * @param text the text to include
+         * @return the builder
+         */
+        public Builder AddText(String text) {
+            _exifDatas.add(ExifHandler.EXIF.Text);
+            _texts.add(text);
+            return this;
+        }
+
+        /**
+         * Set the separator between data
+         * @param separator the separator, surrounded by spaces
+         * @return the builder
+         */
+        public Builder SetSeparator(String separator) {
+            _separator = " " + separator + " ";
+            return this;
+        }
+
+        /**
+         * Set the date format
+         * @param dateFormat the date format to set
+         * @return the builder
+         */
+        public Builder SetDateFormat(String dateFormat) {
+            if (dateFormat != null && !dateFormat.isEmpty()) {
+                try {
+                    CaptionTemplate.dateFormatter(dateFormat);
+                    _dateFormat = dateFormat;
+                } catch (IllegalArgumentException ex) {
+                    System.out.println(dateFormat + " is not a valid date format, default value [" + _dateFormat + "] will be applied");
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Set the gmt offset
+         * @param gmt the offset in hours
+         * @return the builder
+         */
+        public Builder SetGMT(int gmt) {
+            if (gmt < -18 || gmt > 18) {
+                System.out.println("gmt must be between -18 and 18, default value [" + _gmt + "] will be applied");
+                return this;
+            }
+            _gmt = gmt;
+            return this;
+        }
+
+        /**
+         * Set the font family
+         * @param font the font family
+         * @return the builder
+         */
+        public Builder SetFont(String font) {
+            _font = font;
+            return this;
+        }
+
+        /**
+         * Set the width style of the font
+         * @param fontWidth the font width style
+         * @return the builder
+         */
+        public Builder SetFontWidth(String fontWidth) {
+            switch (fontWidth) {
+                case "b":
+                case "bold":
+                    _fontWidth = Font.BOLD;
+                    break;
+                case "i":
+                case "italic":
+                    _fontWidth = Font.ITALIC;
+                    break;
+                default:
+                    _fontWidth = Font.PLAIN;
+                    break;
+            }
+            return this;
+        }
+
+        /**
+         * Set the font size
+         * @param size the font size
+         * @return the builder
+         */
+        public Builder SetFontSize(String size) {
+            if (ImageTextOverlay.ContainChar(size)) {
+                System.out.println("size must be a number, default value [" + _fontSize + "] will be applied");
+                return this;
+            }
+            _fontSize = Integer.parseInt(size);
+            return this;
+        }
+
+        /**
+         * Set the color of the font
+         * @param color ARGB color (#AARRGGBB)
+         * @return the builder
+         */
+        public Builder SetFontColor(String color) {
+            if (ImageTextOverlay.isARGBColor(color)) {
+                _fontColor = ImageTextOverlay.GetColor(color);
+            } else {
+                System.out.println(color + " is not a valid color, default value [black] will be applied");
+            }
+            return this;
+        }
+
+        /**
+         * Set the background color
+         * @param color ARGB color (#AARRGGBB)
+         * @return the builder
+         */
+        public Builder SetBackgroundColor(String color) {
+            if (ImageTextOverlay.isARGBColor(color)) {
+                _backgroundColor = ImageTextOverlay.GetColor(color);
+            } else {
+                System.out.println(color + " is not a valid color, default value [transparent] will be applied");
+            }
+            return this;
+        }
+
+        /**
+         * Set the margin, and it used to compute the position of the overlaid image
+         * @param margin the margin to set
+         * @return the builder
+         */
+        public Builder SetMargin(String margin) {
+            if (ImageTextOverlay.ContainChar(margin)) {
+                System.out.println("size must be a number, default value [" + _margin + "] will be applied");
+                return this;
+            }
+            _margin = Integer.parseInt(margin);
+            return this;
+        }
+
+        /**
+         * Set the position of the overlay
+         * @param position l, r, b, t, c, lt, rt, lb, rb
+         * @return the builder
+         */
+        public Builder SetPosition(String position) {
+            _position = position;
+            return this;
+        }
+
+        /**
+         * Set the output format
+         * @param outputFormat jpeg, png, gif
+         * @return the builder
+         */
+        public Builder SetOutputFormat(String outputFormat) {
+            _outputFormat = outputFormat;
+            return this;
+        }
+
+        /**
+         * Re-encode only the MCU rows under the text when a baseline JPEG is saved as JPEG,
+         * the rest of the image and its metadata are kept unchanged
+         * @param spliceJpeg True to splice the band in the source
+         * @return the builder
+         */
+        public Builder SetSpliceJpeg(boolean spliceJpeg) {
+            _spliceJpeg = spliceJpeg;
+            return this;
+        }
+
+        /**
+         * Decode, overlay and encode the image strip by strip, the images too large for the heap always are
+         * @param tiled True to process strip by strip
+         * @return the builder
+         */
+        public Builder SetTiled(boolean tiled) {
+            _tiled = tiled;
+            return this;
+        }
+
+        /**
+         * Set the template of the text, it replaces the EXIF data and personal texts
+         * @param template the template: "{date:dd.MM.yyyy} - {model} - {gps}", the fields are date, model, gps and size
+         * @return the builder
+         */
+        public Builder SetTemplate(String template) {
+            try {
+                CaptionTemplate.compile(template, _dateFormat, _gmt);
+                _template = template;
+            } catch (IllegalArgumentException ex) {
+                System.out.println("The template : " + template + " is not valid (" + ex.getMessage() + "), the EXIF data and texts will be applied");
+            }
+            return this;
+        }
+
+        /**
+         * Set the places of the GPS locations, a GeoNames cities file replacing the bundled places
+         * @param file the GeoNames file, its tree is saved next to it in FILE.inko
+         * @return the builder
+         */
+        public Builder SetGazetteer(String file) {
+            try {
+                _gazetteer = Gazetteer.open(Paths.get(file));
+            } catch (IOException | RuntimeException ex) {
+                System.out.println("The gazetteer : " + file + " can't be read (" + ex.getMessage() + "), the bundled places will be applied");
+            }
+            return this;
+        }
+
+        /**
+         * Set the thumbnails saved with the image
+         * @param sizes the longest side of each thumbnail in pixels, separated by commas: 256,1024
+         * @return the builder
+         */
+        public Builder SetThumbnails(String sizes) {
+            ArrayList<Integer> thumbnails = new ArrayList<>();
+            for (String size : sizes.split(",")) {
+                size = size.trim();
+                if (!size.matches("\\d{1,5}") || Integer.parseInt(size) == 0) {
+                    System.out.println(sizes + " are not valid thumbnail sizes, no thumbnail will be saved");
+                    return this;
+                }
+                if (!thumbnails.contains(Integer.parseInt(size))) thumbnails.add(Integer.parseInt(size));
+            }
+            _thumbnails.clear();
+            _thumbnails.addAll(thumbnails);
+            return this;
+        }
+
+        /**
+         * Set the settings of the encoder of the output: JPEG quality, PNG compression...
+         * @param encoder the settings of the encoder
+         * @return the builder
+         */
+        public Builder SetEncoder(ImageEncoder encoder) {
+            _encoder = encoder;
+            return this;
+        }
+
+        /**
+         * Build the immutable configuration
+         * @return the configuration
+         */
+        public OverlayConfig build() {
+            return new OverlayConfig(this);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Class         : OverlayServer
+ *
+ * Description   : Local HTTP endpoint overlaying text on the images it receives
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import com.drew.imaging.ImageProcessingException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Local HTTP endpoint overlaying text on the images it receives, the JVM, the fonts and the text cache stay warm
+ * between the requests.
+ * POST /overlay takes the bytes of a JPEG or PNG image as body and the overlay options of the command line as
+ * query, for example /overlay?t=Hello&po=c&cm&of=png, and answers the encoded image. GET /health answers ok.
+ * The requests run on virtual threads when the JVM has them, the number of images decoded at the same time is
+ * bounded, as each one holds its full raster.
+ */
+public class OverlayServer {
+
+    /**
+     * Maximum size of an image received by the server
+     */
+    public static final int MAX_REQUEST_BYTES = 256 << 20;
+
+    /**
+     * Options of the command line accepted in the query, the others read or write files or control the process
+     */
+    private static final Set<String> OVERLAY_OPTIONS = Set.of("-s", "-t", "-tp", "-d", "-df", "-gmt", "-cm", "-gps", "-pl", "-is",
+            "-f", "-fw", "-fs", "-fc", "-bg", "-m", "-po", "-of", "-sj", "-tl", "-q", "-oh", "-pj", "-cs", "-pc", "-pf");
+
+    /**
+     * Service overlaying the text on the images
+     */
+    private final OverlayService _service;
+
+    /**
+     * Permits of the images decoded at the same time
+     */
+    private final Semaphore _decodes;
+
+    /**
+     * The HTTP server, bound to the loopback address
+     */
+    private final HttpServer _server;
+
+    /**
+     * Threads of the requests
+     */
+    private final ExecutorService _executor;
+
+    /**
+     * Released when the server is stopped
+     */
+    private final CountDownLatch _stopped = new CountDownLatch(1);
+
+    /**
+     * Constructor, the server is bound but doesn't accept requests before start
+     *
+     * @param service    the service overlaying the text on the images
+     * @param port       the port on the loopback address, 0 for any free port
+     * @param maxDecodes the maximum number of images decoded at the same time
+     * @throws IOException if the port can't be bound
+     */
+    public OverlayServer(OverlayService service, int port, int maxDecodes) throws IOException {
+        if (maxDecodes < 1) throw new IllegalArgumentException("maxDecodes must be positive: " + maxDecodes);
+        _service = service;
+        _decodes = new Semaphore(maxDecodes, true);
+        _server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        _executor = newRequestExecutor(maxDecodes);
+        _server.setExecutor(_executor);
+        _server.createContext("/overlay", this::handleOverlay);
+        _server.createContext("/health", exchange -> respond(exchange, 200, "text/plain", "ok"));
+    }
+
+    /**
+     * Start to accept requests
+     */
+    public void start() {
+        _server.start();
+    }
+
+    /**
+     * Stop the server, the requests in progress have one second to complete
+     */
+    public void stop() {
+        if (_stopped.getCount() == 0) return;
+        _server.stop(1);
+        _executor.shutdown();
+        _stopped.countDown();
+    }
+
+    /**
+     * Wait until the server is stopped
+     *
+     * @throws InterruptedException if the thread is interrupted
+     */
+    public void awaitStop() throws InterruptedException {
+        _stopped.await();
+    }
+
+    /**
+     * Get the port of the server
+     *
+     * @return the bound port, useful when constructed with 0
+     */
+    public int getPort() {
+        return _server.getAddress().getPort();
+    }
+
+    /**
+     * Create the executor of the requests: a virtual thread per request on Java 21 and later, else a pool
+     *
+     * @param maxDecodes the maximum number of images decoded at the same time
+     * @return the executor
+     */
+    private static ExecutorService newRequestExecutor(int maxDecodes) {
+        try {
+            Method virtualThreads = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtualThreads.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            // the requests waiting for a decode or sending their response don't use a core
+            return Executors.newFixedThreadPool(4 * maxDecodes);
+        }
+    }
+
+    private void handleOverlay(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "text/plain", "POST the image to overlay");
+                return;
+            }
+            OverlayConfig config;
+            try {
+                config = parseConfig(exchange.getRequestURI().getRawQuery());
+            } catch (CommandLine.PicocliException ex) {
+                respond(exchange, 400, "text/plain", ex.getMessage());
+                return;
+            }
+            byte[] image = readBody(exchange.getRequestBody());
+            if (image == null) {
+                respond(exchange, 413, "text/plain", "Image larger than " + MAX_REQUEST_BYTES + " bytes");
+                return;
+            }
+            String name = imageName(image);
+            if (name == null) {
+                respond(exchange, 415, "text/plain", "Only JPEG and PNG images are supported");
+                return;
+            }
+
+            byte[] encoded;
+            _decodes.acquire();
+            try {
+                encoded = _service.overlay(new ImageSource(name, ByteBuffer.wrap(image)), config);
+            } finally {
+                _decodes.release();
+            }
+            if (encoded == null) {
+                respond(exchange, 400, "text/plain", "Output format not supported: " + config.getOutputFormat());
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", contentType(config.getOutputFormat()));
+            exchange.sendResponseHeaders(200, encoded.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(encoded);
+            }
+        } catch (ImageProcessingException | IOException ex) {
+            respond(exchange, 422, "text/plain", ex.getMessage() == null ? ex.toString() : ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "text/plain", "Server stopping");
+        } catch (RuntimeException ex) {
+            System.out.println("Error occurred during the overlay of a request : " + ex);
+            respond(exchange, 500, "text/plain", ex.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Parse the query of a request as the options of the command line, "t=Hello&cm" is "-t Hello -cm"
+     *
+     * @param query the raw query, null if none
+     * @return the configuration of the overlay
+     * @throws CommandLine.PicocliException if an option is unknown, not allowed or invalid
+     */
+    static OverlayConfig parseConfig(String query) {
+        Inko options = new Inko();
+        CommandLine commandLine = new CommandLine(options);
+        List<String> args = new ArrayList<>();
+        if (query != null && !query.isEmpty()) {
+            for (String parameter : query.split("&")) {
+                if (parameter.isEmpty()) continue;
+                int equal = parameter.indexOf('=');
+                String key = URLDecoder.decode(equal < 0 ? parameter : parameter.substring(0, equal), StandardCharsets.UTF_8);
+                String value = equal < 0 ? null : URLDecoder.decode(parameter.substring(equal + 1), StandardCharsets.UTF_8);
+
+                CommandLine.Model.OptionSpec option = findOption(commandLine, key);
+                if (option == null || !OVERLAY_OPTIONS.contains(option.shortestName())) {
+                    throw new CommandLine.ParameterException(commandLine, "Option not supported by the server: " + key);
+                }
+                if (option.arity().max() == 0) {
+                    // a flag: "cm", "cm=true" or "cm=1"
+                    if (value == null || value.isEmpty() || value.equals("1") || value.equalsIgnoreCase("true")) {
+                        args.add(option.shortestName());
+                    }
+                } else {
+                    args.add(option.shortestName());
+                    args.add(value == null ? "" : value);
+                }
+            }
+        }
+        commandLine.parseArgs(args.toArray(new String[0]));
+        return options.buildConfig();
+    }
+
+    private static CommandLine.Model.OptionSpec findOption(CommandLine commandLine, String key) {
+        if (key.startsWith("-")) return commandLine.getCommandSpec().findOption(key);
+        CommandLine.Model.OptionSpec option = commandLine.getCommandSpec().findOption("-" + key);
+        return option != null ? option : commandLine.getCommandSpec().findOption("--" + key);
+    }
+
+    /**
+     * Read the body of a request
+     *
+     * @param body the body
+     * @return the bytes, null if larger than MAX_REQUEST_BYTES
+     * @throws IOException if the body can't be read
+     */
+    private static byte[] readBody(InputStream body) throws IOException {
+        try (body) {
+            byte[] bytes = body.readNBytes(MAX_REQUEST_BYTES + 1);
+            return bytes.length > MAX_REQUEST_BYTES ? null : bytes;
+        }
+    }
+
+    /**
+     * Name an image received in memory from its signature, the decoder and the encoder use its extension
+     *
+     * @param image the bytes of the image
+     * @return request.jpg or request.png, null if neither a JPEG nor a PNG
+     */
+    static String imageName(byte[] image) {
+        if (image.length > 3 && (image[0] & 0xFF) == 0xFF && (image[1] & 0xFF) == 0xD8 && (image[2] & 0xFF) == 0xFF) {
+            return "request.jpg";
+        }
+        if (image.length > 8 && (image[0] & 0xFF) == 0x89 && image[1] == 'P' && image[2] == 'N' && image[3] == 'G') {
+            return "request.png";
+        }
+        return null;
+    }
+
+    private static String contentType(String format) {
+        return ImageTextOverlay.isJpeg(format) ? "image/jpeg" : "image/" + format.toLowerCase();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String message) throws IOException {
+        if (exchange.getResponseCode() >= 0) {
+            // the headers are sent and the body failed, the client gets a cut response
+            exchange.close();
+            return;
+        }
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+}
@@ -0,0 +1,737 @@
+/*
+ * Class         : OverlayService
+ *
+ * Description   : Stateless service overlaying the text of a configuration on images
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import com.drew.imaging.ImageProcessingException;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Stateless service overlaying the text of a configuration on images.
+ * All the state of a job lives in its OverlayConfig and in local variables, or in its PipelineJob between the
+ * stages of a pipeline, so one service can be shared by any number of threads processing images at the same time.
+ * The only shared state is the thread-safe cache of the rendered texts, the read-only index of the EXIF data, and
+ * the listeners receiving the metrics of each job.
+ */
+public class OverlayService {
+
+    /**
+     * Cache of the text images, shared by all the jobs
+     */
+    private final TextRenderCache _textCache;
+
+    /**
+     * Bound of the memory of the jobs processed at the same time, null if not bounded
+     */
+    private volatile AdmissionController _admission;
+
+    /**
+     * Index giving the EXIF data of the images, null to parse them
+     */
+    private volatile MetadataIndex _index;
+
+    /**
+     * Listeners of the metrics of each job
+     */
+    private final List<MetricsListener> _listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructor with a text cache of the default capacity
+     */
+    public OverlayService() {
+        this(new TextRenderCache());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param textCache the cache of the text images shared by all the jobs
+     */
+    public OverlayService(TextRenderCache textCache) {
+        _textCache = textCache;
+    }
+
+    /**
+     * Get the cache of the text images, with its hit and miss counters
+     *
+     * @return the text cache
+     */
+    public TextRenderCache getTextCache() {
+        return _textCache;
+    }
+
+    /**
+     * Bound the memory of the jobs processed at the same time, each job waits for its estimated rasters
+     *
+     * @param admission the admission controller, null to not bound the memory
+     */
+    public void setAdmissionController(AdmissionController admission) {
+        _admission = admission;
+    }
+
+    /**
+     * Get the bound of the memory of the jobs
+     *
+     * @return the admission controller, null if the memory is not bounded
+     */
+    public AdmissionController getAdmissionController() {
+        return _admission;
+    }
+
+    /**
+     * Read the EXIF data of the images from an index instead of parsing their metadata, the images missing from it
+     * or modified since are parsed
+     *
+     * @param index the index, null to parse all the images
+     */
+    public void setMetadataIndex(MetadataIndex index) {
+        _index = index;
+    }
+
+    /**
+     * Add a listener receiving the metrics of each processed image
+     *
+     * @param listener the listener, called by the thread of each job
+     */
+    public void addMetricsListener(MetricsListener listener) {
+        _listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener of the metrics
+     *
+     * @param listener the listener to remove
+     */
+    public void removeMetricsListener(MetricsListener listener) {
+        _listeners.remove(listener);
+    }
+
+    /**
+     * Overlay the text of a configuration on one image
+     *
+     * @param source the bytes of the image
+     * @param config the configuration of the overlay
+     * @return the overlaid image, in the color type of the output format
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException              if the image can't be decoded
+     */
+    public BufferedImage render(ImageSource source, OverlayConfig config) throws ImageProcessingException, IOException {
+        return render(source, config, new JobMetrics(source.getImagePath()));
+    }
+
+    /**
+     * Overlay the text of a configuration on one image, each stage is timed
+     *
+     * @param source  the bytes of the image
+     * @param config  the configuration of the overlay
+     * @param metrics the metrics of the job
+     * @return the overlaid image, in the color type of the output format
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException              if the image can't be decoded
+     */
+    public BufferedImage render(ImageSource source, OverlayConfig config, JobMetrics metrics) throws ImageProcessingException, IOException {
+        // computed before decoding, the image size comes from the headers
+        return render(source, computeText(source, config, metrics), config, metrics);
+    }
+
+    private BufferedImage render(ImageSource source, String text, OverlayConfig config, JobMetrics metrics) throws IOException {
+        return overlay(decode(source, metrics), text, config, metrics);
+    }
+
+    private static BufferedImage decode(ImageSource source, JobMetrics metrics) throws IOException {
+        long start = JobMetrics.now();
+        ImageHandler imgHandler = new ImageHandler(source);
+        metrics.add(JobMetrics.Stage.DECODE, start);
+        metrics.addRaster(imgHandler.getImage());
+        return imgHandler.getImage();
+    }
+
+    private BufferedImage overlay(BufferedImage decoded, String text, OverlayConfig config, JobMetrics metrics) {
+        ImageTextOverlay overlayer = new ImageTextOverlay(config, _textCache);
+        BufferedImage textImg = overlayer.CreateImageText(text, decoded.getWidth(), metrics);
+        // the decoded image belongs to this job, the text is drawn on it without copy when possible
+        BufferedImage overlaidImage = overlayer.overlayImages(decoded,
+                textImg,
+                config.getPosition(),
+                config.getOutputFormat(),
+                true,
+                metrics);
+        if (overlaidImage != decoded) {
+            metrics.releaseRaster(decoded);
+            RasterPool.shared().release(decoded);
+        }
+        return overlaidImage;
+    }
+
+    /**
+     * Overlay the text of a configuration on one image and save it
+     *
+     * @param imagePath  path to the input image
+     * @param outputPath output path without extension
+     * @param config     the configuration of the overlay
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException              if the image can't be read or saved
+     */
+    public void process(String imagePath, String outputPath, OverlayConfig config) throws ImageProcessingException, IOException {
+        runJob(imagePath, metrics -> {
+            process(imagePath, outputPath, config, metrics);
+            return null;
+        });
+    }
+
+    /**
+     * Overlay the text of a configuration on one image received in memory and encode it
+     *
+     * @param source the bytes of the image
+     * @param config the configuration of the overlay
+     * @return the bytes of the encoded image, null if no encoder supports the output format
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException              if the image can't be decoded or encoded
+     */
+    public byte[] overlay(ImageSource source, OverlayConfig config) throws ImageProcessingException, IOException {
+        return runJob(source.getImagePath(), metrics -> {
+            metrics.setBytesIn(source.getSize());
+            byte[] encoded;
+            AdmissionController.Ticket ticket = admit(source, config, metrics);
+            try {
+                encoded = overlay(source, config, metrics);
+            } finally {
+                if (ticket != null) ticket.close();
+            }
+            if (encoded != null) metrics.setBytesOut(encoded.length);
+            return encoded;
+        });
+    }
+
+    /**
+     * A job of the service, timed and given to the listeners
+     */
+    private interface Job<T> {
+        T run(JobMetrics metrics) throws ImageProcessingException, IOException;
+    }
+
+    private <T> T runJob(String imagePath, Job<T> job) throws ImageProcessingException, IOException {
+        JobMetrics metrics = new JobMetrics(imagePath);
+        long start = JobMetrics.now();
+        try {
+            return job.run(metrics);
+        } catch (ImageProcessingException | IOException | RuntimeException ex) {
+            metrics.setError(errorOf(ex));
+            throw ex;
+        } finally {
+            jobEnded(metrics, start);
+        }
+    }
+
+    private static String errorOf(Exception ex) {
+        return ex.getMessage() == null ? ex.toString() : ex.getMessage();
+    }
+
+    private void jobEnded(JobMetrics metrics, long start) {
+        metrics.setTotalNanos(JobMetrics.now() - start);
+        for (MetricsListener listener : _listeners) {
+            listener.imageProcessed(metrics);
+        }
+    }
+
+    /**
+     * Create a job going through the stages of a pipeline: readJob, decodeJob, overlayJob, encodeJob and writeJob.
+     * Each stage can run on another thread, one at a time
+     *
+     * @param imagePath  path to the input image
+     * @param outputPath output path without extension
+     * @return the job
+     */
+    public PipelineJob newJob(String imagePath, String outputPath) {
+        return new PipelineJob(imagePath, outputPath);
+    }
+
+    /**
+     * Read stage: read the file of the image
+     *
+     * @param job the job
+     * @throws IOException if the file can't be read
+     */
+    public void readJob(PipelineJob job) throws IOException {
+        job._start = JobMetrics.now();
+        long start = JobMetrics.now();
+        job._source = new ImageSource(job._imagePath);
+        job._metrics.add(JobMetrics.Stage.READ, start);
+        job._metrics.setBytesIn(job._source.getSize());
+    }
+
+    /**
+     * Decode stage: wait for the memory of the image, compute its text and decode it. A baseline JPEG spliced
+     * is encoded here, and an image processed strip by strip is saved here with its thumbnails
+     *
+     * @param job    the job, read
+     * @param config the configuration of the overlay
+     * @return True if the job goes on, false if saved: complete it
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException              if the image can't be decoded or saved
+     */
+    public boolean decodeJob(PipelineJob job, OverlayConfig config) throws ImageProcessingException, IOException {
+        job._ticket = admit(job._source, config, job._metrics);
+        // computed before decoding, the image size comes from the headers
+        job._text = computeText(job._source, config, job._metrics);
+        job._encoded = spliceJpeg(job._source, job._text, config, job._metrics);
+        if (job._encoded != null) return true;
+        if (isTiled(job._source, config, true)) {
+            saveTiled(job._source, job._text, job._outputPath, config, job._metrics);
+            saveThumbnails(job._source, null, job._text, job._outputPath, config, job._metrics);
+            return false;
+        }
+        job._image = decode(job._source, job._metrics);
+        return true;
+    }
+
+    /**
+     * Overlay stage: draw the text on the decoded image
+     *
+     * @param job    the job, decoded
+     * @param config the configuration of the overlay
+     */
+    public void overlayJob(PipelineJob job, OverlayConfig config) {
+        if (job._image == null) return;
+        // the decoded image is given back to the pool by overlay when copied
+        job._image = overlay(job._image, job._text, config, job._metrics);
+    }
+
+    /**
+     * Encode stage: encode the overlaid image and save its thumbnails, then give back its memory
+     *
+     * @param job    the job, overlaid
+     * @param config the configuration of the overlay
+     * @throws IOException if the image or a thumbnail can't be encoded or saved
+     */
+    public void encodeJob(PipelineJob job, OverlayConfig config) throws IOException {
+        if (job._encoded == null && job._image != null) {
+            job._encoded = ImageHandler.encodeImage(job._image, config.getOutputFormat(), config.getEncoder(), job._metrics);
+        }
+        saveThumbnails(job._source, job._image, job._text, job._outputPath, config, job._metrics);
+        job.release();
+    }
+
+    /**
+     * Write stage: write the encoded image with an asynchronous writer, the job is completed once written
+     *
+     * @param job    the job, encoded
+     * @param config the configuration of the overlay
+     * @param writer the writer of the files
+     * @param ended  called with the completed job, by the thread of the writer
+     * @throws IOException          if the directory of the image can't be created
+     * @throws InterruptedException if interrupted while waiting for the writer
+     */
+    public void writeJob(PipelineJob job, OverlayConfig config, AsyncFileWriter writer, Consumer<PipelineJob> ended)
+            throws IOException, InterruptedException {
+        if (job._encoded == null) {
+            System.out.println("Image not saved");
+            // not saved, the job fails so the batch doesn't record it
+            completeJob(job, new IOException("No encoder for the output format : " + config.getOutputFormat()));
+            ended.accept(job);
+            return;
+        }
+        File outputFile = ImageHandler.outputFile(job._outputPath, config.getOutputFormat());
+        long start = JobMetrics.now();
+        writer.write(outputFile.toPath(), job._encoded, new AsyncFileWriter.Callback() {
+            @Override
+            public void completed(long bytes) {
+                job._metrics.add(JobMetrics.Stage.WRITE, start);
+                job._metrics.setOutputPath(outputFile.getPath());
+                job._metrics.setBytesOut(bytes);
+                System.out.println("Image saved successfully: " + outputFile.getAbsolutePath());
+                completeJob(job, null);
+                ended.accept(job);
+            }
+
+            @Override
+            public void failed(IOException ex) {
+                System.out.println("Error occurred during save");
+                completeJob(job, ex);
+                ended.accept(job);
+            }
+        });
+    }
+
+    /**
+     * Complete a job, saved or failed in a stage: its memory is given back and its metrics to the listeners
+     *
+     * @param job   the job
+     * @param error the exception of the stage which failed, null if saved
+     */
+    public void completeJob(PipelineJob job, Exception error) {
+        job.release();
+        job._encoded = null;
+        job._error = error;
+        if (error != null) job._metrics.setError(errorOf(error));
+        jobEnded(job._metrics, job._start == 0 ? JobMetrics.now() : job._start);
+    }
+
+    /**
+     * Complete a job skipped because its output is up to date: its memory is given back and its metrics, marked
+     * skipped, to the listeners
+     *
+     * @param job    the job, read or not
+     * @param output the output file kept
+     */
+    public void skipJob(PipelineJob job, File output) {
+        job.release();
+        job._metrics.setSkipped();
+        job._metrics.setOutputPath(output.getPath());
+        jobEnded(job._metrics, job._start == 0 ? JobMetrics.now() : job._start);
+    }
+
+    private void process(String imagePath, String outputPath, OverlayConfig config, JobMetrics metrics) throws ImageProcessingException, IOException {
+        // read the file once, the decoder and the metadata parser share its bytes
+        long start = JobMetrics.now();
+        ImageSource source = new ImageSource(imagePath);
+        metrics.add(JobMetrics.Stage.READ, start);
+        metrics.setBytesIn(source.getSize());
+
+        String text;
+        byte[] jpeg;
+        AdmissionController.Ticket ticket = admit(source, config, metrics);
+        try {
+            // computed before decoding, the image size comes from the headers
+            text = computeText(source, config, metrics);
+            jpeg = spliceJpeg(source, text, config, metrics);
+            if (jpeg == null && isTiled(source, config, true)) {
+                saveTiled(source, text, outputPath, config, metrics);
+                saveThumbnails(source, null, text, outputPath, config, metrics);
+                return;
+            }
+            if (jpeg == null) {
+                BufferedImage overlaidImage = render(source, text, config, metrics);
+                try {
+                    ImageHandler.saveImage(overlaidImage, outputPath, config.getOutputFormat(), config.getEncoder(), metrics);
+                    saveThumbnails(source, overlaidImage, text, outputPath, config, metrics);
+                } finally {
+                    // the next jobs reuse its buffer
+                    RasterPool.shared().release(overlaidImage);
+                }
+                return;
+            }
+        } finally {
+            if (ticket != null) ticket.close();
+        }
+        File outputFile = ImageHandler.outputFile(outputPath, config.getOutputFormat());
+        try {
+            ImageHandler.writeFile(outputFile, jpeg, metrics);
+            System.out.println("Image saved successfully: " + outputFile.getAbsolutePath());
+        } catch (IOException ex) {
+            System.out.println("Error occurred during save");
+            throw ex;
+        }
+        saveThumbnails(source, null, text, outputPath, config, metrics);
+    }
+
+    /**
+     * Save the thumbnails of a configuration next to the image, named after it with their size: image_256.jpeg
+     *
+     * @param source        the bytes of the image
+     * @param overlaidImage the overlaid image at full size, null if not in memory: the source is then decoded with
+     *                      subsampling and the overlay is scaled
+     * @param text          the text of the image
+     * @param outputPath    output path of the image without extension
+     * @param config        the configuration of the overlay
+     * @param metrics       the metrics of the job
+     * @throws IOException if a thumbnail can't be decoded or saved
+     */
+    private void saveThumbnails(ImageSource source, BufferedImage overlaidImage, String text, String outputPath,
+                                OverlayConfig config, JobMetrics metrics) throws IOException {
+        if (config.getThumbnails().isEmpty()) return;
+        long start = JobMetrics.now();
+        // the encode and write of the thumbnails are counted in their own stage
+        JobMetrics thumbnailMetrics = new JobMetrics(source.getImagePath());
+        ImageTextOverlay overlayer = new ImageTextOverlay(config, _textCache);
+        for (int size : config.getThumbnails()) {
+            BufferedImage thumbnail;
+            if (overlaidImage != null) {
+                thumbnail = Thumbnails.fit(overlaidImage, size);
+            } else {
+                thumbnail = Thumbnails.decode(source, size);
+                if (thumbnail != null) {
+                    thumbnail = overlayThumbnail(overlayer, source, thumbnail, text, config, thumbnailMetrics);
+                }
+            }
+            if (thumbnail == null) {
+                System.out.println("The image is smaller than the thumbnail " + size + ", not saved");
+                continue;
+            }
+            thumbnailMetrics.addRaster(thumbnail);
+            ImageHandler.saveImage(thumbnail, outputPath + "_" + size, config.getOutputFormat(), config.getEncoder(),
+                    thumbnailMetrics);
+        }
+        metrics.add(JobMetrics.Stage.THUMBNAILS, start);
+    }
+
+    /**
+     * Overlay the text on a thumbnail decoded from the source, the text of the full image is scaled to the thumbnail
+     */
+    private static BufferedImage overlayThumbnail(ImageTextOverlay overlayer, ImageSource source, BufferedImage thumbnail,
+                                                  String text, OverlayConfig config, JobMetrics metrics) {
+        BufferedImage textImg = overlayer.CreateImageText(text, source.getWidth(), metrics);
+        if (textImg == null) return thumbnail;
+        Point position = overlayer.positionImage(source.getWidth(), source.getHeight(), textImg, config.getPosition());
+        double ratio = thumbnail.getWidth() / (double) source.getWidth();
+        BufferedImage scaledText = Thumbnails.scale(textImg, Math.max(1, (int) Math.round(textImg.getWidth() * ratio)),
+                Math.max(1, (int) Math.round(textImg.getHeight() * ratio)));
+        return overlayer.overlayAt(thumbnail, scaledText, (int) Math.round(position.x * ratio),
+                (int) Math.round(position.y * ratio), config.getOutputFormat(), true, metrics);
+    }
+
+    /**
+     * Wait until the estimated rasters of a job fit in the memory budget
+     *
+     * @param source  the bytes of the image, its header gives the dimensions
+     * @param config  the configuration of the overlay
+     * @param metrics the metrics of the job
+     * @return the ticket to close when the rasters are released, null if the memory is not bounded
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    private AdmissionController.Ticket admit(ImageSource source, OverlayConfig config, JobMetrics metrics) throws InterruptedIOException {
+        AdmissionController admission = _admission;
+        if (admission == null) return null;
+        long start = JobMetrics.now();
+        try {
+            long bytes = isTiled(source, config, false)
+                    ? TiledOverlay.estimate(source, config.getOutputFormat())
+                    : AdmissionController.estimate(source, config.getOutputFormat());
+            return admission.acquire(bytes);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory");
+        } finally {
+            metrics.add(JobMetrics.Stage.ADMISSION, start);
+        }
+    }
+
+    private byte[] overlay(ImageSource source, OverlayConfig config, JobMetrics metrics) throws ImageProcessingException, IOException {
+        String text = computeText(source, config, metrics);
+        byte[] jpeg = spliceJpeg(source, text, config, metrics);
+        if (jpeg != null) return jpeg;
+        if (isTiled(source, config, true)) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            tiled(source, text, config, encoded, metrics);
+            return encoded.toByteArray();
+        }
+        BufferedImage overlaidImage = render(source, text, config, metrics);
+        try {
+            return ImageHandler.encodeImage(overlaidImage, config.getOutputFormat(), config.getEncoder(), metrics);
+        } finally {
+            RasterPool.shared().release(overlaidImage);
+        }
+    }
+
+    /**
+     * Check if an image is processed strip by strip
+     *
+     * @param source the bytes of the image
+     * @param config the configuration of the overlay
+     * @param report True to tell why an image asked strip by strip is decoded entirely
+     * @return True if asked or if the image is too large for the heap, and the output format and the image allow it
+     */
+    private static boolean isTiled(ImageSource source, OverlayConfig config, boolean report) {
+        String format = config.getOutputFormat();
+        boolean tiled = config.isTiled() ? TiledOverlay.isSupported(format) && source.probeDimensions()
+                : TiledOverlay.isNeeded(source, format);
+        if (!tiled) return false;
+        if (TiledOverlay.isStreamable(source)) return true;
+        if (report) {
+            System.out.println("The image : " + source.getImagePath() + " is decoded entirely, only baseline JPEG and"
+                    + " non-interlaced 8-bit PNG images are read strip by strip");
+        }
+        return false;
+    }
+
+    /**
+     * Overlay the text of a configuration on one image strip by strip and encode it
+     *
+     * @param source  the bytes of the image
+     * @param text    the text of the image
+     * @param config  the configuration of the overlay
+     * @param output  the output of the encoded image
+     * @param metrics the metrics of the job
+     * @throws IOException if the image can't be decoded or encoded
+     */
+    private void tiled(ImageSource source, String text, OverlayConfig config, OutputStream output, JobMetrics metrics) throws IOException {
+        ImageTextOverlay overlayer = new ImageTextOverlay(config, _textCache);
+        BufferedImage textImg = overlayer.CreateImageText(text, source.getWidth(), metrics);
+        Point position = textImg == null ? null
+                : overlayer.positionImage(source.getWidth(), source.getHeight(), textImg, config.getPosition());
+        TiledOverlay.write(source, overlayer, textImg, position, config.getOutputFormat(), config.getEncoder(),
+                output, metrics);
+    }
+
+    private void saveTiled(ImageSource source, String text, String outputPath, OverlayConfig config, JobMetrics metrics) throws IOException {
+        File outputFile = ImageHandler.outputFile(outputPath, config.getOutputFormat());
+        // the encoded strips are written as they come
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16)) {
+            tiled(source, text, config, output, metrics);
+        } catch (IOException ex) {
+            System.out.println("Error occurred during save");
+            throw ex;
+        }
+        metrics.setOutputPath(outputFile.getPath());
+        metrics.setBytesOut(outputFile.length());
+        System.out.println("Image saved successfully: " + outputFile.getAbsolutePath());
+    }
+
+    /**
+     * Compute the text of an image from its metadata, or from its record in the index if unchanged since indexed
+     *
+     * @param source  the bytes of the image
+     * @param config  the configuration of the overlay
+     * @param metrics the metrics of the job
+     * @return the text to overlay
+     * @throws ImageProcessingException if EXIF data can't be processed
+     * @throws IOException              if the metadata can't be read
+     */
+    private String computeText(ImageSource source, OverlayConfig config, JobMetrics metrics) throws ImageProcessingException, IOException {
+        long start = JobMetrics.now();
+        MetadataIndex index = _index;
+        String text = new ExifHandler(source, config, index == null ? null : index.lookup(source)).ComputeImageText();
+        metrics.add(JobMetrics.Stage.METADATA, start);
+        return text;
+    }
+
+    /**
+     * Overlay the text on a baseline JPEG and encode it as JPEG, only the MCU rows under the text are re-encoded
+     *
+     * @param source  the bytes of the image
+     * @param text    the text of the image
+     * @param config  the configuration of the overlay
+     * @param metrics the metrics of the job
+     * @return the bytes of the JPEG, null if not enabled or if the image must be decoded and encoded entirely
+     */
+    private byte[] spliceJpeg(ImageSource source, String text, OverlayConfig config, JobMetrics metrics) {
+        if (!config.isSpliceJpeg() || !ImageTextOverlay.isJpeg(config.getOutputFormat())) return null;
+        JpegBandRewriter rewriter = JpegBandRewriter.open(source);
+        if (rewriter == null) return null;
+
+        ImageTextOverlay overlayer = new ImageTextOverlay(config, _textCache);
+        BufferedImage textImg = overlayer.CreateImageText(text, rewriter.getWidth(), metrics);
+        if (textImg == null || textImg.getWidth() > rewriter.getWidth() || textImg.getHeight() > rewriter.getHeight()) {
+            return null;
+        }
+        Point position = overlayer.positionImage(rewriter.getWidth(), rewriter.getHeight(), textImg, config.getPosition());
+
+        long start = JobMetrics.now();
+        try {
+            // decode, blend and encode of the band
+            return rewriter.rewrite(textImg, position.x, position.y);
+        } catch (IOException ex) {
+            System.out.println("The band of " + source.getImagePath() + " can't be spliced : " + ex.getMessage());
+            return null;
+        } finally {
+            metrics.add(JobMetrics.Stage.ENCODE, start);
+        }
+    }
+
+    /**
+     * State of an image between the stages of a pipeline
+     */
+    public static final class PipelineJob {
+        private final String _imagePath;
+        private final String _outputPath;
+        private final JobMetrics _metrics;
+        private long _start;
+        private ImageSource _source;
+        private AdmissionController.Ticket _ticket;
+        private String _text;
+        /**
+         * The decoded then overlaid image, null once encoded
+         */
+        private BufferedImage _image;
+        /**
+         * The encoded image, null once written
+         */
+        private byte[] _encoded;
+        private Exception _error;
+
+        private PipelineJob(String imagePath, String outputPath) {
+            _imagePath = imagePath;
+            _outputPath = outputPath;
+            _metrics = new JobMetrics(imagePath);
+        }
+
+        /**
+         * Give back the image to the pool and the memory of the job
+         */
+        private void release() {
+            _metrics.releaseRaster(_image);
+            RasterPool.shared().release(_image);
+            _image = null;
+            if (_ticket != null) _ticket.close();
+        }
+
+        /**
+         * Get the path to the input image
+         * @return the image path
+         */
+        public String getImagePath() {
+            return _imagePath;
+        }
+
+        /**
+         * Get the output path without extension
+         * @return the output path
+         */
+        public String getOutputPath() {
+            return _outputPath;
+        }
+
+        /**
+         * Get the bytes of the image
+         * @return the source, null until read
+         */
+        public ImageSource getSource() {
+            return _source;
+        }
+
+        /**
+         * Get the text of the overlay
+         * @return the text, null until computed
+         */
+        public String getText() {
+            return _text;
+        }
+
+        /**
+         * Get the metrics of the job
+         * @return the metrics
+         */
+        public JobMetrics getMetrics() {
+            return _metrics;
+        }
+
+        /**
+         * Get the exception of the stage which failed
+         * @return the exception, null if the job is saved or not completed
+         */
+        public Exception getError() {
+            return _error;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Class         : ParallelRows
+ *
+ * Description   : Split row based pixel work in horizontal bands across the fork-join pool
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Split row based pixel work in horizontal bands across the common fork-join pool.
+ * Small areas are processed on the calling thread, the split isn't worth its cost.
+ */
+public final class ParallelRows {
+
+    /**
+     * Minimum number of pixels to process the rows in parallel
+     */
+    public static final long PARALLEL_THRESHOLD = 1 << 20;
+
+    /**
+     * Minimum number of pixels of a band
+     */
+    private static final long MIN_BAND_PIXELS = 1 << 16;
+
+    /**
+     * Work on a band of rows
+     */
+    public interface BandTask {
+        /**
+         * Process the rows of a band
+         *
+         * @param fromRow first row, inclusive
+         * @param toRow   last row, exclusive
+         */
+        void process(int fromRow, int toRow);
+    }
+
+    private ParallelRows() {
+    }
+
+    /**
+     * Process all rows, in parallel bands if the area is large enough
+     *
+     * @param height the number of rows
+     * @param width  the number of pixels of a row
+     * @param task   the work to do on a band
+     */
+    public static void forEachBand(int height, int width, BandTask task) {
+        if (height <= 0 || width <= 0) return;
+        if ((long) height * width < PARALLEL_THRESHOLD || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            task.process(0, height);
+            return;
+        }
+        int minRows = (int) Math.max(1, MIN_BAND_PIXELS / width);
+        ForkJoinPool.commonPool().invoke(new Band(task, 0, height, minRows));
+    }
+
+    /**
+     * Band of rows split in two until it reaches the minimum size
+     */
+    private static class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BandTask _task;
+        private final int _fromRow;
+        private final int _toRow;
+        private final int _minRows;
+
+        private Band(BandTask task, int fromRow, int toRow, int minRows) {
+            _task = task;
+            _fromRow = fromRow;
+            _toRow = toRow;
+            _minRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (_toRow - _fromRow <= _minRows) {
+                _task.process(_fromRow, _toRow);
+                return;
+            }
+            int middle = (_fromRow + _toRow) >>> 1;
+            invokeAll(new Band(_task, _fromRow, middle, _minRows), new Band(_task, middle, _toRow, _minRows));
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Class         : Pipeline
+ *
+ * Description   : Stages of work on their own threads, linked by bounded queues
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stages of work on their own threads, linked by bounded queues.
+ * Each stage takes the items of its queue and puts them in the queue of the next stage; when that queue is full the
+ * stage waits, so a slow stage holds back the ones before it down to submit. The items of a stage are processed in
+ * parallel by its threads, their order isn't kept.
+ *
+ * @param <T> the type of the items
+ */
+public final class Pipeline<T> {
+
+    /**
+     * Marks the end of the items in a queue, one per thread of the stage
+     */
+    private static final Object END = new Object();
+
+    /**
+     * Work of a stage on one item
+     */
+    public interface Stage<T> {
+        /**
+         * Process one item
+         *
+         * @param item the item
+         * @return True to give the item to the next stage, false if it leaves the pipeline
+         * @throws Exception if the item can't be processed, it leaves the pipeline
+         */
+        boolean process(T item) throws Exception;
+    }
+
+    /**
+     * Receive the items which failed in a stage
+     */
+    public interface FailureHandler<T> {
+        /**
+         * Called by the thread of the stage which failed
+         *
+         * @param item the item
+         * @param ex   the exception of the stage, an ExecutionException wrapping an Error
+         */
+        void failed(T item, Exception ex);
+    }
+
+    /**
+     * Store the stages, in order
+     */
+    private final List<StageRunner> _stages = new ArrayList<>();
+
+    /**
+     * Store the receiver of the failed items
+     */
+    private final FailureHandler<T> _failureHandler;
+
+    /**
+     * Store the threads of all the stages, empty until started
+     */
+    private final List<Thread> _threads = new ArrayList<>();
+
+    /**
+     * Store if no item can be submitted anymore
+     */
+    private boolean _closed;
+
+    /**
+     * Constructor
+     *
+     * @param failureHandler the receiver of the failed items
+     */
+    public Pipeline(FailureHandler<T> failureHandler) {
+        _failureHandler = failureHandler;
+    }
+
+    /**
+     * Add a stage after the last one, before start
+     *
+     * @param name     the name of the stage, for its threads and the summary
+     * @param threads  the number of threads, at least 1
+     * @param capacity the number of items waiting for the stage, at least 1
+     * @param stage    the work of the stage
+     * @return the pipeline
+     */
+    public Pipeline<T> addStage(String name, int threads, int capacity, Stage<T> stage) {
+        if (!_threads.isEmpty()) throw new IllegalStateException("The pipeline is started");
+        _stages.add(new StageRunner(name, Math.max(1, threads), Math.max(1, capacity), stage));
+        return this;
+    }
+
+    /**
+     * Start the threads of the stages
+     */
+    public synchronized void start() {
+        if (!_threads.isEmpty()) return;
+        for (int i = 0; i < _stages.size(); i++) {
+            StageRunner stage = _stages.get(i);
+            StageRunner next = i + 1 < _stages.size() ? _stages.get(i + 1) : null;
+            for (int t = 0; t < stage._threads; t++) {
+                Thread thread = new Thread(() -> stage.run(next), "inko-" + stage._name + "-" + t);
+                thread.setDaemon(true);
+                _threads.add(thread);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Give an item to the first stage, wait while its queue is full
+     *
+     * @param item the item
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void submit(T item) throws InterruptedException {
+        if (_closed || _threads.isEmpty()) throw new IllegalStateException("The pipeline isn't running");
+        _stages.get(0)._queue.put(item);
+    }
+
+    /**
+     * End the items and wait until all of them left the last stage
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void close() throws InterruptedException {
+        if (!_closed && !_stages.isEmpty()) {
+            _closed = true;
+            _stages.get(0).end();
+        }
+        for (Thread thread : _threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Get the time of the stages: the time they processed the items and the time they waited for the next stage
+     *
+     * @return one line per stage
+     */
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        for (StageRunner stage : _stages) {
+            if (summary.length() > 0) summary.append(System.lineSeparator());
+            summary.append(String.format("Stage %-8s: %d threads, %d items, busy %.2f s, blocked by the next stage %.2f s",
+                    stage._name, stage._threads, stage._items.sum(), stage._busyNanos.sum() / 1e9,
+                    stage._blockedNanos.sum() / 1e9));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Threads and queue of a stage
+     */
+    private final class StageRunner {
+        private final String _name;
+        private final int _threads;
+        private final BlockingQueue<Object> _queue;
+        private final Stage<T> _stage;
+        /**
+         * Number of threads of the stage which haven't taken their END
+         */
+        private final AtomicInteger _running;
+        private final LongAdder _items = new LongAdder();
+        private final LongAdder _busyNanos = new LongAdder();
+        private final LongAdder _blockedNanos = new LongAdder();
+
+        private StageRunner(String name, int threads, int capacity, Stage<T> stage) {
+            _name = name;
+            _threads = threads;
+            _queue = new ArrayBlockingQueue<>(capacity);
+            _stage = stage;
+            _running = new AtomicInteger(threads);
+        }
+
+        /**
+         * Put one END per thread, after the items already in the queue
+         */
+        private void end() throws InterruptedException {
+            for (int t = 0; t < _threads; t++) {
+                _queue.put(END);
+            }
+        }
+
+        /**
+         * Put one END per thread even if the thread is interrupted, the interruption is kept for after
+         */
+        private void endUninterruptibly() {
+            boolean interrupted = Thread.interrupted();
+            for (int t = 0; t < _threads; t++) {
+                while (true) {
+                    try {
+                        _queue.put(END);
+                        break;
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        /**
+         * Give a failed item to the failure handler, a handler which fails doesn't stop the thread of the stage
+         */
+        private void fail(T item, Exception ex) {
+            try {
+                _failureHandler.failed(item, ex);
+            } catch (RuntimeException | Error err) {
+                System.out.println("The failure of an item in the stage " + _name + " can't be handled : " + err);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void run(StageRunner next) {
+            try {
+                Object taken;
+                while ((taken = _queue.take()) != END) {
+                    T item = (T) taken;
+                    long start = System.nanoTime();
+                    boolean forward = false;
+                    try {
+                        forward = _stage.process(item);
+                    } catch (Exception ex) {
+                        fail(item, ex);
+                    } catch (Error err) {
+                        // an image too large for the heap fails alone, the stage keeps its thread
+                        fail(item, new ExecutionException(err));
+                    }
+                    _busyNanos.add(System.nanoTime() - start);
+                    _items.increment();
+                    if (forward && next != null) {
+                        start = System.nanoTime();
+                        next._queue.put(item);
+                        _blockedNanos.add(System.nanoTime() - start);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // the last thread of the stage ends the next one, all the items are in its queue
+                if (_running.decrementAndGet() == 0 && next != null) next.endUninterruptibly();
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Class         : PipelineSettings
+ *
+ * Description   : Immutable number of threads of each stage of the batch pipeline
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+/**
+ * Immutable number of threads of each stage of the batch pipeline: read, decode, overlay, encode and write.
+ * The read stage reads the files, the decode stage waits for the memory of the image, parses its metadata and decodes
+ * it, the overlay stage draws the text, the encode stage encodes the image and its thumbnails and the write stage
+ * writes the files. By default the disk stages have one thread and the others the threads of the batch.
+ * The queue before a stage holds as many images as it has threads, at least 2.
+ */
+public final class PipelineSettings {
+
+    /**
+     * Number of writes in flight per thread of the write stage
+     */
+    private static final int WRITES_PER_THREAD = 2;
+
+    /**
+     * Store the threads of the read stage
+     */
+    private final int _readThreads;
+
+    /**
+     * Store the threads of the decode stage
+     */
+    private final int _decodeThreads;
+
+    /**
+     * Store the threads of the overlay stage
+     */
+    private final int _overlayThreads;
+
+    /**
+     * Store the threads of the encode stage
+     */
+    private final int _encodeThreads;
+
+    /**
+     * Store the threads of the write stage
+     */
+    private final int _writeThreads;
+
+    private PipelineSettings(int[] threads) {
+        _readThreads = threads[0];
+        _decodeThreads = threads[1];
+        _overlayThreads = threads[2];
+        _encodeThreads = threads[3];
+        _writeThreads = threads[4];
+    }
+
+    /**
+     * Get the threads of the read stage
+     * @return the number of threads
+     */
+    public int getReadThreads() {
+        return _readThreads;
+    }
+
+    /**
+     * Get the threads of the decode stage
+     * @return the number of threads
+     */
+    public int getDecodeThreads() {
+        return _decodeThreads;
+    }
+
+    /**
+     * Get the threads of the overlay stage
+     * @return the number of threads
+     */
+    public int getOverlayThreads() {
+        return _overlayThreads;
+    }
+
+    /**
+     * Get the threads of the encode stage
+     * @return the number of threads
+     */
+    public int getEncodeThreads() {
+        return _encodeThreads;
+    }
+
+    /**
+     * Get the threads of the write stage
+     * @return the number of threads
+     */
+    public int getWriteThreads() {
+        return _writeThreads;
+    }
+
+    /**
+     * Get the maximum number of files written at the same time, their bytes are held until written
+     * @return the number of writes in flight
+     */
+    public int getWritesInFlight() {
+        return _writeThreads * WRITES_PER_THREAD;
+    }
+
+    /**
+     * Get the number of images waiting for a stage
+     * @param threads the threads of the stage
+     * @return the capacity of the queue before the stage
+     */
+    public static int queueCapacity(int threads) {
+        return Math.max(2, threads);
+    }
+
+    @Override
+    public String toString() {
+        return _readThreads + "," + _decodeThreads + "," + _overlayThreads + "," + _encodeThreads + "," + _writeThreads;
+    }
+
+    /**
+     * Builder of the settings, it checks the values given on the command line
+     */
+    public static class Builder {
+        private int _threads = 0;
+        private int[] _stages;
+
+        /**
+         * Set the threads of the decode, overlay and encode stages when they aren't given
+         * @param threads the number of threads, the number of cores if lower than 1
+         * @return the builder
+         */
+        public Builder SetThreads(int threads) {
+            _threads = threads;
+            return this;
+        }
+
+        /**
+         * Set the threads of each stage
+         * @param stages read,decode,overlay,encode,write: 1,4,2,4,1
+         * @return the builder
+         */
+        public Builder SetStages(String stages) {
+            String[] counts = stages.split(",");
+            int[] threads = new int[5];
+            for (int i = 0; i < counts.length; i++) {
+                String count = counts[i].trim();
+                if (counts.length != threads.length || !count.matches("\\d{1,3}") || Integer.parseInt(count) == 0) {
+                    System.out.println(stages + " are not valid stage threads, default value [read,decode,overlay,encode,write = 1,"
+                            + "J,J,J,1 with J the threads of the batch] will be applied");
+                    return this;
+                }
+                threads[i] = Integer.parseInt(count);
+            }
+            _stages = threads;
+            return this;
+        }
+
+        /**
+         * Build the immutable settings
+         * @return the settings
+         */
+        public PipelineSettings build() {
+            if (_stages != null) return new PipelineSettings(_stages);
+            int threads = _threads < 1 ? Runtime.getRuntime().availableProcessors() : _threads;
+            return new PipelineSettings(new int[]{1, threads, threads, threads, 1});
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Class         : PngEncoder
+ *
+ * Description   : Encode 8-bit images as PNG with a chosen filter and compression level
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encode 8-bit gray, RGB and RGBA images as PNG, the filter of the rows and the compression level are chosen.
+ * The ImageIO writer always tries the five filters on each row and only exposes the compression level; a fixed
+ * filter and a low level make the encoding several times faster for a slightly larger file.
+ * The rows are read one at a time, a RenderedImage which isn't a BufferedImage is asked for each row.
+ */
+final class PngEncoder {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * Maximum size of an IDAT chunk
+     */
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private PngEncoder() {
+    }
+
+    /**
+     * Check if an image can be encoded: 8 bits per sample, gray or sRGB, with or without alpha, not premultiplied
+     *
+     * @param image the image
+     * @return True if supported, else the ImageIO writer is used
+     */
+    static boolean isSupported(RenderedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        if (!(colorModel instanceof ComponentColorModel || colorModel instanceof DirectColorModel)) return false;
+        if (colorModel.isAlphaPremultiplied()) return false;
+        for (int bits : colorModel.getComponentSize()) {
+            if (bits != 8) return false;
+        }
+        int components = colorModel.getNumComponents();
+        ColorSpace space = colorModel.getColorSpace();
+        if (components == 1) return space.getType() == ColorSpace.TYPE_GRAY;
+        return (components == 3 || components == 4) && space.isCS_sRGB()
+                && image.getSampleModel().getNumBands() == components;
+    }
+
+    /**
+     * Encode an image as PNG
+     *
+     * @param image  the image, supported by isSupported
+     * @param output the output, not closed
+     * @param level  the compression level of deflate, 0 to 9
+     * @param filter the filter of the rows
+     * @throws IOException if the output can't be written
+     */
+    static void write(RenderedImage image, OutputStream output, int level, ImageEncoder.PngFilter filter) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ColorModel colorModel = image.getColorModel();
+        int channels = colorModel.getNumComponents();
+        int colorType = channels == 1 ? 0 : channels == 3 ? 2 : 6;
+
+        output.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = (byte) colorType;
+        writeChunk(output, "IHDR", header, header.length);
+
+        Deflater deflater = new Deflater(level);
+        IdatOutputStream idat = new IdatOutputStream(output);
+        try (DeflaterOutputStream compressed = new DeflaterOutputStream(idat, deflater, CHUNK_SIZE)) {
+            RowReader rows = new RowReader(image, channels);
+            int stride = width * channels;
+            byte[] previous = new byte[stride];
+            byte[] current = new byte[stride];
+            byte[][] filtered = new byte[5][1 + stride];
+            for (int y = 0; y < height; y++) {
+                rows.read(y, current);
+                byte[] row = filterRow(current, previous, channels, filter, filtered);
+                compressed.write(row, 0, row.length);
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+            compressed.finish();
+            idat.flushChunk();
+        } finally {
+            deflater.end();
+        }
+        writeChunk(output, "IEND", new byte[0], 0);
+    }
+
+    /**
+     * Filter a row
+     *
+     * @param row      the samples of the row
+     * @param previous the samples of the previous row, zeros for the first one
+     * @param bpp      the bytes per pixel
+     * @param filter   the filter, adaptive keeps the row with the smallest sum of absolute differences
+     * @param filtered a buffer per filter type, the filter type followed by the filtered row
+     * @return the filtered row, one of the buffers
+     */
+    static byte[] filterRow(byte[] row, byte[] previous, int bpp, ImageEncoder.PngFilter filter, byte[][] filtered) {
+        if (filter != ImageEncoder.PngFilter.ADAPTIVE) {
+            // the filter types of PNG are the ordinals of the filters
+            int type = filter.ordinal();
+            applyFilter(type, row, previous, bpp, filtered[type]);
+            return filtered[type];
+        }
+        int best = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = 0; type < 5; type++) {
+            long sum = applyFilter(type, row, previous, bpp, filtered[type]);
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = type;
+            }
+        }
+        return filtered[best];
+    }
+
+    /**
+     * Apply a filter type on a row
+     *
+     * @return the sum of the absolute values of the filtered bytes, as signed bytes
+     */
+    private static long applyFilter(int type, byte[] row, byte[] previous, int bpp, byte[] out) {
+        out[0] = (byte) type;
+        int length = row.length;
+        switch (type) {
+            case 1:
+                for (int i = 0; i < length; i++) {
+                    out[i + 1] = (byte) (row[i] - (i >= bpp ? row[i - bpp] : 0));
+                }
+                break;
+            case 2:
+                for (int i = 0; i < length; i++) {
+                    out[i + 1] = (byte) (row[i] - previous[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < length; i++) {
+                    int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    out[i + 1] = (byte) (row[i] - ((left + (previous[i] & 0xFF)) >>> 1));
+                }
+                break;
+            case 4:
+                for (int i = 0; i < length; i++) {
+                    int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    int upLeft = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                    out[i + 1] = (byte) (row[i] - paeth(left, previous[i] & 0xFF, upLeft));
+                }
+                break;
+            default:
+                System.arraycopy(row, 0, out, 1, length);
+                break;
+        }
+        long sum = 0;
+        for (int i = 1; i <= length; i++) {
+            sum += Math.abs(out[i]);
+        }
+        return sum;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    private static void writeChunk(OutputStream output, String type, byte[] data, int length) throws IOException {
+        byte[] header = new byte[8];
+        putInt(header, 0, length);
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(name, 0, header, 4, 4);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, 0, length);
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) crc.getValue());
+        output.write(header);
+        output.write(data, 0, length);
+        output.write(trailer);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Cut the compressed data in IDAT chunks
+     */
+    private static final class IdatOutputStream extends OutputStream {
+
+        /**
+         * Store the output of the PNG
+         */
+        private final OutputStream _output;
+
+        /**
+         * Store the data of the chunk in progress
+         */
+        private final byte[] _chunk = new byte[CHUNK_SIZE];
+
+        /**
+         * Store the length of the chunk in progress
+         */
+        private int _length;
+
+        IdatOutputStream(OutputStream output) {
+            _output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (_length == _chunk.length) flushChunk();
+            _chunk[_length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (_length == _chunk.length) flushChunk();
+                int n = Math.min(length, _chunk.length - _length);
+                System.arraycopy(bytes, offset, _chunk, _length, n);
+                _length += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        void flushChunk() throws IOException {
+            if (_length == 0) return;
+            writeChunk(_output, "IDAT", _chunk, _length);
+            _length = 0;
+        }
+
+        @Override
+        public void close() {
+            // the PNG continues after the IDAT chunks
+        }
+    }
+
+    /**
+     * Read the rows of an image as interleaved 8-bit samples: gray, RGB or RGBA
+     */
+    private static final class RowReader {
+
+        /**
+         * Store the image
+         */
+        private final RenderedImage _image;
+
+        /**
+         * Store the raster of a BufferedImage, null to ask the image for each row
+         */
+        private final Raster _raster;
+
+        /**
+         * Store the number of samples per pixel
+         */
+        private final int _channels;
+
+        /**
+         * Store the samples of a row read by the generic path
+         */
+        private int[] _samples;
+
+        RowReader(RenderedImage image, int channels) {
+            _image = image;
+            _raster = image instanceof BufferedImage ? ((BufferedImage) image).getRaster() : null;
+            _channels = channels;
+        }
+
+        void read(int y, byte[] row) {
+            int width = _image.getWidth();
+            if (_raster != null) {
+                SampleModel sampleModel = _raster.getSampleModel();
+                int translateX = _raster.getSampleModelTranslateX();
+                int translateY = _raster.getSampleModelTranslateY();
+                switch (((BufferedImage) _image).getType()) {
+                    case BufferedImage.TYPE_INT_RGB:
+                    case BufferedImage.TYPE_INT_ARGB: {
+                        int[] pixels = ((DataBufferInt) _raster.getDataBuffer()).getData();
+                        int stride = ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+                        int offset = _raster.getDataBuffer().getOffset() + (y - translateY) * stride - translateX;
+                        for (int x = 0, i = 0; x < width; x++) {
+                            int pixel = pixels[offset + x];
+                            row[i++] = (byte) (pixel >> 16);
+                            row[i++] = (byte) (pixel >> 8);
+                            row[i++] = (byte) pixel;
+                            if (_channels == 4) row[i++] = (byte) (pixel >>> 24);
+                        }
+                        return;
+                    }
+                    case BufferedImage.TYPE_3BYTE_BGR:
+                    case BufferedImage.TYPE_4BYTE_ABGR: {
+                        byte[] bytes = ((DataBufferByte) _raster.getDataBuffer()).getData();
+                        int stride = ((ComponentSampleModel) sampleModel).getScanlineStride();
+                        int offset = _raster.getDataBuffer().getOffset() + (y - translateY) * stride - translateX * _channels;
+                        for (int x = 0, i = 0, j = offset; x < width; x++, j += _channels) {
+                            if (_channels == 4) {
+                                row[i++] = bytes[j + 3];
+                                row[i++] = bytes[j + 2];
+                                row[i++] = bytes[j + 1];
+                                row[i++] = bytes[j];
+                            } else {
+                                row[i++] = bytes[j + 2];
+                                row[i++] = bytes[j + 1];
+                                row[i++] = bytes[j];
+                            }
+                        }
+                        return;
+                    }
+                    default:
+                        break;
+                }
+            }
+            // the bands of the supported color models are in the order of the PNG samples
+            Raster raster = _raster != null ? _raster
+                    : _image.getData(new Rectangle(_image.getMinX(), _image.getMinY() + y, width, 1));
+            int minY = _raster != null ? raster.getMinY() + y : raster.getMinY();
+            if (_samples == null) _samples = new int[width * _channels];
+            raster.getPixels(raster.getMinX(), minY, width, 1, _samples);
+            for (int i = 0; i < _samples.length; i++) {
+                row[i] = (byte) _samples[i];
+            }
+        }
+    }
+}
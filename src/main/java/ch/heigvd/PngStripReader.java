@@ -0,0 +1,310 @@
+/*
+ * Class         : PngStripReader
+ *
+ * Description   : Read the rows of a PNG in strips, the image data is inflated once
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read the rows of a PNG in strips, in order: the IDAT chunks are inflated once and each row is unfiltered with the
+ * previous one, so the memory is the one of a strip and the work the one of the image.
+ * Only non-interlaced 8-bit gray, RGB and RGBA images without transparency chunk nor ICC profile are supported, the
+ * strips have the type ImageIO decodes them to: TYPE_BYTE_GRAY, TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR.
+ */
+public final class PngStripReader {
+
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+
+    private static final int IHDR = 0x49484452, IDAT = 0x49444154, IEND = 0x49454E44, TRNS = 0x74524E53,
+            ICCP = 0x69434350;
+
+    private static final int GRAY = 0, RGB = 2, RGBA = 6;
+
+    /**
+     * Store the bytes of the PNG
+     */
+    private final ByteBuffer _bytes;
+
+    /**
+     * Store the size of the image
+     */
+    private final int _width, _height;
+
+    /**
+     * Store the samples per pixel: 1, 3 or 4
+     */
+    private final int _channels;
+
+    /**
+     * Store the inflater of the image data
+     */
+    private final Inflater _inflater = new Inflater();
+
+    /**
+     * Store the image data not inflated yet
+     */
+    private final IdatInputStream _compressed;
+
+    /**
+     * Store the buffer of the compressed bytes given to the inflater
+     */
+    private final byte[] _input = new byte[1 << 16];
+
+    /**
+     * Store the previous and the current row, with their filter byte: the row above the first one is zero
+     */
+    private byte[] _previous, _current;
+
+    /**
+     * Store the next row to read
+     */
+    private int _y;
+
+    private PngStripReader(ByteBuffer bytes, int width, int height, int channels, int idat) {
+        _bytes = bytes;
+        _width = width;
+        _height = height;
+        _channels = channels;
+        _compressed = new IdatInputStream(idat);
+        _previous = new byte[1 + width * channels];
+        _current = new byte[1 + width * channels];
+    }
+
+    /**
+     * Open a PNG, only its chunks before the image data are parsed
+     *
+     * @param source the bytes of the image
+     * @return the reader, null if the image isn't a supported PNG
+     */
+    public static PngStripReader open(ImageSource source) {
+        ByteBuffer bytes = source.getBytes();
+        int size = bytes.limit();
+        if (size < 33 || bytes.getLong(0) != SIGNATURE || bytes.getInt(12) != IHDR) return null;
+        int width = bytes.getInt(16);
+        int height = bytes.getInt(20);
+        int depth = bytes.get(24) & 0xFF;
+        int colorType = bytes.get(25) & 0xFF;
+        int interlace = bytes.get(28) & 0xFF;
+        int channels = colorType == GRAY ? 1 : colorType == RGB ? 3 : colorType == RGBA ? 4 : 0;
+        if (width <= 0 || height <= 0 || depth != 8 || channels == 0 || interlace != 0
+                || (long) width * channels >= Integer.MAX_VALUE) {
+            return null;
+        }
+        // the chunks before the image data, their transparency or profile change the decoded type
+        for (int offset = 8; offset + 8 <= size; ) {
+            long length = bytes.getInt(offset) & 0xFFFFFFFFL;
+            int type = bytes.getInt(offset + 4);
+            if (type == IDAT) return new PngStripReader(bytes, width, height, channels, offset);
+            if (type == TRNS || type == ICCP || type == IEND) return null;
+            long next = offset + 12 + length;
+            if (next > size) return null;
+            offset = (int) next;
+        }
+        return null;
+    }
+
+    /**
+     * Get the width of the image
+     *
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return _width;
+    }
+
+    /**
+     * Get the height of the image
+     *
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return _height;
+    }
+
+    /**
+     * Decode the next strip, in a buffer of the shared RasterPool
+     *
+     * @param height the height of the strip
+     * @return the rows of the strip, null after the last one
+     * @throws IOException if the image data is corrupt or truncated
+     */
+    public BufferedImage next(int height) throws IOException {
+        if (_y >= _height) return null;
+        int stripHeight = Math.min(Math.max(1, height), _height - _y);
+        int type = _channels == 1 ? BufferedImage.TYPE_BYTE_GRAY
+                : _channels == 3 ? BufferedImage.TYPE_3BYTE_BGR : BufferedImage.TYPE_4BYTE_ABGR;
+        // each pixel is written
+        BufferedImage strip = RasterPool.shared().newImage(_width, stripHeight, type, false);
+        boolean completed = false;
+        try {
+            byte[] pixels = ((DataBufferByte) strip.getRaster().getDataBuffer()).getData();
+            int stride = _width * _channels;
+            for (int row = 0; row < stripHeight; row++) {
+                readRow();
+                copyRow(_current, pixels, row * stride);
+            }
+            completed = true;
+        } finally {
+            if (!completed) RasterPool.shared().release(strip);
+        }
+        return strip;
+    }
+
+    /**
+     * Give back the memory of the inflater
+     */
+    public void close() {
+        _inflater.end();
+    }
+
+    /**
+     * Inflate and unfilter the next row in the current row
+     */
+    private void readRow() throws IOException {
+        byte[] row = _previous;
+        _previous = _current;
+        _current = row;
+        inflate(row);
+        int bpp = _channels;
+        byte[] up = _previous;
+        int length = row.length;
+        switch (row[0]) {
+            case 0:
+                break;
+            case 1:
+                for (int i = 1 + bpp; i < length; i++) row[i] += row[i - bpp];
+                break;
+            case 2:
+                for (int i = 1; i < length; i++) row[i] += up[i];
+                break;
+            case 3:
+                for (int i = 1; i < length; i++) {
+                    int left = i > bpp ? row[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) ((left + (up[i] & 0xFF)) >>> 1);
+                }
+                break;
+            case 4:
+                for (int i = 1; i < length; i++) {
+                    int left = i > bpp ? row[i - bpp] & 0xFF : 0;
+                    int corner = i > bpp ? up[i - bpp] & 0xFF : 0;
+                    row[i] += (byte) paeth(left, up[i] & 0xFF, corner);
+                }
+                break;
+            default:
+                throw new IOException("Unknown PNG filter " + row[0] + " at row " + _y);
+        }
+        _y++;
+    }
+
+    private static int paeth(int left, int above, int corner) {
+        int estimate = left + above - corner;
+        int toLeft = Math.abs(estimate - left);
+        int toAbove = Math.abs(estimate - above);
+        int toCorner = Math.abs(estimate - corner);
+        if (toLeft <= toAbove && toLeft <= toCorner) return left;
+        return toAbove <= toCorner ? above : corner;
+    }
+
+    /**
+     * Inflate a whole row from the image data
+     */
+    private void inflate(byte[] row) throws IOException {
+        int filled = 0;
+        try {
+            while (filled < row.length) {
+                int inflated = _inflater.inflate(row, filled, row.length - filled);
+                filled += inflated;
+                if (inflated > 0) continue;
+                if (_inflater.finished() || _inflater.needsDictionary()) break;
+                if (_inflater.needsInput()) {
+                    int read = _compressed.read(_input, 0, _input.length);
+                    if (read < 0) break;
+                    _inflater.setInput(_input, 0, read);
+                }
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt PNG image data at row " + _y, ex);
+        }
+        if (filled < row.length) throw new EOFException("The PNG is truncated at row " + _y);
+    }
+
+    /**
+     * Copy the samples of a row in the order of the bands of the decoded type
+     */
+    private void copyRow(byte[] row, byte[] pixels, int offset) {
+        int width = _width;
+        switch (_channels) {
+            case 1:
+                System.arraycopy(row, 1, pixels, offset, width);
+                break;
+            case 3:
+                for (int x = 0, i = 1, j = offset; x < width; x++, i += 3, j += 3) {
+                    pixels[j] = row[i + 2];
+                    pixels[j + 1] = row[i + 1];
+                    pixels[j + 2] = row[i];
+                }
+                break;
+            default:
+                for (int x = 0, i = 1, j = offset; x < width; x++, i += 4, j += 4) {
+                    pixels[j] = row[i + 3];
+                    pixels[j + 1] = row[i + 2];
+                    pixels[j + 2] = row[i + 1];
+                    pixels[j + 3] = row[i];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Data of the consecutive IDAT chunks
+     */
+    private final class IdatInputStream extends InputStream {
+        /**
+         * Store the offset of the next byte, and the end of the data of its chunk
+         */
+        private int _position, _end;
+
+        private IdatInputStream(int idat) {
+            _position = idat + 8;
+            _end = (int) Math.min(_bytes.limit(), _position + (_bytes.getInt(idat) & 0xFFFFFFFFL));
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            while (_position >= _end) {
+                // the CRC of the chunk, then the next one if it is IDAT
+                int next = _end + 4;
+                if (next + 8 > _bytes.limit() || _bytes.getInt(next + 4) != IDAT) return -1;
+                _position = next + 8;
+                _end = (int) Math.min(_bytes.limit(), _position + (_bytes.getInt(next) & 0xFFFFFFFFL));
+            }
+            int count = Math.min(length, _end - _position);
+            if (count <= 0) return -1;
+            _bytes.get(_position, buffer, offset, count);
+            _position += count;
+            return count;
+        }
+    }
+}
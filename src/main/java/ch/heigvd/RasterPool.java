@@ -0,0 +1,319 @@
+/*
+ * Class         : RasterPool
+ *
+ * Description   : Pool of the pixel buffers of the large images, reused from one job to the next
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Pool of the pixel buffers of the large images: the decoded images, their copies in the color type of the output
+ * and the strips. In batch and server workloads each image allocates buffers of the same few sizes, the ones of a
+ * camera, larger than a G1 region: they are allocated as humongous objects and the GC runs for them.
+ * The buffers are int[] for TYPE_INT_RGB and TYPE_INT_ARGB, byte[] for TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR, the types
+ * of the decoders and the compositing. They are sorted by size class, four per power of two; a buffer is taken from
+ * the class of the image or the next one, so it is at most about 50% larger than the image.
+ * The images given back must not be used anymore; an image which is never given back is collected as any other.
+ * The idle buffers are bounded, by default to 1/8 of the max heap.
+ */
+public final class RasterPool {
+
+    /**
+     * Smallest pooled buffer in elements, the smaller images are allocated
+     */
+    public static final int MIN_POOLED = 1 << 16;
+
+    /**
+     * Number of size classes per power of two
+     */
+    private static final int CLASSES_PER_POWER = 4;
+
+    private static final RasterPool SHARED = new RasterPool(Runtime.getRuntime().maxMemory() / 8);
+
+    private static final ColorModel RGB = new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF, 0);
+
+    private static final ColorModel ARGB = ColorModel.getRGBdefault();
+
+    private static final ColorModel BGR = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+            new int[]{8, 8, 8}, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+    private static final ColorModel ABGR = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+            new int[]{8, 8, 8, 8}, true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+
+    /**
+     * Store the idle int[] buffers by size class
+     */
+    private final ArrayDeque<int[]>[] _ints;
+
+    /**
+     * Store the idle byte[] buffers by size class
+     */
+    private final ArrayDeque<byte[]>[] _bytes;
+
+    /**
+     * Store the maximum bytes of the idle buffers
+     */
+    private long _capacity;
+
+    /**
+     * Store the bytes of the idle buffers
+     */
+    private long _idleBytes;
+
+    /**
+     * Store the number of buffers taken from the pool
+     */
+    private long _hits;
+
+    /**
+     * Store the number of buffers allocated
+     */
+    private long _misses;
+
+    /**
+     * Constructor
+     *
+     * @param capacity the maximum bytes of the idle buffers, 0 to disable the pool
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RasterPool(long capacity) {
+        _capacity = capacity;
+        _ints = new ArrayDeque[32 * CLASSES_PER_POWER];
+        _bytes = new ArrayDeque[32 * CLASSES_PER_POWER];
+    }
+
+    /**
+     * Get the pool shared by the jobs of the process
+     *
+     * @return the shared pool
+     */
+    public static RasterPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Check if the images of a type can have a pooled buffer
+     *
+     * @param type the BufferedImage type
+     * @return True for TYPE_INT_RGB, TYPE_INT_ARGB, TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR
+     */
+    public static boolean isPooledType(int type) {
+        return type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB
+                || type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR;
+    }
+
+    /**
+     * Create an image, its buffer comes from the pool when one is idle
+     *
+     * @param width  the width
+     * @param height the height
+     * @param type   the BufferedImage type, the types which aren't pooled are allocated
+     * @param clear  True to get transparent black pixels as a new image, false when all the pixels are overwritten
+     * @return the image
+     */
+    public BufferedImage newImage(int width, int height, int type, boolean clear) {
+        if (!isPooledType(type)) return new BufferedImage(width, height, type);
+        int bands = type == BufferedImage.TYPE_3BYTE_BGR ? 3 : 4;
+        long elements = type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB
+                ? (long) width * height : (long) width * height * bands;
+        if (elements < MIN_POOLED || elements > Integer.MAX_VALUE - 8) return new BufferedImage(width, height, type);
+        int size = (int) elements;
+
+        switch (type) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                int[] buffer = takeInts(size);
+                if (buffer == null) {
+                    buffer = new int[classSize(ceilClass(size))];
+                } else if (clear) {
+                    Arrays.fill(buffer, 0, size, 0);
+                }
+                int[] masks = type == BufferedImage.TYPE_INT_RGB
+                        ? new int[]{0xFF0000, 0xFF00, 0xFF} : new int[]{0xFF0000, 0xFF00, 0xFF, 0xFF000000};
+                WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(buffer, size), width, height,
+                        width, masks, null);
+                return new BufferedImage(type == BufferedImage.TYPE_INT_RGB ? RGB : ARGB, raster, false, null);
+            }
+            default: {
+                byte[] buffer = takeBytes(size);
+                if (buffer == null) {
+                    buffer = new byte[classSize(ceilClass(size))];
+                } else if (clear) {
+                    Arrays.fill(buffer, 0, size, (byte) 0);
+                }
+                int[] offsets = bands == 3 ? new int[]{2, 1, 0} : new int[]{3, 2, 1, 0};
+                WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(buffer, size), width, height,
+                        width * bands, bands, offsets, null);
+                return new BufferedImage(bands == 3 ? BGR : ABGR, raster, false, null);
+            }
+        }
+    }
+
+    /**
+     * Give the buffer of an image back to the pool, the image must not be used anymore.
+     * The images of other types, the small ones and the children of other rasters are ignored
+     *
+     * @param image the image, null is ignored
+     */
+    public void release(BufferedImage image) {
+        if (image == null || !isPooledType(image.getType())) return;
+        WritableRaster raster = image.getRaster();
+        if (raster.getParent() != null || raster.getDataBuffer().getNumBanks() != 1) return;
+        DataBuffer buffer = raster.getDataBuffer();
+        if (buffer instanceof DataBufferInt) {
+            giveInts(((DataBufferInt) buffer).getData());
+        } else if (buffer instanceof DataBufferByte) {
+            giveBytes(((DataBufferByte) buffer).getData());
+        }
+    }
+
+    /**
+     * Set the maximum bytes of the idle buffers, the buffers over it are dropped
+     *
+     * @param capacity the maximum bytes, 0 to disable the pool
+     */
+    public synchronized void setCapacity(long capacity) {
+        _capacity = capacity;
+        if (_idleBytes > capacity) clear();
+    }
+
+    /**
+     * Drop all the idle buffers
+     */
+    public synchronized void clear() {
+        Arrays.fill(_ints, null);
+        Arrays.fill(_bytes, null);
+        _idleBytes = 0;
+    }
+
+    /**
+     * Get the bytes of the idle buffers
+     *
+     * @return the bytes
+     */
+    public synchronized long getIdleBytes() {
+        return _idleBytes;
+    }
+
+    /**
+     * Get the number of buffers taken from the pool
+     *
+     * @return the number of reused buffers
+     */
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    /**
+     * Get the number of pooled buffers allocated, none was idle
+     *
+     * @return the number of allocated buffers
+     */
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    private synchronized int[] takeInts(int size) {
+        int[] buffer = null;
+        // the next class too: an image slightly smaller than the previous one can fall in the class below
+        for (int sizeClass = ceilClass(size); buffer == null && sizeClass <= ceilClass(size) + 1; sizeClass++) {
+            if (sizeClass < _ints.length && _ints[sizeClass] != null) buffer = _ints[sizeClass].pollLast();
+        }
+        if (buffer == null) {
+            _misses++;
+            return null;
+        }
+        _hits++;
+        _idleBytes -= 4L * buffer.length;
+        return buffer;
+    }
+
+    private synchronized byte[] takeBytes(int size) {
+        byte[] buffer = null;
+        // the next class too: an image slightly smaller than the previous one can fall in the class below
+        for (int sizeClass = ceilClass(size); buffer == null && sizeClass <= ceilClass(size) + 1; sizeClass++) {
+            if (sizeClass < _bytes.length && _bytes[sizeClass] != null) buffer = _bytes[sizeClass].pollLast();
+        }
+        if (buffer == null) {
+            _misses++;
+            return null;
+        }
+        _hits++;
+        _idleBytes -= buffer.length;
+        return buffer;
+    }
+
+    private synchronized void giveInts(int[] buffer) {
+        if (buffer.length < MIN_POOLED || _idleBytes + 4L * buffer.length > _capacity) return;
+        int sizeClass = floorClass(buffer.length);
+        if (_ints[sizeClass] == null) _ints[sizeClass] = new ArrayDeque<>();
+        _ints[sizeClass].addLast(buffer);
+        _idleBytes += 4L * buffer.length;
+    }
+
+    private synchronized void giveBytes(byte[] buffer) {
+        if (buffer.length < MIN_POOLED || _idleBytes + buffer.length > _capacity) return;
+        int sizeClass = floorClass(buffer.length);
+        if (_bytes[sizeClass] == null) _bytes[sizeClass] = new ArrayDeque<>();
+        _bytes[sizeClass].addLast(buffer);
+        _idleBytes += buffer.length;
+    }
+
+    /**
+     * Get the smallest size class holding a size
+     *
+     * @param size the number of elements, positive
+     * @return the size class
+     */
+    static int ceilClass(int size) {
+        int sizeClass = floorClass(size);
+        return classSize(sizeClass) < size ? sizeClass + 1 : sizeClass;
+    }
+
+    /**
+     * Get the largest size class not larger than a size
+     *
+     * @param size the number of elements, positive
+     * @return the size class
+     */
+    static int floorClass(int size) {
+        int power = 31 - Integer.numberOfLeadingZeros(size);
+        if (power < 2) return power * CLASSES_PER_POWER;
+        // the two bits after the leading one give the quarter
+        int quarter = (size >>> (power - 2)) & (CLASSES_PER_POWER - 1);
+        return power * CLASSES_PER_POWER + quarter;
+    }
+
+    /**
+     * Get the number of elements of a size class
+     *
+     * @param sizeClass the size class
+     * @return the size of its buffers: 2^power * (1 + quarter / 4)
+     */
+    static int classSize(int sizeClass) {
+        int power = sizeClass / CLASSES_PER_POWER;
+        int quarter = sizeClass % CLASSES_PER_POWER;
+        long size = (1L << power) + ((long) quarter << power) / CLASSES_PER_POWER;
+        return (int) Math.min(size, Integer.MAX_VALUE - 8);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Class         : TextBlock
+ *
+ * Description   : Text broken in lines fitting a width, measured once
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineBreakMeasurer;
+import java.awt.font.TextAttribute;
+import java.awt.font.TextLayout;
+import java.text.AttributedCharacterIterator;
+import java.text.AttributedString;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Text broken in lines fitting a width, on word boundaries with the metrics of the font.
+ * The lines are measured once and the block knows its tight size, it is immutable and can be shared.
+ */
+public final class TextBlock {
+
+    /**
+     * Render context of the text images: no antialiasing, integer metrics
+     */
+    public static final FontRenderContext RENDER_CONTEXT = new FontRenderContext(null, false, false);
+
+    /**
+     * Store the lines
+     */
+    private final List<TextLayout> _lines;
+
+    /**
+     * Store the baseline of each line from the top of the block
+     */
+    private final float[] _baselines;
+
+    /**
+     * Store the width of the block in pixels
+     */
+    private final int _width;
+
+    /**
+     * Store the height of the block in pixels
+     */
+    private final int _height;
+
+    private TextBlock(List<TextLayout> lines, float[] baselines, int width, int height) {
+        _lines = lines;
+        _baselines = baselines;
+        _width = width;
+        _height = height;
+    }
+
+    /**
+     * Break a text in lines fitting a width, a new line character always starts a new line
+     *
+     * @param font      the font of the text
+     * @param text      the text to break
+     * @param wrapWidth the maximum width of a line in pixels
+     * @return the measured block
+     */
+    public static TextBlock layout(Font font, String text, float wrapWidth) {
+        wrapWidth = Math.max(wrapWidth, 1);
+        List<TextLayout> lines = new ArrayList<>();
+        for (String paragraph : text.split("\n", -1)) {
+            if (paragraph.isEmpty()) {
+                // keep the height of an empty line
+                lines.add(new TextLayout(" ", font, RENDER_CONTEXT));
+                continue;
+            }
+            AttributedString attributed = new AttributedString(paragraph);
+            attributed.addAttribute(TextAttribute.FONT, font);
+            AttributedCharacterIterator iterator = attributed.getIterator();
+            LineBreakMeasurer measurer = new LineBreakMeasurer(iterator, RENDER_CONTEXT);
+            while (measurer.getPosition() < iterator.getEndIndex()) {
+                lines.add(measurer.nextLayout(wrapWidth));
+            }
+        }
+
+        float[] baselines = new float[lines.size()];
+        float y = 0;
+        double width = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            TextLayout line = lines.get(i);
+            baselines[i] = y + line.getAscent();
+            y += line.getAscent() + line.getDescent() + line.getLeading();
+            // visible advance ignores trailing spaces, bounds include italic overhang
+            width = Math.max(width, Math.max(line.getVisibleAdvance(), line.getBounds().getMaxX()));
+        }
+        return new TextBlock(List.copyOf(lines), baselines, Math.max(1, (int) Math.ceil(width)), Math.max(1, (int) Math.ceil(y)));
+    }
+
+    /**
+     * Draw the lines
+     *
+     * @param g the graphics to draw on, with the color of the text
+     * @param x the left of the block
+     * @param y the top of the block
+     */
+    public void draw(Graphics2D g, float x, float y) {
+        for (int i = 0; i < _lines.size(); i++) {
+            _lines.get(i).draw(g, x, y + _baselines[i]);
+        }
+    }
+
+    /**
+     * Get the number of lines
+     *
+     * @return the number of lines
+     */
+    public int getLineCount() {
+        return _lines.size();
+    }
+
+    /**
+     * Get the tight width of the block
+     *
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return _width;
+    }
+
+    /**
+     * Get the tight height of the block
+     *
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return _height;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Class         : TextRenderCache
+ *
+ * Description   : Bounded LRU cache of rendered text images, text layouts and font metrics
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded LRU cache of rendered text images, keyed by everything that changes their pixels,
+ * bounded LRU cache of the text broken in lines, and cache of the metrics of each font.
+ * It is thread-safe and meant to be shared by all the jobs of a service.
+ * The cached images are shared: they must not be modified.
+ */
+public class TextRenderCache {
+
+    /**
+     * Default capacity of the text images, in bytes
+     */
+    public static final long DEFAULT_CAPACITY = 64L << 20;
+
+    /**
+     * Maximum number of cached text layouts
+     */
+    public static final int MAX_LAYOUTS = 4096;
+
+    /**
+     * Scratch graphics used to get font metrics
+     */
+    private static final Graphics2D SCRATCH = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+
+    /**
+     * Rendered text images, in access order
+     */
+    private final LinkedHashMap<TileKey, BufferedImage> _tiles = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * Text broken in lines, in access order
+     */
+    private final LinkedHashMap<LayoutKey, TextBlock> _layouts = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LayoutKey, TextBlock> eldest) {
+            return size() > MAX_LAYOUTS;
+        }
+    };
+
+    /**
+     * Metrics of each font
+     */
+    private final ConcurrentHashMap<FontKey, FontMetrics> _fontMetrics = new ConcurrentHashMap<>();
+
+    /**
+     * Capacity of the text images, in bytes
+     */
+    private final long _capacity;
+
+    /**
+     * Bytes of the cached text images
+     */
+    private long _size;
+
+    /**
+     * Counters of the text images and font metrics lookups
+     */
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _fontHits = new AtomicLong();
+    private final AtomicLong _fontMisses = new AtomicLong();
+    private final AtomicLong _layoutHits = new AtomicLong();
+    private final AtomicLong _layoutMisses = new AtomicLong();
+
+    /**
+     * Constructor with the default capacity
+     */
+    public TextRenderCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity the maximum bytes of the cached text images, the least recently used are evicted
+     */
+    public TextRenderCache(long capacity) {
+        _capacity = capacity;
+    }
+
+    /**
+     * Get a rendered text image, render it on a miss
+     *
+     * @param key    everything that changes the pixels of the image
+     * @param render renders the image on a miss
+     * @return the shared image, null if the render gives nothing
+     */
+    public BufferedImage getTile(TileKey key, Supplier<BufferedImage> render) {
+        synchronized (_tiles) {
+            BufferedImage tile = _tiles.get(key);
+            if (tile != null) {
+                _hits.incrementAndGet();
+                return tile;
+            }
+        }
+        _misses.incrementAndGet();
+        // rendered outside the lock, two threads can render the same text at the same time
+        BufferedImage tile = render.get();
+        if (tile == null) return null;
+        long bytes = bytesOf(tile);
+        if (bytes > _capacity) return tile;
+        synchronized (_tiles) {
+            BufferedImage previous = _tiles.put(key, tile);
+            _size += bytes - (previous == null ? 0 : bytesOf(previous));
+            Iterator<BufferedImage> eldest = _tiles.values().iterator();
+            while (_size > _capacity && eldest.hasNext()) {
+                _size -= bytesOf(eldest.next());
+                eldest.remove();
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Get a text broken in lines, measured on a miss
+     *
+     * @param font      the font of the text
+     * @param text      the text
+     * @param wrapWidth the maximum width of a line
+     * @return the shared text block
+     */
+    public TextBlock getLayout(Font font, String text, int wrapWidth) {
+        LayoutKey key = new LayoutKey(font, text, wrapWidth);
+        synchronized (_layouts) {
+            TextBlock block = _layouts.get(key);
+            if (block != null) {
+                _layoutHits.incrementAndGet();
+                return block;
+            }
+        }
+        _layoutMisses.incrementAndGet();
+        TextBlock block = TextBlock.layout(font, text, wrapWidth);
+        synchronized (_layouts) {
+            _layouts.put(key, block);
+        }
+        return block;
+    }
+
+    /**
+     * Get the metrics of a font, the font is created once
+     *
+     * @param name  the font family
+     * @param style the Font style
+     * @param size  the font size
+     * @return the metrics, their getFont gives the font
+     */
+    public FontMetrics getFontMetrics(String name, int style, int size) {
+        FontKey key = new FontKey(name, style, size);
+        FontMetrics metrics = _fontMetrics.get(key);
+        if (metrics != null) {
+            _fontHits.incrementAndGet();
+            return metrics;
+        }
+        _fontMisses.incrementAndGet();
+        return _fontMetrics.computeIfAbsent(key, k -> fontMetricsOf(new Font(name, style, size)));
+    }
+
+    /**
+     * Get the metrics of a font without cache
+     *
+     * @param font the font
+     * @return the metrics of the font
+     */
+    public static FontMetrics fontMetricsOf(Font font) {
+        synchronized (SCRATCH) {
+            return SCRATCH.getFontMetrics(font);
+        }
+    }
+
+    /**
+     * Get the number of text images found in the cache
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return _hits.get();
+    }
+
+    /**
+     * Get the number of text images rendered because they weren't in the cache
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    /**
+     * Get the number of font metrics found in the cache
+     *
+     * @return the number of hits
+     */
+    public long getFontHits() {
+        return _fontHits.get();
+    }
+
+    /**
+     * Get the number of font metrics created
+     *
+     * @return the number of misses
+     */
+    public long getFontMisses() {
+        return _fontMisses.get();
+    }
+
+    /**
+     * Get the number of text layouts found in the cache
+     *
+     * @return the number of hits
+     */
+    public long getLayoutHits() {
+        return _layoutHits.get();
+    }
+
+    /**
+     * Get the number of texts broken in lines because they weren't in the cache
+     *
+     * @return the number of misses
+     */
+    public long getLayoutMisses() {
+        return _layoutMisses.get();
+    }
+
+    /**
+     * Get the number of cached text images
+     *
+     * @return the number of text images
+     */
+    public int size() {
+        synchronized (_tiles) {
+            return _tiles.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Text cache : " + getHits() + " hits, " + getMisses() + " misses, " + size() + " images, layouts : "
+                + getLayoutHits() + " hits, " + getLayoutMisses() + " misses, fonts : "
+                + getFontHits() + " hits, " + getFontMisses() + " misses";
+    }
+
+    private static long bytesOf(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * Key of a rendered text image
+     *
+     * @param font       the font family
+     * @param style      the Font style
+     * @param size       the font size
+     * @param color      the ARGB font color
+     * @param background the ARGB background color
+     * @param text       the text
+     * @param maxWidth   the max width used to break the lines
+     * @param margin     the margin used to break the lines
+     */
+    public record TileKey(String font, int style, int size, int color, int background, String text, int maxWidth, int margin) {
+    }
+
+    /**
+     * Key of a text layout
+     */
+    private record LayoutKey(Font font, String text, int wrapWidth) {
+    }
+
+    /**
+     * Key of a font
+     */
+    private record FontKey(String name, int style, int size) {
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Class         : Thumbnails
+ *
+ * Description   : Downscale images for the previews saved with the overlaid image
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * This class downscale images for the previews saved with the overlaid image.
+ * The scaler halves the image while it stays larger than the target, each halving averages 2x2 pixels, then a
+ * bilinear step gives the exact size: as sharp as an area average for the cost of a few passes on shrinking images.
+ * When the overlaid image isn't in memory, the source is decoded with subsampling and the overlay is scaled instead.
+ */
+public final class Thumbnails {
+
+    private Thumbnails() {
+    }
+
+    /**
+     * Get the size of a thumbnail
+     *
+     * @param width   the width of the image
+     * @param height  the height of the image
+     * @param maxSize the longest side of the thumbnail
+     * @return the size of the thumbnail, null if the image isn't larger
+     */
+    public static Dimension size(int width, int height, int maxSize) {
+        int longest = Math.max(width, height);
+        if (maxSize >= longest) return null;
+        double ratio = maxSize / (double) longest;
+        return new Dimension(Math.max(1, (int) Math.round(width * ratio)), Math.max(1, (int) Math.round(height * ratio)));
+    }
+
+    /**
+     * Downscale an image so its longest side is a size
+     *
+     * @param image   the image, not modified
+     * @param maxSize the longest side of the thumbnail
+     * @return the thumbnail, null if the image isn't larger
+     */
+    public static BufferedImage fit(BufferedImage image, int maxSize) {
+        Dimension size = size(image.getWidth(), image.getHeight(), maxSize);
+        return size == null ? null : scale(image, size.width, size.height);
+    }
+
+    /**
+     * Downscale an image by halving it, then by a bilinear step to the exact size
+     *
+     * @param image  the image, not modified
+     * @param width  the width of the result
+     * @param height the height of the result
+     * @return the scaled image, INT_ARGB if the image has alpha, else INT_RGB
+     */
+    public static BufferedImage scale(BufferedImage image, int width, int height) {
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = image;
+        int w = image.getWidth(), h = image.getHeight();
+        while (w / 2 >= width && h / 2 >= height) {
+            w /= 2;
+            h /= 2;
+            scaled = draw(scaled, w, h, type);
+        }
+        if (scaled == image || w != width || h != height) {
+            scaled = draw(scaled, width, height, type);
+        }
+        return scaled;
+    }
+
+    /**
+     * Decode the thumbnail of an image without decoding it at full size, one pixel out of n is read
+     *
+     * @param source  the bytes of the image
+     * @param maxSize the longest side of the thumbnail
+     * @return the thumbnail, null if the image isn't larger
+     * @throws IOException if the image can't be decoded
+     */
+    public static BufferedImage decode(ImageSource source, int maxSize) throws IOException {
+        if (!source.probeDimensions()) throw new IOException("Unsupported image format: " + source.getImagePath());
+        Dimension size = size(source.getWidth(), source.getHeight(), maxSize);
+        if (size == null) return null;
+        // the subsampled image stays larger than the thumbnail, the scaler averages the rest
+        int step = Math.max(1, Math.max(source.getWidth(), source.getHeight()) / maxSize / 2);
+
+        BufferedImage subsampled;
+        try (ImageInputStream stream = source.openImageStream()) {
+            ImageReader reader = ImageCodecs.acquireReader(ImageCodecs.formatOf(source.getImagePath()), stream);
+            if (reader == null) throw new IOException("Unsupported image format: " + source.getImagePath());
+            boolean completed = false;
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                subsampled = reader.read(0, param);
+                completed = true;
+            } finally {
+                ImageCodecs.releaseReader(reader, completed);
+            }
+        }
+        return scale(subsampled, size.width, size.height);
+    }
+
+    private static BufferedImage draw(BufferedImage image, int width, int height, int type) {
+        BufferedImage scaled = new BufferedImage(width, height, type);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Class         : TiledOverlay
+ *
+ * Description   : Overlay an image on a large image strip by strip, without decoding it entirely
+ *
+ * Version       : 1.0
+ *
+ * Date          : 1.10.2023
+ *
+ * Author        : Alexandre Iorio
+ */
+
+package ch.heigvd;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Vector;
+
+/**
+ * Overlay an image on a large image strip by strip, the memory is the one of a strip instead of the whole image.
+ * The strips are decoded in order, each byte of the source is decoded once: the MCU rows of a baseline JPEG are
+ * transcoded by JpegBandRewriter, the rows of a PNG are inflated by PngStripReader. The other images, a progressive
+ * JPEG or an interlaced PNG, can't be read strip by strip. Only the strips under the overlay are blended. The strips
+ * are streamed to the encoder: the PNG encoder pulls the rows one by one, the JPEG is encoded by a JpegStripWriter.
+ */
+public final class TiledOverlay {
+
+    /**
+     * Bytes of the pixels of a strip, at 4 bytes per pixel
+     */
+    public static final long STRIP_BYTES = 16L << 20;
+
+    /**
+     * Store the bytes of the source, the strips are read again from them if rows before the current strip are asked
+     */
+    private final ImageSource _source;
+
+    /**
+     * Store the strips of the source
+     */
+    private Strips _strips;
+
+    /**
+     * Store the overlayer drawing on the strips
+     */
+    private final ImageTextOverlay _overlayer;
+
+    /**
+     * Store the image to overlay
+     */
+    private final BufferedImage _overlay;
+
+    /**
+     * Store the position of the overlay in the whole image
+     */
+    private final Point _position;
+
+    /**
+     * Store the output format
+     */
+    private final String _format;
+
+    /**
+     * Store the metrics of the job
+     */
+    private final JobMetrics _metrics;
+
+    /**
+     * Store the size of the image
+     */
+    private final int _width, _height;
+
+    /**
+     * Store the height of the strips
+     */
+    private final int _stripHeight;
+
+    /**
+     * Store the current strip, overlaid
+     */
+    private BufferedImage _strip;
+
+    /**
+     * Store the current strip as decoded, the same image as the overlaid one when drawn in place
+     */
+    private BufferedImage _decoded;
+
+    /**
+     * Store the first row of the current strip, and of the next one
+     */
+    private int _stripY, _nextY;
+
+    private TiledOverlay(ImageSource source, Strips strips, int width, int height, ImageTextOverlay overlayer,
+                         BufferedImage overlay, Point position, String format, JobMetrics metrics) {
+        _source = source;
+        _strips = strips;
+        _width = width;
+        _height = height;
+        _overlayer = overlayer;
+        _overlay = overlay;
+        _position = position;
+        _format = format;
+        _metrics = metrics;
+        _stripHeight = stripHeight(width);
+    }
+
+    /**
+     * Check if an output format can be encoded strip by strip
+     *
+     * @param format the output format
+     * @return True for jpeg and png
+     */
+    public static boolean isSupported(String format) {
+        return ImageTextOverlay.isJpeg(format) || format.equalsIgnoreCase("png");
+    }
+
+    /**
+     * Check if an image can be read strip by strip: a baseline JPEG, or a non-interlaced 8-bit PNG. The strips of the
+     * other images would each decode the stream from its start
+     *
+     * @param source the bytes of the image, only its headers are parsed
+     * @return True if each byte of the image is decoded once
+     */
+    public static boolean isStreamable(ImageSource source) {
+        return JpegBandRewriter.open(source) != null || PngStripReader.open(source) != null;
+    }
+
+    /**
+     * Check if an image is too large to be decoded entirely
+     *
+     * @param source the bytes of the image, its header gives the dimensions
+     * @param format the output format
+     * @return True if its rasters would take more than half the max heap, or more than an array can hold
+     */
+    public static boolean isNeeded(ImageSource source, String format) {
+        if (!isSupported(format) || !source.probeDimensions()) return false;
+        long pixels = (long) source.getWidth() * source.getHeight();
+        return pixels > Integer.MAX_VALUE / 4
+                || AdmissionController.estimate(source, format) > Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    /**
+     * Get the height of the strips of an image, a multiple of the MCU heights
+     *
+     * @param width the width of the image
+     * @return the height of the strips
+     */
+    public static int stripHeight(int width) {
+        long rows = STRIP_BYTES / (4L * width) / JpegStripWriter.STRIP_UNIT * JpegStripWriter.STRIP_UNIT;
+        return (int) Math.max(JpegStripWriter.STRIP_UNIT, Math.min(rows, 1 << 16));
+    }
+
+    /**
+     * Estimate the peak of the rasters of a job, the one of a strip
+     *
+     * @param source the bytes of the image, its header gives the dimensions and the decoded type
+     * @param format the output format
+     * @return the estimated bytes
+     */
+    public static long estimate(ImageSource source, String format) {
+        if (!source.probeDimensions()) return 0;
+        return AdmissionController.estimate(source.getWidth(), stripHeight(source.getWidth()), source.getDecodedType(),
+                format);
+    }
+
+    /**
+     * Overlay an image on a large image strip by strip and encode it
+     *
+     * @param source    the bytes of the image, its header gives the dimensions
+     * @param overlayer the overlayer drawing on the strips
+     * @param overlay   the image to overlay, null for none
+     * @param position  the position of the overlay in the whole image, it is clipped to the image
+     * @param format    the output format, jpeg or png
+     * @param output    the output of the encoded image, not closed
+     * @param metrics   the metrics of the job
+     * @throws IOException if the image can't be decoded or encoded
+     */
+    public static void write(ImageSource source, ImageTextOverlay overlayer, BufferedImage overlay, Point position,
+                             String format, OutputStream output, JobMetrics metrics) throws IOException {
+        write(source, overlayer, overlay, position, format, ImageEncoder.defaults(), output, metrics);
+    }
+
+    /**
+     * Overlay an image on a large image strip by strip and encode it with encoder settings.
+     * The JPEG is baseline with the standard Huffman tables, the tables of the strips must be the same
+     *
+     * @param source    the bytes of the image, its header gives the dimensions
+     * @param overlayer the overlayer drawing on the strips
+     * @param overlay   the image to overlay, null for none
+     * @param position  the position of the overlay in the whole image, it is clipped to the image
+     * @param format    the output format, jpeg or png
+     * @param encoder   the settings of the encoder
+     * @param output    the output of the encoded image, not closed
+     * @param metrics   the metrics of the job
+     * @throws IOException if the image can't be decoded or encoded
+     */
+    public static void write(ImageSource source, ImageTextOverlay overlayer, BufferedImage overlay, Point position,
+                             String format, ImageEncoder encoder, OutputStream output, JobMetrics metrics) throws IOException {
+        if (!isSupported(format)) throw new IllegalArgumentException("Format not supported strip by strip: " + format);
+        if (!source.probeDimensions()) throw new IOException("Unsupported image format: " + source.getImagePath());
+        if (overlay == null) {
+            overlay = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+            position = new Point();
+        }
+        TiledOverlay tiled = new TiledOverlay(source, openStrips(source), source.getWidth(), source.getHeight(),
+                overlayer, overlay, position, format, metrics);
+        try {
+            if (ImageTextOverlay.isJpeg(format)) {
+                tiled.writeJpeg(output, encoder);
+            } else {
+                tiled.writePng(output, encoder);
+            }
+        } finally {
+            tiled.releaseStrip();
+            tiled._strips.close();
+        }
+    }
+
+    private void writeJpeg(OutputStream output, ImageEncoder encoder) throws IOException {
+        JpegStripWriter writer = new JpegStripWriter(output, _width, _height, encoder);
+        while (nextStrip() != null) {
+            long start = JobMetrics.now();
+            writer.write(_strip);
+            _metrics.add(JobMetrics.Stage.ENCODE, start);
+        }
+        writer.finish();
+    }
+
+    private void writePng(OutputStream output, ImageEncoder encoder) throws IOException {
+        // the color and sample models come from the first strip
+        if (nextStrip() == null) throw new IOException("Empty image");
+        long nested = nestedNanos();
+        long start = JobMetrics.now();
+        try {
+            if (!encoder.encode(new StripImage(), "png", output)) throw new IOException("No PNG writer");
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        // the strips are decoded and blended while the writer pulls the rows
+        _metrics.add(JobMetrics.Stage.ENCODE, start + (nestedNanos() - nested));
+    }
+
+    private long nestedNanos() {
+        return _metrics.getNanos(JobMetrics.Stage.DECODE) + _metrics.getNanos(JobMetrics.Stage.COLOR_CONVERSION)
+                + _metrics.getNanos(JobMetrics.Stage.COMPOSITE);
+    }
+
+    /**
+     * Decode the next strip and blend the overlay on it, in the color type of the output
+     *
+     * @return the strip, null after the last one
+     * @throws IOException if the strip can't be decoded
+     */
+    private BufferedImage nextStrip() throws IOException {
+        if (_nextY >= _height) return null;
+        // the encoder is done with the rows of the previous strip
+        releaseStrip();
+        long start = JobMetrics.now();
+        BufferedImage strip = _strips.next(Math.min(_stripHeight, _height - _nextY));
+        _metrics.add(JobMetrics.Stage.DECODE, start);
+        if (strip == null || strip.getWidth() != _width) throw new IOException("Corrupt strip at row " + _nextY);
+        _decoded = strip;
+
+        // the strips are alive one at a time, the peak is the largest one
+        _metrics.addRaster(strip);
+        // the strips outside the overlay are only converted to the color type of the output
+        strip = _overlayer.overlayAt(strip, _overlay, _position.x, _position.y - _nextY, _format, true, _metrics);
+
+        _strip = strip;
+        _stripY = _nextY;
+        _nextY += strip.getHeight();
+        return strip;
+    }
+
+    /**
+     * Make the current strip the one of a row, the strips are read again from the first one for an earlier row
+     *
+     * @param y the row
+     * @throws IOException if a strip can't be decoded
+     */
+    private void seek(int y) throws IOException {
+        if (y < 0 || y >= _height) throw new IllegalArgumentException("Row " + y + " outside of the image");
+        if (_strip != null && y < _stripY) {
+            releaseStrip();
+            _strips.close();
+            _strips = openStrips(_source);
+            _stripY = 0;
+            _nextY = 0;
+        }
+        while (_strip == null || y >= _nextY) {
+            if (nextStrip() == null) throw new IOException("Corrupt strip at row " + _nextY);
+        }
+    }
+
+    /**
+     * Give the buffers of the current strip back to the shared RasterPool, the next strips have the same size
+     */
+    private void releaseStrip() {
+        if (_decoded != _strip) {
+            _metrics.releaseRaster(_decoded);
+            RasterPool.shared().release(_decoded);
+        }
+        _metrics.releaseRaster(_strip);
+        RasterPool.shared().release(_strip);
+        _decoded = null;
+        _strip = null;
+    }
+
+    private static Strips openStrips(ImageSource source) throws IOException {
+        JpegBandRewriter rewriter = JpegBandRewriter.open(source);
+        if (rewriter != null) {
+            JpegBandRewriter.StripReader reader = rewriter.strips();
+            return new Strips() {
+                @Override
+                public BufferedImage next(int height) throws IOException {
+                    return reader.next(height);
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+        PngStripReader png = PngStripReader.open(source);
+        if (png != null) {
+            return new Strips() {
+                @Override
+                public BufferedImage next(int height) throws IOException {
+                    return png.next(height);
+                }
+
+                @Override
+                public void close() {
+                    png.close();
+                }
+            };
+        }
+        throw new IOException("The image : " + source.getImagePath() + " can't be read strip by strip");
+    }
+
+    /**
+     * Strips of an image, decoded in order
+     */
+    private interface Strips extends Closeable {
+        /**
+         * Decode the next strip
+         *
+         * @param height the height of the strip, a multiple of 16 except for the last one
+         * @return the rows of the strip
+         * @throws IOException if the strip can't be decoded
+         */
+        BufferedImage next(int height) throws IOException;
+    }
+
+    /**
+     * The whole image seen by the PNG writer, its rows are the ones of the current strip
+     */
+    private final class StripImage implements RenderedImage {
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            Rectangle bounds = rect.intersection(new Rectangle(0, 0, _width, _height));
+            if (bounds.isEmpty()) throw new IllegalArgumentException("The rectangle " + rect + " is outside of the image");
+            seekUnchecked(bounds.y);
+            // a copy, the buffer of the strip is reused by the next one
+            WritableRaster raster = _strip.getRaster().createCompatibleWritableRaster(bounds.x, bounds.y,
+                    bounds.width, bounds.height);
+            return copyData(raster);
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, _width, _height));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                seekUnchecked(0);
+                raster = _strip.getRaster().createCompatibleWritableRaster(_width, _height);
+            }
+            Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, _width, _height));
+            for (int y = bounds.y; y < bounds.y + bounds.height; y = _nextY) {
+                seekUnchecked(y);
+                int rows = Math.min(_nextY, bounds.y + bounds.height) - y;
+                raster.setRect(_strip.getRaster().createChild(bounds.x, y - _stripY, bounds.width, rows,
+                        bounds.x, y, null));
+            }
+            return raster;
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            if (tileX != 0 || tileY < 0 || tileY >= getNumYTiles()) {
+                throw new IllegalArgumentException("No tile " + tileX + "," + tileY);
+            }
+            seekUnchecked(tileY * _stripHeight);
+            return _strip.getRaster().createChild(0, 0, _width, _strip.getHeight(), 0, _stripY, null);
+        }
+
+        private void seekUnchecked(int y) {
+            try {
+                seek(y);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return _strip.getColorModel();
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return _strip.getSampleModel().createCompatibleSampleModel(_width, _stripHeight);
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public int getWidth() {
+            return _width;
+        }
+
+        @Override
+        public int getHeight() {
+            return _height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (_height + _stripHeight - 1) / _stripHeight;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return _width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return _stripHeight;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import ch.heigvd.AdmissionController;
+import ch.heigvd.ImageSource;
+import org.junit.Test;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControllerTest {
+
+    /**
+     * Start a job waiting for memory, it records its bytes once admitted and keeps its ticket
+     */
+    private static Thread waitFor(AdmissionController admission, long bytes, List<Long> admitted,
+                                  List<AdmissionController.Ticket> tickets) throws InterruptedException {
+        int waiting = admission.getWaiting();
+        Thread thread = new Thread(() -> {
+            try {
+                tickets.add(admission.acquire(bytes));
+                admitted.add(bytes);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        while (admission.getWaiting() == waiting && thread.isAlive()) {
+            Thread.sleep(1);
+        }
+        return thread;
+    }
+
+    @Test
+    public void smallJobsAreAdmittedFirst() throws Exception {
+        AdmissionController admission = new AdmissionController(100);
+        AdmissionController.Ticket running = admission.acquire(95);
+        List<Long> admitted = new CopyOnWriteArrayList<>();
+        List<AdmissionController.Ticket> tickets = new CopyOnWriteArrayList<>();
+
+        Thread large = waitFor(admission, 80, admitted, tickets);
+        Thread small = waitFor(admission, 10, admitted, tickets);
+        Thread medium = waitFor(admission, 20, admitted, tickets);
+        assertEquals(3, admission.getWaiting());
+
+        running.close();
+        small.join();
+        medium.join();
+        // admitted together, their threads record them in any order
+        assertEquals(Set.of(10L, 20L), Set.copyOf(admitted));
+        assertEquals(30, admission.getInUse());
+        assertTrue(large.isAlive());
+
+        for (AdmissionController.Ticket ticket : tickets) ticket.close();
+        large.join();
+        assertEquals(80L, (long) admitted.get(2));
+        assertTrue(admission.getPeak() <= admission.getBudget());
+    }
+
+    @Test
+    public void jobLargerThanTheBudgetRunsAlone() throws Exception {
+        AdmissionController admission = new AdmissionController(100);
+        AdmissionController.Ticket huge = admission.acquire(500);
+        assertEquals(500, admission.getInUse());
+
+        List<Long> admitted = new CopyOnWriteArrayList<>();
+        List<AdmissionController.Ticket> tickets = new CopyOnWriteArrayList<>();
+        Thread small = waitFor(admission, 1, admitted, tickets);
+        assertTrue(admitted.isEmpty());
+
+        huge.close();
+        small.join();
+        assertEquals(List.of(1L), admitted);
+        tickets.get(0).close();
+        assertEquals(0, admission.getInUse());
+    }
+
+    @Test
+    public void estimateComesFromTheHeader() throws Exception {
+        ImageSource source = new ImageSource("src/test/resources/test.jpg");
+        long jpeg = AdmissionController.estimate(source, "jpeg");
+        assertEquals(BufferedImage.TYPE_3BYTE_BGR, source.getDecodedType().getBufferedImageType());
+        assertEquals(4L * source.getWidth() * source.getHeight(), jpeg);
+        long png = AdmissionController.estimate(new ImageSource("src/test/resources/test.png"), "jpeg");
+
+        assertTrue(jpeg > 0);
+        assertTrue(png > 0);
+        ImageTypeSpecifier color = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_3BYTE_BGR);
+        ImageTypeSpecifier gray = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_BYTE_GRAY);
+        ImageTypeSpecifier alpha = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_4BYTE_ABGR);
+        assertEquals(AdmissionController.estimate(100, 10, color, "jpeg") * 100, AdmissionController.estimate(1000, 100, color, "jpeg"));
+        // a color JPEG decodes to 3 bytes per pixel and is drawn in place, plus 1 byte per pixel encoded
+        assertEquals(4L * 1000 * 100, AdmissionController.estimate(1000, 100, color, "jpeg"));
+        // a gray image is copied to INT_RGB, an alpha one too for a JPEG output but drawn in place for a PNG
+        assertEquals((1 + 4 + 1) * 1000L * 100, AdmissionController.estimate(1000, 100, gray, "jpeg"));
+        assertEquals((4 + 4 + 1) * 1000L * 100, AdmissionController.estimate(1000, 100, alpha, "jpeg"));
+        assertEquals((4 + 3) * 1000L * 100, AdmissionController.estimate(1000, 100, alpha, "png"));
+        // unknown: the largest pooled type and its copy
+        assertTrue(AdmissionController.estimate(1000, 100, null, "jpeg") > AdmissionController.estimate(1000, 100, color, "jpeg"));
+    }
+}
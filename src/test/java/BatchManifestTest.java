@@ -0,0 +1,99 @@
+import ch.heigvd.BatchManifest;
+import ch.heigvd.OverlayConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+
+public class BatchManifestTest {
+
+    private Path _dir;
+    private Path _input;
+    private File _output;
+
+    @Before
+    public void createFiles() throws Exception {
+        _dir = Files.createTempDirectory("inko-manifest");
+        _input = _dir.resolve("image.jpg");
+        Files.write(_input, new byte[]{1, 2, 3, 4});
+        _output = _dir.resolve("image.jpeg").toFile();
+        Files.write(_output.toPath(), new byte[]{5});
+    }
+
+    @Test
+    public void manifestIsNextToTheOutputDirectory() {
+        assertEquals(Paths.get("out/images.manifest").toAbsolutePath(), BatchManifest.pathOf(Paths.get("out/images/")));
+    }
+
+    @Test
+    public void recordedInputsAreUnchanged() throws Exception {
+        OverlayConfig config = new OverlayConfig.Builder().AddText("a\tb\nc\\d").build();
+        String digest = BatchManifest.digest(config);
+        Path file = _dir.resolve("out.manifest");
+        try (BatchManifest manifest = BatchManifest.open(file)) {
+            assertFalse(manifest.isUnchanged(_input, digest, _output));
+            manifest.record(_input, 42, config, "a\tb\nc\\d");
+        }
+
+        BatchManifest manifest = BatchManifest.open(file);
+        assertEquals(1, manifest.size());
+        assertTrue(manifest.isUnchanged(_input, digest, _output));
+        assertTrue(manifest.isUnchanged(_input, 42, digest, _output));
+        assertEquals("a\tb\nc\\d", manifest.getText(_input));
+
+        // other options, other bytes, no output
+        assertFalse(manifest.isUnchanged(_input, BatchManifest.digest(OverlayConfig.defaults()), _output));
+        assertFalse(manifest.isUnchanged(_input, 43, digest, _output));
+        assertFalse(manifest.isUnchanged(_input, digest, _dir.resolve("missing.jpeg").toFile()));
+    }
+
+    @Test
+    public void touchedInputsAreCheckedByChecksum() throws Exception {
+        OverlayConfig config = OverlayConfig.defaults();
+        String digest = BatchManifest.digest(config);
+        Path file = _dir.resolve("out.manifest");
+        try (BatchManifest manifest = BatchManifest.open(file)) {
+            manifest.record(_input, 42, config, "text");
+        }
+        Files.setLastModifiedTime(_input, FileTime.fromMillis(Files.getLastModifiedTime(_input).toMillis() + 5000));
+
+        try (BatchManifest manifest = BatchManifest.open(file)) {
+            assertFalse(manifest.isUnchanged(_input, digest, _output));
+            assertTrue(manifest.isUnchanged(_input, 42, digest, _output));
+            manifest.record(_input, 42, config, manifest.getText(_input));
+        }
+        assertTrue(BatchManifest.open(file).isUnchanged(_input, digest, _output));
+    }
+
+    @Test
+    public void interruptedManifestKeepsTheSavedImages() throws Exception {
+        Path file = _dir.resolve("out.manifest");
+        OverlayConfig config = OverlayConfig.defaults();
+        BatchManifest manifest = BatchManifest.open(file);
+        manifest.record(_input, 42, config, "text");
+        // not closed, and a line cut by the interruption
+        Files.write(file, (Files.readString(file) + "/other.jpg\t12\t").getBytes());
+
+        BatchManifest reopened = BatchManifest.open(file);
+        assertEquals(1, reopened.size());
+        assertTrue(reopened.isUnchanged(_input, BatchManifest.digest(config), _output));
+    }
+
+    @Test
+    public void foreignFileIsReplaced() throws Exception {
+        Path file = _dir.resolve("out.manifest");
+        Files.writeString(file, "not a manifest\n");
+        try (BatchManifest manifest = BatchManifest.open(file)) {
+            assertEquals(0, manifest.size());
+            manifest.record(_input, 42, OverlayConfig.defaults(), "text");
+        }
+        assertEquals("# inko manifest 1", Files.readAllLines(file).get(0));
+        assertEquals(1, BatchManifest.open(file).size());
+    }
+}
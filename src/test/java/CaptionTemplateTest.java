@@ -0,0 +1,99 @@
+import ch.heigvd.CaptionTemplate;
+import ch.heigvd.ExifHandler;
+import ch.heigvd.ImageMetadata;
+import ch.heigvd.ImageSource;
+import ch.heigvd.OverlayConfig;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class CaptionTemplateTest {
+
+    private static final ImageMetadata EXIF = new ImageMetadata.Builder()
+            .SetDateOriginal(1696170600000L) // 2023-10-01 14:30:00 UTC
+            .SetModel("Model A").SetLocation(46.7792, 6.6472).SetDimensions(800, 400).build();
+
+    @Test
+    public void fieldsAreReplaced() {
+        CaptionTemplate template = CaptionTemplate.compile("{date:dd.MM.yyyy} – {model} – {size}", "HH:mm", 0);
+
+        assertEquals("01.10.2023 – Model A – 800 x 400px", template.format(EXIF));
+        assertTrue(template.uses(ExifHandler.EXIF.DateOriginal));
+        assertFalse(template.uses(ExifHandler.EXIF.GPSLocation));
+        assertEquals("14:30, {gps}", CaptionTemplate.compile("{date}, {{gps}}", "HH:mm", 0).format(EXIF));
+        assertEquals("12:30", CaptionTemplate.compile("{date}", "HH:mm", -2).format(EXIF));
+    }
+
+    @Test
+    public void missingDataAreReported() {
+        ImageMetadata none = new ImageMetadata.Builder().build();
+        CaptionTemplate template = CaptionTemplate.compile("{date}|{model}|{gps}", "HH:mm", 0);
+
+        assertEquals("no date|Camera model information not found in EXIF data.|GPS directory not found in EXIF data.",
+                template.format(none));
+    }
+
+    @Test
+    public void datesDontDependOnTheZoneOfTheJvm() {
+        CaptionTemplate template = CaptionTemplate.compile("{date:yyyy-MM-dd HH:mm}", "HH:mm", 2);
+        TimeZone zone = TimeZone.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+            assertEquals("2023-10-01 16:30", template.format(EXIF));
+        } finally {
+            TimeZone.setDefault(zone);
+        }
+        // the directory of the date without the date
+        ImageMetadata noDate = new ImageMetadata.Builder().SetDateOriginal(ImageMetadata.NO_DATE).build();
+        assertEquals("no date", template.format(noDate));
+    }
+
+    @Test
+    public void invalidDateOptionsKeepTheDefaults() {
+        OverlayConfig config = new OverlayConfig.Builder().AddExifData(ExifHandler.EXIF.DateOriginal)
+                .SetDateFormat("HH:mm").SetDateFormat("dd.MM.yyyy zzz").SetDateFormat("pp").SetGMT(0).SetGMT(25).build();
+
+        assertEquals("HH:mm", config.getDateFormat());
+        assertEquals(0, config.getGMT());
+        assertEquals("14:30", config.getTemplate().format(EXIF));
+    }
+
+    @Test
+    public void invalidTemplatesAreRefused() {
+        for (String invalid : new String[]{"{date", "date}", "{lens}", "{model:upper}", "{date:zzz}"}) {
+            try {
+                CaptionTemplate.compile(invalid, "HH:mm", 0);
+                fail(invalid);
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        // the configuration keeps the EXIF data and texts
+        OverlayConfig config = new OverlayConfig.Builder().AddText("kept").SetTemplate("{lens}").build();
+        assertEquals("kept", config.getTemplate().format(EXIF));
+    }
+
+    @Test
+    public void optionsAreCompiledInTheirOrder() {
+        CaptionTemplate template = CaptionTemplate.of(List.of(ExifHandler.EXIF.Text, ExifHandler.EXIF.CameraModel,
+                        ExifHandler.EXIF.ImageSize, ExifHandler.EXIF.Text), List.of("Shot with ", "end"), " - ",
+                "HH:mm", 0);
+
+        // a personal text isn't followed by the separator, the last data neither
+        assertEquals("Shot with Model A - 800 x 400px - end", template.format(EXIF));
+        assertEquals("", CaptionTemplate.of(List.of(), List.of(), " - ", "HH:mm", 0).format(EXIF));
+    }
+
+    @Test
+    public void oneConfigurationComputesManyImages() throws Exception {
+        OverlayConfig config = new OverlayConfig.Builder().SetTemplate("{model} ({size})").build();
+        ExifHandler handler = new ExifHandler(new ImageSource("src/test/resources/exif.jpg"), config);
+
+        assertEquals("Inko Test Camera (800 x 400px)", handler.ComputeImageText());
+        assertEquals("Inko Test Camera (800 x 400px)", handler.ComputeImageText());
+        assertEquals("Camera model information not found in EXIF data. (800 x 400px)",
+                new ExifHandler(new ImageSource("src/test/resources/test.jpg"), config).ComputeImageText());
+    }
+}
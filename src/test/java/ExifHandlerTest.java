@@ -0,0 +1,59 @@
+import ch.heigvd.ExifHandler;
+import ch.heigvd.ImageSource;
+import ch.heigvd.OverlayConfig;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ExifHandlerTest {
+
+    private static final String IMAGE = "src/test/resources/exif.jpg";
+
+    @Test
+    public void exifDataAreRead() throws Exception {
+        OverlayConfig config = new OverlayConfig.Builder()
+                .AddExifData(ExifHandler.EXIF.DateOriginal)
+                .AddExifData(ExifHandler.EXIF.CameraModel)
+                .AddExifData(ExifHandler.EXIF.GPSLocation)
+                .AddExifData(ExifHandler.EXIF.ImageSize)
+                .SetDateFormat("dd.MM.yyyy HH:mm").SetGMT(0).SetSeparator("|").build();
+
+        String text = new ExifHandler(new ImageSource(IMAGE), config).ComputeImageText();
+
+        assertEquals("01.10.2023 14:30 | Inko Test Camera | Latitude: 46° 46' 45\", Longitude: 6° 38' 50\" | 800 x 400px",
+                text);
+    }
+
+    @Test
+    public void onlyRequestedDirectoriesAreRead() throws Exception {
+        OverlayConfig config = new OverlayConfig.Builder().AddExifData(ExifHandler.EXIF.GPSLocation)
+                .AddExifData(ExifHandler.EXIF.CameraModel).build();
+        ExifHandler handler = new ExifHandler(new ImageSource(IMAGE), config);
+
+        assertEquals("Inko Test Camera", handler.getCameraModel());
+        assertTrue(handler.getGPSLocation().startsWith("Latitude: 46°"));
+
+        OverlayConfig model = new OverlayConfig.Builder().AddExifData(ExifHandler.EXIF.CameraModel).build();
+        assertEquals("GPS directory not found in EXIF data.",
+                new ExifHandler(new ImageSource(IMAGE), model).getGPSLocation());
+    }
+
+    @Test
+    public void metadataAreNotParsedWithoutExifData() throws Exception {
+        // a JPEG cut after its first marker: only the data reading its metadata fail
+        ImageSource source = new ImageSource("cut.jpg", ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}));
+
+        OverlayConfig text = new OverlayConfig.Builder().AddText("only text").build();
+        assertEquals("only text", new ExifHandler(source, text).ComputeImageText());
+
+        OverlayConfig model = new OverlayConfig.Builder().AddExifData(ExifHandler.EXIF.CameraModel).build();
+        try {
+            new ExifHandler(source, model).ComputeImageText();
+            fail("the metadata of a cut JPEG can't be parsed");
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import ch.heigvd.BatchManifest;
+import ch.heigvd.CaptionTemplate;
+import ch.heigvd.ExifHandler;
+import ch.heigvd.Gazetteer;
+import ch.heigvd.ImageSource;
+import ch.heigvd.OverlayConfig;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+
+public class GazetteerTest {
+
+    @Test
+    public void nearestBundledPlace() {
+        Gazetteer places = Gazetteer.bundled();
+        assertTrue(places.size() > 100);
+        assertEquals("Yverdon-les-Bains, CH", places.nearest(46.7792, 6.6472, 50));
+        assertEquals("Grandson, CH", places.nearest(46.8100, 6.6450, 50));
+    }
+
+    @Test
+    public void nearestPlaceAcrossTheDateline() {
+        // Suva is west of the 180th meridian, the point east of it
+        assertEquals("Suva, FJ", Gazetteer.bundled().nearest(-18.0, -179.9, 500));
+    }
+
+    @Test
+    public void noPlaceBeyondTheDistance() {
+        // the middle of the Pacific
+        assertNull(Gazetteer.bundled().nearest(-40.0, -130.0, 50));
+    }
+
+    @Test
+    public void geoNamesFileIsCompiledOnce() throws Exception {
+        Path dir = Files.createTempDirectory("inko-gazetteer");
+        Path file = dir.resolve("cities.txt");
+        Files.write(file, String.join("\n",
+                "1\tYverdon-les-Bains\tYverdon-les-Bains\t\t46.7785\t6.6410\tP\tPPLA3\tCH\t\tVD\t\t\t\t30143\t\t439\tEurope/Zurich\t2023-01-01",
+                "2\tZürich\tZurich\t\t47.3667\t8.5500\tP\tPPLA\tCH\t\tZH\t\t\t\t341730\t\t408\tEurope/Zurich\t2023-01-01",
+                "invalid line",
+                "").getBytes(StandardCharsets.UTF_8));
+
+        Gazetteer built = Gazetteer.open(file);
+        assertEquals(2, built.size());
+        assertEquals("Zürich, CH", built.nearest(47.37, 8.54, 50));
+        assertTrue(Files.exists(dir.resolve("cities.txt.inko")));
+
+        Gazetteer mapped = Gazetteer.open(file);
+        assertEquals(built.toString(), mapped.toString());
+        assertEquals("Yverdon-les-Bains, CH", mapped.nearest(46.78, 6.64, 50));
+        assertNull(mapped.nearest(46.0, 2.0, 50));
+    }
+
+    @Test
+    public void replacedFileChangesTheOptions() throws Exception {
+        Path dir = Files.createTempDirectory("inko-gazetteer");
+        Path file = dir.resolve("cities.txt");
+        Files.writeString(file, "1\tYverdon-les-Bains\t\t\t46.7785\t6.6410\tP\tPPLA3\tCH\n");
+        String before = BatchManifest.digest(new OverlayConfig.Builder().AddExifData(ExifHandler.EXIF.Place)
+                .SetGazetteer(file.toString()).build());
+        assertEquals(before, BatchManifest.digest(new OverlayConfig.Builder().AddExifData(ExifHandler.EXIF.Place)
+                .SetGazetteer(file.toString()).build()));
+
+        // same name, other places
+        Files.writeString(file, "1\tGrandson\t\t\t46.8093\t6.6459\tP\tPPL\tCH\n");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(
+                Files.getLastModifiedTime(dir.resolve("cities.txt.inko")).toMillis() + 5000));
+        String after = BatchManifest.digest(new OverlayConfig.Builder().AddExifData(ExifHandler.EXIF.Place)
+                .SetGazetteer(file.toString()).build());
+        assertNotEquals(before, after);
+    }
+
+    @Test
+    public void placeOfTheImage() throws Exception {
+        OverlayConfig config = new OverlayConfig.Builder().AddExifData(ExifHandler.EXIF.Place).build();
+        ExifHandler handler = new ExifHandler(new ImageSource("src/test/resources/exif.jpg"), config);
+        assertEquals("Yverdon-les-Bains, CH", handler.ComputeImageText());
+
+        CaptionTemplate template = CaptionTemplate.compile("{place} ({gps})", "dd.MM.yyyy", 0);
+        assertTrue(template.uses(ExifHandler.EXIF.Place));
+        handler = new ExifHandler(new ImageSource("src/test/resources/test.jpg"), config);
+        assertEquals("GPS directory not found in EXIF data.", handler.ComputeImageText());
+    }
+}
@@ -0,0 +1,114 @@
+import ch.heigvd.ImageEncoder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ImageEncoderTest {
+
+    private static BufferedImage _image;
+
+    @BeforeClass
+    public static void readImage() throws Exception {
+        _image = ImageIO.read(new File("src/test/resources/test.jpg"));
+    }
+
+    private static byte[] encode(ImageEncoder encoder, RenderedImage image, String format) throws Exception {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        assertTrue(encoder.encode(image, format, encoded));
+        return encoded.toByteArray();
+    }
+
+    private static IIOMetadataNode jpegTree(byte[] jpeg) throws Exception {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        reader.setInput(ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg)));
+        try {
+            return (IIOMetadataNode) reader.getImageMetadata(0).getAsTree("javax_imageio_jpeg_image_1.0");
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static BufferedImage copy(BufferedImage image, int type) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D g = copy.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    @Test
+    public void defaultsAreTheOnesOfImageIO() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ImageIO.write(_image, "jpeg", expected);
+
+        assertArrayEquals(expected.toByteArray(), encode(ImageEncoder.defaults(), _image, "jpeg"));
+    }
+
+    @Test
+    public void jpegSettingsAreWritten() throws Exception {
+        byte[] low = encode(new ImageEncoder.Builder().SetQuality("40").build(), _image, "jpeg");
+        byte[] high = encode(new ImageEncoder.Builder().SetQuality("95").build(), _image, "jpeg");
+        byte[] optimized = encode(new ImageEncoder.Builder().SetOptimizeHuffman(true).build(), _image, "jpeg");
+        byte[] progressive = encode(new ImageEncoder.Builder().SetProgressive(true).SetChromaSubsampling("444").build(),
+                _image, "jpeg");
+
+        assertTrue(low.length < high.length);
+        assertTrue(optimized.length < encode(ImageEncoder.defaults(), _image, "jpeg").length);
+        IIOMetadataNode tree = jpegTree(progressive);
+        assertEquals("2", ((IIOMetadataNode) tree.getElementsByTagName("sof").item(0)).getAttribute("process"));
+        IIOMetadataNode luma = (IIOMetadataNode) tree.getElementsByTagName("componentSpec").item(0);
+        assertEquals("1", luma.getAttribute("HsamplingFactor"));
+        assertEquals("1", luma.getAttribute("VsamplingFactor"));
+        assertNotNull(ImageIO.read(new ByteArrayInputStream(progressive)));
+    }
+
+    @Test
+    public void pngFiltersAreLossless() throws Exception {
+        int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY};
+        for (int type : types) {
+            BufferedImage image = copy(_image, type);
+            for (ImageEncoder.PngFilter filter : ImageEncoder.PngFilter.values()) {
+                ImageEncoder encoder = new ImageEncoder.Builder().SetPngFilter(filter.name()).SetPngCompression("1").build();
+                BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encode(encoder, image, "png")));
+
+                for (int y = 0; y < image.getHeight(); y++) {
+                    for (int x = 0; x < image.getWidth(); x++) {
+                        assertEquals("type " + type + ", " + filter, image.getRGB(x, y), decoded.getRGB(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pngCompressionTradesSizeForSpeed() throws Exception {
+        byte[] stored = encode(new ImageEncoder.Builder().SetPngCompression("0").build(), _image, "png");
+        byte[] smallest = encode(new ImageEncoder.Builder().SetPngCompression("9").build(), _image, "png");
+
+        assertTrue(stored.length > 3L * _image.getWidth() * _image.getHeight());
+        assertTrue(smallest.length < stored.length / 2);
+    }
+
+    @Test
+    public void invalidSettingsKeepTheDefaults() {
+        ImageEncoder encoder = new ImageEncoder.Builder().SetQuality("0").SetChromaSubsampling("411")
+                .SetPngCompression("10").SetPngFilter("best").build();
+
+        assertEquals(0.75f, encoder.getQuality(), 0f);
+        assertEquals("420", encoder.getChromaSubsampling());
+        assertEquals(4, encoder.getPngCompression());
+        assertEquals(ImageEncoder.PngFilter.ADAPTIVE, encoder.getPngFilter());
+    }
+}
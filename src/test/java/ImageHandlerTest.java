@@ -0,0 +1,77 @@
+import ch.heigvd.ImageHandler;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ImageHandlerTest {
+
+    /**
+     * Reference conversion, pixel by pixel through the color model
+     */
+    private static void assertFlattened(BufferedImage image) {
+        BufferedImage rgbImage = ImageHandler.convertARGBtoRGB(image);
+        assertEquals(BufferedImage.TYPE_INT_RGB, rgbImage.getType());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int argb = image.getRGB(x, y);
+                int expected = argb >>> 24 == 0 ? 0xFFFFFF : argb & 0xFFFFFF;
+                assertEquals("pixel " + x + "," + y, expected, rgbImage.getRGB(x, y) & 0xFFFFFF);
+            }
+        }
+    }
+
+    private static BufferedImage randomImage(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // a quarter of the pixels fully transparent
+                int alpha = random.nextInt(4) == 0 ? 0 : random.nextInt(256);
+                image.setRGB(x, y, alpha << 24 | random.nextInt(1 << 24));
+            }
+        }
+        return image;
+    }
+
+    @Test
+    public void convertIntARGB() {
+        assertFlattened(randomImage(1200, 1000, BufferedImage.TYPE_INT_ARGB));
+    }
+
+    @Test
+    public void convert4ByteABGR() {
+        assertFlattened(randomImage(1200, 1000, BufferedImage.TYPE_4BYTE_ABGR));
+    }
+
+    @Test
+    public void convertSubImage() {
+        assertFlattened(randomImage(300, 200, BufferedImage.TYPE_INT_ARGB).getSubimage(17, 33, 150, 100));
+        assertFlattened(randomImage(300, 200, BufferedImage.TYPE_4BYTE_ABGR).getSubimage(17, 33, 150, 100));
+    }
+
+    @Test
+    public void convertOtherTypes() throws IOException {
+        assertFlattened(randomImage(64, 48, BufferedImage.TYPE_INT_ARGB_PRE));
+        assertFlattened(ImageIO.read(new File("src/test/resources/testSemiTransparent.png")));
+        assertFlattened(ImageIO.read(new File("src/test/resources/test.jpg")));
+    }
+
+    @Test
+    public void otherFormatsAreRejected() throws IOException {
+        File bmp = File.createTempFile("inko-image", ".bmp");
+        bmp.deleteOnExit();
+        ImageIO.write(new BufferedImage(16, 16, BufferedImage.TYPE_3BYTE_BGR), "bmp", bmp);
+        try {
+            new ImageHandler(bmp.getPath());
+            fail("a BMP image is decoded");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().endsWith("has an unsupported format"));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import ch.heigvd.ExifHandler;
+import ch.heigvd.ImageHandler;
+import ch.heigvd.ImageSource;
+import ch.heigvd.OverlayConfig;
+import ch.heigvd.RasterPool;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class ImageSourceTest {
+
+    private static final String IMAGE = "src/test/resources/exif.jpg";
+
+    private static final int LARGE_WIDTH = 6000;
+    private static final int LARGE_HEIGHT = 4000;
+
+    private static Path _largeJpeg;
+    private static Path _largePng;
+
+    @BeforeClass
+    public static void createLargeImages() throws Exception {
+        Path dir = Files.createTempDirectory("inko-large");
+        _largeJpeg = dir.resolve("large.jpg");
+        _largePng = dir.resolve("large.png");
+        ImageIO.write(new BufferedImage(LARGE_WIDTH, LARGE_HEIGHT, BufferedImage.TYPE_3BYTE_BGR), "jpeg", _largeJpeg.toFile());
+        ImageIO.write(new BufferedImage(LARGE_WIDTH, LARGE_HEIGHT, BufferedImage.TYPE_3BYTE_BGR), "png", _largePng.toFile());
+    }
+
+    /**
+     * Count the rasters taken from the shared pool, each decode takes one
+     */
+    private static long rasters() {
+        return RasterPool.shared().getHits() + RasterPool.shared().getMisses();
+    }
+
+    /**
+     * Check that two images have the same pixels
+     */
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * Compute the text of all the EXIF data of an image
+     */
+    private static String exifText(ExifHandler handler) throws Exception {
+        handler.AddExifData(ExifHandler.EXIF.DateOriginal);
+        handler.AddExifData(ExifHandler.EXIF.CameraModel);
+        handler.AddExifData(ExifHandler.EXIF.GPSLocation);
+        handler.AddExifData(ExifHandler.EXIF.ImageSize);
+        handler.SetGMT(0);
+        return handler.ComputeImageText();
+    }
+
+    @Test
+    public void parserAndDecoderShareTheBytes() throws Exception {
+        // the name is no file, the parser and the decoder can only read the bytes of the source
+        ImageSource source = new ImageSource("received.jpg", ByteBuffer.wrap(Files.readAllBytes(Path.of(IMAGE))));
+
+        assertEquals(exifText(new ExifHandler(IMAGE)), exifText(new ExifHandler(source)));
+        BufferedImage decoded = new ImageHandler(source).getImage();
+        assertSamePixels(ImageIO.read(new File(IMAGE)), decoded);
+        RasterPool.shared().release(decoded);
+    }
+
+    @Test
+    public void fileIsReadOnce() throws Exception {
+        Path copy = Files.createTempFile("inko-source", ".jpg");
+        Files.copy(Path.of(IMAGE), copy, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        ImageSource source = new ImageSource(copy.toString());
+        // the mapped bytes outlive the file where it can be deleted while mapped
+        Assume.assumeTrue(copy.toFile().delete());
+
+        assertEquals(exifText(new ExifHandler(IMAGE)), exifText(new ExifHandler(source)));
+        BufferedImage decoded = new ImageHandler(source).getImage();
+        assertSamePixels(ImageIO.read(new File(IMAGE)), decoded);
+        RasterPool.shared().release(decoded);
+    }
+
+    @Test
+    public void dimensionsAreProbedWithoutDecoding() throws Exception {
+        OverlayConfig size = new OverlayConfig.Builder().AddExifData(ExifHandler.EXIF.ImageSize).build();
+        for (Path image : new Path[]{_largeJpeg, _largePng}) {
+            long rasters = rasters();
+            ImageSource source = new ImageSource(image.toString());
+            assertTrue(image.toString(), source.probeDimensions());
+            assertEquals(LARGE_WIDTH, source.getWidth());
+            assertEquals(LARGE_HEIGHT, source.getHeight());
+            assertEquals("6000 x 4000px", new ExifHandler(new ImageSource(image.toString()), size).ComputeImageText());
+            assertEquals("no raster decoded for " + image, rasters, rasters());
+
+            // while a decode takes one
+            BufferedImage decoded = new ImageHandler(new ImageSource(image.toString())).getImage();
+            assertEquals(rasters + 1, rasters());
+            RasterPool.shared().release(decoded);
+        }
+    }
+
+    @Test
+    public void headersAloneGiveTheDimensions() throws Exception {
+        for (Path image : new Path[]{_largeJpeg, _largePng}) {
+            // the pixels are cut, only the headers are left
+            byte[] bytes = Files.readAllBytes(image);
+            byte[] headers = java.util.Arrays.copyOf(bytes, Math.min(bytes.length, 2048));
+            ImageSource source = new ImageSource(image.getFileName().toString(), ByteBuffer.wrap(headers));
+            assertTrue(image.toString(), source.probeDimensions());
+            assertEquals(LARGE_WIDTH, source.getWidth());
+            assertEquals(LARGE_HEIGHT, source.getHeight());
+        }
+    }
+}
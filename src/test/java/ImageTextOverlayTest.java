@@ -0,0 +1,194 @@
+import ch.heigvd.AlphaBlender;
+import ch.heigvd.ImageTextOverlay;
+import ch.heigvd.OverlayConfig;
+import ch.heigvd.TextBlock;
+import ch.heigvd.TextRenderCache;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ImageTextOverlayTest {
+
+    private static BufferedImage filledImage(int width, int height, int type, Color color) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return image;
+    }
+
+    @Test
+    public void jpegOverlayIsDrawnInPlace() {
+        ImageTextOverlay overlayer = new ImageTextOverlay();
+        BufferedImage image = filledImage(400, 300, BufferedImage.TYPE_3BYTE_BGR, Color.BLUE);
+        BufferedImage overlay = filledImage(100, 50, BufferedImage.TYPE_INT_ARGB, Color.RED);
+
+        BufferedImage overlaid = overlayer.overlayImages(image, overlay, "lt", "jpeg", true);
+
+        assertSame(image, overlaid);
+        // margin of 10 pixels, only the rectangle of the overlay changed
+        assertEquals(Color.RED.getRGB(), overlaid.getRGB(10, 10));
+        assertEquals(Color.RED.getRGB(), overlaid.getRGB(109, 59));
+        assertEquals(Color.BLUE.getRGB(), overlaid.getRGB(110, 60));
+        assertEquals(Color.BLUE.getRGB(), overlaid.getRGB(9, 9));
+    }
+
+    @Test
+    public void baseImageIsKeptWithoutInPlace() {
+        ImageTextOverlay overlayer = new ImageTextOverlay();
+        BufferedImage image = filledImage(400, 300, BufferedImage.TYPE_3BYTE_BGR, Color.BLUE);
+        BufferedImage overlay = filledImage(100, 50, BufferedImage.TYPE_INT_ARGB, Color.RED);
+
+        BufferedImage overlaid = overlayer.overlayImages(image, overlay, "c", "jpeg");
+
+        assertNotSame(image, overlaid);
+        assertEquals(BufferedImage.TYPE_INT_RGB, overlaid.getType());
+        assertEquals(Color.BLUE.getRGB(), image.getRGB(200, 150));
+        assertEquals(Color.RED.getRGB(), overlaid.getRGB(200, 150));
+    }
+
+    @Test
+    public void transparentBaseIsFlattenedOnceForJpeg() {
+        ImageTextOverlay overlayer = new ImageTextOverlay();
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage overlay = filledImage(100, 50, BufferedImage.TYPE_INT_ARGB, Color.RED);
+
+        BufferedImage overlaid = overlayer.overlayImages(image, overlay, "rb", "jpg", true);
+
+        assertEquals(BufferedImage.TYPE_INT_RGB, overlaid.getType());
+        assertEquals(Color.WHITE.getRGB(), overlaid.getRGB(0, 0));
+        assertEquals(Color.RED.getRGB(), overlaid.getRGB(389, 289));
+    }
+
+    private static BufferedImage randomImage(int width, int height, int type, long seed) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Compare the blend with Java2D, channels can differ by rounding
+     */
+    private static void assertBlendLikeJava2D(int targetType, int overlayType, int x, int y) {
+        BufferedImage overlay = randomImage(300, 120, overlayType, 1);
+        BufferedImage expected = randomImage(500, 400, targetType, 2);
+        BufferedImage actual = randomImage(500, 400, targetType, 2);
+
+        Graphics2D g = expected.createGraphics();
+        g.drawImage(overlay, x, y, null);
+        g.dispose();
+        AlphaBlender.blend(overlay, actual, x, y);
+
+        for (int row = 0; row < expected.getHeight(); row++) {
+            for (int col = 0; col < expected.getWidth(); col++) {
+                int e = expected.getRGB(col, row);
+                int a = actual.getRGB(col, row);
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int diff = Math.abs((e >>> shift & 0xFF) - (a >>> shift & 0xFF));
+                    // Java2D keeps fewer bits when it blends on a translucent destination
+                    int tolerance = (e >>> 24) == 0xFF ? 1 : 3;
+                    assertTrue("pixel " + col + "," + row + " " + Integer.toHexString(e) + " " + Integer.toHexString(a),
+                            diff <= tolerance);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void blendLikeJava2D() {
+        int[] targetTypes = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR};
+        for (int targetType : targetTypes) {
+            assertBlendLikeJava2D(targetType, BufferedImage.TYPE_INT_ARGB, 50, 60);
+            assertBlendLikeJava2D(targetType, BufferedImage.TYPE_INT_ARGB_PRE, 50, 60);
+            // overlay partially outside the image
+            assertBlendLikeJava2D(targetType, BufferedImage.TYPE_INT_ARGB, -10, 350);
+            assertBlendLikeJava2D(targetType, BufferedImage.TYPE_INT_ARGB, 400, -20);
+        }
+    }
+
+    @Test
+    public void textImagesAreCached() {
+        TextRenderCache cache = new TextRenderCache();
+        ImageTextOverlay overlayer = new ImageTextOverlay(OverlayConfig.defaults(), cache);
+        ImageTextOverlay red = new ImageTextOverlay(new OverlayConfig.Builder().SetFontColor("#FFFF0000").build(), cache);
+
+        BufferedImage first = overlayer.CreateImageText("Canon EOS 5D", 800);
+        BufferedImage second = overlayer.CreateImageText("Canon EOS 5D", 800);
+        BufferedImage other = red.CreateImageText("Canon EOS 5D", 800);
+
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getFontMisses());
+        assertEquals(1, cache.getFontHits());
+    }
+
+    @Test
+    public void textCacheEvictsLeastRecentlyUsed() {
+        BufferedImage tile = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        // room for two images of 16 x 16
+        TextRenderCache cache = new TextRenderCache(2 * 4 * 16 * 16);
+        TextRenderCache.TileKey a = new TextRenderCache.TileKey("Arial", 0, 10, 0, 0, "a", 100, 0);
+        TextRenderCache.TileKey b = new TextRenderCache.TileKey("Arial", 0, 10, 0, 0, "b", 100, 0);
+        TextRenderCache.TileKey c = new TextRenderCache.TileKey("Arial", 0, 10, 0, 0, "c", 100, 0);
+
+        cache.getTile(a, () -> tile);
+        cache.getTile(b, () -> tile);
+        cache.getTile(a, () -> tile);
+        cache.getTile(c, () -> tile);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getHits());
+        // b was the least recently used
+        cache.getTile(a, () -> tile);
+        assertEquals(2, cache.getHits());
+        cache.getTile(b, () -> tile);
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void shortTextImageIsTight() {
+        ImageTextOverlay overlayer = new ImageTextOverlay();
+
+        BufferedImage text = overlayer.CreateImageText("f/2.8", 4000);
+
+        assertTrue(text.getWidth() < 200);
+        assertTrue(text.getHeight() < 100);
+    }
+
+    @Test
+    public void longTextIsBrokenOnWords() {
+        OverlayConfig config = new OverlayConfig.Builder().SetMargin("20").build();
+        ImageTextOverlay overlayer = new ImageTextOverlay(config, new TextRenderCache());
+        String text = "Canon EOS 5D Mark IV - 24.05.2023 14:31:07 - 46.7785, 6.6410 - a walk along the lake";
+        Font font = new Font(config.getFont(), config.getFontWidth(), config.getFontSize());
+
+        TextBlock block = TextBlock.layout(font, text, 400 - 2 * 20);
+        BufferedImage image = overlayer.CreateImageText(text, 400);
+
+        assertTrue(block.getLineCount() > 1);
+        assertTrue(image.getWidth() <= 400 - 2 * 20);
+        assertEquals(block.getWidth(), image.getWidth());
+        assertEquals(block.getHeight(), image.getHeight());
+    }
+
+    @Test
+    public void newLineStartsALine() {
+        Font font = new Font("Arial", Font.PLAIN, 20);
+
+        assertEquals(1, TextBlock.layout(font, "one two", 1000).getLineCount());
+        assertEquals(2, TextBlock.layout(font, "one\ntwo", 1000).getLineCount());
+    }
+}
@@ -2,7 +2,10 @@ import ch.heigvd.Inko;
 import org.junit.*;
 import picocli.CommandLine;
 
+import javax.imageio.ImageIO;
 import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -55,6 +58,39 @@ public class InkoTest {
         assertTrue(exists && exitCode == 0);
     }
 
+    @Test
+    public void jpgSplicedToJpg() {
+        String outputFormat = "jpg";
+        String outputFilePath = OUTPUT_FOLDER + "jpgSplicedToJpg";
+
+        File outputFile = getTestFile(outputFilePath, outputFormat);
+
+        int exitCode = run("-p", "src/test/resources/test.jpg", "-o", outputFilePath, "-of", outputFormat, "-t", "spliced", "-sj");
+
+        boolean exists = outputFile.exists();
+        assertTrue(exists && exitCode == 0);
+    }
+
+    @Test
+    public void thumbnails() throws Exception {
+        String outputFormat = "png";
+        for (String mode : new String[]{"", "-sj", "-tl"}) {
+            String format = mode.equals("-sj") ? "jpeg" : outputFormat;
+            String outputFilePath = OUTPUT_FOLDER + "thumbnails" + mode;
+            File small = getTestFile(outputFilePath + "_100", format);
+            File large = getTestFile(outputFilePath + "_300", format);
+
+            int exitCode = run("-p", "src/test/resources/test.jpg", "-o", outputFilePath, "-of", format, "-t", "thumbnail",
+                    "-th", "100,300,10000", mode.isEmpty() ? "-po=c" : mode);
+
+            assertEquals(0, exitCode);
+            // the longest side is the size of the thumbnail
+            assertEquals(100, Math.max(ImageIO.read(small).getWidth(), ImageIO.read(small).getHeight()));
+            assertEquals(300, Math.max(ImageIO.read(large).getWidth(), ImageIO.read(large).getHeight()));
+            assertFalse(new File(outputFilePath + "_10000." + format).exists());
+        }
+    }
+
     @Test
     public void pngToJpg() {
         String outputFormat = "jpg";
@@ -81,6 +117,29 @@ public class InkoTest {
         assertTrue(exists && exitCode == 0);
     }
 
+    @Test
+    public void transparentPngToJpgIsWhite() throws Exception {
+        java.nio.file.Path dir = Files.createTempDirectory("inko-transparent");
+        File input = dir.resolve("transparent.png").toFile();
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(400, 300, java.awt.image.BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 300; y++) {
+            for (int x = 200; x < 400; x++) image.setRGB(x, y, 0x80FF0000);
+        }
+        ImageIO.write(image, "png", input);
+
+        for (String mode : new String[]{"-po=lt", "-tl"}) {
+            String outputPath = dir.resolve("output" + mode).toString();
+            assertEquals(0, run("-p", input.getPath(), "-o", outputPath, "-of", "jpeg", "-t", "text", mode));
+
+            java.awt.image.BufferedImage output = ImageIO.read(new File(outputPath + ".jpeg"));
+            // away from the text: the transparent half is white, the semi-transparent one red without its alpha
+            java.awt.Color transparent = new java.awt.Color(output.getRGB(100, 250));
+            java.awt.Color semiTransparent = new java.awt.Color(output.getRGB(300, 250));
+            assertTrue(mode + " " + transparent, transparent.getRed() > 245 && transparent.getGreen() > 245 && transparent.getBlue() > 245);
+            assertTrue(mode + " " + semiTransparent, semiTransparent.getRed() > 220 && semiTransparent.getGreen() < 30);
+        }
+    }
+
     @Test
     public void charInFontSize() {
         String outputFormat = "jpg";
@@ -151,6 +210,103 @@ public class InkoTest {
         assertTrue(exists && exitCode == 0);
     }
 
+    @Test
+    public void batchDirectory() {
+        String outputFormat = "jpg";
+        String outputDir = OUTPUT_FOLDER + "batch";
+
+        File[] outputFiles = {
+                getTestFile(outputDir + "/test", outputFormat),
+                getTestFile(outputDir + "/testSemiTransparent", outputFormat)
+        };
+
+        int exitCode = run("-b", "src/test/resources", "-od", outputDir, "-of", outputFormat, "-cm", "-j", "2");
+
+        for (File outputFile : outputFiles) {
+            assertTrue(outputFile.getPath(), outputFile.exists());
+        }
+        assertEquals(0, exitCode);
+    }
+
+    @Test
+    public void batchNameCollisions() throws Exception {
+        java.nio.file.Path inputDir = Files.createTempDirectory("inko-names");
+        java.nio.file.Path outputDir = Files.createTempDirectory("inko-names-out");
+        Files.copy(new File("src/test/resources/test.jpg").toPath(), inputDir.resolve("a.jpg"));
+        Files.copy(new File("src/test/resources/test.png").toPath(), inputDir.resolve("a.png"));
+        Files.copy(new File("src/test/resources/test.jpg").toPath(), inputDir.resolve("a_2.jpg"));
+
+        int exitCode = run("-b", inputDir.toString(), "-od", outputDir.toString(), "-of", "jpg");
+
+        assertEquals(0, exitCode);
+        // a.png doesn't take the name of a_2.jpg
+        for (String name : new String[]{"a.jpg", "a_2.jpg", "a_3.jpg"}) {
+            assertTrue(name, Files.exists(outputDir.resolve(name)));
+        }
+        try (java.util.stream.Stream<java.nio.file.Path> outputs = Files.list(outputDir)) {
+            assertEquals(3, outputs.filter(path -> path.toString().endsWith(".jpg")).count());
+        }
+    }
+
+    @Test
+    public void batchGlob() {
+        String outputDir = OUTPUT_FOLDER + "batchGlob";
+
+        File outputFile = getTestFile(outputDir + "/test", "png");
+
+        int exitCode = run("-b", "src/test/resources/*.png", "-od", outputDir, "-of", "png");
+
+        assertTrue(outputFile.exists());
+        assertEquals(0, exitCode);
+    }
+
+    @Test
+    public void batchMetrics() throws Exception {
+        String outputDir = OUTPUT_FOLDER + "batchMetrics";
+        File report = new File(outputDir + "/metrics.csv");
+        report.delete();
+
+        int exitCode = run("-b", "src/test/resources/*.png", "-od", outputDir, "-mt", report.getPath());
+
+        assertEquals(0, exitCode);
+        List<String> lines = Files.readAllLines(report.toPath());
+        // header, one line per image, total and mean
+        assertEquals(5, lines.size());
+        assertTrue(lines.get(0).startsWith("image,output,status,read_ms"));
+        assertTrue(lines.get(3).startsWith("total,"));
+    }
+
+    @Test
+    public void batchMetricsOfSkippedImages() throws Exception {
+        java.nio.file.Path outputDir = Files.createTempDirectory("inko-skipped").resolve("out");
+        File report = new File(outputDir.getParent().toFile(), "metrics.csv");
+
+        assertEquals(0, run("-b", "src/test/resources/*.png", "-od", outputDir.toString(), "-ic"));
+        assertEquals(0, run("-b", "src/test/resources/*.png", "-od", outputDir.toString(), "-ic", "-mt", report.getPath()));
+
+        List<String> lines = Files.readAllLines(report.toPath());
+        // the unchanged images are reported, not processed again
+        assertEquals(5, lines.size());
+        assertTrue(lines.get(1), lines.get(1).contains(",skipped,"));
+        assertTrue(lines.get(2), lines.get(2).contains(",skipped,"));
+        assertTrue(lines.get(3), lines.get(3).startsWith("total,,2 images (2 skipped)"));
+    }
+
+    @Test
+    public void batchFailsWithoutEncoder() throws Exception {
+        java.nio.file.Path outputDir = Files.createTempDirectory("inko-encoder").resolve("out");
+        File report = new File(outputDir.getParent().toFile(), "metrics.csv");
+
+        assertEquals(1, run("-b", "src/test/resources/*.png", "-od", outputDir.toString(), "-of", "none", "-ic",
+                "-mt", report.getPath()));
+
+        List<String> lines = Files.readAllLines(report.toPath());
+        assertTrue(lines.get(1), lines.get(1).contains("No encoder for the output format : none"));
+        assertTrue(lines.get(3), lines.get(3).startsWith("total,,2 images"));
+        // nothing is recorded, the next batch tries again
+        assertEquals(1, run("-b", "src/test/resources/*.png", "-od", outputDir.toString(), "-of", "none", "-ic"));
+    }
+
     @Test
     public void runEmpty() {
         int exitCode = run();
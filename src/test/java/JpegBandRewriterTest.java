@@ -0,0 +1,99 @@
+import ch.heigvd.ImageSource;
+import ch.heigvd.JpegBandRewriter;
+import org.junit.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class JpegBandRewriterTest {
+
+    private static final String IMAGE = "src/test/resources/test.jpg";
+    private static final String OUTPUT_FOLDER = "src/test/resources/output/";
+
+    private static BufferedImage textImage() {
+        BufferedImage overlay = new BufferedImage(120, 30, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = overlay.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, 120, 30);
+        g.dispose();
+        return overlay;
+    }
+
+    /**
+     * Splice a band and check that only its MCU rows changed
+     */
+    private static void assertOnlyBandChanged(String path, int x, int y) throws Exception {
+        JpegBandRewriter rewriter = JpegBandRewriter.open(new ImageSource(path));
+        assertNotNull(rewriter);
+        BufferedImage overlay = textImage();
+
+        byte[] jpeg = rewriter.rewrite(overlay, x, y);
+
+        assertNotNull(jpeg);
+        BufferedImage original = ImageIO.read(new File(path));
+        BufferedImage spliced = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertEquals(original.getWidth(), spliced.getWidth());
+        assertEquals(original.getHeight(), spliced.getHeight());
+        // chroma upsampling reads one pixel around a row of blocks
+        int bandTop = y / rewriter.getMcuHeight() * rewriter.getMcuHeight() - 1;
+        int bandBottom = (y + overlay.getHeight() + rewriter.getMcuHeight() - 1) / rewriter.getMcuHeight() * rewriter.getMcuHeight() + 1;
+        for (int row = 0; row < original.getHeight(); row++) {
+            if (row >= bandTop && row < bandBottom) continue;
+            for (int col = 0; col < original.getWidth(); col++) {
+                assertEquals("pixel " + col + "," + row, original.getRGB(col, row), spliced.getRGB(col, row));
+            }
+        }
+        Color center = new Color(spliced.getRGB(x + 60, y + 15));
+        assertTrue(center.getRed() > 200 && center.getGreen() < 60 && center.getBlue() < 60);
+    }
+
+    @Test
+    public void onlyTheBandIsReencoded() throws Exception {
+        assertOnlyBandChanged(IMAGE, 10, 10);
+        assertOnlyBandChanged(IMAGE, 140, 170);
+        assertOnlyBandChanged(IMAGE, 270, 370);
+    }
+
+    @Test
+    public void restartMarkersAreKeptInSequence() throws Exception {
+        BufferedImage image = ImageIO.read(new File(IMAGE));
+        String path = OUTPUT_FOLDER + "restart.jpg";
+        new File(OUTPUT_FOLDER).mkdirs();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree("javax_imageio_jpeg_image_1.0");
+        IIOMetadataNode sequence = (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+        IIOMetadataNode dri = new IIOMetadataNode("dri");
+        // not a divisor of the MCUs of a row
+        dri.setAttribute("interval", "7");
+        sequence.insertBefore(dri, sequence.getElementsByTagName("sos").item(0));
+        metadata.setFromTree("javax_imageio_jpeg_image_1.0", root);
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(new File(path))) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+
+        assertOnlyBandChanged(path, 10, 10);
+        assertOnlyBandChanged(path, 270, 370);
+    }
+
+    @Test
+    public void onlyBaselineJpegsAreOpened() throws Exception {
+        assertNull(JpegBandRewriter.open(new ImageSource("src/test/resources/test.png")));
+    }
+}
@@ -0,0 +1,123 @@
+import ch.heigvd.ExifHandler;
+import ch.heigvd.ImageMetadata;
+import ch.heigvd.ImageSource;
+import ch.heigvd.IndexCommand;
+import ch.heigvd.MetadataIndex;
+import ch.heigvd.OverlayConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MetadataIndexTest {
+
+    private static final OverlayConfig ALL = new OverlayConfig.Builder()
+            .AddExifData(ExifHandler.EXIF.DateOriginal)
+            .AddExifData(ExifHandler.EXIF.CameraModel)
+            .AddExifData(ExifHandler.EXIF.GPSLocation)
+            .AddExifData(ExifHandler.EXIF.ImageSize)
+            .SetGMT(0).build();
+
+    private Path _dir;
+
+    @Before
+    public void copyImages() throws Exception {
+        _dir = Files.createTempDirectory("inko-index");
+        Files.createDirectories(_dir.resolve("sub"));
+        Files.copy(Path.of("src/test/resources/exif.jpg"), _dir.resolve("sub/exif.jpg"));
+        Files.copy(Path.of("src/test/resources/test.jpg"), _dir.resolve("test.jpg"));
+        Files.copy(Path.of("src/test/resources/test.png"), _dir.resolve("test.png"));
+    }
+
+    @Test
+    public void recordsAreReadBack() throws Exception {
+        Path file = _dir.resolve("records.index");
+        ImageMetadata first = new ImageMetadata.Builder().SetDateOriginal(1000).SetModel("Model A")
+                .SetLocation(46.5, 6.5).SetDimensions(800, 600).build();
+        ImageMetadata second = new ImageMetadata.Builder().SetModel("Model A").build();
+        ImageMetadata third = new ImageMetadata.Builder().build();
+        MetadataIndex.write(file, List.of(
+                new MetadataIndex.Record(_dir.resolve("c.jpg"), 3, 30, third),
+                new MetadataIndex.Record(_dir.resolve("a.jpg"), 1, 10, first),
+                new MetadataIndex.Record(_dir.resolve("b.jpg"), 2, 20, second)));
+
+        MetadataIndex index = MetadataIndex.open(file);
+        assertEquals(3, index.size());
+        int a = index.find(_dir.resolve("a.jpg"));
+        int b = index.find(_dir.resolve("sub/../b.jpg"));
+        int c = index.find(_dir.resolve("c.jpg"));
+        assertEquals(-1, index.find(_dir.resolve("d.jpg")));
+        assertEquals(_dir.resolve("b.jpg").toString(), index.getPath(b));
+
+        assertEquals(1, index.getSize(a));
+        assertEquals(30, index.getModified(c));
+        assertEquals(1000, index.getDateOriginal(a));
+        assertEquals(ImageMetadata.NO_DATE, index.getDateOriginal(b));
+        assertEquals("Model A", index.getModel(a));
+        assertEquals("Model A", index.getModel(b));
+        assertNull(index.getModel(c));
+        assertEquals(46.5, index.getLatitude(a), 0);
+        assertTrue(Double.isNaN(index.getLongitude(b)));
+        assertEquals(600, index.get(a).getHeight());
+        assertTrue(index.get(a).hasIfd0() && !index.get(c).hasIfd0());
+    }
+
+    @Test
+    public void indexedImagesGiveTheParsedText() throws Exception {
+        Path file = _dir.resolve("tree.index");
+        assertEquals(0, IndexCommand.index(List.of(_dir.resolve("sub/exif.jpg"), _dir.resolve("test.jpg"),
+                _dir.resolve("test.png")), file, 2));
+
+        MetadataIndex index = MetadataIndex.open(file);
+        assertEquals(3, index.size());
+        for (String image : new String[]{"sub/exif.jpg", "test.jpg", "test.png"}) {
+            ImageSource source = new ImageSource(_dir.resolve(image).toString());
+            ImageMetadata indexed = index.lookup(source);
+            assertNotNull(image, indexed);
+            assertEquals(image, new ExifHandler(new ImageSource(_dir.resolve(image).toString()), ALL).ComputeImageText(),
+                    new ExifHandler(source, ALL, indexed).ComputeImageText());
+        }
+        assertEquals("Inko Test Camera", index.getModel(index.find(_dir.resolve("sub/exif.jpg"))));
+    }
+
+    @Test
+    public void modifiedImagesAreNotFound() throws Exception {
+        Path file = _dir.resolve("tree.index");
+        Path image = _dir.resolve("test.jpg");
+        IndexCommand.index(List.of(image), file, 1);
+        MetadataIndex index = MetadataIndex.open(file);
+        assertNotNull(index.lookup(new ImageSource(image.toString())));
+
+        Files.copy(_dir.resolve("sub/exif.jpg"), image, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(image, FileTime.fromMillis(index.getModified(0) + 5000));
+        assertNull(index.lookup(new ImageSource(image.toString())));
+        assertNull(index.lookup(new ImageSource("received.jpg", java.nio.ByteBuffer.wrap(new byte[4]))));
+    }
+
+    @Test
+    public void closedIndexFindsNoImage() throws Exception {
+        Path file = _dir.resolve("tree.index");
+        Path image = _dir.resolve("test.jpg");
+        IndexCommand.index(List.of(image), file, 1);
+        MetadataIndex index;
+        try (MetadataIndex opened = MetadataIndex.open(file)) {
+            assertNotNull(opened.lookup(new ImageSource(image.toString())));
+            index = opened;
+        }
+        assertNull(index.lookup(new ImageSource(image.toString())));
+    }
+
+    @Test(expected = IOException.class)
+    public void foreignFileIsRefused() throws Exception {
+        Path file = _dir.resolve("foreign.index");
+        Files.writeString(file, "not an index, but longer than its header");
+        MetadataIndex.open(file);
+    }
+}
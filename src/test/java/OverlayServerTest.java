@@ -0,0 +1,72 @@
+import ch.heigvd.OverlayServer;
+import ch.heigvd.OverlayService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class OverlayServerTest {
+
+    private static final String IMAGE = "src/test/resources/test.jpg";
+
+    private OverlayServer _server;
+    private final HttpClient _client = HttpClient.newHttpClient();
+
+    @Before
+    public void start() throws Exception {
+        _server = new OverlayServer(new OverlayService(), 0, 2);
+        _server.start();
+    }
+
+    @After
+    public void stop() {
+        _server.stop();
+    }
+
+    private HttpResponse<byte[]> post(String query, byte[] body) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + _server.getPort() + "/overlay?" + query))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        return _client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    @Test
+    public void imageIsOverlaidAndEncoded() throws Exception {
+        byte[] image = Files.readAllBytes(Path.of(IMAGE));
+
+        HttpResponse<byte[]> response = post("t=Hello%20world&po=c&is&of=png", image);
+
+        assertEquals(200, response.statusCode());
+        assertEquals("image/png", response.headers().firstValue("Content-Type").orElse(null));
+        BufferedImage overlaid = ImageIO.read(new ByteArrayInputStream(response.body()));
+        BufferedImage original = ImageIO.read(new ByteArrayInputStream(image));
+        assertEquals(original.getWidth(), overlaid.getWidth());
+        assertEquals(original.getHeight(), overlaid.getHeight());
+
+        HttpResponse<byte[]> spliced = post("t=Hello&sj", image);
+        assertEquals(200, spliced.statusCode());
+        assertEquals("image/jpeg", spliced.headers().firstValue("Content-Type").orElse(null));
+        assertNotNull(ImageIO.read(new ByteArrayInputStream(spliced.body())));
+    }
+
+    @Test
+    public void invalidRequestsAreRejected() throws Exception {
+        byte[] image = Files.readAllBytes(Path.of(IMAGE));
+
+        // options reading or writing files
+        assertEquals(400, post("p=/etc/passwd", image).statusCode());
+        assertEquals(400, post("o=/tmp/out", image).statusCode());
+        assertEquals(400, post("unknown=1", image).statusCode());
+        assertEquals(415, post("t=Hello", "not an image".getBytes()).statusCode());
+    }
+}
@@ -0,0 +1,132 @@
+import ch.heigvd.ImageSource;
+import ch.heigvd.JobMetrics;
+import ch.heigvd.MetricsReport;
+import ch.heigvd.OverlayConfig;
+import ch.heigvd.OverlayService;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class OverlayServiceTest {
+
+    private static final String IMAGE = "src/test/resources/test.jpg";
+
+    /**
+     * Check that two images are identical pixel by pixel
+     */
+    private static void assertSameImage(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void concurrentJobsDontShareState() throws Exception {
+        OverlayService service = new OverlayService();
+        OverlayConfig jpeg = new OverlayConfig.Builder().AddText("first").SetSeparator("|")
+                .SetBackgroundColor("#80FFFFFF").SetPosition("lt").SetOutputFormat("jpeg").build();
+        OverlayConfig png = new OverlayConfig.Builder().AddText("second").SetSeparator("_")
+                .SetFontColor("#FFFF0000").SetPosition("c").SetOutputFormat("png").build();
+
+        BufferedImage expectedJpeg = service.render(new ImageSource(IMAGE), jpeg);
+        BufferedImage expectedPng = service.render(new ImageSource(IMAGE), png);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<BufferedImage>> jpegs = new ArrayList<>();
+            List<Future<BufferedImage>> pngs = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                jpegs.add(pool.submit(() -> service.render(new ImageSource(IMAGE), jpeg)));
+                pngs.add(pool.submit(() -> service.render(new ImageSource(IMAGE), png)));
+            }
+            for (int i = 0; i < 8; i++) {
+                assertSameImage(expectedJpeg, jpegs.get(i).get());
+                assertSameImage(expectedPng, pngs.get(i).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void receivedBytesAreReadFromTheirPosition() throws Exception {
+        OverlayService service = new OverlayService();
+        OverlayConfig config = new OverlayConfig.Builder().AddText("received").SetOutputFormat("png").build();
+        byte[] image = java.nio.file.Files.readAllBytes(java.nio.file.Path.of(IMAGE));
+        // the image in the middle of a larger buffer
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(image.length + 64);
+        buffer.position(32);
+        buffer.put(image);
+        buffer.position(32).limit(32 + image.length);
+
+        ImageSource source = new ImageSource("received.jpg", buffer);
+        assertEquals(image.length, source.getSize());
+        assertSameImage(service.render(new ImageSource(IMAGE), config), service.render(source, config));
+    }
+
+    @Test
+    public void configIsReusable() throws Exception {
+        OverlayService service = new OverlayService();
+        OverlayConfig config = new OverlayConfig.Builder().AddText("a").AddText("b").build();
+
+        BufferedImage first = service.render(new ImageSource(IMAGE), config);
+        BufferedImage second = service.render(new ImageSource(IMAGE), config);
+
+        assertSameImage(first, second);
+    }
+
+    @Test
+    public void metricsAreGivenToListeners() throws Exception {
+        OverlayService service = new OverlayService();
+        MetricsReport report = new MetricsReport();
+        service.addMetricsListener(report);
+        OverlayConfig config = new OverlayConfig.Builder().AddText("metrics").build();
+
+        service.process(IMAGE, "src/test/resources/output/metrics", config);
+        try {
+            service.process("src/test/resources/missing.jpg", "src/test/resources/output/missing", config);
+            fail();
+        } catch (java.io.IOException expected) {
+            // reported as failed
+        }
+
+        assertEquals(2, report.getImages().size());
+        JobMetrics metrics = report.getImages().get(0);
+        assertTrue(metrics.isSucceeded());
+        assertTrue(metrics.getNanos(JobMetrics.Stage.DECODE) > 0);
+        assertTrue(metrics.getNanos(JobMetrics.Stage.ENCODE) > 0);
+        assertTrue(metrics.getNanos(JobMetrics.Stage.WRITE) > 0);
+        assertEquals(new java.io.File(IMAGE).length(), metrics.getBytesIn());
+        assertEquals(new java.io.File(metrics.getOutputPath()).length(), metrics.getBytesOut());
+        // decoded 800 x 400 image, 3 bytes per pixel
+        assertTrue(metrics.getRasterBytes() >= 3L * 800 * 400);
+        assertFalse(report.getImages().get(1).isSucceeded());
+        assertEquals(metrics.getBytesIn(), report.aggregate().getBytesIn());
+    }
+
+    @Test
+    public void rasterBytesAreThePeak() {
+        JobMetrics metrics = new JobMetrics(null);
+        BufferedImage decoded = new BufferedImage(100, 10, BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage converted = new BufferedImage(100, 10, BufferedImage.TYPE_INT_RGB);
+        metrics.addRaster(decoded);
+        metrics.addRaster(converted);
+        metrics.releaseRaster(decoded);
+        metrics.releaseRaster(converted);
+        // given back before the next one, the thumbnail isn't added to the peak
+        metrics.addRaster(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB));
+        assertEquals(3000 + 4000, metrics.getRasterBytes());
+    }
+}
@@ -0,0 +1,154 @@
+import ch.heigvd.AsyncFileWriter;
+import ch.heigvd.Pipeline;
+import ch.heigvd.PipelineSettings;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PipelineTest {
+
+    @Test
+    public void itemsGoThroughAllTheStages() throws Exception {
+        List<String> done = new CopyOnWriteArrayList<>();
+        Pipeline<StringBuilder> pipeline = new Pipeline<>((item, ex) -> fail(ex.toString()));
+        pipeline.addStage("a", 2, 2, item -> item.append('a') != null)
+                .addStage("b", 3, 2, item -> item.append('b') != null)
+                .addStage("c", 1, 2, item -> done.add(item.append('c').toString()));
+        pipeline.start();
+        for (int i = 0; i < 100; i++) {
+            pipeline.submit(new StringBuilder().append(i).append(':'));
+        }
+        pipeline.close();
+
+        assertEquals(100, done.size());
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 100; i++) expected.add(i + ":abc");
+        assertEquals(expected, new HashSet<>(done));
+        assertTrue(pipeline.toString().contains("Stage b       : 3 threads, 100 items"));
+    }
+
+    @Test
+    public void failedItemsLeaveThePipeline() throws Exception {
+        Map<Integer, Exception> failures = new ConcurrentHashMap<>();
+        AtomicInteger last = new AtomicInteger();
+        Pipeline<Integer> pipeline = new Pipeline<>(failures::put);
+        pipeline.addStage("check", 2, 2, item -> {
+                    if (item % 10 == 0) throw new IOException("failed " + item);
+                    if (item % 10 == 5) throw new OutOfMemoryError("too large " + item);
+                    return true;
+                })
+                .addStage("last", 1, 2, item -> last.incrementAndGet() > 0);
+        pipeline.start();
+        for (int i = 0; i < 50; i++) {
+            pipeline.submit(i);
+        }
+        pipeline.close();
+
+        assertEquals(40, last.get());
+        assertEquals(10, failures.size());
+        assertTrue(failures.get(20) instanceof IOException);
+        assertTrue(failures.get(25).getCause() instanceof OutOfMemoryError);
+    }
+
+    @Test(timeout = 10000)
+    public void failingHandlerDoesntStopThePipeline() throws Exception {
+        AtomicInteger last = new AtomicInteger();
+        Pipeline<Integer> pipeline = new Pipeline<>((item, ex) -> {
+            throw new IllegalStateException("handler failed for " + item);
+        });
+        pipeline.addStage("check", 1, 2, item -> {
+                    if (item % 2 == 0) throw new IOException("failed " + item);
+                    return true;
+                })
+                .addStage("last", 1, 2, item -> last.incrementAndGet() > 0);
+        pipeline.start();
+        for (int i = 0; i < 20; i++) {
+            pipeline.submit(i);
+        }
+        pipeline.close();
+
+        assertEquals(10, last.get());
+    }
+
+    @Test
+    public void aSlowStageHoldsBackTheOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger read = new AtomicInteger();
+        Pipeline<Integer> pipeline = new Pipeline<>((item, ex) -> fail(ex.toString()));
+        pipeline.addStage("read", 1, 2, item -> read.incrementAndGet() > 0)
+                .addStage("slow", 1, 2, item -> {
+                    release.await();
+                    return true;
+                });
+        pipeline.start();
+        Thread submitter = new Thread(() -> {
+            try {
+                for (int i = 0; i < 20; i++) pipeline.submit(i);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        submitter.start();
+        Thread.sleep(200);
+
+        // 1 in the slow stage, 2 in its queue, 1 waiting to be put in it
+        assertEquals(4, read.get());
+        assertTrue(submitter.isAlive());
+        release.countDown();
+        submitter.join();
+        pipeline.close();
+        assertEquals(20, read.get());
+    }
+
+    @Test
+    public void filesAreWrittenAsynchronously() throws Exception {
+        File dir = Files.createTempDirectory("inko-writer").toFile();
+        List<Long> written = new CopyOnWriteArrayList<>();
+        List<IOException> failed = new CopyOnWriteArrayList<>();
+        AsyncFileWriter.Callback callback = new AsyncFileWriter.Callback() {
+            @Override
+            public void completed(long bytes) {
+                written.add(bytes);
+            }
+
+            @Override
+            public void failed(IOException ex) {
+                failed.add(ex);
+            }
+        };
+        byte[] bytes = new byte[3 << 20];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) (i * 31);
+
+        try (AsyncFileWriter writer = new AsyncFileWriter(2, 2)) {
+            for (int i = 0; i < 6; i++) {
+                writer.write(new File(dir, i + ".bin").toPath(), bytes, callback);
+            }
+            writer.write(new File(dir, "missing/x.bin").toPath(), bytes, callback);
+        }
+
+        assertEquals(6, written.size());
+        assertEquals(1, failed.size());
+        for (int i = 0; i < 6; i++) {
+            assertArrayEquals(bytes, Files.readAllBytes(new File(dir, i + ".bin").toPath()));
+        }
+    }
+
+    @Test
+    public void invalidStagesKeepTheDefaults() {
+        assertEquals("1,3,3,3,1", new PipelineSettings.Builder().SetThreads(3).SetStages("1,2,3").build().toString());
+        assertEquals("2,4,1,4,1", new PipelineSettings.Builder().SetThreads(3).SetStages("2, 4,1,4,1").build().toString());
+        assertEquals("1,3,3,3,1", new PipelineSettings.Builder().SetThreads(3).SetStages("1,0,1,1,1").build().toString());
+    }
+}
@@ -0,0 +1,92 @@
+import ch.heigvd.ImageHandler;
+import ch.heigvd.ImageSource;
+import ch.heigvd.RasterPool;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+
+import static org.junit.Assert.*;
+
+public class RasterPoolTest {
+
+    private static final int[] TYPES = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR};
+
+    private static Object buffer(BufferedImage image) {
+        if (image.getRaster().getDataBuffer() instanceof DataBufferInt) {
+            return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+
+    @Test
+    public void imagesHaveTheStandardTypes() {
+        RasterPool pool = new RasterPool(64 << 20);
+        for (int type : TYPES) {
+            BufferedImage image = pool.newImage(640, 480, type, true);
+            BufferedImage expected = new BufferedImage(640, 480, type);
+
+            assertEquals(type, image.getType());
+            image.setRGB(10, 20, 0x80FF8040);
+            expected.setRGB(10, 20, 0x80FF8040);
+            assertEquals(expected.getRGB(10, 20), image.getRGB(10, 20));
+            assertEquals(expected.getRGB(639, 479), image.getRGB(639, 479));
+        }
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+        RasterPool pool = new RasterPool(64 << 20);
+        for (int type : TYPES) {
+            BufferedImage first = pool.newImage(1000, 700, type, false);
+            first.setRGB(999, 699, 0xFF123456);
+            pool.release(first);
+
+            // a slightly smaller image is in the same size class
+            BufferedImage second = pool.newImage(990, 700, type, true);
+
+            assertSame(buffer(first), buffer(second));
+            assertEquals(new BufferedImage(1, 1, type).getRGB(0, 0), second.getRGB(989, 699));
+        }
+        assertEquals(TYPES.length, pool.getHits());
+        assertEquals(TYPES.length, pool.getMisses());
+        assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test
+    public void idleBuffersAreBounded() {
+        RasterPool pool = new RasterPool(6 << 20);
+        BufferedImage first = pool.newImage(1000, 1000, BufferedImage.TYPE_INT_RGB, false);
+        BufferedImage second = pool.newImage(1000, 1000, BufferedImage.TYPE_INT_RGB, false);
+        BufferedImage small = pool.newImage(100, 100, BufferedImage.TYPE_INT_RGB, false);
+
+        pool.release(first);
+        pool.release(second);
+        pool.release(small);
+
+        // one buffer of about 4 MB fits, the small images aren't pooled
+        assertTrue(pool.getIdleBytes() >= 4_000_000 && pool.getIdleBytes() <= 6 << 20);
+        pool.clear();
+        assertEquals(0, pool.getIdleBytes());
+    }
+
+    @Test
+    public void decodedImagesUseThePool() throws Exception {
+        RasterPool pool = new RasterPool(64 << 20);
+        BufferedImage expected = new ImageHandler(new ImageSource("src/test/resources/test.jpg"), new RasterPool(0)).getImage();
+        BufferedImage first = new ImageHandler(new ImageSource("src/test/resources/test.jpg"), pool).getImage();
+        pool.release(first);
+
+        BufferedImage second = new ImageHandler(new ImageSource("src/test/resources/test.jpg"), pool).getImage();
+
+        assertSame(buffer(first), buffer(second));
+        assertEquals(expected.getType(), second.getType());
+        for (int y = 0; y < expected.getHeight(); y += 7) {
+            for (int x = 0; x < expected.getWidth(); x += 7) {
+                assertEquals(expected.getRGB(x, y), second.getRGB(x, y));
+            }
+        }
+    }
+}
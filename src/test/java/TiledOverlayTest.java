@@ -0,0 +1,211 @@
+import ch.heigvd.ImageEncoder;
+import ch.heigvd.ImageHandler;
+import ch.heigvd.ImageSource;
+import ch.heigvd.ImageTextOverlay;
+import ch.heigvd.JobMetrics;
+import ch.heigvd.OverlayConfig;
+import ch.heigvd.OverlayService;
+import ch.heigvd.PngStripReader;
+import ch.heigvd.RasterPool;
+import ch.heigvd.TiledOverlay;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TiledOverlayTest {
+
+    private static final String OUTPUT_FOLDER = "src/test/resources/output/";
+    private static final String PNG = OUTPUT_FOLDER + "strips.png";
+    private static final String JPEG = OUTPUT_FOLDER + "strips.jpg";
+    // three strips
+    private static final int WIDTH = 6000, HEIGHT = 1500;
+
+    @BeforeClass
+    public static void createImages() throws Exception {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.BLUE, WIDTH, HEIGHT, Color.ORANGE));
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        // sharp chroma edges, a strip upsampled alone differs on its border rows
+        for (int y = 0; y < HEIGHT; y += 10) {
+            g.setColor(y % 20 == 0 ? Color.RED : Color.GREEN);
+            g.fillRect(0, y, WIDTH / 8, 5);
+        }
+        g.dispose();
+        new File(OUTPUT_FOLDER).mkdirs();
+        ImageIO.write(image, "png", new File(PNG));
+        ImageIO.write(image, "jpeg", new File(JPEG));
+    }
+
+    private static OverlayConfig config(String format) {
+        return config(format, ImageEncoder.defaults());
+    }
+
+    private static OverlayConfig config(String format, ImageEncoder encoder) {
+        // the text is across the strips
+        return new OverlayConfig.Builder().AddText("Strip by strip").SetFontSize("400")
+                .SetFontColor("#FFFF0000").SetPosition("c").SetOutputFormat(format).SetEncoder(encoder).build();
+    }
+
+    /**
+     * Overlay the whole image and encode it, as the output without strips
+     */
+    private static BufferedImage whole(String path, OverlayConfig config) throws Exception {
+        BufferedImage rendered = new OverlayService().render(new ImageSource(path), config);
+        byte[] encoded = ImageHandler.encodeImage(rendered, config.getOutputFormat(), config.getEncoder(),
+                new JobMetrics(path));
+        return ImageIO.read(new ByteArrayInputStream(encoded));
+    }
+
+    private static BufferedImage tiled(String path, OverlayConfig config) throws Exception {
+        ImageSource source = new ImageSource(path);
+        assertTrue(source.probeDimensions());
+        ImageTextOverlay overlayer = new ImageTextOverlay(config);
+        BufferedImage text = overlayer.CreateImageText("Strip by strip", WIDTH);
+        Point position = overlayer.positionImage(WIDTH, HEIGHT, text, config.getPosition());
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        JobMetrics metrics = new JobMetrics(path);
+
+        TiledOverlay.write(source, overlayer, text, position, config.getOutputFormat(), config.getEncoder(), encoded,
+                metrics);
+
+        // a strip, not the 3 bytes per pixel of the whole image
+        assertTrue(metrics.getRasterBytes() < 3L * WIDTH * HEIGHT / 2);
+        return ImageIO.read(new ByteArrayInputStream(encoded.toByteArray()));
+    }
+
+    /**
+     * Get the largest difference of a channel between two images
+     */
+    private static int maxDifference(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        int max = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int a = expected.getRGB(x, y), b = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    max = Math.max(max, Math.abs((a >> shift & 0xFF) - (b >> shift & 0xFF)));
+                }
+            }
+        }
+        return max;
+    }
+
+    @Test
+    public void pngStripsAreTheWholeImage() throws Exception {
+        OverlayConfig config = config("png");
+        BufferedImage expected = new OverlayService().render(new ImageSource(PNG), config);
+
+        BufferedImage actual = tiled(PNG, config);
+
+        assertEquals(0, maxDifference(expected, actual));
+    }
+
+    @Test
+    public void jpegStripsAreEncodedAsOneJpeg() throws Exception {
+        OverlayConfig config = config("jpeg");
+
+        BufferedImage actual = tiled(JPEG, config);
+
+        // the chroma of the rows around the strip borders is upsampled with the rows of the next strip
+        assertEquals(0, maxDifference(whole(JPEG, config), actual));
+        Color center = new Color(actual.getRGB(WIDTH / 2 - 60, HEIGHT / 2));
+        assertTrue(center.getRed() > 200 && center.getGreen() < 60);
+    }
+
+    @Test
+    public void jpegStripsHaveNoSeamWithAnySubsampling() throws Exception {
+        for (String subsampling : new String[]{"444", "422"}) {
+            OverlayConfig config = config("jpeg", new ImageEncoder.Builder().SetQuality("90")
+                    .SetChromaSubsampling(subsampling).build());
+
+            assertEquals(subsampling, 0, maxDifference(whole(JPEG, config), tiled(JPEG, config)));
+        }
+    }
+
+    @Test
+    public void jpegStripsAreEncodedAsPng() throws Exception {
+        OverlayConfig config = config("png");
+        BufferedImage expected = new OverlayService().render(new ImageSource(JPEG), config);
+
+        BufferedImage actual = tiled(JPEG, config);
+
+        assertEquals(0, maxDifference(expected, actual));
+    }
+
+    /**
+     * Encode an image with the ImageIO writer, progressive or interlaced
+     */
+    private static ImageSource encode(BufferedImage image, String format, boolean progressive) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(output)) {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return new ImageSource("test." + format, ByteBuffer.wrap(output.toByteArray()));
+    }
+
+    @Test
+    public void pngRowsAreTheOnesOfImageIO() throws Exception {
+        for (int type : new int[]{BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR}) {
+            BufferedImage image = new BufferedImage(301, 97, type);
+            // noise and flat areas, the rows get different filters
+            java.util.Random random = new java.util.Random(type);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    image.setRGB(x, y, y < 40 ? random.nextInt() : x * 0x010203 | (y << 24));
+                }
+            }
+            ImageSource source = encode(image, "png", false);
+            byte[] bytes = new byte[source.getBytes().remaining()];
+            source.getBytes().get(bytes);
+            BufferedImage expected = ImageIO.read(new ByteArrayInputStream(bytes));
+            PngStripReader reader = PngStripReader.open(source);
+            assertNotNull(reader);
+
+            int y = 0;
+            for (BufferedImage strip; (strip = reader.next(16)) != null; y += strip.getHeight()) {
+                assertEquals(expected.getType(), strip.getType());
+                for (int row = 0; row < strip.getHeight(); row++) {
+                    for (int x = 0; x < strip.getWidth(); x++) {
+                        assertEquals(expected.getRGB(x, y + row), strip.getRGB(x, row));
+                    }
+                }
+                RasterPool.shared().release(strip);
+            }
+            reader.close();
+            assertEquals(image.getHeight(), y);
+        }
+    }
+
+    @Test
+    public void progressiveImagesAreDecodedEntirely() throws Exception {
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_3BYTE_BGR);
+
+        assertTrue(TiledOverlay.isStreamable(encode(image, "jpeg", false)));
+        assertTrue(TiledOverlay.isStreamable(encode(image, "png", false)));
+        assertFalse(TiledOverlay.isStreamable(encode(image, "jpeg", true)));
+        assertFalse(TiledOverlay.isStreamable(encode(image, "png", true)));
+    }
+}